@@ -74,4 +74,20 @@
 
     @AttributeDefinition(name = "Column mapping", description = "Full path to the clarity mapping node")
     String mapping() default "/apps/cards/clarityImport";
+
+    @AttributeDefinition(name = "Batch size",
+        description = "How many rows to import before saving the changes; 1 saves after each row",
+        required = false)
+    int batchSize() default 100;
+
+    @AttributeDefinition(name = "Batch interval",
+        description = "The maximum time, in milliseconds, to keep imported rows unsaved",
+        required = false)
+    int batchInterval() default 5000;
+
+    @AttributeDefinition(name = "Fetch size",
+        description = "How many rows to fetch from the Clarity server at once, also used as the number of rows"
+            + " read ahead while previous rows are being imported",
+        required = false)
+    int fetchSize() default 500;
 }
@@ -37,8 +37,11 @@
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
 
 import io.uhndata.cards.clarity.importer.spi.ClarityDataProcessor;
+import io.uhndata.cards.clarity.importer.spi.ClaritySubjectLookup;
+import io.uhndata.cards.metrics.MetricsRegistry;
 import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
 
 @Component(service = { Servlet.class })
@@ -56,6 +59,12 @@ public class ClarityImportEndpoint extends SlingSafeMethodsServlet
     @Reference
     private ThreadResourceResolverProvider rrp;
 
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policyOption = ReferencePolicyOption.GREEDY)
+    private volatile MetricsRegistry metricsRegistry;
+
+    @Reference
+    private ClaritySubjectLookup subjectLookup;
+
     /** A list of all available data processors. */
     @Reference(cardinality = ReferenceCardinality.MULTIPLE, fieldOption = FieldOption.REPLACE,
         policy = ReferencePolicy.DYNAMIC)
@@ -100,7 +109,8 @@ public void doGet(final SlingHttpServletRequest request, final SlingHttpServletR
 
         final int pastDayToQuery = getPastDayToQuery(request);
         final Runnable importJob =
-            new ClarityImportTask(config, pastDayToQuery, this.resolverFactory, this.rrp, this.processors);
+            new ClarityImportTask(config, pastDayToQuery, this.resolverFactory, this.rrp, this.metricsRegistry,
+                this.processors, this.subjectLookup);
         final Thread thread = new Thread(importJob);
         thread.start();
         writeSuccess(response);
@@ -23,19 +23,27 @@
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import javax.jcr.Node;
@@ -54,12 +62,20 @@
 import org.slf4j.LoggerFactory;
 
 import io.uhndata.cards.clarity.importer.spi.ClarityDataProcessor;
+import io.uhndata.cards.clarity.importer.spi.ClaritySubjectLookup;
 import io.uhndata.cards.metrics.Metrics;
+import io.uhndata.cards.metrics.MetricsRegistry;
 import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
 
 /**
  * Query the Clarity server every so often to obtain all of the visits and patients that have appeared throughout the
  * day. This will patch over patient and visit information forms.
+ * <p>
+ * Rows are read from the Clarity server in a separate thread, while previous rows are processed and stored. Changes are
+ * saved in batches of {@code batchSize} rows, or after {@code batchInterval} milliseconds. If storing a row or saving a
+ * batch fails, the whole batch is discarded, and its rows are imported again one by one, so that only the bad rows are
+ * lost.
+ * </p>
  *
  * @version $Id$
  */
@@ -80,13 +96,16 @@ public class ClarityImportTask implements Runnable
 
     private static final String VALUE_PROP = "value";
 
+    /** Marker placed in the row queue once all the rows were read from the Clarity server. */
+    private static final Map<String, String> END_OF_RESULTS = Collections.unmodifiableMap(new HashMap<>());
+
     private final ClarityImportConfigDefinition config;
 
     private final int dayToQuery;
 
     private final ThreadLocal<Map<String, String>> sqlColumnToDataType = ThreadLocal.withInitial(HashMap::new);
 
-    private final ThreadLocal<List<String>> nodesToCheckin = ThreadLocal.withInitial(LinkedList::new);
+    private final ThreadLocal<ImportBatch> currentBatch = ThreadLocal.withInitial(ImportBatch::new);
 
     private final ThreadLocal<VersionManager> versionManager = new ThreadLocal<>();
 
@@ -97,8 +116,13 @@ public class ClarityImportTask implements Runnable
 
     private final ThreadResourceResolverProvider rrp;
 
+    /** Aggregates the metrics increments, may be {@code null}. */
+    private final MetricsRegistry metricsRegistry;
+
     private final List<ClarityDataProcessor> processors;
 
+    private final ClaritySubjectLookup subjectLookup;
+
     // Helper classes
 
     private enum QuestionType
@@ -225,18 +249,181 @@ public String toString()
         }
     }
 
+    /**
+     * The rows imported since the last save, and the changes that can only be finalized once they are saved.
+     */
+    private static final class ImportBatch
+    {
+        /** The processed rows stored in this batch, kept so that they can be imported again if the batch fails. */
+        private final List<Map<String, String>> rows = new ArrayList<>();
+
+        /**
+         * Subjects created in this batch, identifier to path. They can't be found by querying until they are saved.
+         */
+        private final Map<String, String> subjects = new HashMap<>();
+
+        /** Forms created in this batch, subject path and questionnaire path to form path. */
+        private final Map<String, String> forms = new HashMap<>();
+
+        /** Nodes that must be checked in once this batch is saved. */
+        private final Set<String> nodesToCheckin = new LinkedHashSet<>();
+
+        /** Metric adjustments that must be applied once this batch is saved. */
+        private final Map<String, Long> metricsAdjustments = new HashMap<>();
+
+        private long startTime;
+
+        private void add(final Map<String, String> row)
+        {
+            if (this.rows.isEmpty()) {
+                this.startTime = System.currentTimeMillis();
+            }
+            this.rows.add(row);
+        }
+
+        private boolean isEmpty()
+        {
+            return this.rows.isEmpty();
+        }
+
+        private long timeLeft(final long interval)
+        {
+            return isEmpty() ? interval : Math.max(0, this.startTime + interval - System.currentTimeMillis());
+        }
+
+        private void clear()
+        {
+            this.rows.clear();
+            this.subjects.clear();
+            this.forms.clear();
+            this.nodesToCheckin.clear();
+            this.metricsAdjustments.clear();
+        }
+    }
+
+    /**
+     * Reads rows from the Clarity server in a separate thread, making them available through a bounded queue.
+     */
+    private static final class RowFetcher implements Runnable
+    {
+        private final ResultSet results;
+
+        private final BlockingQueue<Map<String, String>> queue;
+
+        private final Thread thread;
+
+        private volatile boolean stopped;
+
+        /** Only accessed by the import thread, {@code true} once {@link #END_OF_RESULTS} was received. */
+        private boolean endReached;
+
+        RowFetcher(final ResultSet results, final int capacity)
+        {
+            this.results = results;
+            this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+            this.thread = new Thread(this, "ClarityImportTask row fetcher");
+            this.thread.setDaemon(true);
+        }
+
+        private void start()
+        {
+            this.thread.start();
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                final ResultSetMetaData metadata = this.results.getMetaData();
+                final int columnCount = metadata.getColumnCount();
+                final String[] columns = new String[columnCount];
+                for (int column = 1; column <= columnCount; column++) {
+                    columns[column - 1] = metadata.getColumnName(column);
+                }
+                while (!this.stopped && this.results.next()) {
+                    final Map<String, String> row = new HashMap<>();
+                    for (int column = 1; column <= columnCount; column++) {
+                        row.put(columns[column - 1], this.results.getString(column));
+                    }
+                    put(row);
+                }
+            } catch (SQLException e) {
+                LOGGER.error("Failed to read Clarity data: {}", e.getMessage(), e);
+            } finally {
+                put(END_OF_RESULTS);
+            }
+        }
+
+        /**
+         * Wait for the next row, and take all the rows already read.
+         *
+         * @param timeout how long to wait, in milliseconds
+         * @return the available rows, empty if no row was available before the timeout or all the rows were read
+         * @throws InterruptedException if the import thread is interrupted while waiting
+         */
+        private List<Map<String, String>> poll(final long timeout) throws InterruptedException
+        {
+            final List<Map<String, String>> rows = new ArrayList<>();
+            if (this.endReached) {
+                return rows;
+            }
+            final Map<String, String> row = this.queue.poll(timeout, TimeUnit.MILLISECONDS);
+            if (row != null) {
+                rows.add(row);
+                this.queue.drainTo(rows);
+            }
+            if (!rows.isEmpty() && rows.get(rows.size() - 1) == END_OF_RESULTS) {
+                rows.remove(rows.size() - 1);
+                this.endReached = true;
+            }
+            return rows;
+        }
+
+        private boolean isEndReached()
+        {
+            return this.endReached;
+        }
+
+        private void put(final Map<String, String> row)
+        {
+            try {
+                while (!this.stopped) {
+                    if (this.queue.offer(row, 100, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                this.stopped = true;
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void stop()
+        {
+            this.stopped = true;
+            try {
+                this.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     /** Provides access to resources. */
     private final ResourceResolverFactory resolverFactory;
 
     ClarityImportTask(final ClarityImportConfigDefinition config, final int dayToQuery,
         final ResourceResolverFactory resolverFactory, final ThreadResourceResolverProvider rrp,
-        final List<ClarityDataProcessor> processors)
+        final MetricsRegistry metricsRegistry, final List<ClarityDataProcessor> processors,
+        final ClaritySubjectLookup subjectLookup)
     {
         this.config = config;
         this.dayToQuery = dayToQuery;
         this.resolverFactory = resolverFactory;
         this.rrp = rrp;
+        this.metricsRegistry = metricsRegistry;
         this.processors = processors;
+        this.subjectLookup = subjectLookup;
     }
 
     // The entry point for running an import
@@ -263,33 +450,25 @@ public void run()
             populateClarityImportConfiguration(resolver, resolver.resolve(this.config.mapping()),
                 this.clarityImportConfiguration.get());
 
-            // Generate and perform the query
-            PreparedStatement statement = connection.prepareStatement(generateClarityQuery());
-            ResultSet results = statement.executeQuery();
-
             // Sort and filter the data processors
             List<ClarityDataProcessor> sortedProcessors = new ArrayList<>(this.processors).stream()
                 .filter(p -> p.supportsImportType(this.config.type())).sorted().collect(Collectors.toList());
 
-            while (results.next()) {
-                // Create the Subjects and Forms as is needed
-                try {
-                    createFormsAndSubjects(resolver, results, sortedProcessors);
-                    session.save();
-                } catch (ParseException | PersistenceException e) {
-                    LOGGER.error("Exception while importing data to JCR", e);
-                } catch (Exception e) {
-                    LOGGER.error("Unhandled exception while importing data: {}", e.getMessage(), e);
-                } finally {
-                    // If everything was saved successfully, this shouldn't discard anything; but if there was an error,
-                    // without discarding the bad data all the subsequent saves would fail too
-                    session.refresh(false);
-                }
+            // Generate and perform the query
+            this.subjectLookup.start();
+            sortedProcessors.forEach(ClarityDataProcessor::start);
+            try {
+                queryAndImportRows(connection, resolver, session, sortedProcessors);
+            } finally {
+                sortedProcessors.forEach(ClarityDataProcessor::end);
+                this.subjectLookup.end();
             }
 
-            checkinNodes();
             updatePerformanceCounters();
 
+        } catch (InterruptedException e) {
+            LOGGER.warn("Clarity import interrupted");
+            Thread.currentThread().interrupt();
         } catch (SQLException e) {
             LOGGER.error("Failed to connect to SQL: {}", e.getMessage(), e);
         } catch (LoginException e) {
@@ -305,21 +484,188 @@ public void run()
         }
     }
 
-    private void checkinNodes()
+    // Methods for batching the imported rows
+
+    private void queryAndImportRows(final Connection connection, final ResourceResolver resolver,
+        final Session session, final List<ClarityDataProcessor> processors)
+        throws SQLException, InterruptedException, RepositoryException
     {
-        this.nodesToCheckin.get().forEach(node -> {
+        try (PreparedStatement statement = connection.prepareStatement(generateClarityQuery())) {
+            if (this.config.fetchSize() > 0) {
+                statement.setFetchSize(this.config.fetchSize());
+            }
+            final RowFetcher fetcher = new RowFetcher(statement.executeQuery(), this.config.fetchSize());
+            fetcher.start();
             try {
-                this.versionManager.get().checkin(node);
-            } catch (final RepositoryException e) {
-                LOGGER.warn("Failed to check in node {}: {}", node, e.getMessage(), e);
+                importRows(resolver, session, fetcher, processors);
+            } finally {
+                fetcher.stop();
+            }
+        }
+    }
+
+    private void importRows(final ResourceResolver resolver, final Session session, final RowFetcher fetcher,
+        final List<ClarityDataProcessor> processors) throws InterruptedException, RepositoryException
+    {
+        final ImportBatch batch = this.currentBatch.get();
+        final int batchSize = Math.max(1, this.config.batchSize());
+        final long batchInterval = Math.max(1, this.config.batchInterval());
+
+        while (!fetcher.isEndReached()) {
+            final List<Map<String, String>> rows = fetcher.poll(batch.timeLeft(batchInterval));
+            // Look up all the subjects needed by these rows at once
+            prefetchSubjects(rows);
+            for (final Map<String, String> row : rows) {
+                importRow(resolver, session, row, processors);
+                saveBatchIfNeeded(resolver, session, batchSize, batchInterval);
             }
-        });
+            saveBatchIfNeeded(resolver, session, batchSize, batchInterval);
+        }
+        saveBatch(resolver, session);
+    }
+
+    private void prefetchSubjects(final List<Map<String, String>> rows)
+    {
+        if (rows.isEmpty()) {
+            return;
+        }
+        final Set<String> identifiers = new HashSet<>();
+        rows.forEach(row -> collectSubjectIdentifiers(row, this.clarityImportConfiguration.get(), identifiers));
+        this.subjectLookup.prefetch(identifiers);
+    }
+
+    private void collectSubjectIdentifiers(final Map<String, String> row, final ClaritySubjectMapping subjectMapping,
+        final Set<String> identifiers)
+    {
+        if (StringUtils.isNotEmpty(subjectMapping.subjectIdColumn)) {
+            identifiers.add(row.get(subjectMapping.subjectIdColumn));
+        }
+        subjectMapping.childSubjects.forEach(child -> collectSubjectIdentifiers(row, child, identifiers));
+    }
+
+    private void saveBatchIfNeeded(final ResourceResolver resolver, final Session session, final int batchSize,
+        final long batchInterval) throws RepositoryException
+    {
+        final ImportBatch batch = this.currentBatch.get();
+        if (batch.rows.size() >= batchSize || (!batch.isEmpty() && batch.timeLeft(batchInterval) == 0)) {
+            saveBatch(resolver, session);
+        }
+    }
+
+    private void importRow(final ResourceResolver resolver, final Session session, final Map<String, String> sqlRow,
+        final List<ClarityDataProcessor> processors) throws RepositoryException
+    {
+        final Map<String, String> row = processRow(sqlRow, processors);
+        if (row == null) {
+            return;
+        }
+        final ImportBatch batch = this.currentBatch.get();
+        if (!batch.isEmpty() && !session.hasPendingChanges()) {
+            // A processor already saved the session, so the rows in this batch are already stored
+            finishBatch();
+        }
+
+        // Create the Subjects and Forms as is needed
+        try {
+            storeRow(resolver, row);
+            batch.add(row);
+        } catch (ParseException | PersistenceException e) {
+            LOGGER.error("Exception while importing data to JCR", e);
+            retryBatch(resolver, session);
+        } catch (Exception e) {
+            LOGGER.error("Unhandled exception while importing data: {}", e.getMessage(), e);
+            retryBatch(resolver, session);
+        }
+    }
+
+    private void saveBatch(final ResourceResolver resolver, final Session session) throws RepositoryException
+    {
+        try {
+            session.save();
+            finishBatch();
+        } catch (RepositoryException e) {
+            LOGGER.error("Failed to save a batch of {} imported rows: {}", this.currentBatch.get().rows.size(),
+                e.getMessage(), e);
+            retryBatch(resolver, session);
+        }
+    }
+
+    /**
+     * Discard the unsaved changes, and import again, one by one, all the rows from the current batch that were
+     * successfully stored before the failure.
+     *
+     * @param resolver the resolver used for the import
+     * @param session the session used for the import
+     * @throws RepositoryException if discarding the changes fails
+     */
+    private void retryBatch(final ResourceResolver resolver, final Session session) throws RepositoryException
+    {
+        final ImportBatch batch = this.currentBatch.get();
+        final List<Map<String, String>> rows = new ArrayList<>(batch.rows);
+        // Without discarding the bad data all the subsequent saves would fail too
+        discardBatch(session);
+        if (rows.size() > 1) {
+            LOGGER.info("Importing again {} rows one by one", rows.size());
+        }
+        for (final Map<String, String> row : rows) {
+            try {
+                storeRow(resolver, row);
+                session.save();
+                finishBatch();
+            } catch (Exception e) {
+                LOGGER.error("Exception while importing data to JCR: {}", e.getMessage(), e);
+                discardBatch(session);
+            }
+        }
+    }
+
+    /**
+     * Discard the unsaved changes of the current batch. Checking out a node isn't undone by discarding the changes, so
+     * the nodes that were checked out and still exist are checked in again.
+     *
+     * @param session the session used for the import
+     * @throws RepositoryException if discarding the changes fails
+     */
+    private void discardBatch(final Session session) throws RepositoryException
+    {
+        final ImportBatch batch = this.currentBatch.get();
+        final List<String> checkedOutNodes = new ArrayList<>(batch.nodesToCheckin);
+        session.refresh(false);
+        batch.clear();
+        for (final String node : checkedOutNodes) {
+            // Nodes created in the discarded batch are gone
+            if (session.nodeExists(node) && this.versionManager.get().isCheckedOut(node)) {
+                checkin(node);
+            }
+        }
+    }
+
+    /**
+     * Check in the nodes modified by the current batch, and record its metrics adjustments, once it was saved.
+     */
+    private void finishBatch()
+    {
+        final ImportBatch batch = this.currentBatch.get();
+        batch.nodesToCheckin.forEach(this::checkin);
+        batch.metricsAdjustments.forEach((metric, adjustment) -> this.metricsAdjustments.get().merge(metric,
+            adjustment, Long::sum));
+        batch.clear();
+    }
+
+    private void checkin(final String node)
+    {
+        try {
+            this.versionManager.get().checkin(node);
+        } catch (final RepositoryException e) {
+            LOGGER.warn("Failed to check in node {}: {}", node, e.getMessage(), e);
+        }
     }
 
     private void updatePerformanceCounters()
     {
         for (Entry<String, Long> metricAdjustment : this.metricsAdjustments.get().entrySet()) {
-            Metrics.increment(this.resolverFactory, metricAdjustment.getKey(), metricAdjustment.getValue());
+            Metrics.increment(this.metricsRegistry, this.resolverFactory, metricAdjustment.getKey(),
+                metricAdjustment.getValue());
         }
     }
 
@@ -433,27 +779,28 @@ private String generateClarityQuery()
 
     // Methods for handling a result row
 
-    private void createFormsAndSubjects(ResourceResolver resolver, ResultSet sqlRow,
-        List<ClarityDataProcessor> processors)
-        throws ParseException, PersistenceException, RepositoryException, SQLException
+    private Map<String, String> processRow(final Map<String, String> sqlRow,
+        final List<ClarityDataProcessor> processors)
     {
-        Map<String, String> row = new HashMap<>();
-        final int columnCount = sqlRow.getMetaData().getColumnCount();
-        for (int column = 1; column <= columnCount; column++) {
-            row.put(sqlRow.getMetaData().getColumnName(column), sqlRow.getString(column));
-        }
+        Map<String, String> row = sqlRow;
         addSubjectIdentifiersToData(row, this.clarityImportConfiguration.get());
 
         for (ClarityDataProcessor processor : processors) {
             try {
                 row = processor.processEntry(row);
                 if (row == null) {
-                    return;
+                    return null;
                 }
             } catch (Exception e) {
                 LOGGER.error("Unhandled exception while processing data: {}", e.getMessage(), e);
             }
         }
+        return row;
+    }
+
+    private void storeRow(final ResourceResolver resolver, final Map<String, String> row)
+        throws ParseException, PersistenceException, RepositoryException, SQLException
+    {
         // Recursively move down the local Clarity Import configuration tree
         walkThroughLocalConfig(resolver, row, this.clarityImportConfiguration.get(),
             resolver.resolve("/Subjects"));
@@ -492,11 +839,11 @@ private void walkThroughLocalConfig(ResourceResolver resolver, Map<String, Strin
                     // Attach all the Answer nodes to it
                     populateEmptyForm(resolver, formNode, questionnaireMapping, row);
 
-                    // Commit the changes to the JCR
-                    resolver.commit();
-
-                    // Perform a JCR check-in to this cards:Form node once the import is completed
-                    this.nodesToCheckin.get().add(formNode.getPath());
+                    // Perform a JCR check-in to this cards:Form node once the batch is saved
+                    this.currentBatch.get().forms.putIfAbsent(
+                        newSubjectParent.getPath() + questionnaireMapping.getQuestionnaireResource(resolver).getPath(),
+                        formNode.getPath());
+                    this.currentBatch.get().nodesToCheckin.add(formNode.getPath());
                 }
             }
             walkThroughLocalConfig(resolver, row, childSubjectMapping, newSubjectParent);
@@ -527,15 +874,17 @@ private Resource getOrCreateSubject(ResourceResolver resolver, Map<String, Strin
             return null;
         }
 
-        String subjectMatchQuery = String.format(
-            "SELECT * FROM [cards:Subject] as subject WHERE subject.'identifier'='%s' option (index tag property)",
-            identifier);
-        resolver.refresh();
-        final Iterator<Resource> subjectResourceIter = resolver.findResources(subjectMatchQuery, "JCR-SQL2");
-        if (subjectResourceIter.hasNext()) {
-            final Resource subjectResource = subjectResourceIter.next();
+        // Subjects created in the current batch are not saved yet, and thus can't be found by a query
+        final ImportBatch batch = this.currentBatch.get();
+        if (batch.subjects.containsKey(identifier)) {
+            return resolver.getResource(batch.subjects.get(identifier));
+        }
+
+        final Node existingSubject = this.subjectLookup.getSubject(identifier);
+        if (existingSubject != null) {
+            final Resource subjectResource = resolver.getResource(existingSubject.getPath());
             this.versionManager.get().checkout(subjectResource.getPath());
-            this.nodesToCheckin.get().add(subjectResource.getPath());
+            batch.nodesToCheckin.add(subjectResource.getPath());
             return subjectResource;
         } else {
             Resource parentResource = parent;
@@ -547,14 +896,15 @@ private Resource getOrCreateSubject(ResourceResolver resolver, Map<String, Strin
                 ClarityImportTask.PRIMARY_TYPE_PROP, "cards:Subject",
                 "identifier", identifier,
                 "type", patientType.adaptTo(Node.class)));
-            resolver.commit();
+            batch.subjects.put(identifier, newSubject.getPath());
+            this.subjectLookup.addSubject(identifier, newSubject.getPath());
 
-            // Adjust the incrementMetricOnCreation referenced metric
+            // Adjust the incrementMetricOnCreation referenced metric once the batch is saved
             if (!"".equals(incrementMetricOnCreation)) {
-                this.metricsAdjustments.get().compute(incrementMetricOnCreation, (k, v) -> v == null ? 1L : v + 1);
+                batch.metricsAdjustments.compute(incrementMetricOnCreation, (k, v) -> v == null ? 1L : v + 1);
             }
 
-            this.nodesToCheckin.get().add(newSubject.getPath());
+            batch.nodesToCheckin.add(newSubject.getPath());
             return newSubject;
         }
     }
@@ -562,6 +912,13 @@ private Resource getOrCreateSubject(ResourceResolver resolver, Map<String, Strin
     private Resource getFormForSubject(ResourceResolver resolver, Resource questionnaireResource,
         Resource subjectResource)
     {
+        // Forms created in the current batch are not saved yet, and thus can't be found by a query
+        final String pendingForm =
+            this.currentBatch.get().forms.get(subjectResource.getPath() + questionnaireResource.getPath());
+        if (pendingForm != null) {
+            return resolver.getResource(pendingForm);
+        }
+
         // Get the jcr:uuid associated with questionnairePath
         String questionnaireUUID = questionnaireResource.getValueMap().get("jcr:uuid", "");
 
@@ -593,6 +950,8 @@ private void updateExistingForm(ResourceResolver resolver, Resource formNode,
         throws ParseException, RepositoryException, SQLException
     {
         this.versionManager.get().checkout(formNode.getPath());
+        // Perform a JCR check-in to this cards:Form node once the batch is saved, or discarded
+        this.currentBatch.get().nodesToCheckin.add(formNode.getPath());
         for (ClarityQuestionMapping questionMapping : questionnaireMapping.questions) {
             if (StringUtils.isBlank(questionMapping.question)) {
                 continue;
@@ -600,8 +959,6 @@ private void updateExistingForm(ResourceResolver resolver, Resource formNode,
             replaceFormAnswer(resolver, formNode,
                 generateAnswerNodeProperties(resolver, questionMapping, row));
         }
-        // Perform a JCR check-in to this cards:Form node once the import is completed
-        this.nodesToCheckin.get().add(formNode.getPath());
     }
 
     private void replaceFormAnswer(final ResourceResolver resolver, final Resource form,
@@ -727,7 +1084,7 @@ private String env(final String value)
     private void cleanupState()
     {
         // Cleanup all ThreadLocals
-        this.nodesToCheckin.remove();
+        this.currentBatch.remove();
         this.versionManager.remove();
         this.clarityImportConfiguration.remove();
         this.sqlColumnToDataType.remove();
@@ -37,6 +37,8 @@
 import org.slf4j.LoggerFactory;
 
 import io.uhndata.cards.clarity.importer.spi.ClarityDataProcessor;
+import io.uhndata.cards.clarity.importer.spi.ClaritySubjectLookup;
+import io.uhndata.cards.metrics.MetricsRegistry;
 import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
 
 @Component(immediate = true)
@@ -54,6 +56,12 @@
     @Reference
     private ThreadResourceResolverProvider rrp;
 
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policyOption = ReferencePolicyOption.GREEDY)
+    private volatile MetricsRegistry metricsRegistry;
+
+    @Reference
+    private ClaritySubjectLookup subjectLookup;
+
     /** A list of all available data processors. */
     @Reference(cardinality = ReferenceCardinality.MULTIPLE, fieldOption = FieldOption.UPDATE,
         policy = ReferencePolicy.DYNAMIC)
@@ -88,7 +96,8 @@ public void configAdded(final ClarityImportConfig newConfig)
         options.canRunConcurrently(true);
 
         final Runnable job =
-            new ClarityImportTask(config, config.dayToImport(), this.resolverFactory, this.rrp, this.processors);
+            new ClarityImportTask(config, config.dayToImport(), this.resolverFactory, this.rrp, this.metricsRegistry,
+                this.processors, this.subjectLookup);
         try {
             this.scheduler.schedule(job, options);
             LOGGER.debug("Activated scheduled clarity import configuration {}", config.name());
@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.clarity.importer.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.clarity.importer.spi.ClaritySubjectLookup;
+import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
+
+/**
+ * Thread-bound implementation of {@link ClaritySubjectLookup}, which resolves subject identifiers with bulk
+ * {@code IN} queries and remembers the resulting paths for the rest of the import.
+ *
+ * @version $Id$
+ */
+@Component(service = ClaritySubjectLookup.class)
+public class ClaritySubjectLookupImpl implements ClaritySubjectLookup
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClaritySubjectLookupImpl.class);
+
+    /** How many identifiers to look up with one query. */
+    private static final int PREFETCH_CHUNK_SIZE = 100;
+
+    /** Marks identifiers known to not have a subject. */
+    private static final String MISSING = "";
+
+    /** Identifier to subject path for the import running on the current thread. */
+    private final ThreadLocal<Map<String, String>> subjects = ThreadLocal.withInitial(HashMap::new);
+
+    @Reference
+    private ThreadResourceResolverProvider rrp;
+
+    @Override
+    public void start()
+    {
+        this.subjects.get().clear();
+    }
+
+    @Override
+    public void prefetch(final Collection<String> identifiers)
+    {
+        final Map<String, String> known = this.subjects.get();
+        final List<String> toFetch = identifiers.stream()
+            .filter(StringUtils::isNotEmpty)
+            .distinct()
+            .filter(identifier -> !known.containsKey(identifier))
+            .collect(Collectors.toList());
+        if (toFetch.isEmpty()) {
+            return;
+        }
+        final Session session = getSession();
+        for (int i = 0; i < toFetch.size(); i += PREFETCH_CHUNK_SIZE) {
+            final List<String> chunk = toFetch.subList(i, Math.min(i + PREFETCH_CHUNK_SIZE, toFetch.size()));
+            try {
+                query(session, chunk);
+                // Everything not found doesn't exist, don't query it again
+                chunk.forEach(identifier -> known.putIfAbsent(identifier, MISSING));
+            } catch (RepositoryException e) {
+                LOGGER.warn("Failed to prefetch subjects: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    @Override
+    public Node getSubject(final String identifier)
+    {
+        if (StringUtils.isEmpty(identifier)) {
+            return null;
+        }
+        final Map<String, String> known = this.subjects.get();
+        if (!known.containsKey(identifier)) {
+            prefetch(List.of(identifier));
+        }
+        final String path = known.get(identifier);
+        if (StringUtils.isEmpty(path)) {
+            return null;
+        }
+        try {
+            final Session session = getSession();
+            // The subject may have been deleted, or its creation discarded, since it was cached
+            return session.nodeExists(path) ? session.getNode(path) : null;
+        } catch (RepositoryException e) {
+            LOGGER.warn("Failed to access subject {}: {}", path, e.getMessage(), e);
+            return null;
+        }
+    }
+
+    @Override
+    public void addSubject(final String identifier, final String path)
+    {
+        if (StringUtils.isNotEmpty(identifier)) {
+            this.subjects.get().put(identifier, path);
+        }
+    }
+
+    @Override
+    public void end()
+    {
+        this.subjects.remove();
+    }
+
+    private void query(final Session session, final List<String> identifiers) throws RepositoryException
+    {
+        final List<String> literals = new ArrayList<>(identifiers.size());
+        identifiers.forEach(identifier -> literals.add("'" + identifier.replace("'", "''") + "'"));
+        final String query = String.format(
+            "SELECT * FROM [cards:Subject] as subject WHERE subject.'identifier' IN (%s) option (index tag property)",
+            String.join(", ", literals));
+        final NodeIterator results =
+            session.getWorkspace().getQueryManager().createQuery(query, "JCR-SQL2").execute().getNodes();
+        final Map<String, String> known = this.subjects.get();
+        while (results.hasNext()) {
+            final Node subject = results.nextNode();
+            // Should only be 0 or 1 subject with an identifier; if there are more, the first one is used
+            known.putIfAbsent(subject.getProperty("identifier").getString(), subject.getPath());
+        }
+    }
+
+    private Session getSession()
+    {
+        final ResourceResolver resolver = this.rrp.getThreadResourceResolver();
+        return resolver.adaptTo(Session.class);
+    }
+}
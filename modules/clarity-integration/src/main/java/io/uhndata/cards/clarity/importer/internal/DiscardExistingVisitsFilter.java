@@ -21,8 +21,10 @@
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -30,6 +32,7 @@
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.version.OnParentVersionAction;
@@ -47,6 +50,7 @@
 
 import io.uhndata.cards.clarity.importer.spi.AbstractClarityDataProcessor;
 import io.uhndata.cards.clarity.importer.spi.ClarityDataProcessor;
+import io.uhndata.cards.clarity.importer.spi.ClaritySubjectLookup;
 import io.uhndata.cards.forms.api.FormUtils;
 import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
 
@@ -64,14 +68,15 @@ public class DiscardExistingVisitsFilter extends AbstractClarityDataProcessor im
 
     private static final SimpleDateFormat SQL_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd' 'HH:mm:ss");
 
-    private static final SimpleDateFormat JCR_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
-
     @Reference
     private ThreadResourceResolverProvider rrp;
 
     @Reference
     private FormUtils formUtils;
 
+    @Reference
+    private ClaritySubjectLookup subjectLookup;
+
     private final String dateColumn;
 
     private final Set<String> clinicsToConsider;
@@ -132,45 +137,47 @@ private void deleteEvents(final Map<String, String> input) throws RepositoryExce
         atMidnight(startTime);
         final Calendar endTime = (Calendar) startTime.clone();
         endTime.add(Calendar.DATE, 1);
+        final Node patient = this.subjectLookup.getSubject(input.get("/SubjectTypes/Patient"));
+        if (patient == null) {
+            return;
+        }
         final Session session = this.rrp.getThreadResourceResolver().adaptTo(Session.class);
-        final String patientUuid = findSubject(input, session);
-        final String formQuery = String.format(
-            "SELECT vi.* FROM [cards:Form] AS vi"
-                + " INNER JOIN [cards:DateAnswer] AS time ON time.form = vi.[jcr:uuid]"
-                + " WHERE"
-                + " vi.questionnaire = '%s' AND vi.relatedSubjects ='%s'"
-                + " AND time.question = '%s' AND time.value >= '%s' AND time.value < '%s'"
-                + " option (index tag property)",
-            session.getNode("/Questionnaires/Visit information").getIdentifier(),
-            patientUuid,
-            session.getNode("/Questionnaires/Visit information/time").getIdentifier(),
-            JCR_DATE_FORMAT.format(startTime.getTime()),
-            JCR_DATE_FORMAT.format(endTime.getTime()));
-        final NodeIterator visits =
-            session.getWorkspace().getQueryManager().createQuery(formQuery, "JCR-SQL2").execute().getNodes();
-        while (visits.hasNext()) {
-            final Node visitInformation = visits.nextNode();
-            final String clinic = (String) this.formUtils.getValue(this.formUtils.getAnswer(visitInformation,
-                session.getNode("/Questionnaires/Visit information/clinic")));
-            if (this.clinicsToConsider.isEmpty() || this.clinicsToConsider.contains(clinic)) {
-                deleteNode(this.formUtils.getSubject(visitInformation));
+        final Node visitInformation = session.getNode("/Questionnaires/Visit information");
+        final Node timeQuestion = session.getNode("/Questionnaires/Visit information/time");
+        final Node clinicQuestion = session.getNode("/Questionnaires/Visit information/clinic");
+
+        // Look for the Visit information forms of the patient's visits, collecting the visits to delete first, so that
+        // the iterators aren't affected by the deletion
+        final List<Node> visitsToDelete = new ArrayList<>();
+        for (final NodeIterator visits = patient.getNodes(); visits.hasNext();) {
+            final Node visit = visits.nextNode();
+            if (!visit.isNodeType("cards:Subject")) {
+                continue;
+            }
+            for (final PropertyIterator forms = visit.getReferences("subject"); forms.hasNext();) {
+                final Node form = forms.nextProperty().getParent();
+                if (isVisitToDelete(form, visitInformation, timeQuestion, clinicQuestion, startTime, endTime)) {
+                    visitsToDelete.add(visit);
+                    break;
+                }
             }
         }
+        visitsToDelete.forEach(this::deleteNode);
     }
 
-    private String findSubject(final Map<String, String> input, final Session session) throws RepositoryException
+    private boolean isVisitToDelete(final Node form, final Node visitInformation, final Node timeQuestion,
+        final Node clinicQuestion, final Calendar startTime, final Calendar endTime) throws RepositoryException
     {
-        final String subjectId = input.get("/SubjectTypes/Patient");
-        String subjectMatchQuery = String.format(
-            "SELECT * FROM [cards:Subject] as subject WHERE subject.'identifier'='%s' option (index tag property)",
-            subjectId);
-        session.refresh(true);
-        final NodeIterator subjectResourceIter =
-            session.getWorkspace().getQueryManager().createQuery(subjectMatchQuery, "JCR-SQL2").execute().getNodes();
-        if (!subjectResourceIter.hasNext()) {
-            return null;
+        final Node questionnaire = this.formUtils.getQuestionnaire(form);
+        if (questionnaire == null || !visitInformation.isSame(questionnaire)) {
+            return false;
+        }
+        final Object time = this.formUtils.getValue(this.formUtils.getAnswer(form, timeQuestion));
+        if (!(time instanceof Calendar) || ((Calendar) time).before(startTime) || !((Calendar) time).before(endTime)) {
+            return false;
         }
-        return subjectResourceIter.nextNode().getIdentifier();
+        final String clinic = (String) this.formUtils.getValue(this.formUtils.getAnswer(form, clinicQuestion));
+        return this.clinicsToConsider.isEmpty() || this.clinicsToConsider.contains(clinic);
     }
 
     @SuppressWarnings("unchecked")
@@ -23,7 +23,6 @@
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
@@ -33,8 +32,6 @@
 import javax.jcr.RepositoryException;
 
 import org.apache.commons.lang3.StringUtils;
-import org.apache.sling.api.resource.Resource;
-import org.apache.sling.api.resource.ResourceResolver;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
@@ -46,9 +43,9 @@
 
 import io.uhndata.cards.clarity.importer.spi.AbstractClarityDataProcessor;
 import io.uhndata.cards.clarity.importer.spi.ClarityDataProcessor;
+import io.uhndata.cards.clarity.importer.spi.ClaritySubjectLookup;
 import io.uhndata.cards.forms.api.FormUtils;
 import io.uhndata.cards.forms.api.QuestionnaireUtils;
-import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
 import io.uhndata.cards.subjects.api.SubjectTypeUtils;
 import io.uhndata.cards.subjects.api.SubjectUtils;
 
@@ -68,7 +65,7 @@ public class RecentVisitDiscardFilter extends AbstractClarityDataProcessor imple
     private final Set<String> clinics;
 
     @Reference
-    private ThreadResourceResolverProvider rrp;
+    private ClaritySubjectLookup subjectLookup;
 
     @Reference
     private QuestionnaireUtils questionnaireUtils;
@@ -124,24 +121,17 @@ public Map<String, String> processEntry(final Map<String, String> input)
             LOGGER.warn("Discarded visit {} due to no subject identifier", id);
             return null;
         } else {
-            // Get all patients with that identifier
-            ResourceResolver resolver = this.rrp.getThreadResourceResolver();
-            String subjectMatchQuery = String.format(
-                "SELECT * FROM [cards:Subject] as subject WHERE subject.'identifier'='%s' option (index tag property)",
-                subjectId);
-            resolver.refresh();
-            final Iterator<Resource> subjectResourceIter = resolver.findResources(subjectMatchQuery, "JCR-SQL2");
-            // Should only be 0 or 1 patient with that identifier. Process it if found.
-            if (subjectResourceIter.hasNext() && subjectHasRecentSurveyEvent(subjectResourceIter.next(), id)) {
+            // Get the patient with that identifier, and process it if found
+            final Node subject = this.subjectLookup.getSubject(subjectId);
+            if (subject != null && subjectHasRecentSurveyEvent(subject, id)) {
                 return null;
             }
         }
         return input;
     }
 
-    private boolean subjectHasRecentSurveyEvent(Resource subjectResource, String id)
+    private boolean subjectHasRecentSurveyEvent(Node subjectNode, String id)
     {
-        final Node subjectNode = subjectResource.adaptTo(Node.class);
         try {
             // Iterate through all of the patients visits
             for (final NodeIterator visits = subjectNode.getNodes(); visits.hasNext();) {
@@ -19,15 +19,12 @@
 
 package io.uhndata.cards.clarity.importer.internal;
 
-import java.util.Iterator;
 import java.util.Map;
 
 import javax.jcr.Node;
 import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
 
-import org.apache.sling.api.resource.Resource;
-import org.apache.sling.api.resource.ResourceResolver;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.ConfigurationPolicy;
@@ -40,9 +37,9 @@
 
 import io.uhndata.cards.clarity.importer.spi.AbstractClarityDataProcessor;
 import io.uhndata.cards.clarity.importer.spi.ClarityDataProcessor;
+import io.uhndata.cards.clarity.importer.spi.ClaritySubjectLookup;
 import io.uhndata.cards.forms.api.FormUtils;
 import io.uhndata.cards.forms.api.QuestionnaireUtils;
-import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
 import io.uhndata.cards.subjects.api.SubjectTypeUtils;
 import io.uhndata.cards.subjects.api.SubjectUtils;
 
@@ -58,7 +55,7 @@ public class UnsubscribedFilter extends AbstractClarityDataProcessor implements
     private static final Logger LOGGER = LoggerFactory.getLogger(UnsubscribedFilter.class);
 
     @Reference
-    private ThreadResourceResolverProvider rrp;
+    private ClaritySubjectLookup subjectLookup;
 
     @Reference
     private QuestionnaireUtils questionnaireUtils;
@@ -100,15 +97,9 @@ public Map<String, String> processEntry(final Map<String, String> input)
             LOGGER.warn("Discarded visit {} due to no mrn", id);
             return null;
         } else {
-            // Get all patients with that MRN
-            ResourceResolver resolver = this.rrp.getThreadResourceResolver();
-            String subjectMatchQuery = String.format(
-                "SELECT * FROM [cards:Subject] as subject WHERE subject.'identifier'='%s' option (index tag property)",
-                mrn);
-            resolver.refresh();
-            final Iterator<Resource> subjectResourceIter = resolver.findResources(subjectMatchQuery, "JCR-SQL2");
-            // Should only be 0 or 1 patient with that MRN. Process it if found.
-            if (subjectResourceIter.hasNext() && patientHasUnsubscribed(subjectResourceIter.next(), id)) {
+            // Get the patient with that MRN, and process it if found
+            final Node subject = this.subjectLookup.getSubject(mrn);
+            if (subject != null && patientHasUnsubscribed(subject, id)) {
                 LOGGER.error("discarding patient");
                 return null;
             }
@@ -116,9 +107,8 @@ public Map<String, String> processEntry(final Map<String, String> input)
         return input;
     }
 
-    private boolean patientHasUnsubscribed(Resource subjectResource, String id)
+    private boolean patientHasUnsubscribed(Node subject, String id)
     {
-        final Node subject = subjectResource.adaptTo(Node.class);
         try {
             // Iterate through forms for the patient looking for the patient information form
             for (final PropertyIterator forms = subject.getReferences("subject"); forms.hasNext();) {
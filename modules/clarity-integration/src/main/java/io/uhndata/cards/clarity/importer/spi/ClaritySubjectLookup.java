@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.clarity.importer.spi;
+
+import java.util.Collection;
+
+import javax.jcr.Node;
+
+import io.uhndata.cards.clarity.importer.ClarityImportTask;
+
+/**
+ * Per-import cache of subjects, identified by their {@code identifier}, shared by the {@link ClarityImportTask} and the
+ * {@link ClarityDataProcessor processors} it invokes. The import task prefetches, with a few bulk queries, the subjects
+ * referenced by the rows read from Clarity, so that processors can look up subjects in memory instead of running one
+ * query for each row.
+ * <p>
+ * The cache is bound to the current thread, between calls to {@link #start()} and {@link #end()}, and subjects are
+ * retrieved through the thread's resource resolver, so unsaved subjects created during the import are visible as well.
+ * </p>
+ *
+ * @version $Id$
+ */
+public interface ClaritySubjectLookup
+{
+    /**
+     * Called at the start of a new import job, before any rows are processed.
+     */
+    void start();
+
+    /**
+     * Load, in bulk, the subjects with the given identifiers that aren't already known.
+     *
+     * @param identifiers a collection of subject identifiers, may contain duplicates, {@code null} or empty values,
+     *            which are ignored
+     */
+    void prefetch(Collection<String> identifiers);
+
+    /**
+     * Look up a subject. Subjects not prefetched are queried and remembered, so this never queries more than once for
+     * the same identifier during an import.
+     *
+     * @param identifier a subject identifier
+     * @return the subject node, or {@code null} if there's no subject with that identifier
+     */
+    Node getSubject(String identifier);
+
+    /**
+     * Record a subject newly created during the import.
+     *
+     * @param identifier the identifier of the new subject
+     * @param path the path of the new subject
+     */
+    void addSubject(String identifier, String path);
+
+    /**
+     * Called at the end of an import job, discards all the cached subjects.
+     */
+    void end();
+}
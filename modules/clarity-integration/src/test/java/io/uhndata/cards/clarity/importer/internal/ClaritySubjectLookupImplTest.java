@@ -0,0 +1,209 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.clarity.importer.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Answers;
+import org.mockito.InjectMocks;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
+
+/**
+ * Unit tests for {@link ClaritySubjectLookupImpl}.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ClaritySubjectLookupImplTest
+{
+    private static final String JCR_SQL2 = "JCR-SQL2";
+
+    private static final String SUBJECTS = "/Subjects/";
+
+    @Mock
+    private ThreadResourceResolverProvider rrp;
+
+    @Mock(answer = Answers.RETURNS_DEEP_STUBS)
+    private Session session;
+
+    @Mock
+    private QueryManager queryManager;
+
+    @InjectMocks
+    private ClaritySubjectLookupImpl lookup;
+
+    /** The subjects in the repository, identifier to node. */
+    private final Map<String, Node> subjects = new HashMap<>();
+
+    /** The queries executed so far. */
+    private final List<String> queries = new ArrayList<>();
+
+    @Before
+    public void setupRepository() throws RepositoryException
+    {
+        final ResourceResolver resolver = Mockito.mock(ResourceResolver.class);
+        Mockito.when(this.rrp.getThreadResourceResolver()).thenReturn(resolver);
+        Mockito.when(resolver.adaptTo(Session.class)).thenReturn(this.session);
+        Mockito.when(this.session.getWorkspace().getQueryManager()).thenReturn(this.queryManager);
+        Mockito.when(this.queryManager.createQuery(Matchers.anyString(), Matchers.eq(JCR_SQL2)))
+            .thenAnswer(this::createQuery);
+        Mockito.when(this.session.nodeExists(Matchers.anyString())).thenReturn(true);
+
+        for (int i = 0; i < 250; ++i) {
+            addToRepository("MRN" + i);
+        }
+        addToRepository("O'Brien");
+        this.lookup.start();
+    }
+
+    @Test
+    public void prefetchedSubjectsAreNotQueriedAgain() throws RepositoryException
+    {
+        this.lookup.prefetch(Arrays.asList("MRN1", "MRN2", "MRN1", null, ""));
+        Assert.assertEquals(1, this.queries.size());
+
+        Assert.assertEquals(SUBJECTS + "MRN1", this.lookup.getSubject("MRN1").getPath());
+        Assert.assertEquals(SUBJECTS + "MRN2", this.lookup.getSubject("MRN2").getPath());
+        Assert.assertEquals(1, this.queries.size());
+    }
+
+    @Test
+    public void prefetchingIsDoneInChunks()
+    {
+        final List<String> identifiers = new ArrayList<>();
+        for (int i = 0; i < 250; ++i) {
+            identifiers.add("MRN" + i);
+        }
+
+        this.lookup.prefetch(identifiers);
+        this.lookup.prefetch(identifiers);
+
+        Assert.assertEquals(3, this.queries.size());
+    }
+
+    @Test
+    public void missingSubjectsAreRemembered()
+    {
+        this.lookup.prefetch(Arrays.asList("MRN1", "Unknown"));
+
+        Assert.assertNull(this.lookup.getSubject("Unknown"));
+        Assert.assertNull(this.lookup.getSubject("Unknown"));
+        Assert.assertEquals(1, this.queries.size());
+    }
+
+    @Test
+    public void unknownSubjectsAreQueriedOnce() throws RepositoryException
+    {
+        Assert.assertEquals(SUBJECTS + "MRN3", this.lookup.getSubject("MRN3").getPath());
+        Assert.assertEquals(SUBJECTS + "MRN3", this.lookup.getSubject("MRN3").getPath());
+        Assert.assertNull(this.lookup.getSubject(null));
+        Assert.assertEquals(1, this.queries.size());
+    }
+
+    @Test
+    public void identifiersAreEscaped() throws RepositoryException
+    {
+        Assert.assertEquals(SUBJECTS + "O'Brien", this.lookup.getSubject("O'Brien").getPath());
+        Assert.assertTrue(this.queries.get(0), this.queries.get(0).contains("IN ('O''Brien')"));
+    }
+
+    @Test
+    public void addedSubjectsAreFoundWithoutQuerying() throws RepositoryException
+    {
+        addToRepository("New");
+        this.lookup.addSubject("New", SUBJECTS + "New");
+
+        Assert.assertEquals(SUBJECTS + "New", this.lookup.getSubject("New").getPath());
+        Assert.assertTrue(this.queries.isEmpty());
+    }
+
+    @Test
+    public void removedSubjectsAreNotReturned() throws RepositoryException
+    {
+        this.lookup.prefetch(Arrays.asList("MRN1"));
+        Mockito.when(this.session.nodeExists(SUBJECTS + "MRN1")).thenReturn(false);
+
+        Assert.assertNull(this.lookup.getSubject("MRN1"));
+    }
+
+    @Test
+    public void startingAnImportForgetsThePreviousOne()
+    {
+        this.lookup.prefetch(Arrays.asList("MRN1"));
+        this.lookup.end();
+        this.lookup.start();
+        this.lookup.getSubject("MRN1");
+
+        Assert.assertEquals(2, this.queries.size());
+    }
+
+    private void addToRepository(final String identifier) throws RepositoryException
+    {
+        final Node subject = Mockito.mock(Node.class, Answers.RETURNS_DEEP_STUBS.get());
+        Mockito.when(subject.getPath()).thenReturn(SUBJECTS + identifier);
+        Mockito.when(subject.getProperty("identifier").getString()).thenReturn(identifier);
+        Mockito.when(this.session.getNode(SUBJECTS + identifier)).thenReturn(subject);
+        this.subjects.put(identifier, subject);
+    }
+
+    private Query createQuery(final InvocationOnMock invocation) throws RepositoryException
+    {
+        final String query = (String) invocation.getArguments()[0];
+        this.queries.add(query);
+        final List<Node> results = new ArrayList<>();
+        this.subjects.forEach((identifier, subject) -> {
+            if (query.contains("'" + identifier.replace("'", "''") + "'")) {
+                results.add(subject);
+            }
+        });
+        final Iterator<Node> iterator = results.iterator();
+        final NodeIterator nodes = Mockito.mock(NodeIterator.class);
+        Mockito.when(nodes.hasNext()).thenAnswer(i -> iterator.hasNext());
+        Mockito.when(nodes.nextNode()).thenAnswer(i -> iterator.next());
+        final QueryResult result = Mockito.mock(QueryResult.class);
+        Mockito.when(result.getNodes()).thenReturn(nodes);
+        final Query jcrQuery = Mockito.mock(Query.class);
+        Mockito.when(jcrQuery.execute()).thenReturn(result);
+        return jcrQuery;
+    }
+}
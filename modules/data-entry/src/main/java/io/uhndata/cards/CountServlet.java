@@ -20,22 +20,14 @@
 
 import java.io.IOException;
 import java.io.Writer;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
-import java.util.UUID;
 
-import javax.jcr.Node;
-import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
-import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
-import javax.jcr.query.QueryResult;
 import javax.json.Json;
 import javax.json.JsonObjectBuilder;
 import javax.json.stream.JsonGenerator;
@@ -46,9 +38,15 @@
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.FieldOption;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.uhndata.cards.internal.QueryCountPersister;
+
 /**
  * A servlet that counts the number of resources that meet specified filters.
  * <p>
@@ -60,6 +58,10 @@
  * <li><code>includeallstatus</code>: if true, incomplete forms will be included. Otherwise, they will be excluded
  * unless searched for directly using {@code fieldname="statusFlags"}
  * </ul>
+ * <p>
+ * Computed counts are kept in memory by the {@link QueryResultCache}, and are only stored in the repository if the
+ * {@link QueryCountPersister} is configured.
+ * </p>
  *
  * @version $Id$
  */
@@ -73,7 +75,9 @@ public class CountServlet extends PaginationServlet
 
     private static final long serialVersionUID = -6068156942302219324L;
 
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+    @Reference(fieldOption = FieldOption.REPLACE, cardinality = ReferenceCardinality.OPTIONAL,
+        policyOption = ReferencePolicyOption.GREEDY)
+    private QueryCountPersister persister;
 
     @Override
     public void doGet(final SlingHttpServletRequest request, final SlingHttpServletResponse response)
@@ -100,20 +104,80 @@ public void doGet(final SlingHttpServletRequest request, final SlingHttpServletR
                 return;
             }
 
-            // Get a QueryManager object
-            final QueryManager queryManager = session.getWorkspace().getQueryManager();
-
-            // Create the Query object
-            Query filterQuery = queryManager.createQuery(createQuery(request, session, filters), "JCR-SQL2");
-
-            // Get the results and write the response
-            writeResponse(request, response, filterQuery, filters, session);
+            // Count the results and write the response
+            final Long count = getCount(request, session, filters);
+            if (count == null) {
+                writeEmptyResponse(response);
+            } else {
+                writeResponse(response, count);
+            }
         } catch (Exception e) {
             LOGGER.warn("Failed to execute query: {}", e.getMessage(), e);
             return;
         }
     }
 
+    /**
+     * Count the resources matching the request, either using an already computed count, or by executing the query.
+     *
+     * @param request the current request
+     * @param session the session of the current user
+     * @param filters the filters parsed from the request
+     * @return the number of matching resources, or {@code null} if executing the query failed
+     * @throws RepositoryException if accessing the repository fails
+     */
+    private Long getCount(final SlingHttpServletRequest request, final Session session,
+        final Map<FilterType, List<Filter>> filters) throws RepositoryException
+    {
+        final String queryString = createQuery(request, session, filters);
+        final QueryResultCache resultCache = getCache();
+        if (resultCache == null || !resultCache.isCacheable(request.getResource().getPath())) {
+            return computeCount(request, session, filters, queryString);
+        }
+
+        // Look for an already computed count
+        final String cacheKey = resultCache.getKey("count\n" + queryString, session);
+        final Long cachedCount = resultCache.get(cacheKey, Long.class);
+        if (cachedCount != null) {
+            return cachedCount;
+        }
+
+        final long generation = resultCache.getGeneration();
+        final Long count = computeCount(request, session, filters, queryString);
+        if (count != null) {
+            resultCache.put(cacheKey, count, generation);
+        }
+        return count;
+    }
+
+    /**
+     * Count the resources matching the request by executing the query, and record the count if a
+     * {@link QueryCountPersister} is configured.
+     *
+     * @param request the current request
+     * @param session the session of the current user
+     * @param filters the filters parsed from the request
+     * @param queryString the query to execute
+     * @return the number of matching resources, or {@code null} if executing the query failed
+     */
+    private Long computeCount(final SlingHttpServletRequest request, final Session session,
+        final Map<FilterType, List<Filter>> filters, final String queryString)
+    {
+        final long count;
+        try {
+            final QueryManager queryManager = session.getWorkspace().getQueryManager();
+            count = countResults(queryManager.createQuery(queryString, "JCR-SQL2"), Long.MAX_VALUE);
+        } catch (RepositoryException e) {
+            LOGGER.warn("Failed to execute query: {}", e.getMessage(), e);
+            return null;
+        }
+        final QueryCountPersister countPersister = this.persister;
+        if (countPersister != null) {
+            countPersister.record(request.getResource().getName(), describeQuery(request, filters), count);
+        }
+        return count;
+    }
+
     /**
      * Write an empty results response.
      *
@@ -136,15 +200,12 @@ private void writeEmptyResponse(final SlingHttpServletResponse response) throws
     /**
      * Write the response.
      *
-     * @param request the current request
      * @param response the HTTP response
-     * @param query the query to execute
+     * @param count the number of resources matching the query
      * @throws IOException if failed or interrupted I/O operation
-     * @throws RepositoryException if accessing the repository fails
      */
-    private void writeResponse(final SlingHttpServletRequest request, final SlingHttpServletResponse response,
-                               final Query query, final Map<FilterType, List<Filter>> filters, Session session)
-            throws IOException, RepositoryException
+    private void writeResponse(final SlingHttpServletResponse response, final long count)
+            throws IOException
     {
         response.setContentType("application/json");
         response.setCharacterEncoding("UTF-8");
@@ -152,91 +213,40 @@ private void writeResponse(final SlingHttpServletRequest request, final SlingHtt
         final Writer out = response.getWriter();
         try (JsonGenerator jsonGen = Json.createGenerator(out)) {
             jsonGen.writeStartObject();
-            long count = getCount(query, response);
             jsonGen.write("count", count);
-            createQueryCacheNode(request, session, count, filters);
-            try {
-                session.save();
-            } catch (final RepositoryException e) {
-                LOGGER.error("Failed to commit queryCache: {}", e.getMessage(), e);
-            }
             jsonGen.writeEnd().flush();
         }
     }
 
     /**
-     * Creates a <code>QueryCache</code> node that represents the current QueryCache instance with identified
-     * filters.
+     * Describes the filters used in the current query, as properties of a <code>QueryCache</code> node.
      *
      * @param request the current request
-     * @param session the current session
-     * @param count the number of Resources that meet the conditions specified in the request
      * @param filters a list of filters
-     * @throws RepositoryException if accessing the repository fails
+     * @return a map of property names and values, may be empty
      */
-    private void createQueryCacheNode(final SlingHttpServletRequest request, final Session session, final long count,
-                                      final Map<FilterType, List<Filter>> filters) throws RepositoryException
+    private Map<String, String> describeQuery(final SlingHttpServletRequest request,
+                                              final Map<FilterType, List<Filter>> filters)
     {
-        Node node = session.getNode("/QueryCache").addNode(UUID.randomUUID().toString(), "cards:QueryCache");
-        node.setProperty("countType", "=");
-        node.setProperty("count", count);
-        node.setProperty("time", DATE_FORMAT.format(new Date()));
-        node.setProperty("resourceType", request.getResource().getName());
-        if (filters.isEmpty()) {
-            return;
-        }
+        final Map<String, String> result = new LinkedHashMap<>();
         filters.forEach((filterType, filtersByFilterType) -> filtersByFilterType.forEach(filter -> {
-            try {
-                if (filterType.equals(FilterType.CHILD)) {
-                    node.setProperty(filter.getName() + filter.getComparator(), filter.getValue());
-                } else if (filterType.equals(FilterType.EMPTY)) {
-                    node.setProperty(filter.getName(), "is empty");
-                } else {
-                    node.setProperty(filter.getName(), "is not empty");
-                }
-            } catch (RepositoryException e) {
-                LOGGER.error("Failed to set node property: {}", e.getMessage(), e);
+            if (filterType.equals(FilterType.CHILD)) {
+                result.put(filter.getName() + filter.getComparator(), filter.getValue());
+            } else if (filterType.equals(FilterType.EMPTY)) {
+                result.put(filter.getName(), "is empty");
+            } else {
+                result.put(filter.getName(), "is not empty");
             }
         }));
 
         Map<String, String> fieldParameters = getSanitizedFieldParameters(request);
         if (!fieldParameters.isEmpty() && !fieldParameters.get(FIELDNAME).isBlank()) {
-            node.setProperty(fieldParameters.get(FIELDNAME) + fieldParameters.get(FIELDCOMPARATOR),
+            result.put(fieldParameters.get(FIELDNAME) + fieldParameters.get(FIELDCOMPARATOR),
                     fieldParameters.get(FIELDVALUE));
         }
+        return result;
     }
 
-    /**
-     * Counts the number of Resources that meet the conditions specified in the query.
-     *
-     * @param query the query to execute
-     * @return a long-typed number of the number of Resources with the specified parameters
-     * @throws IOException if failed or interrupted I/O operation
-     */
-    private long getCount(final Query query, final SlingHttpServletResponse response) throws IOException
-    {
-        long count = 0;
-        // Which unique items have been seen so far in the query results
-        final Set<String> seenResources = new HashSet<>();
-        // Execute the query
-        try {
-            final QueryResult filterResult = query.execute();
-            final NodeIterator results = filterResult.getNodes();
-
-            while (results.hasNext()) {
-                Node n = results.nextNode();
-                // If this resource was already seen, ignore it
-                if (!seenResources.contains(n.getPath())) {
-                    seenResources.add(n.getPath());
-                    ++count;
-                }
-            }
-        } catch (RepositoryException e) {
-            writeEmptyResponse(response);
-        }
-
-        return count;
-    }
 
     private void writeError(final int status, final String message, final SlingHttpServletResponse response)
             throws IOException
@@ -21,17 +21,25 @@
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.stream.Collectors;
 
 import javax.jcr.AccessDeniedException;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.version.OnParentVersionAction;
@@ -60,6 +68,14 @@
  * <ul>
  * <li><code>recursive</code>: whether nodes which reference the item should be deleted; defaults to false</li>
  * </ul>
+ * <p>
+ * Nodes are tracked by their path, and removed in bounded batches, saving the session
+ * after each batch, so that deleting a subject with many forms doesn't accumulate a huge transient session. Since the
+ * batches are saved separately, permissions to remove every node are checked before anything is saved, and nodes are
+ * sorted so that a node is never removed before the nodes holding references to it. If saving a batch fails after
+ * other batches were saved, the error reports how many nodes were already deleted; deleting the item again resumes
+ * the deletion.
+ * </p>
  *
  * @version $Id$
  */
@@ -74,23 +90,29 @@ public class DeleteServlet extends SlingAllMethodsServlet
 
     private static final long serialVersionUID = 1L;
 
+    /** How many nodes (each with its entire subtree) to remove before saving the session. */
+    private static final int DELETE_BATCH_SIZE = 200;
+
     /** The node that was requested to be deleted. */
     private final ThreadLocal<Node> nodeToDelete = new ThreadLocal<>();
 
     /** The Resource Resolver for the current request. */
     private final ThreadLocal<ResourceResolver> resolver = new ThreadLocal<>();
 
-    /** A list of all nodes traversed by {@code traverseNode}. */
-    private final ThreadLocal<Set<Node>> nodesTraversed =
-        ThreadLocal.withInitial(() -> new TreeSet<>(new NodeComparator()));
+    /** All nodes traversed by {@code traverseNode}, keyed by their path. */
+    private final ThreadLocal<Map<String, Node>> nodesTraversed = ThreadLocal.withInitial(LinkedHashMap::new);
+
+    /**
+     * The paths of all nodes that should be deleted, without their descendants. Before removing them, they are sorted
+     * by {@link #sortByReferences}.
+     */
+    private final ThreadLocal<Set<String>> nodesToDelete = ThreadLocal.withInitial(LinkedHashSet::new);
 
-    /** A set of all nodes that should be deleted. */
-    private final ThreadLocal<Set<Node>> nodesToDelete =
-        ThreadLocal.withInitial(() -> new TreeSet<>(new NodeComparator()));
+    /** The paths of all nodes that are descendants of nodes in {@code nodesToDelete}. */
+    private final ThreadLocal<Set<String>> childNodesDeleted = ThreadLocal.withInitial(HashSet::new);
 
-    /** A set of all nodes that are children of nodes in {@code nodesToDelete}. */
-    private final ThreadLocal<Set<Node>> childNodesDeleted =
-        ThreadLocal.withInitial(() -> new TreeSet<>(new NodeComparator()));
+    /** The paths of referrers already processed, so that shared or circular references are only followed once. */
+    private final ThreadLocal<Set<String>> referrersVisited = ThreadLocal.withInitial(HashSet::new);
 
     /**
      * A function that operates on a {@link Node}. As opposed to a simple {@code Consumer}, it can forward a
@@ -112,12 +134,13 @@ public class DeleteServlet extends SlingAllMethodsServlet
      * Mark a node for deletion upon session save.
      */
     private NodeConsumer deleteNode = (node) -> {
-        // Keep track of each child node we've already deleted
-        boolean isChild = nodeSetContains(this.childNodesDeleted.get(), node) != null;
-        boolean alreadyDeleting = nodeSetContains(this.nodesToDelete.get(), node) != null;
-        if (!isChild && !alreadyDeleting) {
-            this.nodesToDelete.get().add(node);
+        final String path = node.getPath();
+        // Keep track of each child node we've already deleted;
+        // if this node is already covered, so is its entire subtree, and there's nothing left to do
+        if (this.childNodesDeleted.get().contains(path) || this.nodesToDelete.get().contains(path)) {
+            return;
         }
+        this.nodesToDelete.get().add(path);
         this.iterateChildren(node, this.markChildNodeDeleted, false);
     };
 
@@ -125,7 +148,7 @@ public class DeleteServlet extends SlingAllMethodsServlet
      * Add a node to a list of traversed nodes.
      */
     private NodeConsumer traverseNode = (node) -> {
-        this.nodesTraversed.get().add(node);
+        this.nodesTraversed.get().putIfAbsent(node.getPath(), node);
     };
 
     /**
@@ -136,35 +159,13 @@ public class DeleteServlet extends SlingAllMethodsServlet
     };
 
     private NodeConsumer markChildNodeDeleted = (node) -> {
-        this.childNodesDeleted.get().add(node);
+        final String path = node.getPath();
+        this.childNodesDeleted.get().add(path);
 
-        // Attempting to delete this node will fail -- remove it
-        // contains() appears to not be working, so we'll unroll the equality here
-        Node toRemove = nodeSetContains(this.nodesToDelete.get(), node);
-        if (toRemove != null) {
-            this.nodesToDelete.get().remove(toRemove);
-        }
+        // Attempting to delete this node will fail, since an ancestor is already deleted -- remove it
+        this.nodesToDelete.get().remove(path);
     };
 
-    /**
-     * Determine whether or not a set contains a particular node.
-     * This is necessary because contains() seems to fail to recognize the same node
-     * that was obtained in two different ways.
-     *
-     * @param includeRoot whether or not to include the root node as a child
-     */
-    private Node nodeSetContains(Set<Node> set, Node node)
-        throws RepositoryException
-    {
-        for (Node n : set) {
-            if (n.getPath().equals(node.getPath())) {
-                return n;
-            }
-        }
-
-        return null;
-    }
-
     @Override
     public void doDelete(final SlingHttpServletRequest request, final SlingHttpServletResponse response)
         throws ServletException, IOException
@@ -175,33 +176,16 @@ public void doDelete(final SlingHttpServletRequest request, final SlingHttpServl
             this.nodeToDelete.set(node);
             this.resolver.set(resourceResolver);
             final Session session = resourceResolver.adaptTo(Session.class);
-            final VersionManager versionManager = session.getWorkspace().getVersionManager();
-            final Set<Node> nodesToCheckin = new TreeSet<>(new NodeComparator());
 
             final Boolean recursive = Boolean.parseBoolean(request.getParameter("recursive"));
 
             if (recursive) {
-                handleRecursiveDeleteChildren(node);
+                handleRecursiveDeleteTree(node);
             } else {
                 handleDelete(response, node);
             }
 
-            // Delete all of our pending nodes, checking out the parent to avoid version conflict issues
-            for (final Node n : this.nodesToDelete.get()) {
-                final Node versionableAncestor = findVersionableAncestor(n);
-                if (versionableAncestor != null && !versionableAncestor.isCheckedOut()) {
-                    nodesToCheckin.add(versionableAncestor);
-                    versionManager.checkout(versionableAncestor.getPath());
-                }
-                n.remove();
-            }
-
-            session.save();
-
-            // Check each parent back in
-            for (final Node versionableNode : nodesToCheckin) {
-                versionManager.checkin(versionableNode.getPath());
-            }
+            removePendingNodes(session, node.getPath());
         } catch (AccessDeniedException e) {
             LOGGER.error("AccessDeniedException trying to delete node: {}", e.getMessage(), e);
             sendJsonError(response, request.getRemoteUser() == null ? SlingHttpServletResponse.SC_UNAUTHORIZED
@@ -216,6 +200,221 @@ public void doDelete(final SlingHttpServletRequest request, final SlingHttpServl
             this.nodesTraversed.remove();
             this.nodesToDelete.remove();
             this.childNodesDeleted.remove();
+            this.referrersVisited.remove();
+        }
+    }
+
+    /**
+     * Remove all the nodes in {@code nodesToDelete}, checking out their versionable ancestors to avoid version
+     * conflict issues. Nodes are removed in the order computed by {@link #sortByReferences}, and the session is saved
+     * after about every {@link #DELETE_BATCH_SIZE} removed nodes, so that the transient space doesn't grow with the
+     * number of nodes being deleted. Since batches are saved separately, the permission to remove each node is checked
+     * before removing anything. The checked out ancestors are checked back in even if the deletion fails.
+     *
+     * @param session the session of the current request
+     * @param rootPath the path of the node that was requested to be deleted, used for progress reporting
+     * @throws AccessDeniedException if the requesting user does not have permission to delete any of the nodes
+     * @throws RepositoryException if deletion fails due to a repository error; if some batches were already saved, the
+     *             message says how many nodes were deleted
+     */
+    private void removePendingNodes(final Session session, final String rootPath)
+        throws AccessDeniedException, RepositoryException
+    {
+        final Set<String> pending = this.nodesToDelete.get();
+        checkRemovePermissions(session, pending);
+
+        final VersionManager versionManager = session.getWorkspace().getVersionManager();
+        final Set<String> nodesToCheckin = new LinkedHashSet<>();
+        final int total = pending.size();
+        int removed = 0;
+        int removedAndSaved = 0;
+        boolean saved = false;
+        try {
+            for (final List<String> group : sortByReferences(session, pending)) {
+                // Nodes of the same group can only be saved together
+                for (final String path : group) {
+                    if (removeNode(session, path, versionManager, nodesToCheckin)) {
+                        ++removed;
+                    }
+                }
+                if (removed - removedAndSaved >= DELETE_BATCH_SIZE) {
+                    session.save();
+                    removedAndSaved = removed;
+                    LOGGER.info("Deleting {}: removed {} of {} nodes", rootPath, removed, total);
+                }
+            }
+            session.save();
+            saved = true;
+            if (total > DELETE_BATCH_SIZE) {
+                LOGGER.info("Deleting {}: removed {} of {} nodes, done", rootPath, removed, total);
+            }
+        } catch (final RepositoryException e) {
+            if (removedAndSaved == 0) {
+                throw e;
+            }
+            throw new RepositoryException(String.format(
+                "Deleted %d of %d nodes before failing, delete %s again to remove the rest: %s",
+                removedAndSaved, total, rootPath, e.getMessage()), e);
+        } finally {
+            if (!saved) {
+                // Discard the unsaved removals, a node with pending changes cannot be checked in
+                session.refresh(false);
+            }
+            checkin(session, versionManager, nodesToCheckin);
+        }
+    }
+
+    /**
+     * Sort the nodes to delete so that each node is removed after, or together with, the nodes holding hard references
+     * to it or to its descendants, since the repository refuses to save the removal of a referenced node. The original
+     * order is kept as much as possible. Nodes referencing each other in a cycle, and the nodes they reference, can
+     * only be saved together, and end up in a single final group.
+     *
+     * @param session the session of the current request
+     * @param paths the paths of the nodes to delete, none of them being the descendant of another
+     * @return groups of paths, in removal order, where a session save is only allowed between groups
+     * @throws RepositoryException if accessing the nodes or their references fails
+     */
+    static List<List<String>> sortByReferences(final Session session, final Set<String> paths)
+        throws RepositoryException
+    {
+        // For each node, the nodes that must be removed after it, and for each node, how many nodes must go before it
+        final Map<String, Set<String>> successors = new HashMap<>();
+        final Map<String, Integer> predecessorCounts = new HashMap<>();
+        for (final String path : paths) {
+            if (session.nodeExists(path)) {
+                collectReferrers(session.getNode(path), path, paths, successors, predecessorCounts);
+            }
+        }
+
+        final List<List<String>> result = new ArrayList<>(paths.size());
+        final Deque<String> ready = new ArrayDeque<>();
+        paths.stream().filter(path -> !predecessorCounts.containsKey(path)).forEach(ready::add);
+        while (!ready.isEmpty()) {
+            final String path = ready.poll();
+            result.add(Collections.singletonList(path));
+            for (final String successor : successors.getOrDefault(path, Collections.emptySet())) {
+                if (predecessorCounts.merge(successor, -1, Integer::sum) == 0) {
+                    predecessorCounts.remove(successor);
+                    ready.add(successor);
+                }
+            }
+        }
+        if (!predecessorCounts.isEmpty()) {
+            result.add(paths.stream().filter(predecessorCounts::containsKey).collect(Collectors.toList()));
+        }
+        return result;
+    }
+
+    /**
+     * Record which of the nodes to delete hold hard references to a node or its descendants.
+     *
+     * @param node the node whose referrers to record, either a node to delete or one of its descendants
+     * @param path the path of the node to delete containing {@code node}
+     * @param paths the paths of all the nodes to delete
+     * @param successors for each node to delete, the nodes it references, which must be removed after it
+     * @param predecessorCounts for each node to delete, how many nodes must be removed before it
+     * @throws RepositoryException if accessing the nodes or their references fails
+     */
+    private static void collectReferrers(final Node node, final String path, final Set<String> paths,
+        final Map<String, Set<String>> successors, final Map<String, Integer> predecessorCounts)
+        throws RepositoryException
+    {
+        final PropertyIterator references = node.getReferences();
+        while (references.hasNext()) {
+            final String referrer = findDeletedAncestor(references.nextProperty().getParent().getPath(), paths);
+            if (referrer != null && !referrer.equals(path)
+                && successors.computeIfAbsent(referrer, k -> new LinkedHashSet<>()).add(path)) {
+                predecessorCounts.merge(path, 1, Integer::sum);
+            }
+        }
+        final NodeIterator children = node.getNodes();
+        while (children.hasNext()) {
+            collectReferrers(children.nextNode(), path, paths, successors, predecessorCounts);
+        }
+    }
+
+    /**
+     * Find which of the nodes to delete contains a node.
+     *
+     * @param path the path of a node
+     * @param paths the paths of all the nodes to delete
+     * @return the path of the node itself or of its ancestor that is to be deleted, or {@code null} if the node is not
+     *         going to be deleted
+     */
+    private static String findDeletedAncestor(final String path, final Set<String> paths)
+    {
+        for (String ancestor = path; !ancestor.isEmpty();
+            ancestor = ancestor.substring(0, Math.max(ancestor.lastIndexOf('/'), 0))) {
+            if (paths.contains(ancestor)) {
+                return ancestor;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check that the session is allowed to remove every existing node among the ones to delete.
+     *
+     * @param session the session of the current request
+     * @param paths the paths of the nodes to delete
+     * @throws AccessDeniedException if the session is not allowed to remove one of the nodes
+     * @throws RepositoryException if checking the permissions fails
+     */
+    private void checkRemovePermissions(final Session session, final Set<String> paths)
+        throws AccessDeniedException, RepositoryException
+    {
+        for (final String path : paths) {
+            if (session.nodeExists(path) && !session.hasPermission(path, Session.ACTION_REMOVE)) {
+                throw new AccessDeniedException("Not allowed to delete " + path);
+            }
+        }
+    }
+
+    /**
+     * Remove a node, if it still exists, checking out its versionable ancestor if needed.
+     *
+     * @param session the session of the current request
+     * @param path the path of the node to remove
+     * @param versionManager the version manager of the session
+     * @param nodesToCheckin will receive the path of the versionable ancestor, if it was checked out
+     * @return {@code true} if the node was removed, {@code false} if it no longer existed
+     * @throws RepositoryException if removing the node fails
+     */
+    private boolean removeNode(final Session session, final String path, final VersionManager versionManager,
+        final Set<String> nodesToCheckin) throws RepositoryException
+    {
+        if (!session.nodeExists(path)) {
+            return false;
+        }
+        final Node n = session.getNode(path);
+        final Node versionableAncestor = findVersionableAncestor(n);
+        if (versionableAncestor != null && !versionableAncestor.isCheckedOut()) {
+            nodesToCheckin.add(versionableAncestor.getPath());
+            versionManager.checkout(versionableAncestor.getPath());
+        }
+        n.remove();
+        return true;
+    }
+
+    /**
+     * Check each versionable node back in. Failures are logged, so that one failure doesn't leave other nodes checked
+     * out, and don't hide the original error if the deletion failed.
+     *
+     * @param session the session of the current request
+     * @param versionManager the version manager of the session
+     * @param paths the paths of the nodes to check in
+     */
+    private void checkin(final Session session, final VersionManager versionManager, final Set<String> paths)
+    {
+        for (final String versionablePath : paths) {
+            try {
+                if (session.nodeExists(versionablePath)) {
+                    versionManager.checkin(versionablePath);
+                }
+            } catch (final RepositoryException e) {
+                LOGGER.warn("Failed to check in {}: {}", versionablePath, e.getMessage(), e);
+            }
         }
     }
 
@@ -247,11 +446,25 @@ private void handleDelete(final SlingHttpServletResponse response, final Node no
             } else {
                 // References were found but they are not references that need user prompting to delete.
                 // Do not inform user, just delete.
-                handleRecursiveDeleteChildren(node);
+                handleRecursiveDeleteTree(node);
             }
         }
     }
 
+    /**
+     * Delete a node, its descendants, and all nodes which reference them, starting a fresh referrer traversal.
+     *
+     * @param node the node to attempt deletion
+     * @throws AccessDeniedException if the requesting user does not have permission to delete any node
+     * @throws RepositoryException if deletion fails due to a repository error
+     */
+    private void handleRecursiveDeleteTree(Node node)
+        throws AccessDeniedException, RepositoryException
+    {
+        this.referrersVisited.get().clear();
+        handleRecursiveDeleteChildren(node);
+    }
+
     /**
      * Delete the children of a node and all nodes which reference its children, as well as the node itself.
      *
@@ -308,6 +521,10 @@ private void iterateReferrers(
                 // This a reference within the subtree to delete, ignore it
                 continue;
             }
+            if (!this.referrersVisited.get().add(path)) {
+                // This referrer, and everything referring to it, was already processed
+                continue;
+            }
 
             if (handleLinks(referrer, consumer)) {
                 iterateReferrers(referrer, consumer, true);
@@ -406,7 +623,7 @@ private String listReferrersFromTraversal()
             List<String> subjectTypes = new ArrayList<>();
             List<String> questionnaires = new ArrayList<>();
 
-            for (Node n : this.nodesTraversed.get()) {
+            for (Node n : this.nodesTraversed.get().values()) {
                 switch (n.getPrimaryNodeType().getName()) {
                     case "cards:Form":
                         formCount++;
@@ -628,22 +845,4 @@ private boolean isNonVersionable(final Node n) throws RepositoryException
     {
         return n.getDefinition().getOnParentVersion() == OnParentVersionAction.IGNORE;
     }
-
-    /**
-     * Node does not implement {@code equals} and {@code hashCode}, so in order to properly detect if two Node instances
-     * reference the same node, we need an explicit comparator that compares the two node paths. This comparator may
-     * throw {@code NullPointerException} if any of the nodes to compare are null.
-     */
-    private static class NodeComparator implements Comparator<Node>
-    {
-        @Override
-        public int compare(Node o1, Node o2)
-        {
-            try {
-                return o1.getPath().compareTo(o2.getPath());
-            } catch (RepositoryException e) {
-                return 0;
-            }
-        }
-    }
 }
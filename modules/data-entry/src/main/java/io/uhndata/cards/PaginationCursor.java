@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * A position in the results of a keyset paginated query, as exchanged with the client through the opaque
+ * {@code cursor} and {@code next} tokens. Results are ordered by {@code jcr:created} only, since that is the ordered
+ * property available in the index, so the cursor records the creation date of the last returned resource, along with
+ * the identifiers of all the returned resources sharing that exact creation date. The next page starts at that
+ * creation date, skipping the resources that were already returned.
+ *
+ * @version $Id$
+ */
+final class PaginationCursor
+{
+    /** The cursor for the first page. */
+    static final PaginationCursor FIRST = new PaginationCursor(null, Collections.emptySet());
+
+    private static final String SEPARATOR = " ";
+
+    /** The creation date of the last returned resource, {@code null} for the first page. */
+    private final String created;
+
+    /** The identifiers of the already returned resources created at exactly {@link #created}. */
+    private final Set<String> seen;
+
+    private PaginationCursor(final String created, final Set<String> seen)
+    {
+        this.created = created;
+        this.seen = Collections.unmodifiableSet(seen);
+    }
+
+    /**
+     * Parse a cursor token received from the client.
+     *
+     * @param token the token, as returned in the {@code next} field of a previous page, may be empty when requesting
+     *            the first page
+     * @return the parsed cursor, or {@code null} if no token was received
+     * @throws IllegalArgumentException if the token is not a valid cursor
+     */
+    static PaginationCursor parse(final String token) throws IllegalArgumentException
+    {
+        if (token == null) {
+            return null;
+        }
+        if (StringUtils.isBlank(token)) {
+            return FIRST;
+        }
+        final String[] parts = StandardCharsets.UTF_8.decode(ByteBuffer.wrap(Base64.getUrlDecoder().decode(token)))
+            .toString().split(SEPARATOR);
+        if (parts.length < 2) {
+            throw new IllegalArgumentException("Invalid pagination cursor: " + token);
+        }
+        try {
+            // The creation date is included in the query, so it must be a valid date
+            OffsetDateTime.parse(parts[0]);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid pagination cursor: " + token, e);
+        }
+        return new PaginationCursor(parts[0], new HashSet<>(Arrays.asList(parts).subList(1, parts.length)));
+    }
+
+    /**
+     * Generates the query condition that selects the resources starting with this cursor.
+     *
+     * @param sortDescending whether the results are sorted in descending order
+     * @return a query condition, or the empty string for the first page
+     */
+    String getCondition(final boolean sortDescending)
+    {
+        if (this.created == null) {
+            return "";
+        }
+        return String.format(" and n.'jcr:created' %s CAST('%s' AS DATE)", sortDescending ? "<=" : ">=",
+            this.created);
+    }
+
+    /**
+     * How many of the results selected by {@link #getCondition(boolean)} may have already been returned.
+     *
+     * @return a number of results to skip at most
+     */
+    int getSkipped()
+    {
+        return this.seen.size();
+    }
+
+    /**
+     * Checks if a resource was already returned in a previous page.
+     *
+     * @param resourceCreated the creation date of the resource
+     * @param identifier the identifier of the resource
+     * @return {@code true} if the resource was already returned
+     */
+    boolean wasReturned(final String resourceCreated, final String identifier)
+    {
+        return resourceCreated.equals(this.created) && this.seen.contains(identifier);
+    }
+
+    /**
+     * Compute the cursor following a page of results.
+     *
+     * @param lastCreated the creation date of the last resource included in the page, {@code null} if the page is
+     *            empty
+     * @param lastIdentifiers the identifiers of the resources included in the page created at exactly
+     *            {@code lastCreated}
+     * @return a cursor for requesting the next page
+     */
+    PaginationCursor next(final String lastCreated, final Set<String> lastIdentifiers)
+    {
+        if (lastCreated == null) {
+            return this;
+        }
+        final Set<String> nextSeen = new HashSet<>(lastIdentifiers);
+        if (lastCreated.equals(this.created)) {
+            nextSeen.addAll(this.seen);
+        }
+        return new PaginationCursor(lastCreated, nextSeen);
+    }
+
+    /**
+     * Serialize this cursor as an opaque token to be sent to the client.
+     *
+     * @return a token that can be parsed back with {@link #parse(String)}
+     */
+    String encode()
+    {
+        if (this.created == null) {
+            return "";
+        }
+        return Base64.getUrlEncoder().encodeToString((this.created + SEPARATOR + String.join(SEPARATOR, this.seen))
+            .getBytes(StandardCharsets.UTF_8));
+    }
+}
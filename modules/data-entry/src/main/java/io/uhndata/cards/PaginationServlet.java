@@ -40,8 +40,6 @@
 import javax.jcr.Session;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
-import javax.jcr.query.QueryResult;
-import javax.jcr.query.Row;
 import javax.jcr.query.RowIterator;
 import javax.json.Json;
 import javax.json.JsonObject;
@@ -54,7 +52,14 @@
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.FieldOption;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
+import org.osgi.service.metatype.annotations.Designate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -70,14 +75,24 @@
  * {@code (*blastoma OR *noma OR tumor*) recurrent}; no filter set by default</li>
  * <li><code>includeallstatus</code>: if true, incomplete forms will be included. Otherwise, they will be excluded
  * unless searched for directly using {@code fieldname="statusFlags"}
+ * <li><code>exacttotal</code>: if true, the page is selected by the query engine itself, without deduplicating and
+ * skipping the first {@code offset} results, and the reported {@code totalrows} is exact instead of being approximated
+ * from the next 10 pages of results; if a maximum exact total is configured, counting stops there and
+ * {@code totalIsApproximate} is set; false by default</li>
+ * <li><code>cursor</code>: if present, switches to keyset pagination: instead of skipping {@code offset} results, the
+ * query seeks directly after the resource identified by this opaque token, as returned in the {@code next} field of
+ * the previous page; an empty value requests the first page; {@code offset} is ignored in this mode, and an invalid
+ * cursor is rejected with a 400 response</li>
  * </ul>
  *
  * @version $Id$
  */
+@Designate(ocd = PaginationConfigDefinition.class)
 @Component(service = { Servlet.class })
 @SlingServletResourceTypes(
     resourceTypes = { "cards/ResourceHomepage" },
     selectors = { "paginate" })
+@SuppressWarnings("checkstyle:ClassFanOutComplexity")
 public class PaginationServlet extends SlingSafeMethodsServlet
 {
 
@@ -90,6 +105,8 @@ public class PaginationServlet extends SlingSafeMethodsServlet
 
     private static final int QUERY_SIZE_MULTIPLIER = 10;
 
+    private static final String CURSOR_PARAMETER = "cursor";
+
     // Allowed JCR-SQL2 operators (from https://docs.adobe.com/docs/en/spec/jcr/2.0/6_Query.html#6.7.17%20Operator)
     private static final List<String> COMPARATORS =
         Arrays.asList("=", "<>", "<", "<=", ">", ">=", "LIKE", "notes contain", "contains", " IS NULL",
@@ -222,6 +239,52 @@ private String formatDate(String original)
         }
     }
 
+    /**
+     * A page of results, ready to be serialized in the response. Instances are immutable, and may be shared through
+     * the {@link QueryResultCache}.
+     */
+    protected static final class Page
+    {
+        /** The serialized resources included in this page. */
+        private final List<JsonObject> rows;
+
+        /** The range of the result, as described in {@link PaginationServlet#writeSummary}. */
+        private final long[] limits;
+
+        /** Whether this page was requested in keyset pagination mode, and should include the {@code next} cursor. */
+        private final boolean cursorMode;
+
+        /** The cursor for requesting the next page, may be {@code null} if this is the last page. */
+        private final String next;
+
+        Page(final List<JsonObject> rows, final long[] limits, final boolean cursorMode, final String next)
+        {
+            this.rows = Collections.unmodifiableList(rows);
+            this.limits = limits;
+            this.cursorMode = cursorMode;
+            this.next = next;
+        }
+
+        String getNext()
+        {
+            return this.next;
+        }
+    }
+
+    @Reference(fieldOption = FieldOption.REPLACE, cardinality = ReferenceCardinality.OPTIONAL,
+        policyOption = ReferencePolicyOption.GREEDY)
+    private QueryResultCache cache;
+
+    /** The maximum number of matches counted in {@code exacttotal} mode, {@code 0} for counting all the matches. */
+    private volatile long maxExactTotal;
+
+    @Activate
+    @Modified
+    protected void activate(final PaginationConfigDefinition config)
+    {
+        this.maxExactTotal = Math.max(config.maxExactTotal(), 0);
+    }
+
     @Override
     public void doGet(final SlingHttpServletRequest request, final SlingHttpServletResponse response)
         throws IOException, IllegalArgumentException
@@ -235,6 +298,11 @@ public void doGet(final SlingHttpServletRequest request, final SlingHttpServletR
 
             final long limit = getLongValueOrDefault(request.getParameter("limit"), 10);
             final long offset = getLongValueOrDefault(request.getParameter("offset"), 0);
+            final PaginationCursor cursor = parseCursor(request, response);
+            if (cursor == null && request.getParameter(CURSOR_PARAMETER) != null) {
+                // An invalid cursor was already reported
+                return;
+            }
 
             // Check for special cases in request and return zero results if any
             if (checkForSpecialEmptyFilter(request, filters, response)) {
@@ -246,17 +314,128 @@ public void doGet(final SlingHttpServletRequest request, final SlingHttpServletR
             // Get a QueryManager object
             final QueryManager queryManager = session.getWorkspace().getQueryManager();
 
-            // Create the Query object
-            Query filterQuery = queryManager.createQuery(createQuery(request, session, filters), "JCR-SQL2");
+            // Create the query
+            final String queryString = createQuery(request, session, filters);
+
+            // Look for an already computed result
+            final QueryResultCache resultCache = this.cache;
+            final String cacheKey = getCacheKey(resultCache, request, queryString, offset, limit);
+            Page page = cacheKey == null ? null : resultCache.get(cacheKey, Page.class);
+
+            // Get the results
+            if (page == null) {
+                final long generation = cacheKey == null ? 0 : resultCache.getGeneration();
+                page = collectPage(queryManager, queryString, cursor, offset, limit, request);
+                if (cacheKey != null) {
+                    resultCache.put(cacheKey, page, generation);
+                }
+            }
 
-            // Get the results and write the response
-            writeResponse(request, response, offset, limit, filterQuery);
+            // Write the response
+            writeResponse(request, response, page);
         } catch (Exception e) {
             LOGGER.warn("Failed to execute query: {}", e.getMessage(), e);
             return;
         }
     }
 
+    /**
+     * Get the cache for query results, shared with the other servlets extending this one.
+     *
+     * @return the cache service, or {@code null} if it isn't available
+     */
+    protected QueryResultCache getCache()
+    {
+        return this.cache;
+    }
+
+    /**
+     * Execute the query and collect the requested page of results, in the pagination mode selected by the request.
+     *
+     * @param queryManager the query manager used for creating the query objects
+     * @param queryString the query to execute
+     * @param cursor the requested keyset pagination cursor, or {@code null} if offset pagination was requested
+     * @param offset how many resources from the query results to skip, in offset pagination mode
+     * @param limit how many resources from the query results to serialize
+     * @param request the current request
+     * @return the requested page of results
+     * @throws RepositoryException if accessing the repository fails
+     */
+    private Page collectPage(final QueryManager queryManager, final String queryString, final PaginationCursor cursor,
+        final long offset, final long limit, final SlingHttpServletRequest request)
+        throws RepositoryException
+    {
+        final Query query = queryManager.createQuery(queryString, "JCR-SQL2");
+        if (cursor != null) {
+            return collectCursorResources(query, cursor, limit, request);
+        } else if (Boolean.parseBoolean(request.getParameter("exacttotal"))) {
+            // A separate query is needed for counting, since the page query will have its offset and limit set
+            return collectExactResources(query, queryManager.createQuery(queryString, "JCR-SQL2"), offset, limit,
+                request);
+        }
+        return collectResources(query, offset, limit, request);
+    }
+
+    /**
+     * Parse the keyset pagination cursor received in the request, if any, and report an invalid cursor as a bad
+     * request.
+     *
+     * @param request the current request
+     * @param response the HTTP response, where an error is sent if the cursor is invalid
+     * @return the parsed cursor, or {@code null} if there is no cursor in the request, or if it is invalid
+     * @throws IOException if sending the error response fails
+     */
+    private PaginationCursor parseCursor(final SlingHttpServletRequest request,
+        final SlingHttpServletResponse response) throws IOException
+    {
+        try {
+            return PaginationCursor.parse(request.getParameter(CURSOR_PARAMETER));
+        } catch (IllegalArgumentException e) {
+            LOGGER.debug("Invalid pagination cursor: {}", e.getMessage());
+            response.sendError(SlingHttpServletResponse.SC_BAD_REQUEST, "Invalid pagination cursor");
+            return null;
+        }
+    }
+
+    /**
+     * Compute the key under which the results of the request are cached, if they can be cached.
+     *
+     * @param resultCache the cache service, may be {@code null}
+     * @param request the current request
+     * @param query the query to execute
+     * @param offset how many resources from the query results are skipped
+     * @param limit how many resources from the query results to serialize
+     * @return a cache key, or {@code null} if the results must not be cached
+     */
+    private String getCacheKey(final QueryResultCache resultCache, final SlingHttpServletRequest request,
+        final String query, final long offset, final long limit)
+    {
+        if (resultCache == null || !resultCache.isCacheable(request.getResource().getPath())) {
+            return null;
+        }
+        return resultCache.getKey(getCacheableQuery(request, query, offset, limit),
+            request.getResourceResolver().adaptTo(Session.class));
+    }
+
+    /**
+     * Gathers together the query and all the other request parameters that affect the results, to be used as a cache
+     * key.
+     *
+     * @param request the current request
+     * @param query the query to execute
+     * @param offset how many resources from the query results are skipped
+     * @param limit how many resources from the query results to serialize
+     * @return a string uniquely identifying the requested results
+     */
+    private String getCacheableQuery(final SlingHttpServletRequest request, final String query, final long offset,
+        final long limit)
+    {
+        return String.join("\n", query, String.valueOf(offset), String.valueOf(limit),
+            StringUtils.defaultString(request.getParameter("resourceSelectors")),
+            StringUtils.defaultString(request.getParameter("exacttotal")),
+            String.valueOf(request.getParameter(CURSOR_PARAMETER)));
+    }
+
     /**
      * Checks if any "is empty" filters for the mandatory data are specified, since such a query will never have any
      * results.
@@ -305,6 +484,8 @@ private void writeEmptyResponse(final SlingHttpServletRequest request, final Sli
             jsonGen.writeStartArray("rows").writeEnd();
             long[] limits = new long[] { offset, limit, 0, 0, 0 };
             writeSummary(jsonGen, request, limits);
+            // There is never a next page to request
+            jsonGen.writeNull("next");
             jsonGen.writeEnd().flush();
         }
     }
@@ -314,16 +495,12 @@ private void writeEmptyResponse(final SlingHttpServletRequest request, final Sli
      *
      * @param request the current request
      * @param response the HTTP response
-     * @param offset how many resources from the query results were skipped
-     * @param limit how many resources from the query results to serialize, may be 0 if we only want a count of the
-     *            resources
-     * @param query the query to execute
+     * @param page the results to write
      * @throws IOException if failed or interrupted I/O operation
-     * @throws RepositoryException if accessing the repository fails
      */
     private void writeResponse(final SlingHttpServletRequest request, final SlingHttpServletResponse response,
-        final long offset, final long limit, final Query query)
-        throws IOException, RepositoryException
+        final Page page)
+        throws IOException
     {
         response.setContentType("application/json");
         response.setCharacterEncoding("UTF-8");
@@ -332,13 +509,76 @@ private void writeResponse(final SlingHttpServletRequest request, final SlingHtt
         try (JsonGenerator jsonGen = Json.createGenerator(out)) {
             jsonGen.writeStartObject();
             jsonGen.writeStartArray("rows");
-            long[] limits = writeResources(jsonGen, query, offset, limit, request);
+            page.rows.forEach(jsonGen::write);
             jsonGen.writeEnd();
-            writeSummary(jsonGen, request, limits);
+            writeSummary(jsonGen, request, page.limits);
+            if (page.cursorMode) {
+                if (page.next != null) {
+                    jsonGen.write("next", page.next);
+                } else {
+                    jsonGen.writeNull("next");
+                }
+            }
             jsonGen.writeEnd().flush();
         }
     }
 
+    /**
+     * Collect the results in keyset pagination mode. At most {@code limit} resources following the requested cursor are
+     * returned, along with a {@code next} cursor that can be used for requesting the following page, if there are any
+     * more results. When no resources are returned, for example with a {@code 0} limit, there is nothing to move past,
+     * so no {@code next} cursor is returned either. Since no results are skipped and the total number of matches isn't
+     * computed, the cost of each page is independent of its position in the result set.
+     *
+     * @param query the query to execute, already including the cursor condition
+     * @param cursor the requested cursor, used for skipping the resources already returned in the previous page
+     * @param limit how many resources from the query results to serialize
+     * @param request the current request
+     * @return the requested page of results
+     * @throws RepositoryException if accessing the repository fails
+     */
+    protected Page collectCursorResources(final Query query, final PaginationCursor cursor, final long limit,
+        final SlingHttpServletRequest request)
+        throws RepositoryException
+    {
+        final String selectors = getResourceSelectors(request);
+        final Session session = request.getResourceResolver().adaptTo(Session.class);
+        final long resultLimit = limit < 0 ? 0 : limit;
+        final List<JsonObject> rows = new ArrayList<>();
+        boolean hasMore = false;
+        // The creation date of the last returned resource, and the returned resources created at that exact date
+        String lastCreated = null;
+        Set<String> lastIdentifiers = new HashSet<>();
+
+        // The results already returned with the cursor's creation date are selected again, and skipped here;
+        // one more result is requested to check if there's a next page
+        query.setLimit(resultLimit + cursor.getSkipped() + 1);
+        final RowIterator results = query.execute().getRows();
+        while (results.hasNext()) {
+            final Node node = session.getNode(results.nextRow().getPath());
+            final String created = node.getProperty("jcr:created").getString();
+            if (cursor.wasReturned(created, node.getIdentifier())) {
+                continue;
+            }
+            if (rows.size() >= resultLimit) {
+                hasMore = true;
+                break;
+            }
+            rows.add(request.getResourceResolver().resolve(node.getPath() + selectors).adaptTo(JsonObject.class));
+            if (!created.equals(lastCreated)) {
+                lastCreated = created;
+                lastIdentifiers = new HashSet<>();
+            }
+            lastIdentifiers.add(node.getIdentifier());
+        }
+        // An empty page would only repeat the same cursor
+        final String next = hasMore && !rows.isEmpty() ? cursor.next(lastCreated, lastIdentifiers).encode() : null;
+        final long returnedResults = rows.size();
+        final long moreResults = hasMore ? 1 : 0;
+        return new Page(rows,
+            new long[] { 0, resultLimit, returnedResults, returnedResults + moreResults, moreResults }, true, next);
+    }
+
     /**
      * Returns a type of results to return, a node type like {@code cards:Form} or {@code cards:Subject}.
      *
@@ -417,6 +657,11 @@ protected String createQuery(final SlingHttpServletRequest request, Session sess
 
         // Results ordering
         final boolean sortDescending = Boolean.valueOf(request.getParameter("descending"));
+        final PaginationCursor cursor = PaginationCursor.parse(request.getParameter(CURSOR_PARAMETER));
+        if (cursor != null) {
+            // Only the indexed creation date is used for ordering, ties are resolved by the cursor itself
+            query.append(cursor.getCondition(sortDescending));
+        }
         query.append(" order by n.'jcr:created'").append(sortDescending ? " DESC" : " ASC");
 
         // Force using the lucene indexes
@@ -951,25 +1196,25 @@ private void writeSummary(final JsonGenerator jsonGen, final SlingHttpServletReq
     }
 
     /**
-     * Serialize the query results into the response JSON. Since JCR queries don't support an easy way to compute the
-     * total number of matches, the query result may contain more resources than actually requested. This method also
-     * accepts a limit, and only at most that many resources will actually be included in the response.
+     * Collect the requested page of query results. Since JCR queries don't support an easy way to compute the total
+     * number of matches, the query result may contain more resources than actually requested. This method also accepts
+     * a limit, and only at most that many resources will actually be included in the response.
      *
-     * @param jsonGen the JSON generator where the results should be serialized
      * @param query the query to execute
      * @param resultOffset how many resources from the query results were skipped
      * @param resultLimit how many resources from the query results to serialize, may be 0 if we only want a count of
      *            the resources
      * @param request the current request
-     * @return an array of values defining the range of the result: limits[0] is the 0-based offset, i.e. how many
-     *         results were skipped; limits[1] is the requested limit, the maximum number of results to return;
-     *         limits[2] is the number of results actually returned, equal to or less than limits[1]; limits[3] is an
-     *         approximate number of total items that match the query
+     * @return the requested page, whose limits are an array of values defining the range of the result: limits[0] is
+     *         the 0-based offset, i.e. how many results were skipped; limits[1] is the requested limit, the maximum
+     *         number of results to return; limits[2] is the number of results actually returned, equal to or less than
+     *         limits[1]; limits[3] is an approximate number of total items that match the query
      */
-    private long[] writeResources(final JsonGenerator jsonGen, final Query query,
+    private Page collectResources(final Query query,
         final long resultOffset, final long resultLimit, final SlingHttpServletRequest request)
     {
-        // Problem 1: Currently Oak does not support DISTINCT, so we must manually ensure uniqueness of the results.
+        // Problem 1: Oak applies DISTINCT while iterating over the results, so the query only returns unique nodes,
+        // but the paths seen so far must still be remembered for counting, and they also guard against duplicates.
         // Problem 2: Currently Oak does not support giving a total number of matches, so we must gauge it.
         // - Request all results
         // - Deduplicate the results as we process them
@@ -978,11 +1223,9 @@ private long[] writeResources(final JsonGenerator jsonGen, final Query query,
         // - After outputting "limit" items, keep counting how many new unique items are there until there are no more
         // results, or encounter 10 more pages of unique items, rounded up to a whole 10*page batch
 
-        final String selectors =
-            (request.getParameter("resourceSelectors") == null ? "" : "." + request.getParameter("resourceSelectors"))
-                .replaceAll("\\.\\.", ".");
-        // The returned number of items
-        long returnedResults = 0;
+        final String selectors = getResourceSelectors(request);
+        // The returned items
+        final List<JsonObject> returnedResults = new ArrayList<>();
         // If there are more results that haven't been counted
         long andMore = 0;
         // Which unique items have been seen so far in the query results
@@ -1011,22 +1254,19 @@ private long[] writeResources(final JsonGenerator jsonGen, final Query query,
 
         // Execute the query
         try {
-            final QueryResult filterResult = query.execute();
-            final RowIterator rows = filterResult.getRows();
+            final RowIterator rows = query.execute().getRows();
 
             while (rows.hasNext()) {
-                final Row row = rows.nextRow();
-                final String path = row.getPath();
+                final String path = rows.nextRow().getPath();
                 // If this resource was already seen, ignore it
                 if (!seenResources.contains(path)) {
                     seenResources.add(path);
                     // If we've passed the "offset" mark, and we didn't output "limit" items yet, include the
                     // resource in the output
                     if (seenResources.size() > resultOffset && limitCounter > 0) {
-                        jsonGen.write(
+                        returnedResults.add(
                             request.getResourceResolver().resolve(path + selectors).adaptTo(JsonObject.class));
                         --limitCounter;
-                        ++returnedResults;
                     }
                     if (seenResources.size() >= totalLimit) {
                         break;
@@ -1041,18 +1281,108 @@ private long[] writeResources(final JsonGenerator jsonGen, final Query query,
         if (seenResources.size() == totalLimit) {
             andMore = 1;
         }
-        return new long[] {
+        return new Page(returnedResults, new long[] {
             // The requested offset
             resultOffset,
             // The requested number of items
             resultLimit,
             // The returned number of items
-            returnedResults,
+            returnedResults.size(),
             // The total number of items matching the query
             seenResources.size() - andMore,
             // There are probably more results than seen
             andMore
-        };
+        }, false, null);
+    }
+
+    /**
+     * Collect one page of query results, letting the query engine skip the first {@code offset} results directly on the
+     * index cursor, and compute the exact number of matching resources. Since Oak filters out duplicate rows of a
+     * {@code select distinct} query before applying the offset and limit, no deduplication is needed. If a maximum
+     * exact total is configured, counting stops after that many matches, and the total is reported as approximate.
+     *
+     * @param query the query to execute for retrieving the requested page
+     * @param countQuery the same query, without any offset or limit, used for counting the total number of matches
+     * @param resultOffset how many resources from the query results to skip
+     * @param resultLimit how many resources from the query results to serialize, may be 0 if we only want a count of
+     *            the resources
+     * @param request the current request
+     * @return the requested page, with limits in the same format as
+     *         {@link #collectResources(Query, long, long, SlingHttpServletRequest)}, with limits[3] being the exact
+     *         number of matches, and limits[4] set only if there are more than the configured maximum exact total
+     */
+    private Page collectExactResources(final Query query, final Query countQuery,
+        final long resultOffset, final long resultLimit, final SlingHttpServletRequest request)
+    {
+        final String selectors = getResourceSelectors(request);
+        final List<JsonObject> returnedResults = new ArrayList<>();
+        long total = 0;
+        long andMore = 0;
+
+        try {
+            if (resultLimit > 0) {
+                query.setOffset(Math.max(resultOffset, 0));
+                query.setLimit(resultLimit);
+                final RowIterator rows = query.execute().getRows();
+                while (rows.hasNext()) {
+                    returnedResults.add(request.getResourceResolver().resolve(rows.nextRow().getPath() + selectors)
+                        .adaptTo(JsonObject.class));
+                }
+            }
+            final long maxTotal = this.maxExactTotal > 0 ? this.maxExactTotal : Long.MAX_VALUE;
+            total = countResults(countQuery, maxTotal);
+            if (total > maxTotal) {
+                total = maxTotal;
+                andMore = 1;
+            }
+        } catch (RepositoryException e) {
+            LOGGER.warn("Failed to execute query: {}", e.getMessage(), e);
+        }
+
+        return new Page(returnedResults,
+            new long[] { resultOffset, resultLimit, returnedResults.size(), total, andMore }, false, null);
+    }
+
+    /**
+     * Count the number of results of a query, stopping after {@code maxCount} results. If the query engine can provide
+     * the size directly from the index, that is used, otherwise the results are counted by iterating over the result
+     * cursor without loading any resources.
+     *
+     * @param query the query whose results should be counted
+     * @param maxCount how many results to count at most, {@code Long.MAX_VALUE} for counting all the results
+     * @return the number of results, or {@code maxCount + 1} if there are more than {@code maxCount} results
+     * @throws RepositoryException if executing the query fails
+     */
+    protected long countResults(final Query query, final long maxCount) throws RepositoryException
+    {
+        if (maxCount < Long.MAX_VALUE) {
+            // One more result is requested to check if the count reached the limit
+            query.setLimit(maxCount + 1);
+        }
+        final RowIterator rows = query.execute().getRows();
+        final long size = rows.getSize();
+        if (size >= 0) {
+            return size;
+        }
+        long count = 0;
+        while (rows.hasNext() && count <= maxCount) {
+            rows.nextRow();
+            ++count;
+        }
+        return count;
+    }
+
+    /**
+     * Get the selectors to use when serializing the returned resources, as requested in the {@code resourceSelectors}
+     * parameter.
+     *
+     * @param request the current request
+     * @return a selectors string starting with a dot, or the empty string if no selectors were requested
+     */
+    private String getResourceSelectors(final SlingHttpServletRequest request)
+    {
+        final String selectors = request.getParameter("resourceSelectors");
+        return selectors == null ? "" : ("." + selectors).replaceAll("\\.\\.", ".");
     }
 
     /**
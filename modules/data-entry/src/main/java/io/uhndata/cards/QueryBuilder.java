@@ -147,6 +147,9 @@ public class QueryBuilder implements Use
     /** Quick search engines. */
     private List<QuickSearchEngine> searchEngines;
 
+    /** Thread pool for running the quick search engines in parallel, may be {@code null}. */
+    private QuickSearchExecutor searchExecutor;
+
     /**
      * Get the results of the query as a JSON array.
      *
@@ -164,6 +167,7 @@ public void init(Bindings bindings)
         this.resourceResolver = (ResourceResolver) bindings.get("resolver");
         final SlingScriptHelper slingHelper = (SlingScriptHelper) bindings.get("sling");
         this.searchEngines = Arrays.asList(slingHelper.getServices(QuickSearchEngine.class, null));
+        this.searchExecutor = slingHelper.getService(QuickSearchExecutor.class);
 
         try {
             this.offset = getLongValueOrDefault(request.getParameter("offset"), 0);
@@ -266,15 +270,16 @@ private QueryResult fullTextSearch(String query) throws RepositoryException
     /**
      * Finds [cards:Form]s, [cards:Subject]s, and [cards:Questionnaire]s using the given full text search, and outputs
      * the result as a JSON. This performs the search in such a way that values in child nodes (e.g. cards:Answers of an
-     * cards:Form) are aggregated to their parent.
+     * cards:Form) are aggregated to their parent. The engines run in parallel, and their results are concatenated in
+     * the order of the engines. The total number of results is only counted up to a batch fully containing the
+     * requested page, and marked as approximate if more results exist.
      *
      * @param query text to search
      */
-    private void quickSearch(final String query) throws RepositoryException, UnsupportedEncodingException
+    private void quickSearch(final String query)
     {
         final List<String> allowedResourceTypes = (this.resourceTypes != null && this.resourceTypes.length > 0)
             ? Arrays.asList(this.resourceTypes) : Collections.singletonList("cards:Form");
-        final JsonArrayBuilder builder = Json.createArrayBuilder();
 
         final SearchParameters searchParameters = SearchParametersFactory.newSearchParameters()
             .withType("quick")
@@ -283,29 +288,17 @@ private void quickSearch(final String query) throws RepositoryException, Unsuppo
             .withMaxResults(this.limit)
             .build();
 
-        long totalRows = 0L;
-        long outputRows = 0L;
         final List<QuickSearchEngine> supportedEngines = this.searchEngines.stream()
             .filter(e -> allowedResourceTypes.stream().anyMatch(type -> e.isTypeSupported(type)))
             .collect(Collectors.toList());
-        for (final QuickSearchEngine engine : supportedEngines) {
-            final QuickSearchEngine.Results results = engine.quickSearch(searchParameters, this.resourceResolver);
-            while (results.hasNext()) {
-                if (outputRows >= this.limit && !this.showTotalRows) {
-                    break;
-                }
-                if (totalRows < this.offset || outputRows >= this.limit) {
-                    results.skip();
-                } else {
-                    builder.add(results.next());
-                    ++outputRows;
-                }
-                ++totalRows;
-            }
-        }
+
+        final QuickSearchRunner.MergedResults results = new QuickSearchRunner(this.searchExecutor,
+            this.resourceResolver, this.offset, this.limit, this.showTotalRows, QUERY_SIZE_MULTIPLIER * this.limit)
+                .run(supportedEngines, searchParameters);
 
         final JsonObjectBuilder output = Json.createObjectBuilder();
-        buildResults(output, builder.build(), outputRows, totalRows, 0);
+        buildResults(output, results.getRows().build(), results.getOutputRows(), results.getTotalRows(),
+            results.isTotalApproximate() ? 1 : 0);
         this.content = output.build().toString();
     }
 
@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards;
+
+import java.util.Map;
+
+import javax.jcr.Session;
+
+/**
+ * In-memory cache for the results of expensive resource queries, such as the ones executed by
+ * {@link PaginationServlet} and {@link CountServlet}. Since the visible results depend on the access rights of the
+ * user, cache keys include the principals of the session performing the query, and the subject that the session may be
+ * restricted to. All the cached results are invalidated whenever the queried data changes.
+ *
+ * @version $Id$
+ */
+public interface QueryResultCache
+{
+    /**
+     * Check if queries on a resource can be cached. Only resources whose changes invalidate the cache can be cached,
+     * results for other resources would otherwise remain outdated until they expire.
+     *
+     * @param path the path of the queried resource, such as a resource homepage
+     * @return {@code true} if query results for this resource can be cached
+     */
+    boolean isCacheable(String path);
+
+    /**
+     * Build a cache key from a normalized query, the principals of the current user, and the session attributes that
+     * restrict access, such as the subject that a patient session is limited to.
+     *
+     * @param query the query, including any other request parameters that affect the result
+     * @param session the session of the current user
+     * @return a cache key, or {@code null} if a key cannot be computed, in which case the cache must not be used
+     */
+    String getKey(String query, Session session);
+
+    /**
+     * Retrieve a cached result.
+     *
+     * @param <T> the type of the cached value
+     * @param key a key obtained through {@link #getKey(String, Session)}
+     * @param type the expected type of the cached value
+     * @return the cached value, or {@code null} if nothing is cached for this key, or the cached value expired or has a
+     *         different type
+     */
+    <T> T get(String key, Class<T> type);
+
+    /**
+     * The current generation of the cache, incremented every time the cache is invalidated. This must be retrieved
+     * before executing a query whose result is going to be cached, and passed to {@link #put(String, Object, long)}.
+     *
+     * @return the current generation
+     */
+    long getGeneration();
+
+    /**
+     * Store a result in the cache. If the cache was invalidated since the specified generation, the value is discarded,
+     * since it may have been computed from outdated data.
+     *
+     * @param key a key obtained through {@link #getKey(String, Session)}
+     * @param value the value to cache, must not be modified afterwards
+     * @param generation the generation of the cache before the value was computed
+     */
+    void put(String key, Object value, long generation);
+
+    /**
+     * Remove all the cached results.
+     */
+    void invalidate();
+
+    /**
+     * Usage statistics, useful for sizing the cache.
+     *
+     * @return a map with the number of {@code entries}, {@code hits}, {@code misses}, {@code evictions}, and
+     *         {@code invalidations}
+     */
+    Map<String, Long> getStatistics();
+}
@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards;
+
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import org.apache.sling.api.resource.ResourceResolver;
+
+/**
+ * Bounded pool of threads used by {@link QueryBuilder} for running several
+ * {@link io.uhndata.cards.spi.QuickSearchEngine quick search engines} in parallel.
+ *
+ * @version $Id$
+ */
+public interface QuickSearchExecutor
+{
+    /**
+     * Schedule a search task. Tasks are queued when all the threads are busy. Since a JCR session must not be used by
+     * more than one thread, the task receives its own clone of the specified resource resolver, created by the calling
+     * thread, which is also registered as the thread resource resolver while the task runs, and closed afterwards, or
+     * when the task is cancelled before it starts.
+     *
+     * @param <T> the type of the task's result
+     * @param resolver the resource resolver of the current request, to be cloned for the task
+     * @param task the task to run
+     * @return a future holding the result of the task, or the failure to clone the resolver
+     */
+    <T> Future<T> submit(ResourceResolver resolver, Function<ResourceResolver, T> task);
+}
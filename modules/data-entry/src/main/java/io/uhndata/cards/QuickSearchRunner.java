@@ -0,0 +1,262 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.spi.QuickSearchEngine;
+import io.uhndata.cards.spi.SearchParameters;
+
+/**
+ * Runs the quick search engines needed by a {@link QueryBuilder} quick search, and merges their results in the order
+ * of the engines. When more than one engine is needed, and the shared {@link QuickSearchExecutor} is available, the
+ * engines run in parallel, otherwise they run one after another with the request's resource resolver.
+ *
+ * @version $Id$
+ */
+final class QuickSearchRunner
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(QuickSearchRunner.class);
+
+    private final QuickSearchExecutor executor;
+
+    private final ResourceResolver resolver;
+
+    private final long offset;
+
+    private final long limit;
+
+    private final boolean showTotalRows;
+
+    /** How many results to count at most from each engine, when totals are requested. */
+    private final long countLimit;
+
+    /** Set when no more results are needed, checked by the engines still running. */
+    private final AtomicBoolean enoughResults = new AtomicBoolean();
+
+    /**
+     * Constructor.
+     *
+     * @param executor the thread pool for running the engines in parallel, may be {@code null}
+     * @param resolver the resource resolver of the current request
+     * @param offset how many results to skip
+     * @param limit how many results to return at most
+     * @param showTotalRows whether the total number of results must be counted
+     * @param batchSize the number of results counted beyond the requested page is rounded up to this batch size
+     */
+    QuickSearchRunner(final QuickSearchExecutor executor, final ResourceResolver resolver, final long offset,
+        final long limit, final boolean showTotalRows, final long batchSize)
+    {
+        this.executor = executor;
+        this.resolver = resolver;
+        this.offset = offset;
+        this.limit = limit;
+        this.showTotalRows = showTotalRows;
+        this.countLimit = (((long) Math.ceil(((double) offset) / ((double) batchSize))) + 1) * batchSize;
+    }
+
+    /**
+     * Run the engines and merge their results, stopping as soon as the requested page is complete, unless totals are
+     * requested.
+     *
+     * @param engines the engines to run
+     * @param searchParameters the search parameters to pass to each engine
+     * @return the merged results
+     */
+    MergedResults run(final List<QuickSearchEngine> engines, final SearchParameters searchParameters)
+    {
+        final List<Future<EngineResults>> futures = submit(engines, searchParameters);
+        final MergedResults merged = new MergedResults();
+        try {
+            for (int i = 0; i < engines.size(); ++i) {
+                final EngineResults results = futures.isEmpty()
+                    ? search(engines.get(i), searchParameters, this.resolver)
+                    : get(engines.get(i), futures.get(i));
+                if (merged.add(results)) {
+                    break;
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            futures.forEach(future -> future.cancel(true));
+        } finally {
+            // Engines still running stop at their next result, and queued engines never start
+            this.enoughResults.set(true);
+            futures.forEach(future -> future.cancel(false));
+        }
+        return merged;
+    }
+
+    /**
+     * Submit the engines to the executor, if they are to run in parallel.
+     *
+     * @param engines the engines to run
+     * @param searchParameters the search parameters to pass to each engine
+     * @return the futures holding each engine's results, in the same order as the engines, or an empty list if the
+     *         engines must run one after another in the current thread
+     */
+    private List<Future<EngineResults>> submit(final List<QuickSearchEngine> engines,
+        final SearchParameters searchParameters)
+    {
+        if (engines.size() < 2 || this.executor == null) {
+            return Collections.emptyList();
+        }
+        final List<Future<EngineResults>> result = new ArrayList<>(engines.size());
+        for (final QuickSearchEngine engine : engines) {
+            result.add(this.executor.submit(this.resolver, engineResolver -> this.enoughResults.get()
+                ? EngineResults.EMPTY
+                : search(engine, searchParameters, engineResolver)));
+        }
+        return result;
+    }
+
+    private EngineResults get(final QuickSearchEngine engine, final Future<EngineResults> future)
+        throws InterruptedException
+    {
+        try {
+            return future.get();
+        } catch (final ExecutionException e) {
+            LOGGER.warn("Quick search engine {} failed: {}", engine.getClass().getName(),
+                e.getCause().getMessage(), e.getCause());
+            return EngineResults.EMPTY;
+        }
+    }
+
+    /**
+     * Run one quick search engine, serializing its first results and counting the rest. Each engine serializes at most
+     * {@code offset + limit} results, in case it is the first engine.
+     *
+     * @param engine the engine to run
+     * @param searchParameters the search parameters to pass to the engine
+     * @param engineResolver the resource resolver to use, must not be used by another thread at the same time
+     * @return the serialized results, and the number of other results counted
+     */
+    private EngineResults search(final QuickSearchEngine engine, final SearchParameters searchParameters,
+        final ResourceResolver engineResolver)
+    {
+        final long neededRows = this.offset + this.limit;
+        final List<JsonObject> rows = new ArrayList<>();
+        long skippedRows = 0;
+        final QuickSearchEngine.Results results = engine.quickSearch(searchParameters, engineResolver);
+        while (results.hasNext()) {
+            if (this.enoughResults.get()) {
+                return new EngineResults(rows, skippedRows, false);
+            }
+            if (rows.size() < neededRows) {
+                rows.add(results.next());
+            } else if (this.showTotalRows && rows.size() + skippedRows < this.countLimit) {
+                results.skip();
+                ++skippedRows;
+            } else {
+                return new EngineResults(rows, skippedRows, false);
+            }
+        }
+        return new EngineResults(rows, skippedRows, true);
+    }
+
+    /**
+     * The requested page of results, merged from all the engines.
+     */
+    final class MergedResults
+    {
+        private final JsonArrayBuilder rows = Json.createArrayBuilder();
+
+        private long outputRows;
+
+        private long totalRows;
+
+        private boolean totalIsApproximate;
+
+        /**
+         * Add the results of the next engine.
+         *
+         * @param results the results of an engine
+         * @return {@code true} if no more results are needed, {@code false} if the next engine must be merged as well
+         */
+        private boolean add(final EngineResults results)
+        {
+            for (final JsonObject row : results.rows) {
+                if (this.totalRows >= QuickSearchRunner.this.offset
+                    && this.outputRows < QuickSearchRunner.this.limit) {
+                    this.rows.add(row);
+                    ++this.outputRows;
+                }
+                ++this.totalRows;
+            }
+            this.totalRows += results.skippedRows;
+            this.totalIsApproximate |= !results.complete && QuickSearchRunner.this.showTotalRows;
+            return this.outputRows >= QuickSearchRunner.this.limit && !QuickSearchRunner.this.showTotalRows;
+        }
+
+        JsonArrayBuilder getRows()
+        {
+            return this.rows;
+        }
+
+        long getOutputRows()
+        {
+            return this.outputRows;
+        }
+
+        long getTotalRows()
+        {
+            return this.totalRows;
+        }
+
+        boolean isTotalApproximate()
+        {
+            return this.totalIsApproximate;
+        }
+    }
+
+    /**
+     * The results of one quick search engine: its first results, serialized, and how many other results were counted.
+     */
+    private static final class EngineResults
+    {
+        private static final EngineResults EMPTY = new EngineResults(Collections.emptyList(), 0, true);
+
+        private final List<JsonObject> rows;
+
+        private final long skippedRows;
+
+        /** Whether all the results of the engine were either serialized or counted. */
+        private final boolean complete;
+
+        EngineResults(final List<JsonObject> rows, final long skippedRows, final boolean complete)
+        {
+            this.rows = rows;
+            this.skippedRows = skippedRows;
+            this.complete = complete;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.internal;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.commons.scheduler.ScheduleOptions;
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Optional service that periodically stores the counts computed by the {@link io.uhndata.cards.CountServlet} as
+ * {@code cards:QueryCache} nodes under {@code /QueryCache}. Counts are queued in memory as they are computed, and
+ * written in a single commit on each run, so that count requests themselves never write to the repository. This
+ * service is only active when explicitly configured.
+ *
+ * @version $Id$
+ */
+@Designate(ocd = QueryCountPersister.Config.class)
+@Component(service = QueryCountPersister.class, configurationPolicy = ConfigurationPolicy.REQUIRE)
+public class QueryCountPersister implements Runnable
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueryCountPersister.class);
+
+    private static final String JOB_NAME = "QueryCountPersister";
+
+    private BlockingQueue<PendingCount> pendingCounts;
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    @Reference
+    private Scheduler scheduler;
+
+    @ObjectClassDefinition(name = "Query counts persistence",
+        description = "Periodically store the computed query counts in the repository, under /QueryCache")
+    public @interface Config
+    {
+        @AttributeDefinition(name = "Period", description = "How often to store the pending counts, in seconds")
+        long period() default 300;
+
+        @AttributeDefinition(name = "Maximum pending counts",
+            description = "How many counts can be waiting to be stored; any other counts will be discarded")
+        int maxPending() default 1000;
+    }
+
+    @Activate
+    protected void activate(final Config config)
+    {
+        this.pendingCounts = new LinkedBlockingQueue<>(Math.max(config.maxPending(), 1));
+        final ScheduleOptions options = this.scheduler.NOW(-1, Math.max(config.period(), 1));
+        options.name(JOB_NAME);
+        options.canRunConcurrently(false);
+        try {
+            this.scheduler.schedule(this, options);
+        } catch (final Exception e) {
+            LOGGER.error("Failed to schedule the query counts persistence: {}", e.getMessage(), e);
+        }
+    }
+
+    @Deactivate
+    protected void deactivate()
+    {
+        this.scheduler.unschedule(JOB_NAME);
+        // Store anything still pending
+        run();
+    }
+
+    /**
+     * Queue a computed count for storage.
+     *
+     * @param resourceType the name of the homepage whose resources were counted, e.g. {@code Forms}
+     * @param properties the filters used in the query, as property name to value pairs
+     * @param count the computed count
+     */
+    public void record(final String resourceType, final Map<String, String> properties, final long count)
+    {
+        if (!this.pendingCounts.offer(new PendingCount(resourceType, properties, count, new Date()))) {
+            LOGGER.debug("Too many pending query counts, discarding count for {}", resourceType);
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        final List<PendingCount> counts = new ArrayList<>();
+        this.pendingCounts.drainTo(counts);
+        if (counts.isEmpty()) {
+            return;
+        }
+        final Map<String, Object> parameters =
+            Collections.singletonMap(ResourceResolverFactory.SUBSERVICE, "queryCache");
+        try (ResourceResolver resolver = this.resolverFactory.getServiceResourceResolver(parameters)) {
+            final Session session = resolver.adaptTo(Session.class);
+            final Node homepage = session.getNode("/QueryCache");
+            final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+            for (PendingCount count : counts) {
+                final Node node = homepage.addNode(UUID.randomUUID().toString(), "cards:QueryCache");
+                node.setProperty("countType", "=");
+                node.setProperty("count", count.count);
+                node.setProperty("time", dateFormat.format(count.time));
+                node.setProperty("resourceType", count.resourceType);
+                for (Map.Entry<String, String> property : count.properties.entrySet()) {
+                    node.setProperty(property.getKey(), property.getValue());
+                }
+            }
+            session.save();
+        } catch (final LoginException e) {
+            LOGGER.warn("Failed to get service session: {}", e.getMessage(), e);
+        } catch (final RepositoryException e) {
+            LOGGER.error("Failed to store query counts: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * A computed count waiting to be stored.
+     */
+    private static final class PendingCount
+    {
+        private final String resourceType;
+
+        private final Map<String, String> properties;
+
+        private final long count;
+
+        private final Date time;
+
+        PendingCount(final String resourceType, final Map<String, String> properties, final long count,
+            final Date time)
+        {
+            this.resourceType = resourceType;
+            this.properties = properties;
+            this.count = count;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.internal;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.commons.collections4.map.LRUMap;
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.sling.api.resource.observation.ExternalResourceChangeListener;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.QueryResultCache;
+
+/**
+ * Size-bounded, least recently used, in-memory implementation of the {@link QueryResultCache}. Only queries on forms and
+ * subjects are cached, and any change to forms or subjects, including changes coming from other cluster members,
+ * invalidates all the cached results.
+ *
+ * @version $Id$
+ */
+@Designate(ocd = QueryResultCacheImpl.Config.class)
+@Component(immediate = true, service = { QueryResultCache.class, ResourceChangeListener.class }, property = {
+    ResourceChangeListener.PATHS + "=" + QueryResultCacheImpl.FORMS,
+    ResourceChangeListener.PATHS + "=" + QueryResultCacheImpl.SUBJECTS
+})
+public class QueryResultCacheImpl implements QueryResultCache, ResourceChangeListener, ExternalResourceChangeListener
+{
+    static final String FORMS = "/Forms";
+
+    static final String SUBJECTS = "/Subjects";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueryResultCacheImpl.class);
+
+    /** The watched roots. Queries on other resources are not cached, since they would never be invalidated. */
+    private static final Set<String> ROOTS = Set.of(FORMS, SUBJECTS);
+
+    /**
+     * The session attribute limiting a session to the data of one subject. Sessions of the same user, such as the
+     * shared patient user, may see different results depending on this attribute, so it must be part of the cache key.
+     */
+    private static final String SESSION_SUBJECT_ATTRIBUTE = "cards:sessionSubject";
+
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /** Guards access to the cached values, and their replacement when the configuration changes. */
+    private final Object lock = new Object();
+
+    /** The cached values, in access order. Access must be synchronized on {@link #lock}. */
+    private LRUMap<String, CachedValue> cache = new LRUMap<>(1);
+
+    private volatile boolean enabled;
+
+    private volatile int maxEntries;
+
+    private volatile long timeToLive;
+
+    @ObjectClassDefinition(name = "Query results cache",
+        description = "In-memory cache for the results of the pagination and count queries")
+    public @interface Config
+    {
+        @AttributeDefinition(name = "Enabled")
+        boolean enable() default true;
+
+        @AttributeDefinition(name = "Maximum entries", description = "How many query results to cache at most")
+        int maxEntries() default 1000;
+
+        @AttributeDefinition(name = "Time to live",
+            description = "How many seconds a cached result can be used, even if no changes are detected")
+        long timeToLive() default 300;
+    }
+
+    @Activate
+    @Modified
+    protected void activate(final Config config)
+    {
+        this.enabled = config.enable();
+        this.maxEntries = Math.max(config.maxEntries(), 0);
+        this.timeToLive = TimeUnit.SECONDS.toMillis(Math.max(config.timeToLive(), 0));
+        synchronized (this.lock) {
+            this.cache = new LRUMap<>(Math.max(this.maxEntries, 1));
+        }
+        invalidate();
+    }
+
+    @Override
+    public boolean isCacheable(final String path)
+    {
+        if (path == null) {
+            return false;
+        }
+        final int rootEnd = path.indexOf('/', 1);
+        return ROOTS.contains(rootEnd < 0 ? path : path.substring(0, rootEnd));
+    }
+
+    @Override
+    public String getKey(final String query, final Session session)
+    {
+        if (!this.enabled || query == null || !(session instanceof JackrabbitSession)) {
+            return null;
+        }
+        try {
+            final SortedSet<String> principals = new TreeSet<>();
+            final Authorizable user =
+                ((JackrabbitSession) session).getUserManager().getAuthorizable(session.getUserID());
+            if (user == null) {
+                return null;
+            }
+            principals.add(user.getPrincipal().getName());
+            final Iterator<Group> groups = user.memberOf();
+            while (groups.hasNext()) {
+                principals.add(groups.next().getPrincipal().getName());
+            }
+            return String.join(",", principals) + "\n" + session.getAttribute(SESSION_SUBJECT_ATTRIBUTE) + "\n"
+                + query;
+        } catch (RepositoryException e) {
+            LOGGER.warn("Failed to compute the principals of {}: {}", session.getUserID(), e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public <T> T get(final String key, final Class<T> type)
+    {
+        if (!this.enabled || key == null) {
+            return null;
+        }
+        final CachedValue value;
+        synchronized (this.lock) {
+            value = this.cache.get(key);
+            if (value != null && value.isExpired()) {
+                this.cache.remove(key);
+                this.evictions.incrementAndGet();
+                this.misses.incrementAndGet();
+                return null;
+            }
+        }
+        if (value == null || !type.isInstance(value.value)) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+        this.hits.incrementAndGet();
+        return type.cast(value.value);
+    }
+
+    @Override
+    public long getGeneration()
+    {
+        return this.generation.get();
+    }
+
+    @Override
+    public void put(final String key, final Object value, final long generation)
+    {
+        if (!this.enabled || key == null || value == null || this.maxEntries == 0) {
+            return;
+        }
+        synchronized (this.lock) {
+            // Checked while holding the lock, since invalidate also clears the cache while holding the lock
+            if (generation == this.generation.get()) {
+                if (this.cache.isFull() && !this.cache.containsKey(key)) {
+                    this.evictions.incrementAndGet();
+                }
+                this.cache.put(key, new CachedValue(value, System.currentTimeMillis() + this.timeToLive));
+            }
+        }
+    }
+
+    @Override
+    public void invalidate()
+    {
+        synchronized (this.lock) {
+            this.generation.incrementAndGet();
+            this.invalidations.incrementAndGet();
+            this.cache.clear();
+        }
+    }
+
+    @Override
+    public Map<String, Long> getStatistics()
+    {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        synchronized (this.lock) {
+            result.put("entries", (long) this.cache.size());
+        }
+        result.put("hits", this.hits.get());
+        result.put("misses", this.misses.get());
+        result.put("evictions", this.evictions.get());
+        result.put("invalidations", this.invalidations.get());
+        return result;
+    }
+
+    @Override
+    public void onChange(final List<ResourceChange> changes)
+    {
+        if (!changes.isEmpty()) {
+            invalidate();
+        }
+    }
+
+    /**
+     * A cached value along with its expiration time.
+     */
+    private static final class CachedValue
+    {
+        private final Object value;
+
+        private final long expiresAt;
+
+        CachedValue(final Object value, final long expiresAt)
+        {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired()
+        {
+            return System.currentTimeMillis() > this.expiresAt;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.internal;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.servlet.Servlet;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+
+import io.uhndata.cards.QueryResultCache;
+
+/**
+ * A servlet that outputs the usage statistics of the {@link QueryResultCache}, useful for sizing the cache. Only the
+ * administrator may access the statistics.
+ *
+ * @version $Id$
+ */
+@Component(service = { Servlet.class })
+@SlingServletResourceTypes(
+    resourceTypes = { "cards/ResourceHomepage" },
+    selectors = { "querycachestats" })
+public class QueryResultCacheStatisticsServlet extends SlingSafeMethodsServlet
+{
+    private static final long serialVersionUID = 5426581359124066785L;
+
+    @Reference
+    private QueryResultCache cache;
+
+    @Override
+    public void doGet(final SlingHttpServletRequest request, final SlingHttpServletResponse response)
+        throws IOException
+    {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        // Ensure that this can only be run when logged in as admin
+        final String remoteUser = request.getRemoteUser();
+        if (remoteUser == null || !"admin".equals(remoteUser.toLowerCase(Locale.ROOT))) {
+            // admin login required
+            response.setStatus(SlingHttpServletResponse.SC_FORBIDDEN);
+            try (JsonGenerator jsonGen = Json.createGenerator(response.getWriter())) {
+                jsonGen.writeStartObject().write("status", "error")
+                    .write("error", "Only admin can perform this operation.").writeEnd().flush();
+            }
+            return;
+        }
+        // The writer doesn't need to be explicitly closed since the auto-closed jsonGen will also close the writer
+        final Writer out = response.getWriter();
+        try (JsonGenerator jsonGen = Json.createGenerator(out)) {
+            jsonGen.writeStartObject();
+            this.cache.getStatistics().forEach(jsonGen::write);
+            jsonGen.writeEnd().flush();
+        }
+    }
+}
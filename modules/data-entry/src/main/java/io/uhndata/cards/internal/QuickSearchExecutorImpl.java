@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.internal;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+import io.uhndata.cards.QuickSearchExecutor;
+import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
+
+/**
+ * Fixed size thread pool implementation of the {@link QuickSearchExecutor}.
+ *
+ * @version $Id$
+ */
+@Designate(ocd = QuickSearchExecutorImpl.Config.class)
+@Component(service = QuickSearchExecutor.class)
+public class QuickSearchExecutorImpl implements QuickSearchExecutor
+{
+    private final AtomicInteger threadCounter = new AtomicInteger();
+
+    @Reference
+    private ThreadResourceResolverProvider rrp;
+
+    private volatile ExecutorService executor;
+
+    @ObjectClassDefinition(name = "Quick search executor",
+        description = "Thread pool used for running the quick search engines in parallel")
+    public @interface Config
+    {
+        @AttributeDefinition(name = "Threads", description = "How many search engines can run at the same time,"
+            + " across all the quick search requests")
+        int threads() default 8;
+    }
+
+    @Activate
+    @Modified
+    protected void activate(final Config config)
+    {
+        final ExecutorService previous = this.executor;
+        final ThreadFactory threadFactory = runnable -> {
+            final Thread thread = new Thread(runnable, "quick-search-" + this.threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        this.executor = Executors.newFixedThreadPool(Math.max(config.threads(), 1), threadFactory);
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    @Deactivate
+    protected void deactivate()
+    {
+        this.executor.shutdown();
+    }
+
+    @Override
+    public <T> Future<T> submit(final ResourceResolver resolver, final Function<ResourceResolver, T> task)
+    {
+        // The request's resolver must only be used by the request thread, so it is cloned here and not in the worker
+        final ResourceResolver taskResolver;
+        try {
+            taskResolver = resolver.clone(null);
+        } catch (final LoginException e) {
+            final CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        final AtomicBoolean started = new AtomicBoolean();
+        final FutureTask<T> result = new FutureTask<>(() -> {
+            if (!started.compareAndSet(false, true)) {
+                return null;
+            }
+            try (ResourceResolver usedResolver = taskResolver) {
+                // Label processors and restriction patterns look up the session through the thread resource resolver
+                this.rrp.push(usedResolver);
+                try {
+                    return task.apply(usedResolver);
+                } finally {
+                    this.rrp.pop();
+                }
+            }
+        })
+        {
+            @Override
+            protected void done()
+            {
+                // Tasks cancelled while still queued never start, release their resolver now
+                if (started.compareAndSet(false, true)) {
+                    taskResolver.close();
+                }
+            }
+        };
+        try {
+            this.executor.execute(result);
+        } catch (final RejectedExecutionException e) {
+            taskResolver.close();
+            throw e;
+        }
+        return result;
+    }
+}
@@ -78,6 +78,18 @@ public static String escapeQueryArgument(final String input)
         return input.replace("'", "''");
     }
 
+    /**
+     * Escapes the input string to be usable as a quoted phrase in a {@code contains} full text condition, including the
+     * surrounding quotes.
+     *
+     * @param input text to escape
+     * @return an escaped and quoted version of the input
+     */
+    public static String escapeFullTextPhrase(final String input)
+    {
+        return escapeQueryArgument("\"" + input.replaceAll("([\\\\\"])", "\\\\$1") + "\"");
+    }
+
     /**
      * Searches through a list of Strings and returns the first String in that list for which in itself contains a given
      * substring.
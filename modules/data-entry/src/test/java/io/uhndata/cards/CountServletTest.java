@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.RowIterator;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import io.uhndata.cards.internal.QueryCountPersister;
+
+/**
+ * Unit tests for {@link CountServlet}.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class CountServletTest
+{
+    private final StringWriter output = new StringWriter();
+
+    @Mock
+    private QueryResultCache cache;
+
+    @Mock
+    private QueryCountPersister persister;
+
+    @InjectMocks
+    private CountServlet servlet;
+
+    @Mock
+    private SlingHttpServletRequest request;
+
+    @Mock
+    private SlingHttpServletResponse response;
+
+    @Mock
+    private ResourceResolver resolver;
+
+    @Mock
+    private Session session;
+
+    @Mock
+    private QueryManager queryManager;
+
+    @Mock
+    private Query query;
+
+    @Mock
+    private RowIterator rows;
+
+    @Before
+    public void setup() throws Exception
+    {
+        Mockito.when(this.request.getRemoteUser()).thenReturn("admin");
+        Mockito.when(this.request.getResourceResolver()).thenReturn(this.resolver);
+        Mockito.when(this.resolver.adaptTo(Session.class)).thenReturn(this.session);
+        final Resource homepage = Mockito.mock(Resource.class);
+        final Node homepageNode = Mockito.mock(Node.class);
+        final Property childNodeType = Mockito.mock(Property.class);
+        Mockito.when(this.request.getResource()).thenReturn(homepage);
+        Mockito.when(homepage.adaptTo(Node.class)).thenReturn(homepageNode);
+        Mockito.when(homepage.getPath()).thenReturn("/Forms");
+        Mockito.when(homepage.getName()).thenReturn("Forms");
+        Mockito.when(homepageNode.hasProperty("childNodeType")).thenReturn(true);
+        Mockito.when(homepageNode.getProperty("childNodeType")).thenReturn(childNodeType);
+        Mockito.when(childNodeType.getString()).thenReturn("cards:Form");
+
+        final Workspace workspace = Mockito.mock(Workspace.class);
+        final QueryResult result = Mockito.mock(QueryResult.class);
+        Mockito.when(this.session.getWorkspace()).thenReturn(workspace);
+        Mockito.when(workspace.getQueryManager()).thenReturn(this.queryManager);
+        Mockito.when(this.queryManager.createQuery(Matchers.anyString(), Matchers.eq("JCR-SQL2")))
+            .thenReturn(this.query);
+        Mockito.when(this.query.execute()).thenReturn(result);
+        Mockito.when(result.getRows()).thenReturn(this.rows);
+
+        Mockito.when(this.cache.isCacheable("/Forms")).thenReturn(true);
+        Mockito.when(this.cache.getKey(Matchers.anyString(), Matchers.eq(this.session))).thenReturn("key");
+        Mockito.when(this.cache.getGeneration()).thenReturn(3L);
+        Mockito.when(this.response.getWriter()).thenReturn(new PrintWriter(this.output));
+    }
+
+    @Test
+    public void cachedCountIsServedWithoutQuerying() throws Exception
+    {
+        Mockito.when(this.cache.get("key", Long.class)).thenReturn(12L);
+
+        this.servlet.doGet(this.request, this.response);
+
+        Assert.assertEquals("{\"count\":12}", this.output.toString());
+        Mockito.verify(this.query, Mockito.never()).execute();
+        Mockito.verify(this.persister, Mockito.never()).record(Matchers.anyString(),
+            Matchers.<Map<String, String>>any(), Matchers.anyLong());
+    }
+
+    @Test
+    public void computedCountIsNotCappedAndIsCached() throws Exception
+    {
+        Mockito.when(this.rows.getSize()).thenReturn(20000L);
+
+        this.servlet.doGet(this.request, this.response);
+
+        Assert.assertEquals("{\"count\":20000}", this.output.toString());
+        Mockito.verify(this.query, Mockito.never()).setLimit(Matchers.anyLong());
+        Mockito.verify(this.cache).put("key", 20000L, 3L);
+        Mockito.verify(this.persister).record(Matchers.eq("Forms"), Matchers.<Map<String, String>>any(),
+            Matchers.eq(20000L));
+    }
+
+    @Test
+    public void failedQueriesAreNotCached() throws Exception
+    {
+        Mockito.when(this.query.execute()).thenThrow(new RepositoryException("failed"));
+
+        this.servlet.doGet(this.request, this.response);
+
+        Assert.assertEquals("{\"count\":\"0\"}", this.output.toString());
+        Mockito.verify(this.cache, Mockito.never()).put(Matchers.anyString(), Matchers.any(), Matchers.anyLong());
+    }
+
+    @Test
+    public void countsOfUnwatchedResourcesAreNotCached() throws Exception
+    {
+        Mockito.when(this.cache.isCacheable("/Forms")).thenReturn(false);
+        Mockito.when(this.rows.getSize()).thenReturn(5L);
+
+        this.servlet.doGet(this.request, this.response);
+
+        Assert.assertEquals("{\"count\":5}", this.output.toString());
+        Mockito.verify(this.cache, Mockito.never()).get(Matchers.anyString(), Matchers.<Class<Long>>any());
+        Mockito.verify(this.cache, Mockito.never()).put(Matchers.anyString(), Matchers.any(), Matchers.anyLong());
+    }
+
+    @Test
+    public void onlyAdminCanCount() throws Exception
+    {
+        Mockito.when(this.request.getRemoteUser()).thenReturn("patient");
+
+        this.servlet.doGet(this.request, this.response);
+
+        Mockito.verify(this.response).setStatus(403);
+        Mockito.verify(this.queryManager, Mockito.never()).createQuery(Matchers.anyString(), Matchers.anyString());
+    }
+}
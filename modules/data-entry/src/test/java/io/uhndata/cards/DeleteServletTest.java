@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.nodetype.NodeDefinition;
+import javax.jcr.version.OnParentVersionAction;
+import javax.jcr.version.VersionManager;
+import javax.servlet.ServletException;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+/**
+ * Unit tests for {@link DeleteServlet}.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class DeleteServletTest
+{
+    private static final String FORM_PATH = "/Forms/f1";
+
+    private static final String ANSWER_PATH = FORM_PATH + "/a1";
+
+    private final DeleteServlet servlet = new DeleteServlet();
+
+    @Mock
+    private SlingHttpServletRequest request;
+
+    @Mock
+    private SlingHttpServletResponse response;
+
+    @Mock
+    private Session session;
+
+    @Mock
+    private VersionManager versionManager;
+
+    @Mock
+    private Node answer;
+
+    @Mock
+    private Node form;
+
+    @Before
+    public void setUp() throws RepositoryException, IOException
+    {
+        final ResourceResolver resolver = Mockito.mock(ResourceResolver.class);
+        final Resource resource = Mockito.mock(Resource.class);
+        Mockito.when(this.request.getResourceResolver()).thenReturn(resolver);
+        Mockito.when(this.request.getResource()).thenReturn(resource);
+        Mockito.when(this.request.getParameter("recursive")).thenReturn("true");
+        Mockito.when(this.request.getRemoteUser()).thenReturn("alice");
+        Mockito.when(resource.adaptTo(Node.class)).thenReturn(this.answer);
+        Mockito.when(resolver.adaptTo(Session.class)).thenReturn(this.session);
+        Mockito.when(this.response.getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+
+        final Workspace workspace = Mockito.mock(Workspace.class);
+        Mockito.when(this.session.getWorkspace()).thenReturn(workspace);
+        Mockito.when(workspace.getVersionManager()).thenReturn(this.versionManager);
+        Mockito.when(this.session.nodeExists(Matchers.anyString())).thenReturn(true);
+        Mockito.when(this.session.getNode(ANSWER_PATH)).thenReturn(this.answer);
+        Mockito.when(this.session.hasPermission(ANSWER_PATH, Session.ACTION_REMOVE)).thenReturn(true);
+
+        // An answer without children or references, in a checked in versionable form
+        Mockito.when(this.answer.getPath()).thenReturn(ANSWER_PATH);
+        Mockito.when(this.answer.getDepth()).thenReturn(3);
+        Mockito.when(this.answer.getParent()).thenReturn(this.form);
+        final NodeIterator noChildren = Mockito.mock(NodeIterator.class);
+        Mockito.when(this.answer.getNodes()).thenReturn(noChildren);
+        final PropertyIterator noReferences = Mockito.mock(PropertyIterator.class);
+        Mockito.when(this.answer.getReferences()).thenReturn(noReferences);
+        Mockito.when(this.answer.getWeakReferences()).thenReturn(noReferences);
+        final NodeDefinition definition = Mockito.mock(NodeDefinition.class);
+        Mockito.when(definition.getOnParentVersion()).thenReturn(OnParentVersionAction.COPY);
+        Mockito.when(this.answer.getDefinition()).thenReturn(definition);
+        Mockito.when(this.form.getPath()).thenReturn(FORM_PATH);
+        Mockito.when(this.form.getDepth()).thenReturn(2);
+        Mockito.when(this.form.isNodeType("mix:versionable")).thenReturn(true);
+    }
+
+    @Test
+    public void nodesAreRemovedAndTheirFormCheckedInAgain()
+        throws ServletException, IOException, RepositoryException
+    {
+        this.servlet.doDelete(this.request, this.response);
+
+        final InOrder order = Mockito.inOrder(this.versionManager, this.answer, this.session);
+        order.verify(this.versionManager).checkout(FORM_PATH);
+        order.verify(this.answer).remove();
+        order.verify(this.session).save();
+        order.verify(this.versionManager).checkin(FORM_PATH);
+        Mockito.verify(this.response, Mockito.never()).setStatus(Matchers.anyInt());
+    }
+
+    @Test
+    public void nothingIsRemovedWithoutPermission()
+        throws ServletException, IOException, RepositoryException
+    {
+        Mockito.when(this.session.hasPermission(ANSWER_PATH, Session.ACTION_REMOVE)).thenReturn(false);
+
+        this.servlet.doDelete(this.request, this.response);
+
+        Mockito.verify(this.response, Mockito.atLeastOnce()).setStatus(SlingHttpServletResponse.SC_FORBIDDEN);
+        Mockito.verify(this.answer, Mockito.never()).remove();
+        Mockito.verify(this.session, Mockito.never()).save();
+        Mockito.verify(this.versionManager, Mockito.never()).checkout(Matchers.anyString());
+    }
+
+    @Test
+    public void checkedOutFormsAreCheckedInWhenSavingFails()
+        throws ServletException, IOException, RepositoryException
+    {
+        Mockito.doThrow(new RepositoryException("Conflict")).when(this.session).save();
+
+        this.servlet.doDelete(this.request, this.response);
+
+        final InOrder order = Mockito.inOrder(this.versionManager, this.session);
+        order.verify(this.versionManager).checkout(FORM_PATH);
+        order.verify(this.session).refresh(false);
+        order.verify(this.versionManager).checkin(FORM_PATH);
+        Mockito.verify(this.response, Mockito.atLeastOnce())
+            .setStatus(SlingHttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+
+    @Test
+    public void referrersAreRemovedBeforeTheNodesTheyReference() throws RepositoryException
+    {
+        final Session anySession = Mockito.mock(Session.class);
+        mockNode(anySession, "/Subjects/s1", "/Forms/f1/a1");
+        mockNode(anySession, "/Forms/f1", null);
+        mockNode(anySession, "/Forms/f2", null);
+
+        Assert.assertEquals(
+            Arrays.asList(Collections.singletonList("/Forms/f1"), Collections.singletonList("/Forms/f2"),
+                Collections.singletonList("/Subjects/s1")),
+            DeleteServlet.sortByReferences(anySession,
+                new LinkedHashSet<>(Arrays.asList("/Subjects/s1", "/Forms/f1", "/Forms/f2"))));
+    }
+
+    @Test
+    public void nodesReferencingEachOtherAreRemovedTogether() throws RepositoryException
+    {
+        final Session anySession = Mockito.mock(Session.class);
+        mockNode(anySession, "/Forms/f1", "/Forms/f2");
+        mockNode(anySession, "/Forms/f2", "/Forms/f1");
+        mockNode(anySession, "/Forms/f3", null);
+
+        Assert.assertEquals(
+            Arrays.asList(Collections.singletonList("/Forms/f3"), Arrays.asList("/Forms/f1", "/Forms/f2")),
+            DeleteServlet.sortByReferences(anySession,
+                new LinkedHashSet<>(Arrays.asList("/Forms/f1", "/Forms/f2", "/Forms/f3"))));
+    }
+
+    private void mockNode(final Session anySession, final String path, final String referrerPath)
+        throws RepositoryException
+    {
+        final Node node = Mockito.mock(Node.class);
+        Mockito.when(anySession.nodeExists(path)).thenReturn(true);
+        Mockito.when(anySession.getNode(path)).thenReturn(node);
+        Mockito.when(node.getPath()).thenReturn(path);
+        Mockito.when(node.getNodes()).thenReturn(Mockito.mock(NodeIterator.class));
+        final PropertyIterator references = Mockito.mock(PropertyIterator.class);
+        Mockito.when(node.getReferences()).thenReturn(references);
+        if (referrerPath != null) {
+            final Node referrer = Mockito.mock(Node.class);
+            Mockito.when(referrer.getPath()).thenReturn(referrerPath);
+            final Property reference = Mockito.mock(Property.class);
+            Mockito.when(reference.getParent()).thenReturn(referrer);
+            Mockito.when(references.hasNext()).thenReturn(true, false);
+            Mockito.when(references.nextProperty()).thenReturn(reference);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link PaginationCursor}.
+ *
+ * @version $Id$
+ */
+public class PaginationCursorTest
+{
+    private static final String CREATED = "2023-01-05T10:00:00.000-05:00";
+
+    private static final String LATER = "2023-01-05T10:00:00.001-05:00";
+
+    @Test
+    public void missingTokenMeansNoCursor()
+    {
+        Assert.assertNull(PaginationCursor.parse(null));
+    }
+
+    @Test
+    public void emptyTokenRequestsTheFirstPage()
+    {
+        final PaginationCursor cursor = PaginationCursor.parse("");
+        Assert.assertSame(PaginationCursor.FIRST, cursor);
+        Assert.assertEquals("", cursor.getCondition(false));
+        Assert.assertEquals(0, cursor.getSkipped());
+    }
+
+    @Test
+    public void encodedCursorCanBeParsedBack()
+    {
+        final PaginationCursor cursor = PaginationCursor.FIRST.next(CREATED, new HashSet<>(Arrays.asList("a", "b")));
+        final PaginationCursor parsed = PaginationCursor.parse(cursor.encode());
+
+        Assert.assertEquals(2, parsed.getSkipped());
+        Assert.assertTrue(parsed.wasReturned(CREATED, "a"));
+        Assert.assertTrue(parsed.wasReturned(CREATED, "b"));
+        Assert.assertFalse(parsed.wasReturned(CREATED, "c"));
+        Assert.assertFalse(parsed.wasReturned(LATER, "a"));
+    }
+
+    @Test
+    public void conditionOnlyUsesTheCreationDate()
+    {
+        final PaginationCursor cursor = PaginationCursor.FIRST.next(CREATED, Collections.singleton("a"));
+
+        Assert.assertEquals(" and n.'jcr:created' >= CAST('" + CREATED + "' AS DATE)", cursor.getCondition(false));
+        Assert.assertEquals(" and n.'jcr:created' <= CAST('" + CREATED + "' AS DATE)", cursor.getCondition(true));
+    }
+
+    @Test
+    public void resourcesWithTheSameCreationDateAreAccumulated()
+    {
+        final PaginationCursor cursor = PaginationCursor.FIRST.next(CREATED, Collections.singleton("a"));
+
+        final PaginationCursor sameDate = cursor.next(CREATED, Collections.singleton("b"));
+        Assert.assertEquals(2, sameDate.getSkipped());
+        Assert.assertTrue(sameDate.wasReturned(CREATED, "a"));
+        Assert.assertTrue(sameDate.wasReturned(CREATED, "b"));
+
+        final PaginationCursor laterDate = cursor.next(LATER, Collections.singleton("c"));
+        Assert.assertEquals(1, laterDate.getSkipped());
+        Assert.assertFalse(laterDate.wasReturned(CREATED, "a"));
+        Assert.assertTrue(laterDate.wasReturned(LATER, "c"));
+    }
+
+    @Test
+    public void emptyPageKeepsTheCursor()
+    {
+        final PaginationCursor cursor = PaginationCursor.FIRST.next(CREATED, Collections.singleton("a"));
+        Assert.assertSame(cursor, cursor.next(null, Collections.emptySet()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void undecodableTokenIsRejected()
+    {
+        PaginationCursor.parse("not base64!");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tokenWithoutIdentifiersIsRejected()
+    {
+        PaginationCursor.parse(encode(CREATED));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tokenWithAnInvalidDateIsRejected()
+    {
+        PaginationCursor.parse(encode("2023-01-05') or (1=1 a"));
+    }
+
+    private static String encode(final String value)
+    {
+        return Base64.getUrlEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
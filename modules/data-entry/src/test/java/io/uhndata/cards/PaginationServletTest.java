@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards;
+
+import java.util.Arrays;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+/**
+ * Unit tests for {@link PaginationServlet}.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class PaginationServletTest
+{
+    private final PaginationServlet servlet = new PaginationServlet();
+
+    @Mock
+    private Query query;
+
+    @Mock
+    private QueryResult result;
+
+    @Mock
+    private RowIterator rows;
+
+    @Mock
+    private SlingHttpServletRequest request;
+
+    @Mock
+    private ResourceResolver resolver;
+
+    @Mock
+    private Session session;
+
+    @Before
+    public void setup() throws RepositoryException
+    {
+        Mockito.when(this.query.execute()).thenReturn(this.result);
+        Mockito.when(this.result.getRows()).thenReturn(this.rows);
+        Mockito.when(this.request.getResourceResolver()).thenReturn(this.resolver);
+        Mockito.when(this.resolver.adaptTo(Session.class)).thenReturn(this.session);
+    }
+
+    @Test
+    public void cursorPageLinksToTheNextPage() throws RepositoryException
+    {
+        mockRows("a", "b", "c");
+
+        final PaginationServlet.Page page =
+            this.servlet.collectCursorResources(this.query, PaginationCursor.FIRST, 2, this.request);
+
+        Assert.assertNotNull(page.getNext());
+        Assert.assertEquals(2, PaginationCursor.parse(page.getNext()).getSkipped());
+    }
+
+    @Test
+    public void lastCursorPageHasNoNextPage() throws RepositoryException
+    {
+        mockRows("a", "b");
+
+        final PaginationServlet.Page page =
+            this.servlet.collectCursorResources(this.query, PaginationCursor.FIRST, 2, this.request);
+
+        Assert.assertNull(page.getNext());
+    }
+
+    @Test
+    public void emptyCursorPageHasNoNextPage() throws RepositoryException
+    {
+        mockRows("a", "b");
+
+        final PaginationServlet.Page page =
+            this.servlet.collectCursorResources(this.query, PaginationCursor.FIRST, 0, this.request);
+
+        // Returning the same cursor would make clients request the same empty page forever
+        Assert.assertNull(page.getNext());
+    }
+
+    @Test
+    public void countUsesTheIndexProvidedSize() throws RepositoryException
+    {
+        Mockito.when(this.rows.getSize()).thenReturn(42L);
+
+        Assert.assertEquals(42, this.servlet.countResults(this.query, 10000));
+        Mockito.verify(this.rows, Mockito.never()).nextRow();
+    }
+
+    @Test
+    public void countIteratesWhenTheSizeIsUnknown() throws RepositoryException
+    {
+        Mockito.when(this.rows.getSize()).thenReturn(-1L);
+        Mockito.when(this.rows.hasNext()).thenReturn(true, true, true, false);
+
+        Assert.assertEquals(3, this.servlet.countResults(this.query, 10000));
+    }
+
+    @Test
+    public void countIsCapped() throws RepositoryException
+    {
+        Mockito.when(this.rows.getSize()).thenReturn(-1L);
+        Mockito.when(this.rows.hasNext()).thenReturn(true);
+
+        Assert.assertEquals(10001, this.servlet.countResults(this.query, 10000));
+        Mockito.verify(this.query).setLimit(10001);
+        Mockito.verify(this.rows, Mockito.times(10001)).nextRow();
+    }
+
+    @Test
+    public void countCanBeUnlimited() throws RepositoryException
+    {
+        Mockito.when(this.rows.getSize()).thenReturn(-1L);
+        Mockito.when(this.rows.hasNext()).thenReturn(true, true, false);
+
+        Assert.assertEquals(2, this.servlet.countResults(this.query, Long.MAX_VALUE));
+        Mockito.verify(this.query, Mockito.never()).setLimit(Matchers.anyLong());
+    }
+
+    /**
+     * Make the query return resources with the given identifiers, all created at the same time.
+     *
+     * @param identifiers the identifiers of the returned resources
+     * @throws RepositoryException never, declared by the mocked methods
+     */
+    private void mockRows(final String... identifiers) throws RepositoryException
+    {
+        final Row[] results = new Row[identifiers.length];
+        for (int i = 0; i < identifiers.length; ++i) {
+            final String path = "/Forms/" + identifiers[i];
+            final Row row = Mockito.mock(Row.class);
+            Mockito.when(row.getPath()).thenReturn(path);
+            results[i] = row;
+            final Property created = Mockito.mock(Property.class);
+            Mockito.when(created.getString()).thenReturn("2023-01-05T10:00:00.000-05:00");
+            final Node node = Mockito.mock(Node.class);
+            Mockito.when(node.getProperty("jcr:created")).thenReturn(created);
+            Mockito.when(node.getIdentifier()).thenReturn(identifiers[i]);
+            Mockito.when(node.getPath()).thenReturn(path);
+            Mockito.when(this.session.getNode(path)).thenReturn(node);
+            final Resource resource = Mockito.mock(Resource.class);
+            final JsonObject json = Json.createObjectBuilder().add("@path", path).build();
+            Mockito.when(resource.adaptTo(JsonObject.class)).thenReturn(json);
+            Mockito.when(this.resolver.resolve(path)).thenReturn(resource);
+        }
+        final Boolean[] more = new Boolean[identifiers.length];
+        Arrays.fill(more, Boolean.TRUE);
+        more[more.length - 1] = Boolean.FALSE;
+        Mockito.when(this.rows.hasNext()).thenReturn(true, more);
+        Mockito.when(this.rows.nextRow()).thenReturn(results[0], Arrays.copyOfRange(results, 1,
+            results.length));
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import io.uhndata.cards.spi.QuickSearchEngine;
+import io.uhndata.cards.spi.SearchParameters;
+
+/**
+ * Unit tests for {@link QuickSearchRunner}.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class QuickSearchRunnerTest
+{
+    private final ExecutorService pool = Executors.newFixedThreadPool(2);
+
+    @Mock
+    private ResourceResolver resolver;
+
+    @Mock
+    private ResourceResolver clonedResolver;
+
+    @Mock
+    private SearchParameters parameters;
+
+    @After
+    public void shutdown()
+    {
+        this.pool.shutdownNow();
+    }
+
+    @Test
+    public void parallelResultsAreTheSameAsSerialResults()
+    {
+        final List<QuickSearchEngine> engines = Arrays.asList(engine("/Forms/f1", "/Forms/f2", "/Forms/f3"),
+            engine("/Subjects/s1", "/Subjects/s2"));
+
+        final QuickSearchRunner.MergedResults serial =
+            new QuickSearchRunner(null, this.resolver, 1, 3, true, 30).run(engines, this.parameters);
+        final QuickSearchRunner.MergedResults parallel =
+            new QuickSearchRunner(executor(), this.resolver, 1, 3, true, 30).run(engines, this.parameters);
+
+        Assert.assertEquals(paths("/Forms/f2", "/Forms/f3", "/Subjects/s1"), serial.getRows().build());
+        Assert.assertEquals(serial.getRows().build(), parallel.getRows().build());
+        Assert.assertEquals(3, parallel.getOutputRows());
+        Assert.assertEquals(5, parallel.getTotalRows());
+        Assert.assertFalse(parallel.isTotalApproximate());
+    }
+
+    @Test
+    public void parallelEnginesUseTheirOwnResolver()
+    {
+        final QuickSearchEngine first = engine("/Forms/f1");
+        final QuickSearchEngine second = engine("/Subjects/s1");
+
+        new QuickSearchRunner(executor(), this.resolver, 0, 10, true, 100).run(Arrays.asList(first, second),
+            this.parameters);
+
+        Mockito.verify(first).quickSearch(this.parameters, this.clonedResolver);
+        Mockito.verify(second).quickSearch(this.parameters, this.clonedResolver);
+        Mockito.verify(first, Mockito.never()).quickSearch(this.parameters, this.resolver);
+    }
+
+    @Test
+    public void laterEnginesAreNotRunOnceThePageIsComplete()
+    {
+        final QuickSearchEngine first = engine("/Forms/f1", "/Forms/f2");
+        final QuickSearchEngine second = engine("/Subjects/s1");
+
+        final QuickSearchRunner.MergedResults results =
+            new QuickSearchRunner(null, this.resolver, 0, 2, false, 20).run(Arrays.asList(first, second),
+                this.parameters);
+
+        Assert.assertEquals(paths("/Forms/f1", "/Forms/f2"), results.getRows().build());
+        Mockito.verify(second, Mockito.never()).quickSearch(Matchers.any(SearchParameters.class),
+            Matchers.any(ResourceResolver.class));
+    }
+
+    @Test
+    public void totalsAreOnlyCountedUpToABatch()
+    {
+        final QuickSearchRunner.MergedResults results = new QuickSearchRunner(null, this.resolver, 0, 1, true, 3)
+            .run(Arrays.asList(engine("/Forms/f1", "/Forms/f2", "/Forms/f3", "/Forms/f4", "/Forms/f5")),
+                this.parameters);
+
+        Assert.assertEquals(1, results.getOutputRows());
+        Assert.assertEquals(3, results.getTotalRows());
+        Assert.assertTrue(results.isTotalApproximate());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void pendingEnginesAreCancelledWhenInterrupted() throws Exception
+    {
+        final Future<Object> interrupted = Mockito.mock(Future.class);
+        final Future<Object> pending = Mockito.mock(Future.class);
+        Mockito.when(interrupted.get()).thenThrow(new InterruptedException());
+        final Iterator<Future<Object>> futures = Arrays.asList(interrupted, pending).iterator();
+        final QuickSearchExecutor executor = new QuickSearchExecutor()
+        {
+            @Override
+            public <T> Future<T> submit(final ResourceResolver resolver, final Function<ResourceResolver, T> task)
+            {
+                return (Future<T>) futures.next();
+            }
+        };
+
+        final QuickSearchRunner.MergedResults results = new QuickSearchRunner(executor, this.resolver, 0, 10, true,
+            100).run(Arrays.asList(engine("/Forms/f1"), engine("/Subjects/s1")), this.parameters);
+
+        Assert.assertTrue(Thread.interrupted());
+        Assert.assertEquals(0, results.getOutputRows());
+        Mockito.verify(pending).cancel(true);
+        Mockito.verify(pending, Mockito.never()).get();
+    }
+
+    private QuickSearchExecutor executor()
+    {
+        return new QuickSearchExecutor()
+        {
+            @Override
+            public <T> Future<T> submit(final ResourceResolver resolver, final Function<ResourceResolver, T> task)
+            {
+                final ResourceResolver taskResolver = QuickSearchRunnerTest.this.clonedResolver;
+                return QuickSearchRunnerTest.this.pool.submit(() -> task.apply(taskResolver));
+            }
+        };
+    }
+
+    private QuickSearchEngine engine(final String... paths)
+    {
+        final QuickSearchEngine engine = Mockito.mock(QuickSearchEngine.class);
+        Mockito.when(engine.quickSearch(Matchers.any(SearchParameters.class), Matchers.any(ResourceResolver.class)))
+            .thenAnswer(invocation -> new QuickSearchEngine.Results()
+            {
+                private final Iterator<String> remaining = Arrays.asList(paths).iterator();
+
+                @Override
+                public boolean hasNext()
+                {
+                    return this.remaining.hasNext();
+                }
+
+                @Override
+                public void skip()
+                {
+                    this.remaining.next();
+                }
+
+                @Override
+                public JsonObject next()
+                {
+                    return Json.createObjectBuilder().add("@path", this.remaining.next()).build();
+                }
+            });
+        return engine;
+    }
+
+    private static JsonArray paths(final String... paths)
+    {
+        return Arrays.stream(paths).map(path -> Json.createObjectBuilder().add("@path", path).build())
+            .collect(Json::createArrayBuilder, (builder, row) -> builder.add(row), (a, b) -> a.add(b)).build();
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.internal;
+
+import java.security.Principal;
+import java.util.Collections;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+/**
+ * Unit tests for {@link QueryResultCacheImpl}.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class QueryResultCacheImplTest
+{
+    private static final String QUERY = "select * from [cards:Form] as n";
+
+    private final QueryResultCacheImpl cache = new QueryResultCacheImpl();
+
+    @Mock
+    private QueryResultCacheImpl.Config config;
+
+    @Mock
+    private JackrabbitSession session;
+
+    @Mock
+    private JackrabbitSession otherSession;
+
+    @Mock
+    private UserManager userManager;
+
+    @Mock
+    private Authorizable user;
+
+    @Mock
+    private Principal principal;
+
+    @Before
+    public void setup() throws RepositoryException
+    {
+        Mockito.when(this.config.enable()).thenReturn(true);
+        Mockito.when(this.config.maxEntries()).thenReturn(2);
+        Mockito.when(this.config.timeToLive()).thenReturn(300L);
+        this.cache.activate(this.config);
+
+        Mockito.when(this.principal.getName()).thenReturn("patient");
+        Mockito.when(this.user.getPrincipal()).thenReturn(this.principal);
+        Mockito.when(this.user.memberOf()).thenReturn(Collections.<Group>emptyIterator());
+        Mockito.when(this.userManager.getAuthorizable("patient")).thenReturn(this.user);
+        for (JackrabbitSession s : new JackrabbitSession[] { this.session, this.otherSession }) {
+            Mockito.when(s.getUserID()).thenReturn("patient");
+            Mockito.when(s.getUserManager()).thenReturn(this.userManager);
+        }
+    }
+
+    @Test
+    public void sameUserAndSubjectShareKeys()
+    {
+        Mockito.when(this.session.getAttribute("cards:sessionSubject")).thenReturn("/Subjects/s1");
+        Mockito.when(this.otherSession.getAttribute("cards:sessionSubject")).thenReturn("/Subjects/s1");
+
+        Assert.assertEquals(this.cache.getKey(QUERY, this.session), this.cache.getKey(QUERY, this.otherSession));
+    }
+
+    @Test
+    public void sessionsRestrictedToDifferentSubjectsDoNotShareResults()
+    {
+        Mockito.when(this.session.getAttribute("cards:sessionSubject")).thenReturn("/Subjects/s1");
+        Mockito.when(this.otherSession.getAttribute("cards:sessionSubject")).thenReturn("/Subjects/s2");
+
+        final String key = this.cache.getKey(QUERY, this.session);
+        final String otherKey = this.cache.getKey(QUERY, this.otherSession);
+        Assert.assertNotEquals(key, otherKey);
+
+        this.cache.put(key, "s1 results", this.cache.getGeneration());
+        Assert.assertEquals("s1 results", this.cache.get(key, String.class));
+        Assert.assertNull(this.cache.get(otherKey, String.class));
+    }
+
+    @Test
+    public void resultsComputedBeforeAnInvalidationAreDiscarded()
+    {
+        final String key = this.cache.getKey(QUERY, this.session);
+        final long generation = this.cache.getGeneration();
+        this.cache.onChange(Collections.singletonList(Mockito.mock(ResourceChange.class)));
+
+        this.cache.put(key, "outdated", generation);
+        Assert.assertNull(this.cache.get(key, String.class));
+    }
+
+    @Test
+    public void changesInvalidateCachedResults()
+    {
+        final String key = this.cache.getKey(QUERY, this.session);
+        this.cache.put(key, "results", this.cache.getGeneration());
+
+        this.cache.onChange(Collections.singletonList(Mockito.mock(ResourceChange.class)));
+        Assert.assertNull(this.cache.get(key, String.class));
+    }
+
+    @Test
+    public void leastRecentlyUsedResultsAreEvicted()
+    {
+        this.cache.put("a", "a", this.cache.getGeneration());
+        this.cache.put("b", "b", this.cache.getGeneration());
+        this.cache.get("a", String.class);
+        this.cache.put("c", "c", this.cache.getGeneration());
+
+        Assert.assertEquals("a", this.cache.get("a", String.class));
+        Assert.assertNull(this.cache.get("b", String.class));
+        Assert.assertEquals("c", this.cache.get("c", String.class));
+        Assert.assertEquals(Long.valueOf(1), this.cache.getStatistics().get("evictions"));
+    }
+
+    @Test
+    public void onlyWatchedRootsAreCacheable()
+    {
+        Assert.assertTrue(this.cache.isCacheable("/Forms"));
+        Assert.assertTrue(this.cache.isCacheable("/Subjects/s1"));
+        Assert.assertFalse(this.cache.isCacheable("/Questionnaires"));
+        Assert.assertFalse(this.cache.isCacheable("/FormsArchive"));
+        Assert.assertFalse(this.cache.isCacheable(null));
+    }
+
+    @Test
+    public void disabledCacheHasNoKeys()
+    {
+        Mockito.when(this.config.enable()).thenReturn(false);
+        this.cache.activate(this.config);
+
+        Assert.assertNull(this.cache.getKey(QUERY, this.session));
+    }
+}
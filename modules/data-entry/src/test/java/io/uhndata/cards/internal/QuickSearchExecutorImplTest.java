@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
+
+/**
+ * Unit tests for {@link QuickSearchExecutorImpl}.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class QuickSearchExecutorImplTest
+{
+    @Mock
+    private ThreadResourceResolverProvider rrp;
+
+    @Mock
+    private ResourceResolver resolver;
+
+    @Mock
+    private ResourceResolver clonedResolver;
+
+    @Mock
+    private QuickSearchExecutorImpl.Config config;
+
+    @InjectMocks
+    private QuickSearchExecutorImpl executor;
+
+    @Before
+    public void setup() throws Exception
+    {
+        Mockito.when(this.config.threads()).thenReturn(2);
+        Mockito.when(this.resolver.clone(null)).thenReturn(this.clonedResolver);
+        this.executor.activate(this.config);
+    }
+
+    @After
+    public void shutdown()
+    {
+        this.executor.deactivate();
+    }
+
+    @Test
+    public void tasksRunWithAClonedResolverRegisteredInTheThread() throws Exception
+    {
+        final Future<ResourceResolver> result = this.executor.submit(this.resolver, taskResolver -> {
+            Mockito.verify(this.rrp).push(this.clonedResolver);
+            return taskResolver;
+        });
+
+        Assert.assertSame(this.clonedResolver, result.get());
+        final InOrder order = Mockito.inOrder(this.rrp, this.clonedResolver);
+        order.verify(this.rrp).push(this.clonedResolver);
+        order.verify(this.rrp).pop();
+        order.verify(this.clonedResolver).close();
+    }
+
+    @Test
+    public void resolverIsReleasedWhenTheTaskFails() throws Exception
+    {
+        final Future<Object> result = this.executor.submit(this.resolver, taskResolver -> {
+            throw new IllegalStateException("Engine failure");
+        });
+
+        try {
+            result.get();
+            Assert.fail("The failure should be reported");
+        } catch (final ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        Mockito.verify(this.rrp).pop();
+        Mockito.verify(this.clonedResolver).close();
+    }
+
+    @Test
+    public void resolverIsClonedByTheSubmittingThread() throws Exception
+    {
+        final Thread caller = Thread.currentThread();
+        Mockito.when(this.resolver.clone(null)).thenAnswer(invocation -> {
+            Assert.assertSame(caller, Thread.currentThread());
+            return this.clonedResolver;
+        });
+
+        this.executor.submit(this.resolver, taskResolver -> taskResolver).get();
+
+        Mockito.verify(this.resolver).clone(null);
+    }
+
+    @Test
+    public void resolverIsReleasedWhenAQueuedTaskIsCancelled() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Future<Object>> busy = new ArrayList<>();
+        for (int i = 0; i < 2; ++i) {
+            busy.add(this.executor.submit(this.resolver, taskResolver -> {
+                awaitUninterruptibly(release);
+                return null;
+            }));
+        }
+        final ResourceResolver queuedResolver = Mockito.mock(ResourceResolver.class);
+        Mockito.when(this.resolver.clone(null)).thenReturn(queuedResolver);
+        final Future<Object> queued = this.executor.submit(this.resolver, taskResolver -> {
+            throw new AssertionError("Cancelled tasks should not run");
+        });
+
+        queued.cancel(false);
+        Mockito.verify(queuedResolver).close();
+        Mockito.verify(this.rrp, Mockito.never()).push(queuedResolver);
+
+        release.countDown();
+        for (final Future<Object> future : busy) {
+            future.get();
+        }
+    }
+
+    @Test
+    public void cloneFailuresAreReportedByTheFuture() throws Exception
+    {
+        Mockito.when(this.resolver.clone(null)).thenThrow(new LoginException("Session expired"));
+
+        final Future<Object> result = this.executor.submit(this.resolver, taskResolver -> taskResolver);
+
+        try {
+            result.get();
+            Assert.fail("The failure should be reported");
+        } catch (final ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof LoginException);
+        }
+    }
+
+    private static void awaitUninterruptibly(final CountDownLatch latch)
+    {
+        try {
+            latch.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
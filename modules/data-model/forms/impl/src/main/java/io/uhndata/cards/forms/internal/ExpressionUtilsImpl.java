@@ -22,19 +22,25 @@
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
 
+import org.apache.commons.collections4.map.LRUMap;
 import org.apache.jackrabbit.oak.api.Type;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
@@ -48,14 +54,27 @@ public final class ExpressionUtilsImpl implements ExpressionUtils
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(ExpressionUtilsImpl.class);
 
+    /** How many engines are kept for reuse, at most. */
+    private static final int MAX_POOLED_ENGINES = 8;
+
+    /** How many parsed expressions, and how many compiled scripts per engine, are cached at most. */
+    private static final int MAX_CACHED_EXPRESSIONS = 1000;
+
+    private static final String CONVERSION_KEY = "tmpCardsObjectConversionKey";
+
     @Reference
     private ScriptEngineManager manager;
 
+    /** Engines that are not currently in use, along with the scripts already compiled by each of them. */
+    private final BlockingQueue<PooledEngine> engines = new LinkedBlockingQueue<>(MAX_POOLED_ENGINES);
+
+    /** Parsed expressions, keyed by question identifier and expression. Access must be synchronized on the map. */
+    private final Map<String, ExpressionPlan> plans = new LRUMap<>(MAX_CACHED_EXPRESSIONS);
+
     @Override
     public Set<String> getDependencies(final Node question)
     {
-        return parseExpressionInputs(
-            getExpressionFromQuestion(question), Collections.emptyMap()).getQuestions().keySet();
+        return getPlan(question, getExpressionFromQuestion(question)).getArguments().keySet();
     }
 
     @Override
@@ -69,14 +88,13 @@ public String getExpressionFromQuestion(final Node question)
         }
     }
 
-    private Object toJavaScriptObject(ScriptEngine javascriptEngine, Object javaObject)
+    private Object toJavaScriptObject(final PooledEngine engine, final Object javaObject)
     {
         if (javaObject != null && (javaObject.getClass().isArray() || javaObject instanceof List)) {
             try {
-                String tempKey = "tmpCardsObjectConversionKey";
-                Bindings tmpBindings = javascriptEngine.createBindings();
-                tmpBindings.put(tempKey, javaObject);
-                return javascriptEngine.eval("Java.from(" + tempKey + ")", tmpBindings);
+                Bindings tmpBindings = engine.engine.createBindings();
+                tmpBindings.put(CONVERSION_KEY, javaObject);
+                return engine.getScript("Java.from(" + CONVERSION_KEY + ")").eval(tmpBindings);
             } catch (ScriptException e) {
                 LOGGER.warn("Parsing Object {} to JSObject failed: {}", javaObject,
                     e.getMessage(), e);
@@ -89,46 +107,89 @@ private Object toJavaScriptObject(ScriptEngine javascriptEngine, Object javaObje
     public ExpressionResult evaluate(final Node question, final Map<String, Object> values, final Type<?> type,
         Set<String> changedQuestions)
     {
+        PooledEngine engine = null;
         try {
-            String expression = getExpressionFromQuestion(question);
-            ExpressionUtilsImpl.ParsedExpression parsedExpression = parseExpressionInputs(expression, values);
+            ExpressionUtilsImpl.ParsedExpression parsedExpression =
+                getPlan(question, getExpressionFromQuestion(question)).bind(values);
             if (parsedExpression.hasMissingValue()) {
                 return new ExpressionResult(true, false, null, parsedExpression.getQuestions().size());
             }
 
-            ScriptEngine engine = this.manager.getEngineByName("JavaScript");
+            engine = borrowEngine();
+            final PooledEngine currentEngine = engine;
 
-            Bindings env = engine.createBindings();
+            Bindings env = engine.engine.createBindings();
             AtomicBoolean usedChangedValue = new AtomicBoolean(false);
             parsedExpression.getQuestions().forEach((key, value) -> {
-                env.put(value.getArgument(), toJavaScriptObject(engine, value.getValue()));
+                env.put(value.getArgument(), toJavaScriptObject(currentEngine, value.getValue()));
                 if (changedQuestions.contains(value.getQuestionName())) {
                     usedChangedValue.set(true);
                 }
             });
-            Object result = engine.eval("(function(){" + parsedExpression.getExpression() + "})()", env);
+            Object result = engine.getScript("(function(){" + parsedExpression.getExpression() + "})()").eval(env);
             return new ExpressionResult(false, usedChangedValue.get(), ValueFormatter.formatResult(result, type),
                 parsedExpression.getQuestions().size());
         } catch (ScriptException e) {
             LOGGER.warn("Evaluating the expression for question {} failed: {}", question,
                 e.getMessage(), e);
+        } finally {
+            releaseEngine(engine);
         }
         return new ExpressionResult(false, false, null, 0);
     }
 
-    private ExpressionUtilsImpl.ParsedExpression parseExpressionInputs(final String expression,
-        final Map<String, Object> values)
+    /**
+     * Retrieve the parsed form of an expression, parsing it only the first time it is encountered.
+     *
+     * @param question the computed question, used for identifying the expression
+     * @param expression the expression to parse
+     * @return the parsed expression, not yet bound to any values
+     */
+    private ExpressionPlan getPlan(final Node question, final String expression)
+    {
+        String key;
+        try {
+            key = question.getIdentifier() + ":" + expression;
+        } catch (RepositoryException e) {
+            key = expression;
+        }
+        synchronized (this.plans) {
+            ExpressionPlan plan = this.plans.get(key);
+            if (plan == null) {
+                plan = new ExpressionParser(expression).parse();
+                this.plans.put(key, plan);
+            }
+            return plan;
+        }
+    }
+
+    /**
+     * Get an engine that is not used by any other thread, reusing a pooled one if available.
+     *
+     * @return an engine, either reused or newly created
+     */
+    private PooledEngine borrowEngine()
+    {
+        final PooledEngine engine = this.engines.poll();
+        return engine != null ? engine : new PooledEngine(this.manager.getEngineByName("JavaScript"));
+    }
+
+    /**
+     * Return an engine to the pool, or discard it if the pool is already full.
+     *
+     * @param engine the engine to return, may be {@code null}
+     */
+    private void releaseEngine(final PooledEngine engine)
     {
-        ExpressionParser parser = new ExpressionParser(expression, values);
-        return parser.parse();
+        if (engine != null) {
+            this.engines.offer(engine);
+        }
     }
 
-    private final class ExpressionParser
+    private static final class ExpressionParser
     {
         private String expression;
-        private final Map<String, Object> questionValues;
-        private boolean missingValue;
-        private Map<String, ExpressionArgument> questions = new HashMap<>();
+        private Map<String, ArgumentDefinition> questions = new LinkedHashMap<>();
 
         // Next argument details
         private boolean isArrayArgument;
@@ -138,10 +199,9 @@ private ExpressionUtilsImpl.ParsedExpression parseExpressionInputs(final String
         private int end;
 
 
-        ExpressionParser(String expression, final Map<String, Object> questionValues)
+        ExpressionParser(String expression)
         {
             this.expression = expression;
-            this.questionValues = questionValues;
 
             scanNextArgument();
         }
@@ -155,12 +215,12 @@ private void scanNextArgument()
             this.end = this.expression.indexOf(this.endMarker, this.start);
         }
 
-        public ParsedExpression parse()
+        public ExpressionPlan parse()
         {
             while (hasNextArgument()) {
                 parseNextArgument();
             }
-            return new ParsedExpression(this.questions, this.expression, this.missingValue);
+            return new ExpressionPlan(this.questions, this.expression);
 
         }
 
@@ -203,19 +263,8 @@ private void parseNextArgument()
 
             // Insert this question into the list of arguments
             if (!this.questions.containsKey(questionName)) {
-                Object questionValue = getQuestionValue(questionName, this.questionValues,
-                    getDefaultValue(hasDefault, defaultStart), this.isArrayArgument);
-
-                if (questionValue == null) {
-                    if (!isOptional) {
-                        this.missingValue = true;
-                    } else if (this.isArrayArgument) {
-                        questionValue = new Object[]{};
-                    }
-                }
-
-                ExpressionArgument arg = new ExpressionArgument("arg" + this.questions.size(), questionName,
-                    questionValue);
+                ArgumentDefinition arg = new ArgumentDefinition("arg" + this.questions.size(), questionName,
+                    getDefaultValue(hasDefault, defaultStart), isOptional, this.isArrayArgument);
 
                 this.questions.put(questionName, arg);
             }
@@ -236,7 +285,7 @@ private boolean isNextArgumentMultivalued(String expr)
 
     }
 
-    private Object getQuestionValue(String questionName, final Map<String, Object> values, String defaultValue,
+    private static Object getQuestionValue(String questionName, final Map<String, Object> values, String defaultValue,
         boolean shouldBeArray)
     {
         Object value = values.get(questionName);
@@ -259,6 +308,79 @@ private Object getQuestionValue(String questionName, final Map<String, Object> v
         return value;
     }
 
+    /**
+     * An expression parsed into its arguments and the JavaScript code using them, independent of the actual values of
+     * the arguments, so that it can be reused for every evaluation of the same expression.
+     */
+    private static final class ExpressionPlan
+    {
+        private final Map<String, ArgumentDefinition> arguments;
+
+        private final String expression;
+
+        ExpressionPlan(Map<String, ArgumentDefinition> arguments, String expression)
+        {
+            this.arguments = Collections.unmodifiableMap(arguments);
+            this.expression = expression;
+        }
+
+        public Map<String, ArgumentDefinition> getArguments()
+        {
+            return this.arguments;
+        }
+
+        /**
+         * Gather the values of the arguments needed by this expression.
+         *
+         * @param values the values of the questions in the form
+         * @return the parsed expression along with its argument values
+         */
+        public ParsedExpression bind(final Map<String, Object> values)
+        {
+            final Map<String, ExpressionArgument> questions = new LinkedHashMap<>();
+            boolean missingValue = false;
+            for (ArgumentDefinition definition : this.arguments.values()) {
+                Object questionValue = getQuestionValue(definition.questionName, values, definition.defaultValue,
+                    definition.isArray);
+
+                if (questionValue == null) {
+                    if (!definition.isOptional) {
+                        missingValue = true;
+                    } else if (definition.isArray) {
+                        questionValue = new Object[]{};
+                    }
+                }
+                questions.put(definition.questionName,
+                    new ExpressionArgument(definition.getArgument(), definition.questionName, questionValue));
+            }
+            return new ParsedExpression(questions, this.expression, missingValue);
+        }
+    }
+
+    private static final class ArgumentDefinition
+    {
+        private final String argument;
+        private final String questionName;
+        private final String defaultValue;
+        private final boolean isOptional;
+        private final boolean isArray;
+
+        ArgumentDefinition(String argument, String questionName, String defaultValue, boolean isOptional,
+            boolean isArray)
+        {
+            this.argument = argument;
+            this.questionName = questionName;
+            this.defaultValue = defaultValue;
+            this.isOptional = isOptional;
+            this.isArray = isArray;
+        }
+
+        public String getArgument()
+        {
+            return this.argument;
+        }
+    }
+
     private static final class ParsedExpression
     {
         private final Map<String, ExpressionArgument> questions;
@@ -319,6 +441,71 @@ public Object getValue()
         }
     }
 
+    /**
+     * A script engine, along with the scripts it already compiled. Engines are not thread safe, so each one is used by
+     * at most one thread at a time, and the compiled scripts are only used with the engine that compiled them.
+     */
+    private static final class PooledEngine
+    {
+        private final ScriptEngine engine;
+
+        private final Map<String, CompiledScript> scripts = new LRUMap<>(MAX_CACHED_EXPRESSIONS);
+
+        PooledEngine(final ScriptEngine engine)
+        {
+            this.engine = engine;
+        }
+
+        /**
+         * Get the compiled form of a script, compiling it only the first time it is used with this engine.
+         *
+         * @param script the script to compile
+         * @return a compiled script, which can be evaluated multiple times with different bindings
+         * @throws ScriptException if the script is invalid
+         */
+        CompiledScript getScript(final String script) throws ScriptException
+        {
+            CompiledScript result = this.scripts.get(script);
+            if (result == null) {
+                if (this.engine instanceof Compilable) {
+                    result = ((Compilable) this.engine).compile(script);
+                } else {
+                    result = new InterpretedScript(this.engine, script);
+                }
+                this.scripts.put(script, result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Fallback for engines that don't support compilation, which simply evaluates the script every time.
+     */
+    private static final class InterpretedScript extends CompiledScript
+    {
+        private final ScriptEngine engine;
+
+        private final String script;
+
+        InterpretedScript(final ScriptEngine engine, final String script)
+        {
+            this.engine = engine;
+            this.script = script;
+        }
+
+        @Override
+        public Object eval(final ScriptContext context) throws ScriptException
+        {
+            return this.engine.eval(this.script, context);
+        }
+
+        @Override
+        public ScriptEngine getEngine()
+        {
+            return this.engine;
+        }
+    }
+
     private static final class ValueFormatter
     {
         static Object formatResult(final Object rawResult, final Type<?> type)
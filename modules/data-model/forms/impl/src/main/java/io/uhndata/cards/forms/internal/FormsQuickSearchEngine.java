@@ -55,6 +55,9 @@ public class FormsQuickSearchEngine implements QuickSearchEngine
 
     private static final List<String> SUPPORTED_TYPES = Collections.singletonList("cards:Form");
 
+    /** The size of the n-grams indexed by the {@code textAnswers} index, shorter queries cannot use it. */
+    private static final int MIN_INDEXED_QUERY_LENGTH = 3;
+
     @Reference
     private FormUtils formUtils;
 
@@ -81,6 +84,17 @@ public QuickSearchEngine.Results quickSearch(final SearchParameters query,
 
     private String getQuery(final String textQuery)
     {
+        if (textQuery.length() >= MIN_INDEXED_QUERY_LENGTH) {
+            // Text answers and notes are indexed as trigrams, so a substring match is a phrase of consecutive trigrams
+            final String phrase = SearchUtils.escapeFullTextPhrase(textQuery);
+            return new StringBuilder()
+                .append("select [jcr:path] from [cards:TextAnswer] as a ")
+                .append("where contains([value], '").append(phrase)
+                .append("') or contains([note], '").append(phrase)
+                .append("') option(index tag textAnswers)")
+                .toString();
+        }
+        // Queries shorter than a trigram cannot use the n-gram index
         final String escapedQuery = SearchUtils.escapeLikeText(textQuery.toLowerCase());
         final StringBuilder sqlQuery = new StringBuilder()
             .append("select [jcr:path] from [cards:TextAnswer] as a ")
@@ -30,8 +30,9 @@
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
 
-import io.uhndata.cards.serialize.CSVString;
+import io.uhndata.cards.serialize.ResourceCSVStreamer;
 
 /**
  * Servlet that outputs all the Form data for a Questionnaire to a CSV.
@@ -45,6 +46,9 @@ public class QuestionnaireCSVServlet extends SlingSafeMethodsServlet
 {
     private static final long serialVersionUID = -677311295300436475L;
 
+    @Reference
+    private ResourceCSVStreamer csvStreamer;
+
     @Override
     public void doGet(final SlingHttpServletRequest request, final SlingHttpServletResponse response)
         throws IOException
@@ -52,11 +56,11 @@ public void doGet(final SlingHttpServletRequest request, final SlingHttpServletR
         final Resource questionnaire = request.getResource();
         final String csvPath = questionnaire.getPath() + ".data"
             + questionnaire.getResourceMetadata().getResolutionPathInfo();
-        final CSVString csv = questionnaire.getResourceResolver().resolve(csvPath).adaptTo(CSVString.class);
         final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HHmm");
         response.addHeader("Content-disposition", "attachment; filename=" + questionnaire.getName()
             + "_" + dateFormat.format(new Date()) + ".csv");
         response.setCharacterEncoding("UTF-8");
-        response.getWriter().write(csv.toString());
+        // Write the CSV directly into the response instead of building it in memory first
+        this.csvStreamer.serialize(questionnaire.getResourceResolver().resolve(csvPath), response.getWriter());
     }
 }
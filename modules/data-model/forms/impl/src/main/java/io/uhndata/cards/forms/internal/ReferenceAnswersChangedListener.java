@@ -16,11 +16,14 @@
  */
 package io.uhndata.cards.forms.internal;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
@@ -48,7 +51,8 @@
  * Change listener looking for modified Forms whose Answers are referenced in other Forms. Initially, when the Form is
  * changed, this handler goes through all the Answers which belong to the Form and checks whether a given Answer is
  * referenced elsewhere. If so, the source and referenced Answer values are compared and if they do not match the
- * referenced value is updated to match the source value.
+ * referenced value is updated to match the source value. Only answers to questions used by a reference question, as
+ * known by the {@link ReferenceQuestionsIndex}, are checked.
  *
  * @version $Id$
  */
@@ -76,6 +80,9 @@ public class ReferenceAnswersChangedListener implements ResourceChangeListener
     @Reference
     private QuestionnaireUtils questionnaireUtils;
 
+    @Reference
+    private ReferenceQuestionsIndex referenceQuestions;
+
     @Override
     public void onChange(List<ResourceChange> changes)
     {
@@ -124,73 +131,148 @@ private void handleEvent(final ResourceChange event)
     /**
      * This method reads through a NodeIterator of changed Nodes. If a given changed Node is a cards/Answer node all
      * other cards/Answer nodes that make reference to it are updated so that the value property of the referenced Node
-     * matches the value property of the changed node.
+     * matches the value property of the changed node. Only answers to questions actually referenced by a reference
+     * question are considered, and all the referencing answers are retrieved with a single query.
      *
      * @param nodeIterator an iterator of nodes of which have changed due to an update made to a Form
-     * @param serviceResolver a ResourceResolver that can be used for querying the JCR
      * @param session a service session providing access to the repository
      */
     private void checkAndUpdateAnswersValues(final NodeIterator nodeIterator, final Session session)
         throws RepositoryException
     {
+        // Source answers, by path and by question path; a question may be answered several times, in repeated sections
+        final Map<String, Node> answersByPath = new LinkedHashMap<>();
+        final Map<String, List<Node>> answersByQuestion = new LinkedHashMap<>();
+        collectReferencedAnswers(nodeIterator, session, answersByPath, answersByQuestion);
+        if (answersByPath.isEmpty()) {
+            // No answer in this form is referenced anywhere, nothing to do
+            return;
+        }
+
+        final String subject = this.formUtils.getSubject(
+            this.formUtils.getForm(answersByPath.values().iterator().next())).getIdentifier();
+        final NodeIterator referencingAnswers = session.getWorkspace().getQueryManager().createQuery(
+            // Answers that were explicitly copied from one of the source answers
+            "SELECT a.* FROM [cards:Answer] AS a WHERE "
+                + answersByPath.keySet().stream().map(path -> "a.copiedFrom = '" + escape(path) + "'")
+                    .collect(Collectors.joining(" OR "))
+                + " UNION "
+                // Answers that don't have a value yet
+                + "SELECT a.* FROM [cards:Answer] AS a"
+                + "  INNER JOIN [cards:Form] AS f ON a.form = f.[jcr:uuid]"
+                + "  INNER JOIN [cards:Question] AS q ON a.question = q.[jcr:uuid]"
+                + "  WHERE"
+                // The answer doesn't have a value
+                + "    a.value is null"
+                // The answer's question references one of the source questions
+                + "    AND (" + answersByQuestion.keySet().stream()
+                    .map(path -> "q.question = '" + escape(path) + "'")
+                    .collect(Collectors.joining(" OR ")) + ")"
+                // The answer belongs to the same subject or one of its descendants
+                + "    AND f.relatedSubjects = '" + subject + "'"
+                // Use the fast index for the query
+                + " OPTION (index tag cards)",
+            "JCR-SQL2")
+            .execute().getNodes();
+
         final VersionManager versionManager = session.getWorkspace().getVersionManager();
         Set<String> checkoutPaths = new HashSet<>();
+        while (referencingAnswers.hasNext()) {
+            final Node referenceAnswer = referencingAnswers.nextNode();
+            // Like when each source answer was handled separately, the source answers are applied in order
+            for (Node node : findSourceAnswers(referenceAnswer, answersByPath, answersByQuestion)) {
+                // Only answers of the same type as the source answer are updated
+                if (node.getPrimaryNodeType().getName().equals(referenceAnswer.getPrimaryNodeType().getName())) {
+                    copyValue(node, referenceAnswer, versionManager, checkoutPaths);
+                }
+            }
+        }
+        session.save();
+        for (String path : checkoutPaths) {
+            versionManager.checkin(path);
+        }
+    }
+
+    /**
+     * Gather the answers, including those in nested sections, whose question is referenced by at least one reference
+     * question.
+     *
+     * @param nodeIterator the children of a form or answer section
+     * @param session a service session providing access to the repository
+     * @param answersByPath will receive the referenced answers, keyed by their path
+     * @param answersByQuestion will receive the referenced answers, grouped by their question's path, in the order they
+     *            appear in the form
+     */
+    private void collectReferencedAnswers(final NodeIterator nodeIterator, final Session session,
+        final Map<String, Node> answersByPath, final Map<String, List<Node>> answersByQuestion)
+        throws RepositoryException
+    {
         while (nodeIterator.hasNext()) {
             final Node node = nodeIterator.nextNode();
             if (node.isNodeType("cards:AnswerSection")) {
-                checkAndUpdateAnswersValues(node.getNodes(), session);
+                collectReferencedAnswers(node.getNodes(), session, answersByPath, answersByQuestion);
             } else if (node.isNodeType("cards:Answer")) {
-                final String answerNodeType = node.getPrimaryNodeType().getName();
-                final String subject = this.formUtils.getSubject(this.formUtils.getForm(node)).getIdentifier();
-                // TODO: is this query needed with the refactor in CARDS-2509/2571?
-                // May be possible to replace it with a loop on node.getReferences()
-                final NodeIterator resourceIteratorReferencingAnswers = session
-                    .getWorkspace().getQueryManager().createQuery(
-                        // Answers that were explicitly copied from this answer
-                        "SELECT a.* FROM [" + answerNodeType + "] AS a WHERE a.copiedFrom = '"
-                            + escape(node.getPath()) + "'"
-                            + " UNION "
-                            // Answers that don't have a value yet
-                            + "SELECT a.* FROM [" + answerNodeType + "] AS a"
-                            + "  INNER JOIN [cards:Form] AS f ON a.form = f.[jcr:uuid]"
-                            + "  INNER JOIN [cards:Question] AS q ON a.question = q.[jcr:uuid]"
-                            + "  WHERE"
-                            // The answer doesn't have a value
-                            + "    a.value is null"
-                            // The answer's question references this question
-                            + "    AND q.question = '"
-                            + escape(node.getProperty("question").getNode().getPath()) + "'"
-                            // The answer belongs to the same subject or one of its descendants
-                            + "    AND f.relatedSubjects = '" + subject + "'"
-                            // Use the fast index for the query
-                            + " OPTION (index tag cards)",
-                        "JCR-SQL2")
-                    .execute().getNodes();
-                final Property sourceAnswerValue =
-                    !node.hasProperty(VALUE) ? null : node.getProperty(VALUE);
-                while (resourceIteratorReferencingAnswers.hasNext()) {
-                    final Node referenceAnswer = resourceIteratorReferencingAnswers.nextNode();
-                    if (shouldUpdateValue(sourceAnswerValue, referenceAnswer)) {
-                        final Node formNode = this.formUtils.getForm(referenceAnswer);
-                        final String referenceFormPath = formNode.getPath();
-                        versionManager.checkout(referenceFormPath);
-                        checkoutPaths.add(referenceFormPath);
-                        if (sourceAnswerValue == null) {
-                            referenceAnswer.setProperty(VALUE, (Value) null);
-                        } else if (sourceAnswerValue.isMultiple()) {
-                            referenceAnswer.setProperty(VALUE, sourceAnswerValue.getValues());
-                        } else {
-                            referenceAnswer.setProperty(VALUE, sourceAnswerValue.getValue());
-                        }
-                        referenceAnswer.setProperty("copiedFrom", node.getPath());
-                    }
+                final String questionPath = node.getProperty("question").getNode().getPath();
+                if (!this.referenceQuestions.getReferencingQuestions(questionPath, session).isEmpty()) {
+                    answersByPath.put(node.getPath(), node);
+                    answersByQuestion.computeIfAbsent(questionPath, k -> new ArrayList<>()).add(node);
                 }
             }
         }
-        session.save();
-        for (String path : checkoutPaths) {
-            versionManager.checkin(path);
+    }
+
+    /**
+     * Find which of the changed answers are the source for a referencing answer: the answer it was copied from, or, for
+     * answers without a value yet, all the answers to the referenced question.
+     *
+     * @param referenceAnswer an answer found to reference one of the changed answers
+     * @param answersByPath the changed answers, keyed by their path
+     * @param answersByQuestion the changed answers, grouped by their question's path
+     * @return the source answers, may be empty if they cannot be determined
+     */
+    private List<Node> findSourceAnswers(final Node referenceAnswer, final Map<String, Node> answersByPath,
+        final Map<String, List<Node>> answersByQuestion) throws RepositoryException
+    {
+        if (referenceAnswer.hasProperty("copiedFrom")) {
+            final Node source = answersByPath.get(referenceAnswer.getProperty("copiedFrom").getString());
+            if (source != null) {
+                return Collections.singletonList(source);
+            }
+        }
+        final Node referenceQuestion = this.formUtils.getQuestion(referenceAnswer);
+        if (referenceQuestion != null && referenceQuestion.hasProperty("question")) {
+            return answersByQuestion.getOrDefault(referenceQuestion.getProperty("question").getString(),
+                Collections.emptyList());
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Copy the value of a source answer into a referencing answer, if its update mode allows it and the value differs.
+     *
+     * @param source the source answer
+     * @param referenceAnswer the referencing answer to update
+     * @param versionManager the version manager used for checking out the form of the referencing answer
+     * @param checkoutPaths will receive the path of the form of the referencing answer, if it was checked out
+     */
+    private void copyValue(final Node source, final Node referenceAnswer, final VersionManager versionManager,
+        final Set<String> checkoutPaths) throws RepositoryException
+    {
+        final Property sourceAnswerValue = !source.hasProperty(VALUE) ? null : source.getProperty(VALUE);
+        if (!shouldUpdateValue(sourceAnswerValue, referenceAnswer)) {
+            return;
+        }
+        final String referenceFormPath = this.formUtils.getForm(referenceAnswer).getPath();
+        versionManager.checkout(referenceFormPath);
+        checkoutPaths.add(referenceFormPath);
+        if (sourceAnswerValue == null) {
+            referenceAnswer.setProperty(VALUE, (Value) null);
+        } else if (sourceAnswerValue.isMultiple()) {
+            referenceAnswer.setProperty(VALUE, sourceAnswerValue.getValues());
+        } else {
+            referenceAnswer.setProperty(VALUE, sourceAnswerValue.getValue());
         }
+        referenceAnswer.setProperty("copiedFrom", source.getPath());
     }
 
     private boolean shouldUpdateValue(final Property source, final Node reference) throws RepositoryException
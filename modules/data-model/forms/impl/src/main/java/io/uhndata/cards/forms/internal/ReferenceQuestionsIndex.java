@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.forms.internal;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.sling.api.resource.observation.ExternalResourceChangeListener;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.osgi.service.component.annotations.Component;
+
+import io.uhndata.cards.utils.InvalidatingCache;
+
+/**
+ * Index of reference questions, mapping the path of each question used as the source of a reference question to the
+ * paths of the questions referencing it. The index is built on first use from the {@code cards:Question} definitions,
+ * and rebuilt after any change to the questionnaires, including on other cluster members.
+ *
+ * @version $Id$
+ */
+@Component(service = { ReferenceQuestionsIndex.class, ResourceChangeListener.class }, property = {
+    ResourceChangeListener.PATHS + "=/Questionnaires",
+    ResourceChangeListener.CHANGES + "=ADDED",
+    ResourceChangeListener.CHANGES + "=CHANGED",
+    ResourceChangeListener.CHANGES + "=REMOVED"
+})
+public class ReferenceQuestionsIndex implements ResourceChangeListener, ExternalResourceChangeListener
+{
+    /** The whole index is a single value, there's nothing to distinguish different entries. */
+    private static final String INDEX = "";
+
+    /** Holds the current index, if it was built since the last change. */
+    private final InvalidatingCache<String, Map<String, Set<String>>> index = new InvalidatingCache<>();
+
+    /**
+     * Get the questions referencing a question.
+     *
+     * @param questionPath the path of a question
+     * @param session a session used for building the index, if needed
+     * @return the paths of the questions referencing the given question, may be empty
+     * @throws RepositoryException if building the index fails
+     */
+    public Set<String> getReferencingQuestions(final String questionPath, final Session session)
+        throws RepositoryException
+    {
+        return this.index.get(INDEX, key -> build(session)).getOrDefault(questionPath, Collections.emptySet());
+    }
+
+    @Override
+    public void onChange(final List<ResourceChange> changes)
+    {
+        this.index.invalidateAll();
+    }
+
+    private Map<String, Set<String>> build(final Session session) throws RepositoryException
+    {
+        final Map<String, Set<String>> result = new HashMap<>();
+        final NodeIterator questions = session.getWorkspace().getQueryManager().createQuery(
+            "SELECT q.* FROM [cards:Question] AS q WHERE q.question IS NOT NULL OPTION (index tag cards)",
+            "JCR-SQL2").execute().getNodes();
+        while (questions.hasNext()) {
+            final Node question = questions.nextNode();
+            result.computeIfAbsent(question.getProperty("question").getString(), k -> new HashSet<>())
+                .add(question.getPath());
+        }
+        return result;
+    }
+}
@@ -22,18 +22,25 @@
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 import javax.jcr.query.Query;
 import javax.json.Json;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.math.NumberUtils;
@@ -46,14 +53,17 @@
 import io.uhndata.cards.serialize.DataFilters;
 import io.uhndata.cards.serialize.DataFiltersParser;
 import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+import io.uhndata.cards.serialize.spi.StreamingResourceJsonProcessor;
 
 /**
- * Serialize a subject or questionnaire along with its forms. The name of this processor is {@code data}.
+ * Serialize a subject or questionnaire along with its forms. The name of this processor is {@code data}. When
+ * streaming, forms are fetched one questionnaire title at a time, and written one at a time as the query returns them,
+ * without holding all of them in memory.
  *
  * @version $Id$
  */
-@Component(immediate = true)
-public class DataProcessor implements ResourceJsonProcessor
+@Component(immediate = true, service = ResourceJsonProcessor.class)
+public class DataProcessor implements StreamingResourceJsonProcessor
 {
     private ThreadLocal<ResourceResolver> resolver = new ThreadLocal<>();
 
@@ -119,43 +129,159 @@ public boolean canProcess(Resource resource)
     public void leave(Node node, JsonObjectBuilder json, Function<Node, JsonValue> serializeNode)
     {
         try {
-            // Only the original subject or questionnaire node or their children will have its data appended
-            if (!checkNodeToBeSubNodeAndNodeDepthLevel(node)) {
+            final String entityConditions = findEntityConditions(node);
+            if (entityConditions == null) {
                 return;
             }
+            // All the forms are held in the JSON being built anyway, so a single query is enough, grouping the forms
+            // by questionnaire title as they are returned
+            final boolean isQuestionnaire = node.isNodeType(QuestionnaireUtils.QUESTIONNAIRE_NODETYPE);
+            final Session session = node.getSession();
+            final Map<String, String> titles = new HashMap<>();
+            final Map<String, JsonArrayBuilder> formsJsons = new LinkedHashMap<>();
+            forEachForm(FormsQueryBuilder.build(this.filters.get(), entityConditions), form -> {
+                final String questionnaire = form.getValueMap().get("questionnaire", String.class);
+                if (isQuestionnaire || questionnaire != null) {
+                    final String title = isQuestionnaire ? "@data"
+                        : titles.computeIfAbsent(questionnaire, q -> getQuestionnaireTitle(q, session));
+                    formsJsons.computeIfAbsent(title, k -> Json.createArrayBuilder())
+                        .add(form.adaptTo(JsonObject.class));
+                }
+            });
+            // The data JSONs have been collected, add them to the subject's JSON
+            formsJsons.forEach(json::add);
+            addMetadata(json::add);
+        } catch (RepositoryException e) {
+            // Really shouldn't happen
+        }
+    }
 
-            boolean isQuestionnaire = node.isNodeType(QuestionnaireUtils.QUESTIONNAIRE_NODETYPE);
-            this.uuidsWithEntityFilter.get().put(node.getIdentifier(), isQuestionnaire ? "questionnaire" : "subject");
-
-            if (!node.getPath().equals(this.rootNode.get())) {
+    @Override
+    public void leave(Node node, JsonGenerator output, Function<Node, JsonValue> serializeNode,
+        Consumer<Resource> streamResource)
+    {
+        try {
+            final String entityConditions = findEntityConditions(node);
+            if (entityConditions == null) {
                 return;
             }
+            // Write the forms directly into the output, one at a time, as they are returned by the query
+            findFormGroups(node, entityConditions).forEach((title, query) -> {
+                output.writeStartArray(title);
+                forEachForm(query, streamResource);
+                output.writeEnd();
+            });
+            addMetadata(output::write);
+        } catch (RepositoryException e) {
+            // Really shouldn't happen
+        }
+    }
 
-            final String query = generateDataQuery(node.getIdentifier());
-            Iterator<Resource> forms = this.resolver.get().findResources(query, Query.JCR_SQL2);
+    /**
+     * Check if forms must be included in the serialization of a node, and if so, which entities they must reference.
+     *
+     * @param node the node being serialized
+     * @return the query conditions selecting the forms of the serialized node and of its serialized descendants, or
+     *         {@code null} if no forms should be added to this node
+     * @throws RepositoryException if accessing the repository fails
+     */
+    private String findEntityConditions(final Node node) throws RepositoryException
+    {
+        // Only the original subject or questionnaire node or their children will have its data appended
+        if (!checkNodeToBeSubNodeAndNodeDepthLevel(node)) {
+            return null;
+        }
 
-            final Map<String, JsonArrayBuilder> formsJsons = new HashMap<>();
-            final ResourceResolver currentResolver = this.resolver.get();
+        boolean isQuestionnaire = node.isNodeType(QuestionnaireUtils.QUESTIONNAIRE_NODETYPE);
+        this.uuidsWithEntityFilter.get().put(node.getIdentifier(), isQuestionnaire ? "questionnaire" : "subject");
 
-            final String currentSelectors = getCurrentSelectors();
-            forms.forEachRemaining(f -> {
-                storeForm(currentResolver.resolve(f.getPath() + currentSelectors), formsJsons, isQuestionnaire);
-            });
-            // The data JSONs have been collected, add them to the subject's JSON
-            formsJsons.forEach(json::add);
-            final JsonArrayBuilder filtersJson = Json.createArrayBuilder();
-            final JsonObjectBuilder optionsJson = Json.createObjectBuilder();
-            this.filters.get().getFilters().forEach(f -> filtersJson.add(f.toString()));
-            this.options.get().forEach(optionsJson::add);
-            json.add("dataFilters", filtersJson);
-            json.add("dataOptions", optionsJson);
-            json.add("exportDate",
-                new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX").format(Calendar.getInstance().getTime()));
+        if (!node.getPath().equals(this.rootNode.get())) {
+            return null;
+        }
+
+        return generateEntityConditions(node.getIdentifier());
+    }
+
+    /**
+     * Find the groups of forms to stream in the serialization of a node. Only the questionnaires of the forms are
+     * gathered here, the forms themselves are fetched group by group when written, so that they are never all held in
+     * memory at the same time.
+     *
+     * @param node the node being serialized
+     * @param entityConditions the query conditions selecting the forms, as returned by {@link #findEntityConditions}
+     * @return the query for the forms of each group, keyed by the name under which they must be serialized, either
+     *         {@code @data} for a questionnaire, or the questionnaire title for a subject
+     * @throws RepositoryException if accessing the repository fails
+     */
+    private Map<String, String> findFormGroups(final Node node, final String entityConditions)
+        throws RepositoryException
+    {
+        final Map<String, String> result = new LinkedHashMap<>();
+        if (node.isNodeType(QuestionnaireUtils.QUESTIONNAIRE_NODETYPE)) {
+            result.put("@data", FormsQueryBuilder.build(this.filters.get(), entityConditions));
+            return result;
+        }
+
+        // Group the questionnaires of the forms by title, in the order in which their first form was created
+        final Map<String, Map<String, String>> questionnairesByTitle = new LinkedHashMap<>();
+        final Set<String> seenQuestionnaires = new HashSet<>();
+        final Session session = node.getSession();
+        final Iterator<Resource> forms =
+            this.resolver.get().findResources(FormsQueryBuilder.build(this.filters.get(), entityConditions),
+                Query.JCR_SQL2);
+        forms.forEachRemaining(form -> {
+            final String questionnaire = form.getValueMap().get("questionnaire", String.class);
+            if (questionnaire != null && seenQuestionnaires.add(questionnaire)) {
+                questionnairesByTitle.computeIfAbsent(getQuestionnaireTitle(questionnaire, session),
+                    k -> new LinkedHashMap<>()).put(questionnaire, "questionnaire");
+            }
+        });
+        questionnairesByTitle.forEach((title, questionnaires) -> result.put(title, FormsQueryBuilder
+            .build(this.filters.get(), entityConditions, FormsQueryBuilder.referencingAny(questionnaires))));
+        return result;
+    }
+
+    /**
+     * Serialize, one at a time, the forms returned by a query.
+     *
+     * @param query the query selecting the forms
+     * @param consumer receives each form, resolved with the selectors requested for forms
+     */
+    private void forEachForm(final String query, final Consumer<Resource> consumer)
+    {
+        final ResourceResolver currentResolver = this.resolver.get();
+        final String currentSelectors = getCurrentSelectors();
+        currentResolver.findResources(query, Query.JCR_SQL2)
+            .forEachRemaining(f -> consumer.accept(currentResolver.resolve(f.getPath() + currentSelectors)));
+    }
+
+    private String getQuestionnaireTitle(final String questionnaireIdentifier, final Session session)
+    {
+        try {
+            return session.getNodeByIdentifier(questionnaireIdentifier).getProperty("title").getString();
         } catch (RepositoryException e) {
             // Really shouldn't happen
+            return questionnaireIdentifier;
         }
     }
 
+    /**
+     * Add the filters, options and date used for the export.
+     *
+     * @param json receives the metadata keys and values
+     */
+    private void addMetadata(final BiConsumer<String, JsonValue> json)
+    {
+        final JsonArrayBuilder filtersJson = Json.createArrayBuilder();
+        final JsonObjectBuilder optionsJson = Json.createObjectBuilder();
+        this.filters.get().getFilters().forEach(f -> filtersJson.add(f.toString()));
+        this.options.get().forEach(optionsJson::add);
+        json.accept("dataFilters", filtersJson.build());
+        json.accept("dataOptions", optionsJson.build());
+        json.accept("exportDate", Json.createValue(
+            new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX").format(Calendar.getInstance().getTime())));
+    }
+
     private String getCurrentSelectors()
     {
         if (this.options.get().containsKey("formSelectors")) {
@@ -197,36 +323,12 @@ private boolean checkNodeToBeSubNodeAndNodeDepthLevel(Node currentNode) throws R
         return depthLevel <= (int) this.displayLevel.get();
     }
 
-    private void storeForm(final Resource form, final Map<String, JsonArrayBuilder> formsJsons,
-        final boolean isQuestionnaire)
+    private String generateEntityConditions(String currentNodeIdentifier)
     {
-        try {
-            String questionnaireTitle = "@data";
-            if (!isQuestionnaire) {
-                final Node questionnaire = form.adaptTo(Node.class).getProperty("questionnaire").getNode();
-                questionnaireTitle = questionnaire.getProperty("title").getString();
-            }
-            final JsonArrayBuilder arrayForQuestionnaire =
-                formsJsons.computeIfAbsent(questionnaireTitle, k -> Json.createArrayBuilder());
-            arrayForQuestionnaire.add(form.adaptTo(JsonObject.class));
-        } catch (RepositoryException e) {
-            // Really shouldn't happen
-        }
-    }
-
-    private String generateDataQuery(String currentNodeIdentifier) throws RepositoryException
-    {
-        StringBuilder result = new StringBuilder("select form.* from [cards:Form] as form");
-        result.append(this.filters.get().getExtraQuerySelectors());
-        result.append(" where (form."
-            + this.uuidsWithEntityFilter.get().get(currentNodeIdentifier) + " = '" + currentNodeIdentifier + "'");
-        this.uuidsWithEntityFilter.get().remove(currentNodeIdentifier);
-        this.uuidsWithEntityFilter.get()
-            .forEach((key, value) -> result.append(" or form.").append(value).append(" = '").append(key).append("'"));
-        result.append(")");
-        result.append(this.filters.get().getExtraQueryConditions());
-        result.append(" order by form.'jcr:created' ASC");
-        result.append(" OPTION (index tag cards)");
-        return result.toString();
+        // The current node comes first, followed by the other nodes gathered while serializing the tree
+        final Map<String, String> references = new LinkedHashMap<>();
+        references.put(currentNodeIdentifier, this.uuidsWithEntityFilter.get().remove(currentNodeIdentifier));
+        references.putAll(this.uuidsWithEntityFilter.get());
+        return FormsQueryBuilder.referencingAny(references);
     }
 }
@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.forms.internal.serialize;
+
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import io.uhndata.cards.serialize.DataFilters;
+
+/**
+ * Builds the queries selecting the forms included in a data export. The JSON and CSV serializations share it, so that
+ * the same filters always select the same forms.
+ *
+ * @version $Id$
+ */
+final class FormsQueryBuilder
+{
+    private FormsQueryBuilder()
+    {
+        // Utility class, no instances
+    }
+
+    /**
+     * Build a query for the forms matching some conditions and the export filters, in creation order.
+     *
+     * @param filters the data filters requested for the export
+     * @param conditions conditions that the forms must all match, referring to the form as {@code form}
+     * @return a JCR-SQL2 query selecting the forms as {@code form}
+     */
+    static String build(final DataFilters filters, final String... conditions)
+    {
+        return "select form.* from [cards:Form] as form"
+            + filters.getExtraQuerySelectors()
+            + " where " + String.join(" and ", conditions)
+            + filters.getExtraQueryConditions()
+            + " order by form.'jcr:created' ASC"
+            + " OPTION (index tag cards)";
+    }
+
+    /**
+     * Build a condition matching the forms referencing any of some nodes.
+     *
+     * @param references the referenced node identifiers, each mapped to the form property referencing it, such as
+     *            {@code subject} or {@code questionnaire}
+     * @return a condition matching the forms referencing at least one of the nodes
+     */
+    static String referencingAny(final Map<String, String> references)
+    {
+        return references.entrySet().stream()
+            .map(reference -> "form." + reference.getValue() + " = '" + reference.getKey() + "'")
+            .collect(Collectors.joining(" or ", "(", ")"));
+    }
+}
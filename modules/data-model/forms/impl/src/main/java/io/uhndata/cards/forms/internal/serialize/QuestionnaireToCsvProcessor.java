@@ -19,7 +19,11 @@
 package io.uhndata.cards.forms.internal.serialize;
 
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -27,6 +31,7 @@
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import javax.jcr.query.Query;
 import javax.json.JsonArray;
@@ -42,13 +47,17 @@
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ValueMap;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.uhndata.cards.serialize.DataFilters;
+import io.uhndata.cards.serialize.DataFiltersParser;
 import io.uhndata.cards.serialize.spi.ResourceCSVProcessor;
 
 /**
- * CSV serializer that can process Questionnaires.
+ * CSV serializer that can process Questionnaires. The header is computed from the questionnaire definition, then the
+ * forms are fetched with a query and written row by row, so that only one form is held in memory at a time.
  *
  * @version $Id$
  */
@@ -66,6 +75,16 @@ public class QuestionnaireToCsvProcessor implements ResourceCSVProcessor
 
     private static final String UUID_PROP = "jcr:uuid";
 
+    /** Splits selectors by unescaped dots, see {@code ResourceToJsonAdapterFactory} for details. */
+    private static final String SELECTORS_SEPARATOR = "(?<!\\\\)(?:\\\\\\\\)*\\.";
+
+    private static final String DATA_SELECTOR = "data";
+
+    private static final String FORM_SELECTORS_OPTION = "dataOption:formSelectors=";
+
+    @Reference
+    private DataFiltersParser filtersParser;
+
     @Override
     public boolean canProcess(final Resource resource)
     {
@@ -75,76 +94,123 @@ public boolean canProcess(final Resource resource)
     @Override
     public String serialize(final Resource resource)
     {
-        // The proper serialization depends on "deep", "dereference", and "-labels", but we may allow other JSON
-        // processors to be enabled/disabled to further customize the data, so we also append the original selectors
-        final String processedPath = resource.getPath()
-            + resource.getResourceMetadata().getResolutionPathInfo() + ".deep.dereference.-labels";
-        final JsonObject result = resource.getResourceResolver().resolve(processedPath).adaptTo(JsonObject.class);
-
-        if (result != null) {
-            return processQuestionnaire(result, resource.getResourceResolver(),
-                resource.getResourceMetadata().getResolutionPathInfo());
+        final StringWriter output = new StringWriter();
+        try {
+            if (serialize(resource, output)) {
+                return output.toString();
+            }
+        } catch (final IOException e) {
+            LOGGER.error("Error in CSV export of {} questionnaire", resource.getName());
         }
         return null;
     }
 
-    private String processQuestionnaire(final JsonObject questionnaire, final ResourceResolver resolver,
-        final String resolutionPathInfo)
+    @Override
+    public boolean serialize(final Resource resource, final Writer output) throws IOException
     {
-        try {
-            final StringBuilder output = new StringBuilder();
-            CSVFormat format = CSVFormat.DEFAULT;
-            if (resolutionPathInfo.endsWith(".tsv")) {
-                format = CSVFormat.TDF;
-            }
-            final CSVPrinter csvPrinter = new CSVPrinter(output, format);
-
-            // CSV data aggregator mapping Question UUIDs to pairs of corresponding row number to answer in the csv
-            // [ question : [ row# : answer ] ]
-            final Map<String, Map<Integer, String>> csvData = new LinkedHashMap<>();
-            // Collect column headers explicitly as labels because csvData maps only questions uuids to answers
-            final List<String> columns = new ArrayList<>();
-            columns.add(IDENTIFIER_HEADER);
-
-            final List<String> rawColumns = new ArrayList<>();
-            rawColumns.add("@name");
-
-            // Fetch the subject types expected to be for the questionnaire
-            if (questionnaire.containsKey("requiredSubjectTypes")) {
-                getSubjectTypes(questionnaire.getJsonArray("requiredSubjectTypes"), csvData, columns, rawColumns);
-            } else {
-                // No specific subject types for this questionnaire, output all known subject types
-                getSubjectTypes(resolver, csvData, columns, rawColumns);
-            }
-            csvData.put(CREATED_HEADER, new HashMap<>());
-            csvData.put(LAST_MODIFIED_HEADER, new HashMap<>());
-            columns.add(CREATED_HEADER);
-            rawColumns.add("jcr:created");
-            columns.add(LAST_MODIFIED_HEADER);
-            rawColumns.add("jcr:lastModified");
-
-            // Get header titles from the questionnaire question objects
-            processSectionToHeaderRow(questionnaire, csvData, columns, rawColumns);
-            // Print header
-            if (!resolutionPathInfo.contains("-csvHeader:labels")) {
-                csvPrinter.printRecord(columns);
-            }
-            if (resolutionPathInfo.contains("csvHeader:raw")) {
-                csvPrinter.printRecord(rawColumns);
-            }
+        final ResourceResolver resolver = resource.getResourceResolver();
+        final String resolutionPathInfo = resource.getResourceMetadata().getResolutionPathInfo();
+        // The proper serialization depends on "deep", "dereference", and "-labels", but we may allow other JSON
+        // processors to be enabled/disabled to further customize the data, so we also append the original selectors.
+        // The forms are not included in the questionnaire serialization, they are fetched and serialized one by one
+        // afterwards, so that only one form is held in memory at any time.
+        final String formSelectors = resolutionPathInfo + ".deep.dereference.-labels";
+        final String definitionSelectors = Arrays.stream(formSelectors.split(SELECTORS_SEPARATOR))
+            .filter(selector -> !DATA_SELECTOR.equals(selector))
+            .collect(Collectors.joining("."));
+        final JsonObject questionnaire =
+            resolver.resolve(resource.getPath() + definitionSelectors).adaptTo(JsonObject.class);
+        if (questionnaire == null) {
+            return false;
+        }
 
-            // Aggregate form answers to the csvData collector for the CSV output
-            if (questionnaire.containsKey("@data")) {
-                processFormsToRows(questionnaire.getJsonArray("@data"), csvData, csvPrinter);
-            }
+        CSVFormat format = CSVFormat.DEFAULT;
+        if (resolutionPathInfo.endsWith(".tsv")) {
+            format = CSVFormat.TDF;
+        }
+        final CSVPrinter csvPrinter = new CSVPrinter(output, format);
 
-            // All done, flush, close and return the CSV
-            csvPrinter.close(true);
-            return output.toString();
-        } catch (final IOException e) {
-            LOGGER.error("Error in CSV export of {} questionnaire", questionnaire.getString("@name"));
+        // CSV data aggregator mapping Question UUIDs to pairs of corresponding row number to answer in the csv
+        // [ question : [ row# : answer ] ]
+        final Map<String, Map<Integer, String>> csvData = new LinkedHashMap<>();
+        // Collect column headers explicitly as labels because csvData maps only questions uuids to answers
+        final List<String> columns = new ArrayList<>();
+        columns.add(IDENTIFIER_HEADER);
+
+        final List<String> rawColumns = new ArrayList<>();
+        rawColumns.add("@name");
+
+        // Fetch the subject types expected to be for the questionnaire
+        if (questionnaire.containsKey("requiredSubjectTypes")) {
+            getSubjectTypes(questionnaire.getJsonArray("requiredSubjectTypes"), csvData, columns, rawColumns);
+        } else {
+            // No specific subject types for this questionnaire, output all known subject types
+            getSubjectTypes(resolver, csvData, columns, rawColumns);
+        }
+        csvData.put(CREATED_HEADER, new HashMap<>());
+        csvData.put(LAST_MODIFIED_HEADER, new HashMap<>());
+        columns.add(CREATED_HEADER);
+        rawColumns.add("jcr:created");
+        columns.add(LAST_MODIFIED_HEADER);
+        rawColumns.add("jcr:lastModified");
+
+        // Get header titles from the questionnaire question objects
+        processSectionToHeaderRow(questionnaire, csvData, columns, rawColumns);
+        printHeaders(csvPrinter, resolutionPathInfo, columns, rawColumns);
+
+        // Print the form answers, one form at a time
+        if (isDataRequested(resolutionPathInfo)) {
+            processFormsToRows(resolver, questionnaire.getString(UUID_PROP), resolutionPathInfo,
+                getFormSelectors(resolutionPathInfo, formSelectors), csvData, csvPrinter);
+        }
+
+        // All done, flush, but don't close the output, it belongs to the caller
+        csvPrinter.flush();
+        return true;
+    }
+
+    /**
+     * Print the header rows requested by the selectors: the column labels, unless {@code -csvHeader:labels} is
+     * specified, and the raw property names, if {@code csvHeader:raw} is specified.
+     *
+     * @param csvPrinter the printer where the headers are written
+     * @param resolutionPathInfo the selectors used for the CSV export
+     * @param columns the column labels
+     * @param rawColumns the raw column names
+     * @throws IOException if writing the headers fails
+     */
+    private void printHeaders(final CSVPrinter csvPrinter, final String resolutionPathInfo,
+        final List<String> columns, final List<String> rawColumns) throws IOException
+    {
+        if (!resolutionPathInfo.contains("-csvHeader:labels")) {
+            csvPrinter.printRecord(columns);
+        }
+        if (resolutionPathInfo.contains("csvHeader:raw")) {
+            csvPrinter.printRecord(rawColumns);
         }
-        return null;
+    }
+
+    private boolean isDataRequested(final String resolutionPathInfo)
+    {
+        return Arrays.asList(resolutionPathInfo.split(SELECTORS_SEPARATOR)).contains(DATA_SELECTOR);
+    }
+
+    /**
+     * Compute the selectors used for serializing each form, the same as the ones used by the {@code data} JSON
+     * processor.
+     *
+     * @param resolutionPathInfo the selectors used for the CSV export
+     * @param defaultSelectors the selectors to use if no explicit {@code dataOption:formSelectors} is specified
+     * @return the selectors to append to a form path
+     */
+    private String getFormSelectors(final String resolutionPathInfo, final String defaultSelectors)
+    {
+        return Arrays.stream(resolutionPathInfo.split(SELECTORS_SEPARATOR))
+            .filter(s -> StringUtils.startsWith(s, FORM_SELECTORS_OPTION))
+            .map(s -> "." + StringUtils.substringAfter(s, FORM_SELECTORS_OPTION).replaceAll("\\\\\\.", ".")
+                + ".json")
+            .findFirst()
+            .orElse(defaultSelectors);
     }
 
     private void getSubjectTypes(final ResourceResolver resolver, final Map<String, Map<Integer, String>> csvData,
@@ -221,16 +287,24 @@ private void processHeaderElement(final JsonObject nodeJson, final Map<String, M
         }
     }
 
-    private void processFormsToRows(final JsonArray formsJson, final Map<String, Map<Integer, String>> csvData,
-        final CSVPrinter csvPrinter)
+    private void processFormsToRows(final ResourceResolver resolver, final String questionnaireUuid,
+        final String resolutionPathInfo, final String formSelectors, final Map<String, Map<Integer, String>> csvData,
+        final CSVPrinter csvPrinter) throws IOException
     {
-        for (final JsonValue form : formsJson) {
-            processForm((JsonObject) form, csvData, csvPrinter);
+        final DataFilters filters = this.filtersParser.parseFilters(resolutionPathInfo);
+        final String query = FormsQueryBuilder.build(filters,
+            FormsQueryBuilder.referencingAny(Collections.singletonMap(questionnaireUuid, "questionnaire")));
+        final Iterator<Resource> forms = resolver.findResources(query, Query.JCR_SQL2);
+        while (forms.hasNext()) {
+            final JsonObject form = resolver.resolve(forms.next().getPath() + formSelectors).adaptTo(JsonObject.class);
+            if (form != null) {
+                processForm(form, csvData, csvPrinter);
+            }
         }
     }
 
     private void processForm(final JsonObject form, final Map<String, Map<Integer, String>> csvData,
-        final CSVPrinter csvPrinter)
+        final CSVPrinter csvPrinter) throws IOException
     {
         // Collect information regarding the form subjects and subject parents
         if (form.containsKey("subject")) {
@@ -292,11 +366,7 @@ private void processForm(final JsonObject form, final Map<String, Map<Integer, S
                 row.add(StringUtils.defaultString(answerList.get(level)));
             }
             // Print one row for the level
-            try {
-                csvPrinter.printRecord(row.toArray());
-            } catch (final IOException e) {
-                // Should not happen since we're printing to a string
-            }
+            csvPrinter.printRecord(row.toArray());
         }
 
         // Empty csvData for next form
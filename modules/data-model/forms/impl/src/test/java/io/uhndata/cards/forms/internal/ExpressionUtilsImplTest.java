@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.forms.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.script.ScriptEngineManager;
+
+import org.apache.jackrabbit.oak.api.Type;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mockito;
+import org.mockito.Spy;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import io.uhndata.cards.forms.api.ExpressionUtils;
+
+/**
+ * Unit tests for {@link ExpressionUtilsImpl}.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ExpressionUtilsImplTest
+{
+    @Spy
+    private ScriptEngineManager manager = new ScriptEngineManager();
+
+    @InjectMocks
+    private ExpressionUtilsImpl utils;
+
+    @Test
+    public void cachedExpressionsAreBoundToNewValues() throws RepositoryException
+    {
+        final Node question = question("q1", "return @{a} + @{b}");
+
+        Assert.assertEquals(5L, evaluate(question, "a", 2L, "b", 3L).getResult());
+        Assert.assertEquals(7L, evaluate(question, "a", 4L, "b", 3L).getResult());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("a", "b")), this.utils.getDependencies(question));
+    }
+
+    @Test
+    public void enginesAreReused() throws RepositoryException
+    {
+        final Node question = question("q1", "return @{a} * 2");
+
+        for (long i = 0; i < 5; ++i) {
+            Assert.assertEquals(2 * i, evaluate(question, "a", i).getResult());
+        }
+        Mockito.verify(this.manager, Mockito.times(1)).getEngineByName("JavaScript");
+    }
+
+    @Test
+    public void changedExpressionsAreParsedAgain() throws RepositoryException
+    {
+        Assert.assertEquals(3L, evaluate(question("q1", "return @{a} + 1"), "a", 2L).getResult());
+        Assert.assertEquals(4L, evaluate(question("q1", "return @{a} + 2"), "a", 2L).getResult());
+    }
+
+    @Test
+    public void missingValuesAreReported() throws RepositoryException
+    {
+        final ExpressionUtils.ExpressionResult result = this.utils.evaluate(question("q1", "return @{a} + 1"),
+            Collections.emptyMap(), Type.LONG, Collections.emptySet());
+
+        Assert.assertTrue(result.hasMissingValue());
+        Assert.assertNull(result.getResult());
+    }
+
+    private ExpressionUtils.ExpressionResult evaluate(final Node question, final Object... values)
+    {
+        final Map<String, Object> valuesMap = new HashMap<>();
+        for (int i = 0; i < values.length; i += 2) {
+            valuesMap.put((String) values[i], values[i + 1]);
+        }
+        return this.utils.evaluate(question, valuesMap, Type.LONG, Collections.emptySet());
+    }
+
+    private static Node question(final String identifier, final String expression) throws RepositoryException
+    {
+        final Node question = Mockito.mock(Node.class);
+        final Property property = Mockito.mock(Property.class);
+        Mockito.when(question.getIdentifier()).thenReturn(identifier);
+        Mockito.when(question.getProperty("expression")).thenReturn(property);
+        Mockito.when(property.getString()).thenReturn(expression);
+        return question;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.forms.internal;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Answers;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import io.uhndata.cards.forms.api.FormUtils;
+import io.uhndata.cards.spi.SearchParameters;
+
+/**
+ * Unit tests for the queries issued by {@link FormsQuickSearchEngine}.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class FormsQuickSearchEngineTest
+{
+    @Mock
+    private FormUtils formUtils;
+
+    @Mock
+    private ResourceResolver resolver;
+
+    @Mock
+    private SearchParameters parameters;
+
+    @Mock(answer = Answers.RETURNS_DEEP_STUBS)
+    private QueryManager queryManager;
+
+    @InjectMocks
+    private FormsQuickSearchEngine engine;
+
+    @Before
+    public void setupQueryManager() throws RepositoryException
+    {
+        final Session session = Mockito.mock(Session.class, Answers.RETURNS_DEEP_STUBS.get());
+        Mockito.when(session.getWorkspace().getQueryManager()).thenReturn(this.queryManager);
+        Mockito.when(this.resolver.adaptTo(Session.class)).thenReturn(session);
+    }
+
+    @Test
+    public void longQueriesUseTheTrigramIndex() throws RepositoryException
+    {
+        final String query = search("Cardio");
+
+        Assert.assertEquals("select [jcr:path] from [cards:TextAnswer] as a "
+            + "where contains([value], '\"Cardio\"') or contains([note], '\"Cardio\"') "
+            + "option(index tag textAnswers)", query);
+    }
+
+    @Test
+    public void trigramPhrasesAreEscaped() throws RepositoryException
+    {
+        final String query = search("a \"b\\c' d");
+
+        Assert.assertTrue(query, query.contains("contains([value], '\"a \\\"b\\\\c'' d\"')"));
+        Assert.assertTrue(query, query.contains("contains([note], '\"a \\\"b\\\\c'' d\"')"));
+    }
+
+    @Test
+    public void shortQueriesUseSubstringMatching() throws RepositoryException
+    {
+        final String query = search("Ab");
+
+        Assert.assertEquals("select [jcr:path] from [cards:TextAnswer] as a "
+            + "where lower([value]) like '%ab%' or lower([note]) like '%ab%' option(index tag cards)", query);
+    }
+
+    @Test
+    public void failedQueriesReturnNoResults() throws RepositoryException
+    {
+        Mockito.when(this.parameters.getQuery()).thenReturn("Cardio");
+        Mockito.when(this.queryManager.createQuery(Matchers.anyString(), Matchers.eq(Query.JCR_SQL2)))
+            .thenThrow(new RepositoryException("invalid"));
+
+        Assert.assertFalse(this.engine.quickSearch(this.parameters, this.resolver).hasNext());
+    }
+
+    private String search(final String text) throws RepositoryException
+    {
+        Mockito.when(this.parameters.getQuery()).thenReturn(text);
+        this.engine.quickSearch(this.parameters, this.resolver);
+        final ArgumentCaptor<String> query = ArgumentCaptor.forClass(String.class);
+        Mockito.verify(this.queryManager).createQuery(query.capture(), Matchers.eq(Query.JCR_SQL2));
+        return query.getValue();
+    }
+}
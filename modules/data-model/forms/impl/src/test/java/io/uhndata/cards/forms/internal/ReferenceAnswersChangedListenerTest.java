@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.forms.internal;
+
+import java.util.Collections;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.nodetype.NodeType;
+import javax.jcr.version.VersionManager;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Answers;
+import org.mockito.InOrder;
+import org.mockito.InjectMocks;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import io.uhndata.cards.forms.api.FormUtils;
+import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
+
+/**
+ * Unit tests for {@link ReferenceAnswersChangedListener}.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ReferenceAnswersChangedListenerTest
+{
+    private static final String FORM_PATH = "/Forms/f1";
+
+    private static final String SOURCE_QUESTION = "/Questionnaires/q/source";
+
+    private static final String TEXT_ANSWER = "cards:TextAnswer";
+
+    @Mock
+    private ResourceResolverFactory resolverFactory;
+
+    @Mock
+    private ThreadResourceResolverProvider rrp;
+
+    @Mock
+    private FormUtils formUtils;
+
+    @Mock
+    private ReferenceQuestionsIndex referenceQuestions;
+
+    @Mock(answer = Answers.RETURNS_DEEP_STUBS)
+    private Session session;
+
+    @Mock
+    private VersionManager versionManager;
+
+    @InjectMocks
+    private ReferenceAnswersChangedListener listener;
+
+    private Node form;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws LoginException, RepositoryException
+    {
+        final ResourceResolver resolver = Mockito.mock(ResourceResolver.class);
+        Mockito.when(this.resolverFactory.getServiceResourceResolver(Matchers.any(Map.class))).thenReturn(resolver);
+        Mockito.when(resolver.adaptTo(Session.class)).thenReturn(this.session);
+        this.form = Mockito.mock(Node.class);
+        Mockito.when(this.session.nodeExists(FORM_PATH)).thenReturn(true);
+        Mockito.when(this.session.getNode(FORM_PATH)).thenReturn(this.form);
+        Mockito.when(this.session.getWorkspace().getVersionManager()).thenReturn(this.versionManager);
+        Mockito.when(this.formUtils.isForm(this.form)).thenReturn(true);
+        final Node subject = Mockito.mock(Node.class);
+        Mockito.when(subject.getIdentifier()).thenReturn("subject-uuid");
+        Mockito.when(this.formUtils.getForm(Matchers.any(Node.class))).thenReturn(this.form);
+        Mockito.when(this.formUtils.getSubject(this.form)).thenReturn(subject);
+        Mockito.when(this.form.getPath()).thenReturn(FORM_PATH);
+        Mockito.when(this.referenceQuestions.getReferencingQuestions(Matchers.eq(SOURCE_QUESTION),
+            Matchers.any(Session.class))).thenReturn(Collections.singleton("/Questionnaires/r/reference"));
+    }
+
+    @Test
+    public void everyAnswerToARepeatedQuestionIsASource() throws RepositoryException
+    {
+        // The source question is answered in two repeated sections
+        final Node first = mockSourceAnswer(FORM_PATH + "/s1/a", "first");
+        final Node second = mockSourceAnswer(FORM_PATH + "/s2/a", "second");
+        final Node section1 = mockSection(first);
+        final Node section2 = mockSection(second);
+        final NodeIterator children = mockIterator(section1, section2);
+        Mockito.when(this.form.getNodes()).thenReturn(children);
+
+        final Node reference = mockReferenceAnswer();
+        final NodeIterator results = mockIterator(reference);
+        Mockito.when(this.session.getWorkspace().getQueryManager()
+            .createQuery(Matchers.anyString(), Matchers.anyString()).execute().getNodes()).thenReturn(results);
+
+        this.listener.onChange(Collections.singletonList(new ResourceChange(ChangeType.CHANGED, FORM_PATH, false)));
+
+        // Like when each source answer was handled on its own, both are copied in order, so the last one wins
+        final InOrder order = Mockito.inOrder(reference, this.session);
+        order.verify(reference).setProperty(ReferenceAnswersChangedListener.VALUE,
+            first.getProperty(ReferenceAnswersChangedListener.VALUE).getValue());
+        order.verify(reference).setProperty("copiedFrom", FORM_PATH + "/s1/a");
+        order.verify(reference).setProperty(ReferenceAnswersChangedListener.VALUE,
+            second.getProperty(ReferenceAnswersChangedListener.VALUE).getValue());
+        order.verify(reference).setProperty("copiedFrom", FORM_PATH + "/s2/a");
+        order.verify(this.session).save();
+        Mockito.verify(this.versionManager).checkin(FORM_PATH);
+    }
+
+    private Node mockSourceAnswer(final String path, final String value) throws RepositoryException
+    {
+        final Node answer = Mockito.mock(Node.class);
+        Mockito.when(answer.getPath()).thenReturn(path);
+        Mockito.when(answer.isNodeType("cards:Answer")).thenReturn(true);
+        final NodeType type = mockType();
+        Mockito.when(answer.getPrimaryNodeType()).thenReturn(type);
+        final Property question = Mockito.mock(Property.class);
+        final Node questionNode = Mockito.mock(Node.class);
+        Mockito.when(questionNode.getPath()).thenReturn(SOURCE_QUESTION);
+        Mockito.when(question.getNode()).thenReturn(questionNode);
+        Mockito.when(answer.getProperty("question")).thenReturn(question);
+        final Property valueProperty = Mockito.mock(Property.class);
+        final Value jcrValue = Mockito.mock(Value.class);
+        Mockito.when(jcrValue.getString()).thenReturn(value);
+        Mockito.when(valueProperty.getValue()).thenReturn(jcrValue);
+        Mockito.when(answer.hasProperty(ReferenceAnswersChangedListener.VALUE)).thenReturn(true);
+        Mockito.when(answer.getProperty(ReferenceAnswersChangedListener.VALUE)).thenReturn(valueProperty);
+        return answer;
+    }
+
+    private Node mockReferenceAnswer() throws RepositoryException
+    {
+        final Node answer = Mockito.mock(Node.class);
+        final NodeType type = mockType();
+        Mockito.when(answer.getPrimaryNodeType()).thenReturn(type);
+        final Node question = Mockito.mock(Node.class);
+        final Property referenced = Mockito.mock(Property.class);
+        Mockito.when(referenced.getString()).thenReturn(SOURCE_QUESTION);
+        Mockito.when(question.hasProperty("question")).thenReturn(true);
+        Mockito.when(question.getProperty("question")).thenReturn(referenced);
+        Mockito.when(this.formUtils.getQuestion(answer)).thenReturn(question);
+        return answer;
+    }
+
+    private Node mockSection(final Node... children) throws RepositoryException
+    {
+        final Node section = Mockito.mock(Node.class);
+        Mockito.when(section.isNodeType("cards:AnswerSection")).thenReturn(true);
+        final NodeIterator iterator = mockIterator(children);
+        Mockito.when(section.getNodes()).thenReturn(iterator);
+        return section;
+    }
+
+    private NodeType mockType()
+    {
+        final NodeType type = Mockito.mock(NodeType.class);
+        Mockito.when(type.getName()).thenReturn(TEXT_ANSWER);
+        return type;
+    }
+
+    private NodeIterator mockIterator(final Node... nodes)
+    {
+        final NodeIterator iterator = Mockito.mock(NodeIterator.class);
+        final int[] position = { 0 };
+        Mockito.when(iterator.hasNext()).thenAnswer(invocation -> position[0] < nodes.length);
+        Mockito.when(iterator.nextNode()).thenAnswer(invocation -> nodes[position[0]++]);
+        return iterator;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.forms.internal.serialize;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import io.uhndata.cards.serialize.DataFilters;
+
+/**
+ * Unit tests for {@link FormsQueryBuilder}.
+ *
+ * @version $Id$
+ */
+public class FormsQueryBuilderTest
+{
+    @Test
+    public void referencesAreCombinedInOrder()
+    {
+        final Map<String, String> references = new LinkedHashMap<>();
+        references.put("s1", "subject");
+        references.put("q1", "questionnaire");
+
+        Assert.assertEquals("(form.subject = 's1' or form.questionnaire = 'q1')",
+            FormsQueryBuilder.referencingAny(references));
+    }
+
+    @Test
+    public void filtersAndConditionsAreApplied()
+    {
+        final DataFilters filters = Mockito.mock(DataFilters.class);
+        Mockito.when(filters.getExtraQuerySelectors()).thenReturn(" inner join [cards:Answer] as a");
+        Mockito.when(filters.getExtraQueryConditions()).thenReturn(" and a.value = 1");
+
+        Assert.assertEquals("select form.* from [cards:Form] as form inner join [cards:Answer] as a"
+            + " where (form.questionnaire = 'q1') and (form.subject = 's1') and a.value = 1"
+            + " order by form.'jcr:created' ASC OPTION (index tag cards)",
+            FormsQueryBuilder.build(filters,
+                FormsQueryBuilder.referencingAny(Collections.singletonMap("q1", "questionnaire")),
+                FormsQueryBuilder.referencingAny(Collections.singletonMap("s1", "subject"))));
+    }
+}
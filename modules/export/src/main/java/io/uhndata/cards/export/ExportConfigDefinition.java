@@ -33,6 +33,9 @@
     /** Default value for the file name format. */
     String FILE_NAME_FORMAT = "{resourceName}_{period}";
 
+    /** Default number of resources exported at the same time. */
+    int WORKERS = 1;
+
     @AttributeDefinition(name = "Name", description = "Configuration name")
     String name();
 
@@ -89,6 +92,11 @@
             + " {period} for the time period being queried in the yyyy-mm-dd_yyyy-mm-dd format.")
     String fileNameFormat() default FILE_NAME_FORMAT;
 
+    @AttributeDefinition(name = "Parallel workers",
+        description = "How many resources can be formatted and stored at the same time."
+            + " Each worker uses its own session. With 1, resources are exported one at a time.")
+    int workers() default WORKERS;
+
     @AttributeDefinition(name = "Storage",
         description = "The name of the storage to use."
             + " This is specified in the configuration for specific implementations of the DataStore service.")
@@ -19,12 +19,22 @@
 
 package io.uhndata.cards.export;
 
+import java.io.InputStream;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -44,8 +54,10 @@
 import io.uhndata.cards.export.spi.DataRetriever;
 import io.uhndata.cards.export.spi.DataStore;
 import io.uhndata.cards.metrics.Metrics;
+import io.uhndata.cards.metrics.MetricsRegistry;
 import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
 
+@SuppressWarnings("checkstyle:ClassFanOutComplexity")
 public class ExportTask implements Runnable
 {
     /** Default log. */
@@ -59,11 +71,20 @@ public class ExportTask implements Runnable
 
     private static final Pattern FORMATTED_END = Pattern.compile("\\{end\\((.*?)\\)\\}");
 
+    /** How many resources can be waiting for each worker in a parallel export. */
+    private static final int QUEUED_TASKS_PER_WORKER = 2;
+
+    /** How long to wait for the workers to finish once all the resources were queued, in minutes. */
+    private static final long TERMINATION_TIMEOUT_MINUTES = 10;
+
     /** Provides access to resources. */
     private final ResourceResolverFactory resolverFactory;
 
     private final ThreadResourceResolverProvider rrp;
 
+    /** Aggregates the metrics increments, may be {@code null}. */
+    private final MetricsRegistry metricsRegistry;
+
     private final ExportConfigDefinition config;
 
     private final DataRetriever retriever;
@@ -79,17 +100,20 @@ public class ExportTask implements Runnable
     private final LocalDate exportUpperBound;
 
     ExportTask(final ResourceResolverFactory resolverFactory, final ThreadResourceResolverProvider rrp,
-        final ExportConfigDefinition config, final DataPipeline pipeline, final String exportRunMode)
+        final MetricsRegistry metricsRegistry, final ExportConfigDefinition config, final DataPipeline pipeline,
+        final String exportRunMode)
     {
-        this(resolverFactory, rrp, config, pipeline, exportRunMode, null, null);
+        this(resolverFactory, rrp, metricsRegistry, config, pipeline, exportRunMode, null, null);
     }
 
+    @SuppressWarnings({ "checkstyle:ParameterNumber" })
     ExportTask(final ResourceResolverFactory resolverFactory, final ThreadResourceResolverProvider rrp,
-        final ExportConfigDefinition config, final DataPipeline pipeline, final String exportRunMode,
-        final LocalDate exportLowerBound, final LocalDate exportUpperBound)
+        final MetricsRegistry metricsRegistry, final ExportConfigDefinition config, final DataPipeline pipeline,
+        final String exportRunMode, final LocalDate exportLowerBound, final LocalDate exportUpperBound)
     {
         this.resolverFactory = resolverFactory;
         this.rrp = rrp;
+        this.metricsRegistry = metricsRegistry;
         this.config = config;
         this.retriever = pipeline.getRetriever();
         this.formatter = pipeline.getFormatter();
@@ -117,7 +141,7 @@ public void run()
             ErrorLogger.logError(e);
 
             // Increment the count of S3ExportFailures
-            Metrics.increment(this.resolverFactory, "S3ExportFailures", 1);
+            Metrics.increment(this.metricsRegistry, this.resolverFactory, "S3ExportFailures", 1);
         }
     }
 
@@ -150,15 +174,15 @@ private void doExport(final ZonedDateTime startDate, final ZonedDateTime endDate
             List<ResourceIdentifier> resourcesToExport =
                 this.retriever.getResourcesToExport(this.config, startDate, endDate, resolver);
 
-            for (ResourceIdentifier identifier : resourcesToExport) {
-                ResourceRepresentation resourceContents =
-                    this.formatter.format(identifier, startDate, endDate, this.config, resolver);
-                if (resourceContents != null) {
-                    String filename =
-                        getTargetFileName(identifier, startDate, endDate);
-                    this.output(resourceContents, filename);
+            final ExportStatistics stats = new ExportStatistics();
+            if (this.config.workers() > 1 && resourcesToExport.size() > 1) {
+                exportInParallel(resourcesToExport, startDate, endDate, stats);
+            } else {
+                for (ResourceIdentifier identifier : resourcesToExport) {
+                    export(identifier, startDate, endDate, resolver, stats);
                 }
             }
+            stats.log(this.config.name());
         } catch (LoginException e) {
             LOGGER.warn("Failed to get service session: {}", e.getMessage(), e);
         } catch (RepositoryException e) {
@@ -170,6 +194,137 @@ private void doExport(final ZonedDateTime startDate, final ZonedDateTime endDate
         }
     }
 
+    /**
+     * Export resources using a pool of workers, each with its own resource resolver, so that formatting some resources
+     * overlaps with storing others. At most a few resources per worker are waiting to be exported at any time, so that
+     * memory usage stays bounded regardless of the number of resources.
+     *
+     * @param resourcesToExport the resources to export
+     * @param startDate the start of the exported period
+     * @param endDate the end of the exported period, may be {@code null}
+     * @param stats gathers statistics about the export
+     */
+    private void exportInParallel(final List<ResourceIdentifier> resourcesToExport, final ZonedDateTime startDate,
+        final ZonedDateTime endDate, final ExportStatistics stats)
+    {
+        final int workers = this.config.workers();
+        final AtomicInteger threadCounter = new AtomicInteger();
+        // Daemon threads, so that a stuck export never prevents the JVM from shutting down
+        final ThreadFactory threadFactory = runnable -> {
+            final Thread thread =
+                new Thread(runnable, "export-" + this.config.name() + "-worker-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        final ExecutorService executor = Executors.newFixedThreadPool(workers, threadFactory);
+        final Semaphore slots = new Semaphore(workers * QUEUED_TASKS_PER_WORKER);
+        final ThreadLocal<ResourceResolver> workerResolver = new ThreadLocal<>();
+        final Queue<ResourceResolver> openResolvers = new ConcurrentLinkedQueue<>();
+        try {
+            for (ResourceIdentifier identifier : resourcesToExport) {
+                slots.acquire();
+                executor.execute(() -> {
+                    try {
+                        ResourceResolver resolver = workerResolver.get();
+                        if (resolver == null) {
+                            resolver = this.resolverFactory.getServiceResourceResolver(null);
+                            workerResolver.set(resolver);
+                            openResolvers.add(resolver);
+                        }
+                        exportWithResolver(identifier, startDate, endDate, resolver, stats);
+                    } catch (LoginException e) {
+                        LOGGER.warn("Failed to get service session: {}", e.getMessage(), e);
+                        stats.recordFailure();
+                    } catch (RepositoryException e) {
+                        LOGGER.warn("Failed to access data: {}", e.getMessage(), e);
+                        stats.recordFailure();
+                    } catch (RuntimeException e) {
+                        LOGGER.error("Failed to export {}: {}", identifier.getPath(), e.getMessage(), e);
+                        stats.recordFailure();
+                    } finally {
+                        slots.release();
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            LOGGER.warn("Export {} interrupted", this.config.name());
+            Thread.currentThread().interrupt();
+        } finally {
+            if (shutdown(executor)) {
+                openResolvers.forEach(ResourceResolver::close);
+            } else {
+                // Closing the resolvers now would break the workers still using them
+                LOGGER.error("Export {} leaves {} resolvers open for the stuck workers", this.config.name(),
+                    openResolvers.size());
+            }
+        }
+    }
+
+    /**
+     * Wait for the workers to finish the queued exports. Since only a few exports per worker can be queued, this should
+     * not take long; workers still running after {@link #TERMINATION_TIMEOUT_MINUTES} are considered stuck and are
+     * interrupted.
+     *
+     * @param executor the workers pool
+     * @return {@code true} if all the workers stopped, {@code false} if some may still be running
+     */
+    private boolean shutdown(final ExecutorService executor)
+    {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(TERMINATION_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                LOGGER.warn("Export {} workers did not finish in {} minutes, interrupting them",
+                    this.config.name(), TERMINATION_TIMEOUT_MINUTES);
+                executor.shutdownNow();
+                if (!executor.awaitTermination(TERMINATION_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                    LOGGER.error("Export {} workers did not stop after being interrupted", this.config.name());
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            return executor.isTerminated();
+        }
+    }
+
+    /**
+     * Export one resource, making the given resolver the one used by services for the current thread while doing so.
+     *
+     * @param identifier the resource to export
+     * @param startDate the start of the exported period
+     * @param endDate the end of the exported period, may be {@code null}
+     * @param resolver the resolver of the current worker
+     * @param stats gathers statistics about the export
+     * @throws RepositoryException if accessing the resource fails
+     */
+    private void exportWithResolver(final ResourceIdentifier identifier, final ZonedDateTime startDate,
+        final ZonedDateTime endDate, final ResourceResolver resolver, final ExportStatistics stats)
+        throws RepositoryException
+    {
+        this.rrp.push(resolver);
+        try {
+            export(identifier, startDate, endDate, resolver, stats);
+        } finally {
+            this.rrp.pop();
+        }
+    }
+
+    private void export(final ResourceIdentifier identifier, final ZonedDateTime startDate,
+        final ZonedDateTime endDate, final ResourceResolver resolver, final ExportStatistics stats)
+        throws RepositoryException
+    {
+        final long start = System.nanoTime();
+        ResourceRepresentation resourceContents =
+            this.formatter.format(identifier, startDate, endDate, this.config, resolver);
+        if (resourceContents != null) {
+            String filename =
+                getTargetFileName(identifier, startDate, endDate);
+            this.output(resourceContents, filename, start, stats);
+        }
+    }
+
     private ZonedDateTime getPastDayStart(int numberOfDaysAgo)
     {
         return LocalDate.now().atStartOfDay(ZoneId.systemDefault()).minusDays(numberOfDaysAgo);
@@ -207,19 +362,69 @@ private String getTargetFileName(final ResourceIdentifier identifier, final Zone
         return m.replaceAll(match -> DateTimeFormatter.ofPattern(match.group(1)).format(endDate));
     }
 
-    private void output(ResourceRepresentation input, String filename)
+    private void output(ResourceRepresentation input, String filename, long start, ExportStatistics stats)
     {
-        try {
-            this.store.store(input.getRepresentation(), input.getRepresentationSize(), filename, input.getMimeType(),
-                this.config);
+        try (input; InputStream contents = input.getRepresentation()) {
+            final long size = input.getRepresentationSize();
+            final long formatted = System.nanoTime();
+            this.store.store(contents, size, filename, input.getMimeType(), this.config);
+            stats.recordSuccess(size, formatted - start, System.nanoTime() - formatted);
             input.getDataContents().forEach(form -> {
                 LOGGER.info("Exported {}", form);
-                Metrics.increment(this.resolverFactory, "S3ExportedForms", 1);
+                Metrics.increment(this.metricsRegistry, this.resolverFactory, "S3ExportedForms", 1);
             });
             LOGGER.info("Exported {} to {}", input.getIdentifier().getPath(), filename);
-            Metrics.increment(this.resolverFactory, "S3ExportedSubjects", 1);
+            Metrics.increment(this.metricsRegistry, this.resolverFactory, "S3ExportedSubjects", 1);
         } catch (Exception e) {
             LOGGER.error("Failed to export {}: {}", input.getIdentifier().getPath(), e.getMessage(), e);
+            stats.recordFailure();
+        }
+    }
+
+    /**
+     * Throughput and latency statistics for one export run, safe to update from several workers.
+     */
+    private static final class ExportStatistics
+    {
+        private static final long NANOS_PER_MILLI = 1_000_000L;
+
+        private final long start = System.nanoTime();
+
+        private final LongAdder exported = new LongAdder();
+
+        private final LongAdder failed = new LongAdder();
+
+        private final LongAdder bytes = new LongAdder();
+
+        private final LongAdder formatTime = new LongAdder();
+
+        private final LongAdder storeTime = new LongAdder();
+
+        void recordSuccess(final long size, final long formatNanos, final long storeNanos)
+        {
+            this.exported.increment();
+            if (size > 0) {
+                this.bytes.add(size);
+            }
+            this.formatTime.add(formatNanos);
+            this.storeTime.add(storeNanos);
+        }
+
+        void recordFailure()
+        {
+            this.failed.increment();
+        }
+
+        void log(final String exportName)
+        {
+            final long exportedCount = this.exported.sum();
+            final long elapsed = Math.max((System.nanoTime() - this.start) / NANOS_PER_MILLI, 1);
+            LOGGER.info("Export {} finished in {} ms: {} resources exported ({} per second, {} bytes), {} failed,"
+                + " average format time {} ms, average store time {} ms",
+                exportName, elapsed, exportedCount, exportedCount * 1000 / elapsed, this.bytes.sum(),
+                this.failed.sum(),
+                exportedCount > 0 ? this.formatTime.sum() / exportedCount / NANOS_PER_MILLI : 0,
+                exportedCount > 0 ? this.storeTime.sum() / exportedCount / NANOS_PER_MILLI : 0);
         }
     }
 }
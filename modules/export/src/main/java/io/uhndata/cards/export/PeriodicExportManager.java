@@ -29,6 +29,7 @@
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.osgi.service.component.annotations.ReferencePolicyOption;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,6 +37,7 @@
 import io.uhndata.cards.export.spi.DataFormatter;
 import io.uhndata.cards.export.spi.DataRetriever;
 import io.uhndata.cards.export.spi.DataStore;
+import io.uhndata.cards.metrics.MetricsRegistry;
 import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
 
 @Component(immediate = true)
@@ -52,6 +54,9 @@
     @Reference
     private ThreadResourceResolverProvider rrp;
 
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policyOption = ReferencePolicyOption.GREEDY)
+    private volatile MetricsRegistry metricsRegistry;
+
     @Reference
     private Scheduler scheduler;
 
@@ -98,7 +103,8 @@ public void configAdded(final ExportConfig newConfig)
         options.name(SCHEDULER_JOB_PREFIX + configDef.name());
         options.canRunConcurrently(true);
 
-        final Runnable exportJob = new ExportTask(this.resolverFactory, this.rrp, configDef, pipeline, "scheduled");
+        final Runnable exportJob =
+            new ExportTask(this.resolverFactory, this.rrp, this.metricsRegistry, configDef, pipeline, "scheduled");
 
         try {
             this.scheduler.schedule(exportJob, options);
@@ -37,10 +37,13 @@
 import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
 
 import io.uhndata.cards.export.spi.DataFormatter;
 import io.uhndata.cards.export.spi.DataRetriever;
 import io.uhndata.cards.export.spi.DataStore;
+import io.uhndata.cards.metrics.MetricsRegistry;
 import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
 
 @Component(service = { Servlet.class })
@@ -60,6 +63,9 @@ public class TriggeredExportEndpoint extends SlingSafeMethodsServlet
     @Reference
     private ThreadResourceResolverProvider rrp;
 
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policyOption = ReferencePolicyOption.GREEDY)
+    private volatile MetricsRegistry metricsRegistry;
+
     @Reference
     private volatile List<ExportConfig> configs;
 
@@ -110,8 +116,8 @@ public void doGet(final SlingHttpServletRequest request, final SlingHttpServletR
             return;
         }
 
-        final Runnable exportJob = new ExportTask(this.resolverFactory, this.rrp, config, pipeline, exportRunMode,
-            dateLowerBound, dateUpperBound);
+        final Runnable exportJob = new ExportTask(this.resolverFactory, this.rrp, this.metricsRegistry, config,
+            pipeline, exportRunMode, dateLowerBound, dateUpperBound);
         final Thread thread = new Thread(exportJob);
         thread.start();
         writeSuccess("S3 export started", response);
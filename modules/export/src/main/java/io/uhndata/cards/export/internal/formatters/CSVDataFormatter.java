@@ -19,7 +19,8 @@
 
 package io.uhndata.cards.export.internal.formatters;
 
-import java.io.ByteArrayInputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.time.ZonedDateTime;
 
@@ -28,14 +29,18 @@
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
 
 import io.uhndata.cards.export.ExportConfigDefinition;
 import io.uhndata.cards.export.spi.DataFormatter;
-import io.uhndata.cards.serialize.CSVString;
+import io.uhndata.cards.serialize.ResourceCSVStreamer;
 
 @Component(immediate = true, service = DataFormatter.class)
 public class CSVDataFormatter implements DataFormatter
 {
+    @Reference
+    private ResourceCSVStreamer csvStreamer;
+
     @Override
     public String getName()
     {
@@ -48,13 +53,15 @@ public ResourceRepresentation format(final ResourceIdentifier what,
         final ExportConfigDefinition config, final ResourceResolver resolver)
         throws RepositoryException
     {
-        Resource r = resolver.resolve(what.getExportPath() + ".csv");
-        byte[] bytes = r.adaptTo(CSVString.class).toString().getBytes(StandardCharsets.UTF_8);
+        final Resource r = resolver.resolve(what.getExportPath() + ".csv");
 
+        // The CSV is only produced when the representation is read, row by row, without holding it all in memory
         return new ResourceRepresentation(what,
-            // FIXME Use streaming instead of building the whole CSV in memory
-            new ByteArrayInputStream(bytes),
-            bytes.length,
+            output -> {
+                final Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+                this.csvStreamer.serialize(r, writer);
+                writer.flush();
+            },
             "text/csv",
             getContentsSummary(what, config, resolver));
     }
@@ -19,23 +19,27 @@
 
 package io.uhndata.cards.export.internal.formatters;
 
-import java.io.ByteArrayInputStream;
-import java.nio.charset.StandardCharsets;
 import java.time.ZonedDateTime;
 
 import javax.jcr.RepositoryException;
-import javax.json.JsonObject;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
 
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
 
 import io.uhndata.cards.export.ExportConfigDefinition;
 import io.uhndata.cards.export.spi.DataFormatter;
+import io.uhndata.cards.serialize.ResourceJsonStreamer;
 
 @Component(immediate = true, service = DataFormatter.class)
 public class JSONDataFormatter implements DataFormatter
 {
+    @Reference
+    private ResourceJsonStreamer jsonStreamer;
+
     @Override
     public String getName()
     {
@@ -48,13 +52,15 @@ public ResourceRepresentation format(final ResourceIdentifier what,
         final ExportConfigDefinition config, final ResourceResolver resolver)
         throws RepositoryException
     {
-        Resource r = resolver.resolve(what.getExportPath() + ".json");
-        JsonObject serialization = r.adaptTo(JsonObject.class);
-        byte[] bytes = serialization.toString().getBytes(StandardCharsets.UTF_8);
+        final Resource r = resolver.resolve(what.getExportPath() + ".json");
 
+        // The JSON is only produced when the representation is read, without holding it all in memory
         return new ResourceRepresentation(what,
-            new ByteArrayInputStream(bytes),
-            bytes.length,
+            output -> {
+                final JsonGenerator generator = Json.createGenerator(output);
+                this.jsonStreamer.serialize(r, generator);
+                generator.flush();
+            },
             "application/json",
             getContentsSummary(what, config, resolver));
     }
@@ -18,7 +18,18 @@
  */
 package io.uhndata.cards.export.spi;
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
@@ -87,13 +98,30 @@ public String toString()
         }
     }
 
-    final class ResourceRepresentation
+    /**
+     * Produces the contents of a resource representation on demand, writing them into an output stream.
+     */
+    @FunctionalInterface
+    interface RepresentationWriter
+    {
+        /**
+         * Write the representation into the given stream. The stream must not be closed by the writer.
+         *
+         * @param output the stream where the representation must be written
+         * @throws IOException if writing the data fails
+         */
+        void write(OutputStream output) throws IOException;
+    }
+
+    final class ResourceRepresentation implements Closeable
     {
         private final ResourceIdentifier identifier;
 
-        private final InputStream data;
+        private final RepresentationWriter writer;
 
-        private final long size;
+        private InputStream data;
+
+        private long size;
 
         private final List<String> dataContents;
 
@@ -106,12 +134,35 @@ public ResourceRepresentation(final ResourceIdentifier identifier,
             final List<String> dataContents)
         {
             this.identifier = identifier;
+            this.writer = null;
             this.data = data;
             this.size = size;
             this.mimeType = mimeType;
             this.dataContents = dataContents;
         }
 
+        /**
+         * Constructor for a representation whose data is only produced when first needed. The data is spooled into a
+         * temporary file readable only by its owner instead of being kept in memory, and the file is deleted when the
+         * representation stream, or the representation itself, is closed.
+         *
+         * @param identifier the resource being represented
+         * @param writer produces the data of the representation
+         * @param mimeType the mime type of the data
+         * @param dataContents the paths of the resources included in the representation
+         */
+        public ResourceRepresentation(final ResourceIdentifier identifier,
+            final RepresentationWriter writer,
+            final String mimeType,
+            final List<String> dataContents)
+        {
+            this.identifier = identifier;
+            this.writer = writer;
+            this.size = -1;
+            this.mimeType = mimeType;
+            this.dataContents = dataContents;
+        }
+
         public ResourceIdentifier getIdentifier()
         {
             return this.identifier;
@@ -119,11 +170,13 @@ public ResourceIdentifier getIdentifier()
 
         public InputStream getRepresentation()
         {
+            produce();
             return this.data;
         }
 
         public long getRepresentationSize()
         {
+            produce();
             return this.size;
         }
 
@@ -136,6 +189,67 @@ public String getMimeType()
         {
             return this.mimeType;
         }
+
+        /**
+         * Releases the data of this representation, deleting the temporary file where it was spooled, if any.
+         *
+         * @throws IOException if closing the data stream fails
+         */
+        @Override
+        public void close() throws IOException
+        {
+            if (this.data != null) {
+                this.data.close();
+            }
+        }
+
+        private void produce()
+        {
+            if (this.data != null || this.writer == null) {
+                return;
+            }
+            try {
+                final Path spool = createSpoolFile();
+                try {
+                    spool(spool);
+                } catch (IOException | RuntimeException e) {
+                    Files.deleteIfExists(spool);
+                    throw e;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to produce the representation of " + this.identifier, e);
+            }
+        }
+
+        private void spool(final Path spool) throws IOException
+        {
+            try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(spool))) {
+                this.writer.write(output);
+            }
+            this.size = Files.size(spool);
+            this.data = new FilterInputStream(Files.newInputStream(spool))
+            {
+                @Override
+                public void close() throws IOException
+                {
+                    try {
+                        super.close();
+                    } finally {
+                        Files.deleteIfExists(spool);
+                    }
+                }
+            };
+        }
+
+        private static Path createSpoolFile() throws IOException
+        {
+            if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+                final FileAttribute<?> ownerOnly =
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"));
+                return Files.createTempFile("cards-export-", ".tmp", ownerOnly);
+            }
+            return Files.createTempFile("cards-export-", ".tmp");
+        }
     }
 
     default String escapeForDataUrl(String input)
@@ -0,0 +1,227 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.uhndata.cards.export;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import io.uhndata.cards.export.spi.DataFormatter;
+import io.uhndata.cards.export.spi.DataPipelineStep.ResourceIdentifier;
+import io.uhndata.cards.export.spi.DataPipelineStep.ResourceRepresentation;
+import io.uhndata.cards.export.spi.DataRetriever;
+import io.uhndata.cards.export.spi.DataStore;
+import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
+
+/**
+ * Unit tests for {@link ExportTask}, checking how resources are exported by parallel workers.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ExportTaskTest
+{
+    private static final int RESOURCES = 20;
+
+    private static final int WORKERS = 3;
+
+    private static final LocalDate DAY = LocalDate.of(2024, 1, 1);
+
+    @Mock
+    private ResourceResolverFactory resolverFactory;
+
+    @Mock
+    private ThreadResourceResolverProvider rrp;
+
+    @Mock
+    private ExportConfigDefinition config;
+
+    @Mock
+    private DataRetriever retriever;
+
+    @Mock
+    private DataFormatter formatter;
+
+    @Mock
+    private DataStore store;
+
+    /** The service resolvers opened for the export itself and for its workers. */
+    private final Queue<ResourceResolver> exportResolvers = new ConcurrentLinkedQueue<>();
+
+    /** The names of the formatted resources, with the resolvers used when formatting them. */
+    private final Map<String, ResourceResolver> formatted = new ConcurrentHashMap<>();
+
+    private final AtomicInteger running = new AtomicInteger();
+
+    private final AtomicInteger maxRunning = new AtomicInteger();
+
+    @Before
+    public void setupPipeline() throws LoginException, RepositoryException
+    {
+        Mockito.when(this.config.name()).thenReturn("test");
+        Mockito.when(this.config.fileNameFormat()).thenReturn("{resourceName}.json");
+        Mockito.when(this.resolverFactory.getServiceResourceResolver(Matchers.<Map<String, Object>>any()))
+            .thenAnswer(invocation -> {
+                final ResourceResolver resolver = Mockito.mock(ResourceResolver.class);
+                if (invocation.getArguments()[0] == null) {
+                    this.exportResolvers.add(resolver);
+                }
+                return resolver;
+            });
+
+        final List<ResourceIdentifier> resources = new ArrayList<>();
+        for (int i = 0; i < RESOURCES; ++i) {
+            resources.add(new ResourceIdentifier("/Subjects/s" + i, "s" + i, "/Subjects/s" + i));
+        }
+        Mockito.when(this.retriever.getResourcesToExport(Matchers.eq(this.config), Matchers.any(ZonedDateTime.class),
+            Matchers.any(ZonedDateTime.class), Matchers.any(ResourceResolver.class))).thenReturn(resources);
+        Mockito.when(this.formatter.format(Matchers.any(ResourceIdentifier.class), Matchers.any(ZonedDateTime.class),
+            Matchers.any(ZonedDateTime.class), Matchers.eq(this.config), Matchers.any(ResourceResolver.class)))
+            .thenAnswer(this::format);
+    }
+
+    @Test
+    public void parallelWorkersExportEveryResourceOnce() throws Exception
+    {
+        Mockito.when(this.config.workers()).thenReturn(WORKERS);
+
+        runExport();
+
+        Assert.assertEquals(RESOURCES, this.formatted.size());
+        Mockito.verify(this.store, Mockito.times(RESOURCES)).store(Matchers.any(InputStream.class),
+            Matchers.anyLong(), Matchers.anyString(), Matchers.anyString(), Matchers.eq(this.config));
+        Assert.assertTrue(this.maxRunning.get() <= WORKERS);
+    }
+
+    @Test
+    public void eachWorkerUsesAndClosesItsOwnResolver() throws Exception
+    {
+        Mockito.when(this.config.workers()).thenReturn(WORKERS);
+
+        runExport();
+
+        // One resolver for listing the resources, and at most one per worker
+        Assert.assertTrue(this.exportResolvers.size() <= WORKERS + 1);
+        Assert.assertTrue(Set.copyOf(this.formatted.values()).size() <= WORKERS);
+        for (ResourceResolver resolver : this.exportResolvers) {
+            Mockito.verify(resolver).close();
+        }
+        Mockito.verify(this.rrp, Mockito.times(RESOURCES + 1)).push(Matchers.any(ResourceResolver.class));
+        Mockito.verify(this.rrp, Mockito.times(RESOURCES + 1)).pop();
+    }
+
+    @Test
+    public void failedResourcesDontStopTheExport() throws Exception
+    {
+        Mockito.when(this.config.workers()).thenReturn(WORKERS);
+        Mockito.doThrow(new RuntimeException("failed")).when(this.store).store(Matchers.any(InputStream.class),
+            Matchers.anyLong(), Matchers.eq("s3.json"), Matchers.anyString(), Matchers.eq(this.config));
+
+        runExport();
+
+        Mockito.verify(this.store, Mockito.times(RESOURCES)).store(Matchers.any(InputStream.class),
+            Matchers.anyLong(), Matchers.anyString(), Matchers.anyString(), Matchers.eq(this.config));
+    }
+
+    @Test
+    public void formattingErrorsDontStopTheWorkers() throws Exception
+    {
+        Mockito.when(this.config.workers()).thenReturn(WORKERS);
+        Mockito.doAnswer(invocation -> {
+            if ("s3".equals(((ResourceIdentifier) invocation.getArguments()[0]).getIdentifier())) {
+                throw new IllegalStateException("failed");
+            }
+            return format(invocation);
+        }).when(this.formatter).format(Matchers.any(ResourceIdentifier.class), Matchers.any(ZonedDateTime.class),
+            Matchers.any(ZonedDateTime.class), Matchers.eq(this.config), Matchers.any(ResourceResolver.class));
+
+        runExport();
+
+        Mockito.verify(this.store, Mockito.times(RESOURCES - 1)).store(Matchers.any(InputStream.class),
+            Matchers.anyLong(), Matchers.anyString(), Matchers.anyString(), Matchers.eq(this.config));
+        // The failure was handled by the worker, which kept its resolver instead of being replaced by a new thread
+        Assert.assertTrue(this.exportResolvers.size() <= WORKERS + 1);
+        for (ResourceResolver resolver : this.exportResolvers) {
+            Mockito.verify(resolver).close();
+        }
+    }
+
+    @Test
+    public void singleWorkerExportsWithTheExportResolver() throws Exception
+    {
+        Mockito.when(this.config.workers()).thenReturn(1);
+
+        runExport();
+
+        Assert.assertEquals(RESOURCES, this.formatted.size());
+        Assert.assertEquals(1, this.exportResolvers.size());
+        Assert.assertEquals(Collections.singleton(this.exportResolvers.peek()), Set.copyOf(this.formatted.values()));
+        Assert.assertEquals(1, this.maxRunning.get());
+    }
+
+    private void runExport()
+    {
+        new ExportTask(this.resolverFactory, this.rrp, null, this.config,
+            new DataPipeline(this.retriever, this.formatter, this.store), "manual", DAY, DAY.plusDays(1)).run();
+    }
+
+    private ResourceRepresentation format(final InvocationOnMock invocation) throws InterruptedException
+    {
+        final int current = this.running.incrementAndGet();
+        this.maxRunning.accumulateAndGet(current, Math::max);
+        try {
+            // Give the other workers a chance to overlap with this one
+            Thread.sleep(5);
+            final ResourceIdentifier identifier = (ResourceIdentifier) invocation.getArguments()[0];
+            this.formatted.put(identifier.getIdentifier() + ".json", (ResourceResolver) invocation.getArguments()[4]);
+            final byte[] data = identifier.getPath().getBytes(StandardCharsets.UTF_8);
+            return new ResourceRepresentation(identifier, new ByteArrayInputStream(data), data.length,
+                "application/json", Collections.emptyList());
+        } finally {
+            this.running.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.export.spi;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.uhndata.cards.export.spi.DataPipelineStep.ResourceIdentifier;
+import io.uhndata.cards.export.spi.DataPipelineStep.ResourceRepresentation;
+
+/**
+ * Unit tests for {@link ResourceRepresentation}, checking how lazily produced data is spooled.
+ *
+ * @version $Id$
+ */
+public class DataPipelineStepTest
+{
+    private static final byte[] CONTENTS = "{\"answer\":42}".getBytes(StandardCharsets.UTF_8);
+
+    private static final ResourceIdentifier IDENTIFIER =
+        new ResourceIdentifier("/Subjects/s1", "s1", "/Subjects/s1");
+
+    /** Spools are found by listing the temporary directory, so the tests must not run in parallel. */
+    private static final Lock SPOOL_LOCK = new ReentrantLock();
+
+    private Set<Path> existingSpools;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        SPOOL_LOCK.lock();
+        this.existingSpools = listSpools();
+    }
+
+    @After
+    public void tearDown()
+    {
+        SPOOL_LOCK.unlock();
+    }
+
+    @Test
+    public void spooledDataIsReturnedAndDeletedOnClose() throws IOException
+    {
+        final ResourceRepresentation representation = newRepresentation();
+
+        Assert.assertEquals(CONTENTS.length, representation.getRepresentationSize());
+        final Path spool = getNewSpool();
+        Assert.assertTrue(Files.exists(spool));
+        try (InputStream data = representation.getRepresentation()) {
+            Assert.assertArrayEquals(CONTENTS, data.readAllBytes());
+        }
+        Assert.assertFalse(Files.exists(spool));
+    }
+
+    @Test
+    public void spoolIsOnlyReadableByItsOwner() throws IOException
+    {
+        Assume.assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        try (ResourceRepresentation representation = newRepresentation()) {
+            representation.getRepresentationSize();
+            Assert.assertEquals("rw-------",
+                PosixFilePermissions.toString(Files.getPosixFilePermissions(getNewSpool())));
+        }
+    }
+
+    @Test
+    public void closingTheRepresentationDeletesAnUnreadSpool() throws IOException
+    {
+        final ResourceRepresentation representation = newRepresentation();
+        representation.getRepresentationSize();
+        final Path spool = getNewSpool();
+
+        representation.close();
+
+        Assert.assertFalse(Files.exists(spool));
+    }
+
+    @Test
+    public void spoolIsDeletedWhenWritingFails() throws IOException
+    {
+        final ResourceRepresentation representation = new ResourceRepresentation(IDENTIFIER, output -> {
+            output.write(CONTENTS);
+            throw new IOException("Broken");
+        }, "application/json", Collections.emptyList());
+
+        try {
+            representation.getRepresentation();
+            Assert.fail("The write failure should be reported");
+        } catch (final UncheckedIOException e) {
+            Assert.assertEquals("Broken", e.getCause().getMessage());
+        }
+        Assert.assertEquals(this.existingSpools, listSpools());
+    }
+
+    @Test
+    public void representationsWithoutWriterAreNotSpooled() throws IOException
+    {
+        try (ResourceRepresentation representation = new ResourceRepresentation(IDENTIFIER,
+            new ByteArrayInputStream(CONTENTS), CONTENTS.length, "application/json",
+            Collections.emptyList())) {
+            Assert.assertEquals(CONTENTS.length, representation.getRepresentationSize());
+            Assert.assertEquals(this.existingSpools, listSpools());
+        }
+    }
+
+    private static ResourceRepresentation newRepresentation()
+    {
+        return new ResourceRepresentation(IDENTIFIER, output -> output.write(CONTENTS), "application/json",
+            Collections.emptyList());
+    }
+
+    private Path getNewSpool() throws IOException
+    {
+        final Set<Path> spools = listSpools();
+        spools.removeAll(this.existingSpools);
+        Assert.assertEquals(1, spools.size());
+        return spools.iterator().next();
+    }
+
+    private static Set<Path> listSpools() throws IOException
+    {
+        final Set<Path> result = new HashSet<>();
+        try (DirectoryStream<Path> spools =
+            Files.newDirectoryStream(Paths.get(System.getProperty("java.io.tmpdir")), "cards-export-*.tmp")) {
+            spools.forEach(result::add);
+        }
+        return result;
+    }
+}
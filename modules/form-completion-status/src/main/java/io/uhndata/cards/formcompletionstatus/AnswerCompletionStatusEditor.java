@@ -16,6 +16,7 @@
  */
 package io.uhndata.cards.formcompletionstatus;
 
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -29,6 +30,7 @@
 import javax.jcr.Session;
 
 import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.api.PropertyState;
 import org.apache.jackrabbit.oak.api.Type;
 import org.apache.jackrabbit.oak.spi.commit.DefaultEditor;
 import org.apache.jackrabbit.oak.spi.commit.Editor;
@@ -42,7 +44,9 @@
 
 /**
  * An {@link Editor} that verifies the correctness and completeness of submitted questionnaire answers and sets the
- * {@code INVALID} and {@code INCOMPLETE} status flags accordingly.
+ * {@code INVALID} and {@code INCOMPLETE} status flags accordingly. Only the answers changed in a commit are validated
+ * again, and only the sections containing them are summarized again, unless the change may affect a conditional
+ * section, in which case the whole form is processed.
  *
  * @version $Id$
  */
@@ -58,6 +62,10 @@ public class AnswerCompletionStatusEditor extends DefaultEditor
 
     private static final String STATUS_FLAG_DRAFT = "DRAFT";
 
+    private static final String PROP_QUESTIONNAIRE = "questionnaire";
+
+    private static final String PROP_SECTION = "section";
+
     // This holds the builder for the current node. The methods called for editing specific properties don't receive the
     // actual parent node of those properties, so we must manually keep track of the current node.
     private final NodeBuilder currentNodeBuilder;
@@ -66,6 +74,10 @@ public class AnswerCompletionStatusEditor extends DefaultEditor
 
     private final FormUtils formUtils;
 
+    private final ConditionalSectionPlans conditionalSections;
+
+    private final AnswerValidationPlans validationPlans;
+
     private final boolean isFormNode;
 
     // Validators list to be called in sequence, in ascending order of their priority, and each can add or remove flags.
@@ -73,6 +85,24 @@ public class AnswerCompletionStatusEditor extends DefaultEditor
 
     private final boolean newForm;
 
+    // Only used by the form editor: the paths, relative to the form, of the answers added or modified in this commit
+    private final Set<String> changedAnswers = new HashSet<>();
+
+    // Only used by the form editor: tracks the changes made to the form's descendants
+    private final FormChangesTracker formChanges;
+
+    // Only used by the form editor: whether the changes cannot be processed incrementally
+    private boolean fullPass;
+
+    // Only used by the form editor: the form's answers indexed by question UUID, built when first needed
+    private Map<String, NodeBuilder> answersIndex;
+
+    // Only used by the form editor: the version of the form's questionnaire, looked up when first needed
+    private String questionnaireVersion;
+
+    // Only used by the form editor: whether the questionnaire version was already looked up
+    private boolean questionnaireVersionKnown;
+
     /**
      * Simple constructor.
      *
@@ -80,32 +110,38 @@ public class AnswerCompletionStatusEditor extends DefaultEditor
      * @param newNode is this a newly created node, or an existing node being updated
      * @param session the current JCR session
      * @param formUtils for working with form data
+     * @param conditionalSections for evaluating the conditions of conditional sections
+     * @param validationPlans for reusing the plans compiled by the validators
      * @param allValidators all available AnswerValidator services
      */
     public AnswerCompletionStatusEditor(final NodeBuilder currentNodeBuilder, final boolean newNode,
-        final Session session, final FormUtils formUtils, final List<AnswerValidator> allValidators)
+        final Session session, final FormUtils formUtils, final ConditionalSectionPlans conditionalSections,
+        final AnswerValidationPlans validationPlans, final List<AnswerValidator> allValidators)
     {
         this.currentNodeBuilder = currentNodeBuilder;
         this.newForm = newNode;
         this.session = session;
         this.formUtils = formUtils;
+        this.conditionalSections = conditionalSections;
+        this.validationPlans = validationPlans;
         this.allValidators = allValidators;
         this.isFormNode = this.formUtils.isForm(currentNodeBuilder);
+        this.formChanges = this.isFormNode ? new FormChangesTracker("", null) : null;
     }
 
     // When something changes in a node deep in the content tree, the editor is invoked starting with the root node,
     // descending to the actually changed node through subsequent calls to childNodeChanged. The default behavior of
     // DefaultEditor is to stop at the root, so we must override the following two methods in order for the editor to be
-    // invoked on non-root nodes.
+    // invoked on non-root nodes. Below a form, the changes are only recorded, and processed when leaving the form.
     @Override
     public Editor childNodeAdded(final String name, final NodeState after)
         throws CommitFailedException
     {
         if (this.isFormNode) {
-            return null;
+            return this.formChanges.childNodeAdded(name, after);
         }
         return new AnswerCompletionStatusEditor(this.currentNodeBuilder.getChildNode(name), true, this.session,
-            this.formUtils, this.allValidators);
+            this.formUtils, this.conditionalSections, this.validationPlans, this.allValidators);
     }
 
     @Override
@@ -113,10 +149,44 @@ public Editor childNodeChanged(final String name, final NodeState before, final
         throws CommitFailedException
     {
         if (this.isFormNode) {
-            return null;
+            return this.formChanges.childNodeChanged(name, before, after);
         }
         return new AnswerCompletionStatusEditor(this.currentNodeBuilder.getChildNode(name), false, this.session,
-            this.formUtils, this.allValidators);
+            this.formUtils, this.conditionalSections, this.validationPlans, this.allValidators);
+    }
+
+    @Override
+    public Editor childNodeDeleted(final String name, final NodeState before)
+        throws CommitFailedException
+    {
+        if (this.isFormNode) {
+            return this.formChanges.childNodeDeleted(name, before);
+        }
+        return null;
+    }
+
+    @Override
+    public void propertyAdded(final PropertyState after)
+    {
+        if (this.isFormNode) {
+            this.formChanges.propertyAdded(after);
+        }
+    }
+
+    @Override
+    public void propertyChanged(final PropertyState before, final PropertyState after)
+    {
+        if (this.isFormNode) {
+            this.formChanges.propertyChanged(before, after);
+        }
+    }
+
+    @Override
+    public void propertyDeleted(final PropertyState before)
+    {
+        if (this.isFormNode) {
+            this.formChanges.propertyDeleted(before);
+        }
     }
 
     @Override
@@ -124,8 +194,107 @@ public void leave(final NodeState before, final NodeState after)
         throws CommitFailedException
     {
         if (this.isFormNode) {
-            processNode(this.currentNodeBuilder);
+            if (this.newForm || this.fullPass || !this.currentNodeBuilder.hasProperty(STATUS_FLAGS)
+                || changesConditionalInputs()) {
+                processNode(this.currentNodeBuilder);
+            } else {
+                processChanges();
+            }
+        }
+    }
+
+    /**
+     * Validate only the changed answers, then summarize again their ancestor sections, deepest first, and the form.
+     * The other answers and sections keep their previously computed status flags.
+     */
+    private void processChanges()
+    {
+        // In reverse lexicographic order, a descendant always comes before its ancestors
+        final Set<String> changedSections = new TreeSet<>(Comparator.reverseOrder());
+        for (final String answerPath : this.changedAnswers) {
+            final NodeBuilder answer = getDescendant(answerPath);
+            if (answer.exists()) {
+                validateAnswer(answer);
+            }
+            for (int i = answerPath.lastIndexOf('/'); i > 0; i = answerPath.lastIndexOf('/', i - 1)) {
+                changedSections.add(answerPath.substring(0, i));
+            }
         }
+        changedSections.forEach(path -> summarizeNode(getDescendant(path)));
+        summarizeNode(this.currentNodeBuilder);
+    }
+
+    /**
+     * Checks if any of the changed answers is used in the condition of a conditional section, in which case the
+     * visibility of sections may have changed, and the whole form must be processed again.
+     *
+     * @return {@code true} if a changed answer is, or may be, an input of a section condition
+     */
+    private boolean changesConditionalInputs()
+    {
+        if (this.changedAnswers.isEmpty()) {
+            return false;
+        }
+        final Node questionnaire = this.formUtils.getQuestionnaire(this.currentNodeBuilder);
+        if (questionnaire == null) {
+            return true;
+        }
+        try {
+            return answersQuestionIn(this.conditionalSections.getConditionalInputs(questionnaire));
+        } catch (final RepositoryException e) {
+            LOGGER.warn("Failed to check the conditional sections of form {}",
+                this.currentNodeBuilder.getString("jcr:uuid"), e);
+            return true;
+        }
+    }
+
+    /**
+     * Checks if any of the changed answers is for one of the given questions.
+     *
+     * @param questionNames the names of the questions to look for
+     * @return {@code true} if a changed answer is for one of the questions
+     * @throws RepositoryException if accessing the questions fails
+     */
+    private boolean answersQuestionIn(final Set<String> questionNames) throws RepositoryException
+    {
+        if (questionNames.isEmpty()) {
+            return false;
+        }
+        for (final String answerPath : this.changedAnswers) {
+            final Node question = this.formUtils.getQuestion(getDescendant(answerPath));
+            if (question != null && questionNames.contains(question.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Map<String, NodeBuilder> getAnswersIndex()
+    {
+        // Validating answers only changes their status flags, so the index stays valid for the whole commit
+        if (this.answersIndex == null) {
+            this.answersIndex = this.conditionalSections.indexAnswers(this.currentNodeBuilder);
+        }
+        return this.answersIndex;
+    }
+
+    private String getQuestionnaireVersion()
+    {
+        if (!this.questionnaireVersionKnown) {
+            this.questionnaireVersion = ConditionalSectionUtils
+                .getQuestionnaireVersion(this.formUtils.getQuestionnaire(this.currentNodeBuilder));
+            this.questionnaireVersionKnown = true;
+        }
+        return this.questionnaireVersion;
+    }
+
+    private NodeBuilder getDescendant(final String path)
+    {
+        NodeBuilder result = this.currentNodeBuilder;
+        for (final String name : path.split("/")) {
+            result = result.getChildNode(name);
+        }
+        return result;
     }
 
     private void processNode(final NodeBuilder node)
@@ -145,13 +314,7 @@ private void summarizeNode(final NodeBuilder node)
             validateAnswer(node);
         } else if (this.formUtils.isForm(node)
             || this.formUtils.isAnswerSection(node)) {
-            try {
-                summarize(node);
-            } catch (final RepositoryException e) {
-                // This is not a fatal error, the form status is not required for a functional application
-                LOGGER.warn("Unexpected exception while checking the completion status of form {}",
-                    this.currentNodeBuilder.getString("jcr:uuid"), e);
-            }
+            summarize(node);
         }
     }
 
@@ -162,21 +325,21 @@ private void summarizeNode(final NodeBuilder node)
      */
     public void validateAnswer(final NodeBuilder answerNode)
     {
-        final Node questionNode = this.formUtils.getQuestion(answerNode);
+        final String questionId = this.formUtils.getQuestionIdentifier(answerNode);
 
-        if (questionNode != null) {
+        if (questionId != null) {
             // populate the flags map with the old flags all set to false
             final Map<String, Boolean> flags = new HashMap<>();
             if (answerNode.hasProperty(STATUS_FLAGS)) {
                 answerNode.getProperty(STATUS_FLAGS).getValue(Type.STRINGS)
                     .forEach(flag -> flags.put(flag, Boolean.FALSE));
             }
-            // call each validator
-            this.allValidators.forEach(validator -> {
-                validator.validate(answerNode, questionNode, this.newForm, flags);
-            });
-            // Write these statusFlags to the JCR repo
-            answerNode.setProperty(STATUS_FLAGS, flags.keySet(), Type.STRINGS);
+            // call each validator, the question is only loaded if some validator doesn't have a compiled plan yet
+            if (this.validationPlans.validate(answerNode, questionId, getQuestionnaireVersion(),
+                () -> this.formUtils.getQuestion(answerNode), this.allValidators, this.newForm, flags)) {
+                // Write these statusFlags to the JCR repo
+                answerNode.setProperty(STATUS_FLAGS, flags.keySet(), Type.STRINGS);
+            }
         }
     }
 
@@ -185,20 +348,14 @@ public void validateAnswer(final NodeBuilder answerNode)
      * node.
      *
      * @param node the node to summarize, either a {@code cards:Form} or a {@code cards:AnswerSection} node
-     * @throws RepositoryException if accessing the repository fails
      */
-    private void summarize(final NodeBuilder node) throws RepositoryException
+    private void summarize(final NodeBuilder node)
     {
         final Set<String> flags = StreamSupport.stream(node.getChildNodeNames().spliterator(), false)
             .map(childName -> node.getChildNode(childName))
-            .filter(child -> {
-                try {
-                    return !(this.formUtils.isAnswerSection(child)
-                        && !ConditionalSectionUtils.isConditionSatisfied(this.session, child, this.currentNodeBuilder));
-                } catch (final RepositoryException e) {
-                    return true;
-                }
-            })
+            .filter(child -> !(this.formUtils.isAnswerSection(child)
+                && !this.conditionalSections.isConditionSatisfied(child, getAnswersIndex(),
+                    getQuestionnaireVersion(), this.session)))
             .filter(child -> child.hasProperty(STATUS_FLAGS))
             .map(child -> child.getProperty(STATUS_FLAGS).getValue(Type.STRINGS))
             .<Set<String>>reduce(new HashSet<>(), (oldFlags, newFlags) -> {
@@ -250,4 +407,90 @@ private boolean isEmptyForm()
         }
         return false;
     }
+
+    /**
+     * Records the changes made below a form. Modified or new answers are remembered in {@link #changedAnswers}, while
+     * structural changes, such as added or removed sections, or a section pointing to a different definition, require
+     * a full pass over the form.
+     */
+    private final class FormChangesTracker extends DefaultEditor
+    {
+        // The path of this node relative to the form, empty for the form itself
+        private final String path;
+
+        // The path of the answer containing this node, or null if this is not an answer or inside an answer
+        private final String answerPath;
+
+        FormChangesTracker(final String path, final String answerPath)
+        {
+            this.path = path;
+            this.answerPath = answerPath;
+        }
+
+        @Override
+        public Editor childNodeAdded(final String name, final NodeState after)
+        {
+            if (this.answerPath != null) {
+                AnswerCompletionStatusEditor.this.changedAnswers.add(this.answerPath);
+            } else if (AnswerCompletionStatusEditor.this.formUtils.isAnswer(after)) {
+                AnswerCompletionStatusEditor.this.changedAnswers.add(getChildPath(name));
+            } else {
+                AnswerCompletionStatusEditor.this.fullPass = true;
+            }
+            return null;
+        }
+
+        @Override
+        public Editor childNodeChanged(final String name, final NodeState before, final NodeState after)
+        {
+            final String childPath = getChildPath(name);
+            if (this.answerPath == null && AnswerCompletionStatusEditor.this.formUtils.isAnswer(after)) {
+                return new FormChangesTracker(childPath, childPath);
+            }
+            return new FormChangesTracker(childPath, this.answerPath);
+        }
+
+        @Override
+        public Editor childNodeDeleted(final String name, final NodeState before)
+        {
+            if (this.answerPath != null) {
+                AnswerCompletionStatusEditor.this.changedAnswers.add(this.answerPath);
+            } else {
+                AnswerCompletionStatusEditor.this.fullPass = true;
+            }
+            return null;
+        }
+
+        @Override
+        public void propertyAdded(final PropertyState after)
+        {
+            recordPropertyChange(after.getName());
+        }
+
+        @Override
+        public void propertyChanged(final PropertyState before, final PropertyState after)
+        {
+            recordPropertyChange(after.getName());
+        }
+
+        @Override
+        public void propertyDeleted(final PropertyState before)
+        {
+            recordPropertyChange(before.getName());
+        }
+
+        private void recordPropertyChange(final String name)
+        {
+            if (this.answerPath != null) {
+                AnswerCompletionStatusEditor.this.changedAnswers.add(this.answerPath);
+            } else if (PROP_QUESTIONNAIRE.equals(name) || PROP_SECTION.equals(name)) {
+                AnswerCompletionStatusEditor.this.fullPass = true;
+            }
+        }
+
+        private String getChildPath(final String name)
+        {
+            return this.path.isEmpty() ? name : this.path + "/" + name;
+        }
+    }
 }
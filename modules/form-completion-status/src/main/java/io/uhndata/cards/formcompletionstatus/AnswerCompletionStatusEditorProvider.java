@@ -52,9 +52,15 @@ public class AnswerCompletionStatusEditorProvider implements EditorProvider
     @Reference
     private FormUtils formUtils;
 
+    @Reference
+    private ConditionalSectionPlans conditionalSections;
+
+    @Reference
+    private AnswerValidationPlans validationPlans;
+
     /** A list of all available {@link AnswerValidator}s. */
     @Reference(cardinality = ReferenceCardinality.MULTIPLE, fieldOption = FieldOption.REPLACE,
-        policy = ReferencePolicy.DYNAMIC)
+        policy = ReferencePolicy.DYNAMIC, unbind = "validatorRemoved")
     private volatile List<AnswerValidator> allValidators;
 
     @Override
@@ -68,8 +74,16 @@ public Editor getRootEditor(final NodeState before, final NodeState after, final
             sortedValidators.sort(null);
             // Each AnswerCompletionStatusEditor maintains a state, so a new instance must be returned each time
             return new AnswerCompletionStatusEditor(builder, false, resolver.adaptTo(Session.class), this.formUtils,
-                sortedValidators);
+                this.conditionalSections, this.validationPlans, sortedValidators);
         }
         return null;
     }
+
+    protected void validatorRemoved(final AnswerValidator validator)
+    {
+        // Don't keep the plans of a validator which is gone, they would never be used again
+        if (this.validationPlans != null) {
+            this.validationPlans.forget(validator);
+        }
+    }
 }
@@ -0,0 +1,228 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.uhndata.cards.formcompletionstatus;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.sling.api.resource.observation.ExternalResourceChangeListener;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.osgi.service.component.annotations.Component;
+
+import io.uhndata.cards.formcompletionstatus.spi.AnswerValidator;
+import io.uhndata.cards.formcompletionstatus.spi.CompilableAnswerValidator;
+import io.uhndata.cards.utils.InvalidatingCache;
+
+/**
+ * Cache of the validation plans compiled by {@link CompilableAnswerValidator}s. Plans are compiled the first time an
+ * answer to a question is validated, and reused for all the answers to that question. Plans are keyed by the version
+ * of the question's questionnaire, as returned by {@link ConditionalSectionUtils#getQuestionnaireVersion}, so a new
+ * version of the questionnaire never uses plans compiled from an older version, even before the change is observed.
+ * Edits to the questions of a checked-out questionnaire don't change its version, so they are only picked up once
+ * observed: any observed change to the questionnaires, including on other cluster members, discards all the plans.
+ * The plans of a validator are discarded when that validator goes away.
+ *
+ * @version $Id$
+ */
+@Component(service = { AnswerValidationPlans.class, ResourceChangeListener.class }, property = {
+    ResourceChangeListener.PATHS + "=/Questionnaires",
+    ResourceChangeListener.CHANGES + "=ADDED",
+    ResourceChangeListener.CHANGES + "=CHANGED",
+    ResourceChangeListener.CHANGES + "=REMOVED"
+})
+public class AnswerValidationPlans implements ResourceChangeListener, ExternalResourceChangeListener
+{
+    /** Placeholder for validators that don't apply to a question, since the cache doesn't keep nulls. */
+    private static final Object NOT_APPLICABLE = new Object();
+
+    /** The maximum number of compiled plans to keep. */
+    private static final int MAX_PLANS = 5000;
+
+    /** Compiled plans, keyed by their question, questionnaire version, and the validator that compiled them. */
+    private final InvalidatingCache<PlanKey, Object> plans = new InvalidatingCache<>(MAX_PLANS);
+
+    /**
+     * Run all the validators on an answer. Compilable validators use their cached plans, the other validators receive
+     * the question node, which is only loaded if actually needed.
+     *
+     * @param answer the cards:Answer node to validate
+     * @param questionId the identifier of the question referenced by the answer
+     * @param questionnaireVersion the version of the question's questionnaire, as returned by
+     *            {@link ConditionalSectionUtils#getQuestionnaireVersion}; if {@code null}, plans are compiled again and
+     *            not cached
+     * @param questionLoader loads the question node, may return {@code null} if the question cannot be accessed
+     * @param validators the validators to run, in order
+     * @param initialAnswer whether this is the first time a value is set for the answer
+     * @param flags the flags to update
+     * @return {@code false} if the question could not be loaded, in which case the flags are left untouched
+     */
+    public boolean validate(final NodeBuilder answer, final String questionId, final String questionnaireVersion,
+        final Supplier<Node> questionLoader, final List<AnswerValidator> validators, final boolean initialAnswer,
+        final Map<String, Boolean> flags)
+    {
+        final QuestionHolder question = new QuestionHolder(questionLoader);
+        final Object[] currentPlans = new Object[validators.size()];
+        // Gather everything needed before running any validator, so the flags are either fully updated or untouched
+        for (int i = 0; i < currentPlans.length; ++i) {
+            final AnswerValidator validator = validators.get(i);
+            if (validator instanceof CompilableAnswerValidator) {
+                currentPlans[i] = getPlan((CompilableAnswerValidator<?>) validator, questionId, questionnaireVersion,
+                    question);
+            } else {
+                question.get();
+            }
+            if (question.isMissing()) {
+                return false;
+            }
+        }
+        for (int i = 0; i < currentPlans.length; ++i) {
+            final AnswerValidator validator = validators.get(i);
+            if (currentPlans[i] == null) {
+                validator.validate(answer, question.get(), initialAnswer, flags);
+            } else if (currentPlans[i] != NOT_APPLICABLE) {
+                validate((CompilableAnswerValidator<?>) validator, answer, currentPlans[i], initialAnswer, flags);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Discard all the plans compiled by a validator, for example when the validator is no longer available.
+     *
+     * @param validator the validator whose plans to discard
+     */
+    public void forget(final AnswerValidator validator)
+    {
+        this.plans.invalidateIf(key -> key.validator == validator);
+    }
+
+    @Override
+    public void onChange(final List<ResourceChange> changes)
+    {
+        this.plans.invalidateAll();
+    }
+
+    private Object getPlan(final CompilableAnswerValidator<?> validator, final String questionId,
+        final String questionnaireVersion, final QuestionHolder question)
+    {
+        try {
+            if (questionnaireVersion == null) {
+                return compile(validator, question);
+            }
+            final Object result = this.plans.get(new PlanKey(questionId, questionnaireVersion, validator),
+                key -> compile(validator, question));
+            // A missing question is not cached, and the caller stops without needing a plan
+            return result == null ? NOT_APPLICABLE : result;
+        } catch (final RepositoryException e) {
+            // If something goes wrong then we cannot verify the answer, leave it as it was before, and retry next time
+            return NOT_APPLICABLE;
+        }
+    }
+
+    private static Object compile(final CompilableAnswerValidator<?> validator, final QuestionHolder question)
+        throws RepositoryException
+    {
+        final Node questionNode = question.get();
+        if (questionNode == null) {
+            return null;
+        }
+        final Object result = validator.compile(questionNode);
+        return result == null ? NOT_APPLICABLE : result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void validate(final CompilableAnswerValidator<T> validator, final NodeBuilder answer,
+        final Object plan, final boolean initialAnswer, final Map<String, Boolean> flags)
+    {
+        validator.validate(answer, (T) plan, initialAnswer, flags);
+    }
+
+    /**
+     * Loads the question node at most once, when first needed.
+     */
+    private static final class QuestionHolder
+    {
+        private final Supplier<Node> loader;
+
+        private Node question;
+
+        private boolean loaded;
+
+        QuestionHolder(final Supplier<Node> loader)
+        {
+            this.loader = loader;
+        }
+
+        Node get()
+        {
+            if (!this.loaded) {
+                this.question = this.loader.get();
+                this.loaded = true;
+            }
+            return this.question;
+        }
+
+        boolean isMissing()
+        {
+            return this.loaded && this.question == null;
+        }
+    }
+
+    /**
+     * Identifies a plan by its question, the version of the questionnaire, and the validator that compiled it.
+     */
+    private static final class PlanKey
+    {
+        private final String questionId;
+
+        private final String questionnaireVersion;
+
+        private final AnswerValidator validator;
+
+        PlanKey(final String questionId, final String questionnaireVersion, final AnswerValidator validator)
+        {
+            this.questionId = questionId;
+            this.questionnaireVersion = questionnaireVersion;
+            this.validator = validator;
+        }
+
+        @Override
+        public boolean equals(final Object other)
+        {
+            if (!(other instanceof PlanKey)) {
+                return false;
+            }
+            final PlanKey key = (PlanKey) other;
+            return this.questionId.equals(key.questionId)
+                && this.questionnaireVersion.equals(key.questionnaireVersion)
+                && this.validator == key.validator;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(this.questionId, this.questionnaireVersion, System.identityHashCode(this.validator));
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.uhndata.cards.formcompletionstatus;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.sling.api.resource.observation.ExternalResourceChangeListener;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.osgi.service.component.annotations.Component;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.formcompletionstatus.ConditionalSectionUtils.Conditional;
+import io.uhndata.cards.utils.InvalidatingCache;
+
+/**
+ * Cache of compiled section conditions. Each section's condition is compiled on first use, with the referenced
+ * questions already resolved to their UUIDs, so evaluating it only needs lookups in an index of the form's answers.
+ * Plans are keyed by the version of their questionnaire, as returned by
+ * {@link ConditionalSectionUtils#getQuestionnaireVersion}, so a new version of the questionnaire never uses plans
+ * compiled from an older version, even before the change is observed. Edits to the questions and sections of a
+ * checked-out questionnaire don't change its version, so they are only picked up once observed: any observed change to
+ * the questionnaires, including on other cluster members, discards all the plans. Until then, a commit may still
+ * evaluate a condition as it was before the edit. Conditions which fail to compile are not remembered, and are tried
+ * again the next time they are needed.
+ *
+ * @version $Id$
+ */
+@Component(service = { ConditionalSectionPlans.class, ResourceChangeListener.class }, property = {
+    ResourceChangeListener.PATHS + "=/Questionnaires",
+    ResourceChangeListener.CHANGES + "=ADDED",
+    ResourceChangeListener.CHANGES + "=CHANGED",
+    ResourceChangeListener.CHANGES + "=REMOVED"
+})
+public class ConditionalSectionPlans implements ResourceChangeListener, ExternalResourceChangeListener
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConditionalSectionPlans.class);
+
+    /** The maximum number of compiled conditions to keep. */
+    private static final int MAX_PLANS = 1000;
+
+    /** The maximum number of questionnaires whose conditional inputs are kept. */
+    private static final int MAX_QUESTIONNAIRES = 100;
+
+    /** Compiled conditions, keyed by the identifier of their section and the version of their questionnaire. */
+    private final InvalidatingCache<String, Conditional> plans = new InvalidatingCache<>(MAX_PLANS);
+
+    /** The names of the questions used in conditions, keyed by the version of their questionnaire. */
+    private final InvalidatingCache<String, Set<String>> conditionalInputs =
+        new InvalidatingCache<>(MAX_QUESTIONNAIRES);
+
+    /**
+     * Checks if the condition of an answer section is satisfied by the current answers in its form.
+     *
+     * @param answerSection the {@code cards:AnswerSection} to check
+     * @param answers the answers of the form, indexed by question UUID, as returned by {@link #indexAnswers}
+     * @param questionnaireVersion the version of the form's questionnaire, as returned by
+     *            {@link ConditionalSectionUtils#getQuestionnaireVersion}; if {@code null}, the condition is compiled
+     *            again and not cached
+     * @param session a session used for compiling the section's condition, if needed
+     * @return {@code true} if the section has no condition, or if its condition is satisfied
+     */
+    public boolean isConditionSatisfied(final NodeBuilder answerSection, final Map<String, NodeBuilder> answers,
+        final String questionnaireVersion, final Session session)
+    {
+        if (!answerSection.hasProperty("section")) {
+            return true;
+        }
+        final String sectionId = answerSection.getProperty("section").getValue(Type.REFERENCE);
+        final Conditional plan;
+        try {
+            if (questionnaireVersion == null) {
+                plan = ConditionalSectionUtils.compile(session.getNodeByIdentifier(sectionId));
+            } else {
+                plan = this.plans.get(sectionId + '/' + questionnaireVersion,
+                    key -> ConditionalSectionUtils.compile(session.getNodeByIdentifier(sectionId)));
+            }
+        } catch (final RepositoryException e) {
+            // The section cannot be accessed, consider it unconditional, but don't remember this
+            LOGGER.warn("Failed to compile the condition of section {}: {}", sectionId, e.getMessage(), e);
+            return true;
+        }
+        return plan.isSatisfied(answers);
+    }
+
+    /**
+     * Indexes the answers of a form by the UUID of the question they answer, for use with
+     * {@link #isConditionSatisfied}. The index stays valid as long as no answers are added or removed in the form.
+     *
+     * @param form the {@code cards:Form} NodeBuilder to index
+     * @return a map from question UUIDs to the corresponding answer NodeBuilders
+     */
+    public Map<String, NodeBuilder> indexAnswers(final NodeBuilder form)
+    {
+        return ConditionalSectionUtils.indexAnswers(form);
+    }
+
+    /**
+     * Lists the names of the questions whose answers are referenced by the conditionals of a questionnaire.
+     *
+     * @param questionnaire the {@code cards:Questionnaire} node to inspect
+     * @return a set of simple question names, may be empty
+     * @throws RepositoryException if accessing the questionnaire fails
+     */
+    public Set<String> getConditionalInputs(final Node questionnaire) throws RepositoryException
+    {
+        final String version = ConditionalSectionUtils.getQuestionnaireVersion(questionnaire);
+        if (version == null) {
+            return ConditionalSectionUtils.getConditionalInputs(questionnaire);
+        }
+        return this.conditionalInputs.get(version,
+            key -> Collections.unmodifiableSet(ConditionalSectionUtils.getConditionalInputs(questionnaire)));
+    }
+
+    @Override
+    public void onChange(final List<ResourceChange> changes)
+    {
+        this.plans.invalidateAll();
+        this.conditionalInputs.invalidateAll();
+    }
+}
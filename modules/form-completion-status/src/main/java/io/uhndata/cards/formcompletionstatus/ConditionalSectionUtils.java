@@ -17,8 +17,13 @@
 package io.uhndata.cards.formcompletionstatus;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.function.BiPredicate;
 import java.util.function.Function;
 
@@ -29,14 +34,22 @@
 import javax.jcr.Session;
 import javax.jcr.Value;
 
-import org.apache.jackrabbit.oak.api.PropertyState;
 import org.apache.jackrabbit.oak.api.Type;
 import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Evaluates the conditions of conditional sections. Conditions are compiled into {@link Conditional} plans, with the
+ * referenced questions already resolved, which are then evaluated against an index of the form's answers.
+ *
+ * @version $Id$
+ */
 public final class ConditionalSectionUtils
 {
+    /** The plan used for sections without a condition. */
+    static final Conditional ALWAYS = answers -> true;
+
     private static final Logger LOGGER = LoggerFactory.getLogger(ConditionalSectionUtils.class);
 
     private static final String PROP_QUESTION = "question";
@@ -49,8 +62,8 @@
 
     private static final String PROP_REQUIRE_ALL = "requireAll";
 
-    private static final BiPredicate<Operand, Operand> SINGLE_LISTS =
-        (a, b) -> (a.getValues().size() == 1 && b.getValues().size() == 1);
+    private static final BiPredicate<List<Comparable<Object>>, List<Comparable<Object>>> SINGLE_LISTS =
+        (a, b) -> (a.size() == 1 && b.size() == 1);
 
     /**
      * Hide the utility class constructor.
@@ -80,33 +93,31 @@ private static Node getSectionNode(final Session resourceSession, final NodeBuil
     }
 
     /**
-     * Returns the first NodeBuilder with a question value equal to questionUUID that is a descendant of the parent
-     * node. If no such node can be found, null is returned.
+     * Indexes the answers of a form by the UUID of the question they answer. If a question is answered more than once,
+     * for example in a repeated section, the first answer in document order is indexed.
      *
-     * @param parent the NodeBuilder to search through its children
-     * @param questionUUID the UUID String for which the child's question property must be equal to
-     * @return the first NodeBuilder with a question value equal to questionUUID that is a descendant of the parent
-     *         NodeBuilder, or null if such a node does not exist.
+     * @param form the {@code cards:Form} NodeBuilder to index
+     * @return a map from question UUIDs to the corresponding answer NodeBuilders
      */
-    private static NodeBuilder getAnswerForQuestion(final NodeBuilder parent, final String questionUUID)
+    static Map<String, NodeBuilder> indexAnswers(final NodeBuilder form)
+    {
+        final Map<String, NodeBuilder> result = new HashMap<>();
+        indexAnswers(form, result);
+        return result;
+    }
+
+    private static void indexAnswers(final NodeBuilder parent, final Map<String, NodeBuilder> result)
     {
-        final Iterable<String> childrenNames = parent.getChildNodeNames();
-        for (final String childName : childrenNames) {
+        for (final String childName : parent.getChildNodeNames()) {
             final NodeBuilder child = parent.getChildNode(childName);
-            // Check if this is the answer we're looking for
-            if (child.hasProperty(PROP_QUESTION)
-                && questionUUID.equals(child.getProperty(PROP_QUESTION).getValue(Type.STRING))) {
-                return child;
+            if (child.hasProperty(PROP_QUESTION)) {
+                result.putIfAbsent(child.getProperty(PROP_QUESTION).getValue(Type.STRING), child);
             }
-            // If this is an answer section, look for the answer in it, and return if found
+            // If this is an answer section, also index the answers in it
             if ("cards:AnswerSection".equals(child.getName("jcr:primaryType"))) {
-                NodeBuilder sectionResult = getAnswerForQuestion(child, questionUUID);
-                if (sectionResult != null) {
-                    return sectionResult;
-                }
+                indexAnswers(child, result);
             }
         }
-        return null;
     }
 
     /*
@@ -124,24 +135,6 @@ private static String sanitizeNodeName(final String inStr)
         return outStr;
     }
 
-    private static PropertyState getPropertyStateFromRef(final Node operand,
-        final Node sectionNode, final NodeBuilder form) throws RepositoryException
-    {
-        String key = sanitizeNodeName(operand.getProperty(PROP_VALUE).getValues()[0].getString());
-        final Node questionnaire = getQuestionnaireForSection(sectionNode);
-        final Node question = getQuestionWithName(questionnaire, key);
-        if (question == null) {
-            return null;
-        }
-        final String questionUUID = question.getIdentifier();
-        // Get the node from the Form containing the answer to keyNode
-        final NodeBuilder answer = getAnswerForQuestion(form, questionUUID);
-        if (answer == null) {
-            return null;
-        }
-        return answer.getProperty(PROP_VALUE);
-    }
-
     /**
      * Retrieves for the Questionnaire that a Section belongs to. This is usually the parent node, but in the case of a
      * nested section, it may be higher up the ancestors chain.
@@ -163,6 +156,34 @@ private static Node getQuestionnaireForSection(final Node section)
         return result;
     }
 
+    /**
+     * Identifies the current version of a questionnaire, from its identifier, its base version, and its last
+     * modification date. Checking in the questionnaire, or changing the questionnaire node itself, changes this
+     * version, but edits to its nested questions and sections usually don't, so anything cached under this version must
+     * also be discarded when changes under the questionnaire are observed.
+     *
+     * @param questionnaire the {@code cards:Questionnaire} node to identify, may be {@code null}
+     * @return a string identifying the questionnaire version, or {@code null} if the questionnaire cannot be accessed
+     */
+    public static String getQuestionnaireVersion(final Node questionnaire)
+    {
+        if (questionnaire == null) {
+            return null;
+        }
+        try {
+            final StringBuilder result = new StringBuilder(questionnaire.getIdentifier());
+            for (final String property : new String[] { "jcr:baseVersion", "jcr:lastModified" }) {
+                if (questionnaire.hasProperty(property)) {
+                    result.append('@').append(questionnaire.getProperty(property).getString());
+                }
+            }
+            return result.toString();
+        } catch (final RepositoryException e) {
+            LOGGER.warn("Failed to identify the questionnaire version: {}", e.getMessage(), e);
+            return null;
+        }
+    }
+
     /**
      * Retrieves the Question node with the given name. This is needed to get from a simple question name, like
      * {@code "gender"}, to the JCR UUID used in the actual reference from the answer to the question.
@@ -193,17 +214,89 @@ private static Node getQuestionWithName(final Node parent, final String question
         return null;
     }
 
+    /**
+     * Checks if the condition of an answer section is satisfied by the current answers in the form. This compiles the
+     * condition and indexes the form on each call, so when checking several sections of the same form, prefer
+     * {@link ConditionalSectionPlans}.
+     *
+     * @param resourceSession the current session
+     * @param answerSection the {@code cards:AnswerSection} to check
+     * @param form the {@code cards:Form} containing the answer section
+     * @return {@code true} if the section has no condition, or if its condition is satisfied
+     * @throws RepositoryException if accessing the repository fails
+     */
     public static boolean isConditionSatisfied(final Session resourceSession,
         final NodeBuilder answerSection, final NodeBuilder form) throws RepositoryException
     {
         final Node sectionNode = getSectionNode(resourceSession, answerSection);
-        if (sectionNode != null) {
-            final Conditional conditional = Conditional.findConditional(sectionNode, form);
-            if (conditional != null) {
-                return conditional.isSatisfied();
+        return sectionNode == null || compile(sectionNode).isSatisfied(indexAnswers(form));
+    }
+
+    /**
+     * Compiles the condition of a section into a plan that can be evaluated against the answers of any form.
+     *
+     * @param section a {@code cards:Section} node
+     * @return the compiled condition, or {@link #ALWAYS} if the section has no condition
+     * @throws RepositoryException if accessing the section or its condition fails
+     */
+    static Conditional compile(final Node section) throws RepositoryException
+    {
+        final Node questionnaire = getQuestionnaireForSection(section);
+        final NodeIterator children = section.getNodes();
+        while (children.hasNext()) {
+            final Conditional result = Conditional.parse(children.nextNode(), questionnaire);
+            if (result != null) {
+                return result;
+            }
+        }
+        return ALWAYS;
+    }
+
+    /**
+     * Lists the names of the questions whose answers are referenced by the conditionals of the sections of a
+     * questionnaire. Changing the answer to any other question cannot change which sections are satisfied.
+     *
+     * @param questionnaire the {@code cards:Questionnaire} node to inspect
+     * @return a set of simple question names, may be empty
+     * @throws RepositoryException if accessing the questionnaire fails
+     */
+    public static Set<String> getConditionalInputs(final Node questionnaire) throws RepositoryException
+    {
+        final Set<String> result = new HashSet<>();
+        collectConditionalInputs(questionnaire, result);
+        return result;
+    }
+
+    private static void collectConditionalInputs(final Node parent, final Set<String> result)
+        throws RepositoryException
+    {
+        final NodeIterator children = parent.getNodes();
+        while (children.hasNext()) {
+            final Node child = children.nextNode();
+            if (child.isNodeType("cards:Section") || child.isNodeType("cards:ConditionalGroup")) {
+                collectConditionalInputs(child, result);
+            } else if (child.isNodeType("cards:Conditional")) {
+                for (final String operandName : new String[] { "operandA", "operandB" }) {
+                    if (child.hasNode(operandName)) {
+                        collectReferencedQuestion(child.getNode(operandName), result);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void collectReferencedQuestion(final Node operand, final Set<String> result)
+        throws RepositoryException
+    {
+        if (operand.hasProperty(PROP_IS_REFERENCE) && operand.getProperty(PROP_IS_REFERENCE).getBoolean()
+            && operand.hasProperty(PROP_VALUE)) {
+            final Property value = operand.getProperty(PROP_VALUE);
+            if (!value.isMultiple()) {
+                result.add(sanitizeNodeName(value.getString()));
+            } else if (value.getValues().length > 0) {
+                result.add(sanitizeNodeName(value.getValues()[0].getString()));
             }
         }
-        return true;
     }
 
     /**
@@ -303,36 +396,38 @@ public static OperandType parse(final String label)
      */
     private static class Operand
     {
-        private final List<Comparable<Object>> values;
+        private final List<Comparable<Object>> constants;
 
         private final boolean reference;
 
-        Operand(final Node node, final OperandType type, final Node sectionNode, final NodeBuilder form)
-            throws RepositoryException
+        private final OperandType type;
+
+        // The UUID of the referenced question, or null if this is not a reference or if the question doesn't exist
+        private final String questionUUID;
+
+        Operand(final Node node, final OperandType type, final Node questionnaire) throws RepositoryException
         {
-            this.values = new ArrayList<>();
+            this.constants = new ArrayList<>();
+            this.type = type;
             if (node == null || !node.hasProperty(PROP_VALUE) || !node.hasProperty(PROP_IS_REFERENCE)) {
                 this.reference = false;
+                this.questionUUID = null;
                 return;
             }
             this.reference = node.getProperty(PROP_IS_REFERENCE).getValue().getBoolean();
             if (this.reference) {
-                PropertyState answerProperty = getPropertyStateFromRef(node, sectionNode, form);
-
-                if (answerProperty != null) {
-                    @SuppressWarnings("unchecked")
-                    Iterable<Comparable<Object>> answerValues =
-                        (Iterable<Comparable<Object>>) answerProperty.getValue(type.getOakType());
-                    answerValues.forEach(v -> this.values.add(v));
-                }
+                final String key = sanitizeNodeName(node.getProperty(PROP_VALUE).getValues()[0].getString());
+                final Node question = questionnaire == null ? null : getQuestionWithName(questionnaire, key);
+                this.questionUUID = question == null ? null : question.getIdentifier();
             } else {
+                this.questionUUID = null;
                 Property valueProp = node.getProperty(PROP_VALUE);
                 if (valueProp.isMultiple()) {
                     for (Value v : valueProp.getValues()) {
-                        this.values.add(type.getValue(v));
+                        this.constants.add(type.getValue(v));
                     }
                 } else {
-                    this.values.add(type.getValue(valueProp.getValue()));
+                    this.constants.add(type.getValue(valueProp.getValue()));
                 }
             }
         }
@@ -341,18 +436,31 @@ public static OperandType parse(final String label)
          * Retrieve the values for this operand, either the answers from the form or the constants specified in the
          * operand node.
          *
+         * @param answers the answers of the form, indexed by question UUID
          * @return a list of values, empty if the operand doesn't actually exist or if there are no actual values in the
          *         form
          */
-        public List<Comparable<Object>> getValues()
+        public List<Comparable<Object>> getValues(final Map<String, NodeBuilder> answers)
         {
-            return this.values;
+            if (!this.reference) {
+                return this.constants;
+            }
+            final NodeBuilder answer = this.questionUUID == null ? null : answers.get(this.questionUUID);
+            if (answer == null || !answer.hasProperty(PROP_VALUE)) {
+                return Collections.emptyList();
+            }
+            final List<Comparable<Object>> result = new ArrayList<>();
+            @SuppressWarnings("unchecked")
+            Iterable<Comparable<Object>> answerValues =
+                (Iterable<Comparable<Object>>) answer.getProperty(PROP_VALUE).getValue(this.type.getOakType());
+            answerValues.forEach(result::add);
+            return result;
         }
 
         @Override
         public String toString()
         {
-            return (this.reference ? "@" : "") + this.values.toString();
+            return this.reference ? "@" + this.questionUUID : this.constants.toString();
         }
     }
 
@@ -361,47 +469,48 @@ public String toString()
      */
     private enum Operator
     {
-        EQ("=", (left, right) -> left.getValues().stream()
-            .allMatch(vl -> right.getValues().stream().anyMatch(vr -> (vl.compareTo(vr) == 0)))
-            && right.getValues().stream()
-                .allMatch(vr -> left.getValues().stream().anyMatch(vl -> (vl.compareTo(vr) == 0))),
+        EQ("=", (left, right) -> left.stream()
+            .allMatch(vl -> right.stream().anyMatch(vr -> (vl.compareTo(vr) == 0)))
+            && right.stream()
+                .allMatch(vr -> left.stream().anyMatch(vl -> (vl.compareTo(vr) == 0))),
             true),
         NEQ("<>", (left, right) -> !EQ.evaluate(left, right), true),
         LT("<", (left, right) -> SINGLE_LISTS.test(left, right)
-            && (left.getValues().get(0).compareTo(right.getValues().get(0)) < 0),
+            && (left.get(0).compareTo(right.get(0)) < 0),
             false),
         LTE("<=", (left, right) -> SINGLE_LISTS.test(left, right)
-            && (left.getValues().get(0).compareTo(right.getValues().get(0)) <= 0), false),
+            && (left.get(0).compareTo(right.get(0)) <= 0), false),
         GT(">", (left, right) -> SINGLE_LISTS.test(left, right)
-            && (left.getValues().get(0).compareTo(right.getValues().get(0)) > 0), false),
+            && (left.get(0).compareTo(right.get(0)) > 0), false),
         GTE(">=", (left, right) -> SINGLE_LISTS.test(left, right)
-            && (left.getValues().get(0).compareTo(right.getValues().get(0)) >= 0), false),
-        EMPTY("is empty", (left, right) -> left.getValues().size() == 0 && right.getValues().size() == 0, true),
+            && (left.get(0).compareTo(right.get(0)) >= 0), false),
+        EMPTY("is empty", (left, right) -> left.size() == 0 && right.size() == 0, true),
         NOT_EMPTY("is not empty", (left, right) -> !EMPTY.evaluate(left, right), true),
         INCLUDES("includes",
-            (left, right) -> right.values.stream().allMatch(
-                vl -> left.getValues().stream().anyMatch(vr -> (vr.compareTo(vl) == 0))),
+            (left, right) -> right.stream().allMatch(
+                vl -> left.stream().anyMatch(vr -> (vr.compareTo(vl) == 0))),
             true),
         INCLUDES_ANY("includes any",
-            (left, right) -> right.values.stream().anyMatch(
-                vl -> left.getValues().stream().anyMatch(vr -> (vr.compareTo(vl) == 0))),
+            (left, right) -> right.stream().anyMatch(
+                vl -> left.stream().anyMatch(vr -> (vr.compareTo(vl) == 0))),
             true),
         EXCLUDES("excludes",
-            (left, right) -> right.values.stream().noneMatch(
-                vl -> left.getValues().stream().anyMatch(vr -> (vr.compareTo(vl) == 0))),
+            (left, right) -> right.stream().noneMatch(
+                vl -> left.stream().anyMatch(vr -> (vr.compareTo(vl) == 0))),
             true),
         EXCLUDES_ANY("excludes any",
-            (left, right) -> right.values.stream().anyMatch(
-                vl -> left.getValues().stream().noneMatch(vr -> (vr.compareTo(vl) == 0))),
+            (left, right) -> right.stream().anyMatch(
+                vl -> left.stream().noneMatch(vr -> (vr.compareTo(vl) == 0))),
             true);
 
         private final String operatorStr;
 
         private final boolean supportsMultivalue;
 
-        private final BiPredicate<Operand, Operand> evaluator;
+        private final BiPredicate<List<Comparable<Object>>, List<Comparable<Object>>> evaluator;
 
-        Operator(final String operatorStr, final BiPredicate<Operand, Operand> evaluator,
+        Operator(final String operatorStr,
+            final BiPredicate<List<Comparable<Object>>, List<Comparable<Object>>> evaluator,
             final boolean supportsMultivalue)
         {
             this.operatorStr = operatorStr;
@@ -412,13 +521,13 @@ public String toString()
         /**
          * Evaluate the two operands according to the rules of this operator.
          *
-         * @param left the left operand
-         * @param right the right operand, may be empty if this is an unary operator
+         * @param left the values of the left operand
+         * @param right the values of the right operand, may be empty if this is an unary operator
          * @return {@code true} if the two operands pass this operator, {@code false} otherwise
          */
-        public boolean evaluate(final Operand left, final Operand right)
+        public boolean evaluate(final List<Comparable<Object>> left, final List<Comparable<Object>> right)
         {
-            if (!this.supportsMultivalue && (left.getValues().size() > 1 || right.getValues().size() > 1)) {
+            if (!this.supportsMultivalue && (left.size() > 1 || right.size() > 1)) {
                 return false;
             }
             return this.evaluator.test(left, right);
@@ -443,57 +552,35 @@ public static Operator parse(final String operatorStr)
     }
 
     /**
-     * Generic interface for both single conditionals and conditional groups.
+     * Generic interface for both single conditionals and conditional groups. Instances are compiled once from the
+     * questionnaire definition, and don't depend on a specific form, so they can be reused for any number of forms.
      */
-    private interface Conditional
+    interface Conditional
     {
         /**
          * Check if the actual form values pass this conditional.
          *
+         * @param answers the answers of the form, indexed by question UUID, as returned by
+         *            {@link ConditionalSectionUtils#indexAnswers(NodeBuilder)}
          * @return {@code true} if the current state of the form passes the conditional
          */
-        boolean isSatisfied();
-
-        /**
-         * Look for a conditional child node of the passed section node.
-         *
-         * @param section a {@code cards:Section} node
-         * @param form a {@code cards:Form} node
-         * @return the section's conditional node, or {@code null} if no conditional is specified
-         */
-        static Conditional findConditional(final Node section, final NodeBuilder form)
-        {
-            Conditional result = null;
-            try {
-                final NodeIterator children = section.getNodes();
-                while (children.hasNext()) {
-                    result = parse(children.nextNode(), section, form);
-                    if (result != null) {
-                        return result;
-                    }
-                }
-            } catch (final RepositoryException e) {
-                // Not expected
-            }
-            return result;
-        }
+        boolean isSatisfied(Map<String, NodeBuilder> answers);
 
         /**
          * Convert a conditional node into the equivalent Java object.
          *
          * @param node either a {@code cards:Conditional} or {@code cards:ConditionalGroup} node
-         * @param sectionNode the {@code cards:Section} node under which the conditional resides
-         * @param form the {@code cards:Form} node being evaluated
+         * @param questionnaire the {@code cards:Questionnaire} node in which referenced questions are looked up
          * @return either a {@link Condition} or {@code ConditionGroup} object, or {@code null} if the passed node is
          *         not a conditional
          */
-        static Conditional parse(final Node node, final Node sectionNode, final NodeBuilder form)
+        static Conditional parse(final Node node, final Node questionnaire)
         {
             try {
                 if (node.isNodeType("cards:Conditional")) {
-                    return new Condition(node, sectionNode, form);
+                    return new Condition(node, questionnaire);
                 } else if (node.isNodeType("cards:ConditionalGroup")) {
-                    return new ConditionGroup(node, sectionNode, form);
+                    return new ConditionGroup(node, questionnaire);
                 }
             } catch (RepositoryException e) {
                 // Not expected
@@ -513,23 +600,21 @@ private static class Condition implements Conditional
 
         private final Operator operator;
 
-        Condition(final Node node, final Node sectionNode, final NodeBuilder form) throws RepositoryException
+        Condition(final Node node, final Node questionnaire) throws RepositoryException
         {
             this.operator = Operator.parse(node.getProperty("comparator").getString());
             final OperandType type = node.hasProperty(PROP_TYPE)
                 ? OperandType.parse(node.getProperty(PROP_TYPE).getValue().getString()) : OperandType.TEXT;
             this.left =
-                new Operand(node.hasNode("operandA") ? node.getNode("operandA") : null, type, sectionNode,
-                    form);
+                new Operand(node.hasNode("operandA") ? node.getNode("operandA") : null, type, questionnaire);
             this.right =
-                new Operand(node.hasNode("operandB") ? node.getNode("operandB") : null, type, sectionNode,
-                    form);
+                new Operand(node.hasNode("operandB") ? node.getNode("operandB") : null, type, questionnaire);
         }
 
         @Override
-        public boolean isSatisfied()
+        public boolean isSatisfied(final Map<String, NodeBuilder> answers)
         {
-            return this.operator.evaluate(this.left, this.right);
+            return this.operator.evaluate(this.left.getValues(answers), this.right.getValues(answers));
         }
 
         @Override
@@ -548,14 +633,14 @@ private static class ConditionGroup implements Conditional
 
         private final boolean requireAll;
 
-        ConditionGroup(final Node node, final Node sectionNode, final NodeBuilder form)
+        ConditionGroup(final Node node, final Node questionnaire)
             throws RepositoryException
         {
             this.requireAll = node.getProperty(PROP_REQUIRE_ALL).getBoolean();
             this.children = new ArrayList<>();
             final NodeIterator childNodes = node.getNodes();
             while (childNodes.hasNext()) {
-                Conditional child = Conditional.parse(childNodes.nextNode(), sectionNode, form);
+                Conditional child = Conditional.parse(childNodes.nextNode(), questionnaire);
                 if (child != null) {
                     this.children.add(child);
                 }
@@ -563,10 +648,10 @@ private static class ConditionGroup implements Conditional
         }
 
         @Override
-        public boolean isSatisfied()
+        public boolean isSatisfied(final Map<String, NodeBuilder> answers)
         {
-            return this.requireAll ? this.children.stream().allMatch(Conditional::isSatisfied)
-                : this.children.stream().anyMatch(Conditional::isSatisfied);
+            return this.requireAll ? this.children.stream().allMatch(c -> c.isSatisfied(answers))
+                : this.children.stream().anyMatch(c -> c.isSatisfied(answers));
         }
 
         @Override
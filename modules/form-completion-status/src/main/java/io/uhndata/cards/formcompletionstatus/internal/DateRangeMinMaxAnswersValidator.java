@@ -41,25 +41,23 @@ public int getPriority()
     }
 
     @Override
-    public void validate(final NodeBuilder answer, final Node question, final boolean initialAnswer,
-        final Map<String, Boolean> flags)
+    public Limits compile(final Node question) throws RepositoryException
     {
-        try {
-            // This only checks the number of values for date range answers
-            final String dataType = question.getProperty("dataType").getString();
-            final boolean isDate = "date".equals(dataType);
-            final String type = question.hasProperty("type") ? question.getProperty("type").getString() : "";
-            final boolean isInterval = "interval".equals(type);
+        // This only checks the number of values for date range answers
+        final String dataType = question.getProperty("dataType").getString();
+        final boolean isDate = "date".equals(dataType);
+        final String type = question.hasProperty("type") ? question.getProperty("type").getString() : "";
+        final boolean isInterval = "interval".equals(type);
 
-            if (!isDate || !isInterval) {
-                return;
-            }
+        return isDate && isInterval ? super.compile(question) : null;
+    }
 
-            // Ranges are stored as pairs of values, so the true number of values is half of the number of actual values
-            final long valuesCount = getNumberOfValues(answer) / 2;
-            checkNumberOfValues(valuesCount, question, initialAnswer, flags);
-        } catch (final RepositoryException ex) {
-            // If something goes wrong then we cannot verify the answer, leave it as it was before
-        }
+    @Override
+    public void validate(final NodeBuilder answer, final Limits limits, final boolean initialAnswer,
+        final Map<String, Boolean> flags)
+    {
+        // Ranges are stored as pairs of values, so the true number of values is half of the number of actual values
+        final long valuesCount = getNumberOfValues(answer) / 2;
+        checkNumberOfValues(valuesCount, limits, flags);
     }
 }
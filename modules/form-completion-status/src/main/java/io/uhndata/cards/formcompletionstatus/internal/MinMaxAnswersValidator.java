@@ -27,7 +27,7 @@
 import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
 import org.osgi.service.component.annotations.Component;
 
-import io.uhndata.cards.formcompletionstatus.spi.AnswerValidator;
+import io.uhndata.cards.formcompletionstatus.spi.CompilableAnswerValidator;
 
 /**
  * Checks if the number of values entered for an answer match the required minimum/maximum required by the question.
@@ -35,7 +35,7 @@
  * @version $Id$
  */
 @Component(immediate = true)
-public class MinMaxAnswersValidator implements AnswerValidator
+public class MinMaxAnswersValidator implements CompilableAnswerValidator<MinMaxAnswersValidator.Limits>
 {
     @Override
     public int getPriority()
@@ -44,32 +44,32 @@ public int getPriority()
     }
 
     @Override
-    public void validate(final NodeBuilder answer, final Node question, final boolean initialAnswer,
-        final Map<String, Boolean> flags)
-    {
-        try {
-            final long valuesCount = getNumberOfValues(answer);
-            checkNumberOfValues(valuesCount, question, initialAnswer, flags);
-        } catch (final RepositoryException ex) {
-            // If something goes wrong then we cannot verify the answer, leave it as it was before
-        }
-    }
-
-    protected void checkNumberOfValues(final long valuesCount, final Node question, final boolean initialAnswer,
-        final Map<String, Boolean> flags) throws RepositoryException
+    public Limits compile(final Node question) throws RepositoryException
     {
         final long minAnswers =
             question.hasProperty("minAnswers") ? question.getProperty("minAnswers").getLong() : 0;
         final long maxAnswers =
             question.hasProperty("maxAnswers") ? question.getProperty("maxAnswers").getLong() : 1;
+        return new Limits(minAnswers, maxAnswers);
+    }
+
+    @Override
+    public void validate(final NodeBuilder answer, final Limits limits, final boolean initialAnswer,
+        final Map<String, Boolean> flags)
+    {
+        final long valuesCount = getNumberOfValues(answer);
+        checkNumberOfValues(valuesCount, limits, flags);
+    }
 
+    protected void checkNumberOfValues(final long valuesCount, final Limits limits, final Map<String, Boolean> flags)
+    {
         // Checks if the number of values is within the specified minAnswers ... maxAnswers range,
-        if (valuesCount < minAnswers && minAnswers != 0) {
+        if (valuesCount < limits.minAnswers && limits.minAnswers != 0) {
             flags.put(FLAG_INCOMPLETE, true);
         } else {
             flags.remove(FLAG_INCOMPLETE);
         }
-        if (valuesCount > maxAnswers && maxAnswers != 0) {
+        if (valuesCount > limits.maxAnswers && limits.maxAnswers != 0) {
             flags.put(FLAG_INVALID, true);
         } else {
             flags.remove(FLAG_INVALID);
@@ -85,4 +85,20 @@ protected long getNumberOfValues(final NodeBuilder answer)
         }
         return 0;
     }
+
+    /**
+     * The minimum and maximum number of values allowed by a question.
+     */
+    public static final class Limits
+    {
+        private final long minAnswers;
+
+        private final long maxAnswers;
+
+        Limits(final long minAnswers, final long maxAnswers)
+        {
+            this.minAnswers = minAnswers;
+            this.maxAnswers = maxAnswers;
+        }
+    }
 }
@@ -27,7 +27,7 @@
 import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
 import org.osgi.service.component.annotations.Component;
 
-import io.uhndata.cards.formcompletionstatus.spi.AnswerValidator;
+import io.uhndata.cards.formcompletionstatus.spi.CompilableAnswerValidator;
 
 /**
  * An {@link MinMaxValueValidator} checks for each value if it is in the minValue ... maxValue range.
@@ -35,7 +35,7 @@
  * @version $Id$
  */
 @Component(immediate = true)
-public class MinMaxValueValidator implements AnswerValidator
+public class MinMaxValueValidator implements CompilableAnswerValidator<MinMaxValueValidator.Limits>
 {
     private static final String DATA_TYPE_PROP = "dataType";
 
@@ -54,35 +54,36 @@ public int getPriority()
     }
 
     @Override
-    public void validate(final NodeBuilder answer, final Node question, final boolean initialAnswer,
+    public Limits compile(final Node question) throws RepositoryException
+    {
+        if (!isMinMaxValidationApplicable(question)) {
+            // If this isn't a numeric value with required limits, don't validate
+            return null;
+        }
+        final double minValue = question.hasProperty(MIN_VALUE_PROP)
+            ? question.getProperty(MIN_VALUE_PROP).getDouble() : Double.NaN;
+        final double maxValue = question.hasProperty(MAX_VALUE_PROP)
+            ? question.getProperty(MAX_VALUE_PROP).getDouble() : Double.NaN;
+        return new Limits(minValue, maxValue);
+    }
+
+    @Override
+    public void validate(final NodeBuilder answer, final Limits limits, final boolean initialAnswer,
         final Map<String, Boolean> flags)
     {
-        try {
-            if (!isMinMaxValidationApplicable(question)) {
-                // If this isn't a numeric value with required limits, don't validate
-                return;
-            }
-            if (answer.hasProperty(PROP_VALUE)) {
-                final double minValue = question.hasProperty(MIN_VALUE_PROP)
-                    ? question.getProperty(MIN_VALUE_PROP).getDouble() : Double.NaN;
-                final double maxValue = question.hasProperty(MAX_VALUE_PROP)
-                    ? question.getProperty(MAX_VALUE_PROP).getDouble() : Double.NaN;
-
-                final PropertyState answerProp = answer.getProperty(PROP_VALUE);
-                // if any value is out of range, set FLAG_INVALID to true
-                for (int i = 0; i < answerProp.count(); i++) {
-                    final Double value = answerProp.getValue(Type.DOUBLE, i);
-                    if (value < minValue || value > maxValue) {
-                        flags.put(FLAG_INVALID, true);
-                        break;
-                    }
+        if (answer.hasProperty(PROP_VALUE)) {
+            final PropertyState answerProp = answer.getProperty(PROP_VALUE);
+            // if any value is out of range, set FLAG_INVALID to true
+            for (int i = 0; i < answerProp.count(); i++) {
+                final Double value = answerProp.getValue(Type.DOUBLE, i);
+                if (value < limits.minValue || value > limits.maxValue) {
+                    flags.put(FLAG_INVALID, true);
+                    break;
                 }
             }
-            // If the INVALID flag has not been explicitly set so far, remove it
-            removeIfNotExplicitlySet(FLAG_INVALID, flags);
-        } catch (final RepositoryException ex) {
-            // If something goes wrong do nothing
         }
+        // If the INVALID flag has not been explicitly set so far, remove it
+        removeIfNotExplicitlySet(FLAG_INVALID, flags);
     }
 
     private boolean isMinMaxValidationApplicable(final Node question)
@@ -104,4 +105,20 @@ private boolean isMinMaxValidationApplicable(final Node question)
         }
         return true;
     }
+
+    /**
+     * The range of values allowed by a question, with {@code NaN} for a missing limit.
+     */
+    public static final class Limits
+    {
+        private final double minValue;
+
+        private final double maxValue;
+
+        Limits(final double minValue, final double maxValue)
+        {
+            this.minValue = minValue;
+            this.maxValue = maxValue;
+        }
+    }
 }
@@ -28,7 +28,7 @@
 import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
 import org.osgi.service.component.annotations.Component;
 
-import io.uhndata.cards.formcompletionstatus.spi.AnswerValidator;
+import io.uhndata.cards.formcompletionstatus.spi.CompilableAnswerValidator;
 
 /**
  * An {@link RegExpValueValidator} checks for each value if it matches the provided regular expression.
@@ -36,10 +36,13 @@
  * @version $Id$
  */
 @Component(immediate = true)
-public class RegExpValueValidator implements AnswerValidator
+public class RegExpValueValidator implements CompilableAnswerValidator<Pattern>
 {
     private static final Set<String> SUPPORTED_TYPES = Set.of("text");
 
+    /** The plan used for text questions without a validation regular expression, matches any value. */
+    private static final Pattern ANY_VALUE = Pattern.compile("");
+
     @Override
     public int getPriority()
     {
@@ -47,33 +50,35 @@ public int getPriority()
     }
 
     @Override
-    public void validate(final NodeBuilder answer, final Node question, final boolean initialAnswer,
-        final Map<String, Boolean> flags)
+    public Pattern compile(final Node question) throws RepositoryException
     {
-        try {
-            final String type = question.getProperty("dataType").getString();
-            if (!SUPPORTED_TYPES.contains(type)) {
-                // This only works on text, nothing to do otherwise
-                return;
-            }
-            if (question.hasProperty("validationRegexp") && answer.hasProperty(PROP_VALUE)) {
-                final String regexp = question.getProperty("validationRegexp").getString();
-                Pattern pattern = Pattern.compile(regexp);
+        final String type = question.getProperty("dataType").getString();
+        if (!SUPPORTED_TYPES.contains(type)) {
+            // This only works on text, nothing to do otherwise
+            return null;
+        }
+        if (question.hasProperty("validationRegexp")) {
+            return Pattern.compile(question.getProperty("validationRegexp").getString());
+        }
+        return ANY_VALUE;
+    }
 
-                final PropertyState answerProp = answer.getProperty(PROP_VALUE);
-                // if any value does not match the pattern, set FLAG_INVALID to true
-                for (int i = 0; i < answerProp.count(); i++) {
-                    final String value = answerProp.getValue(Type.STRING, i);
-                    if (!pattern.matcher(value).find()) {
-                        flags.put(FLAG_INVALID, true);
-                        return;
-                    }
+    @Override
+    public void validate(final NodeBuilder answer, final Pattern pattern, final boolean initialAnswer,
+        final Map<String, Boolean> flags)
+    {
+        if (pattern != ANY_VALUE && answer.hasProperty(PROP_VALUE)) {
+            final PropertyState answerProp = answer.getProperty(PROP_VALUE);
+            // if any value does not match the pattern, set FLAG_INVALID to true
+            for (int i = 0; i < answerProp.count(); i++) {
+                final String value = answerProp.getValue(Type.STRING, i);
+                if (!pattern.matcher(value).find()) {
+                    flags.put(FLAG_INVALID, true);
+                    return;
                 }
             }
-            // If the INVALID flag has not been explicitly set so far, remove it
-            removeIfNotExplicitlySet(FLAG_INVALID, flags);
-        } catch (final RepositoryException ex) {
-            // If something goes wrong do nothing
         }
+        // If the INVALID flag has not been explicitly set so far, remove it
+        removeIfNotExplicitlySet(FLAG_INVALID, flags);
     }
 }
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.uhndata.cards.formcompletionstatus.spi;
+
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+
+import io.uhndata.cards.formcompletionstatus.AnswerCompletionStatusEditor;
+
+/**
+ * An {@link AnswerValidator} that extracts from a question everything it needs for validating answers, such as
+ * compiled patterns or numeric limits, into a plan. {@link AnswerCompletionStatusEditor} compiles a plan once per
+ * question and reuses it for all the answers to that question, across commits, until the questionnaire changes.
+ *
+ * @param <T> the type of the compiled plan
+ * @version $Id$
+ */
+public interface CompilableAnswerValidator<T> extends AnswerValidator
+{
+    /**
+     * Compile the validation plan for a question. This is called once, and the result is reused for any number of
+     * answers, so it must not depend on a specific answer or form.
+     *
+     * @param question a cards:Question node
+     * @return the plan for validating answers to this question, or {@code null} if this validator does not apply to the
+     *         question
+     * @throws RepositoryException if accessing the question fails, in which case answers will not be validated by this
+     *             validator
+     */
+    T compile(Node question) throws RepositoryException;
+
+    /**
+     * Validate the answer against a compiled plan, and add or remove flags accordingly.
+     *
+     * @param answer a cards:Answer node that was added/modified
+     * @param plan the plan returned by {@link #compile(Node)} for the question referenced by the answer, never
+     *            {@code null}
+     * @param initialAnswer specifies if this is the first time a value is set for the answer, to mark whether a form is
+     *            just still incomplete or was complete and also invalid
+     * @param flags maps flag names to whether they were explicitly set or just copied from the previous form state, and
+     *            is initially populated with the previously set flags mapped to false
+     */
+    void validate(NodeBuilder answer, T plan, boolean initialAnswer, Map<String, Boolean> flags);
+
+    @Override
+    default void validate(final NodeBuilder answer, final Node question, final boolean initialAnswer,
+        final Map<String, Boolean> flags)
+    {
+        try {
+            final T plan = compile(question);
+            if (plan != null) {
+                validate(answer, plan, initialAnswer, flags);
+            }
+        } catch (final RepositoryException ex) {
+            // If something goes wrong then we cannot verify the answer, leave it as it was before
+        }
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.formcompletionstatus;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState;
+import org.apache.jackrabbit.oak.spi.commit.EditorDiff;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import io.uhndata.cards.formcompletionstatus.spi.AnswerValidator;
+import io.uhndata.cards.forms.api.FormUtils;
+
+/**
+ * Unit tests for {@link AnswerCompletionStatusEditor}, checking which parts of a form are processed again after a
+ * change. Answers are incomplete when they have no value, and the section {@code s2} is only visible when the answer
+ * to {@code q1} is {@code yes}.
+ *
+ * @version $Id$
+ */
+public class AnswerCompletionStatusEditorTest
+{
+    private static final String STATUS_FLAGS = "statusFlags";
+
+    private static final String PRIMARY_TYPE = "jcr:primaryType";
+
+    private static final String ANSWER = "cards:TextAnswer";
+
+    private static final String VALUE = "value";
+
+    private static final String INCOMPLETE = "INCOMPLETE";
+
+    private static final String DRAFT = "DRAFT";
+
+    private static final String FORM = "Forms/f";
+
+    private final FormUtils formUtils = Mockito.mock(FormUtils.class);
+
+    private final ConditionalSectionPlans conditionalSections = Mockito.mock(ConditionalSectionPlans.class);
+
+    private final AnswerValidationPlans validationPlans = Mockito.mock(AnswerValidationPlans.class);
+
+    private final Session session = Mockito.mock(Session.class);
+
+    private final List<AnswerValidator> validators = Collections.emptyList();
+
+    /** The form as saved before the change being tested, with its status flags already computed. */
+    private NodeState saved;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        mockFormUtils();
+        mockConditionalSections();
+        mockValidation();
+
+        final NodeBuilder root = EmptyNodeState.EMPTY_NODE.builder();
+        final NodeBuilder form = root.child("Forms").child("f");
+        form.setProperty(PRIMARY_TYPE, "cards:Form", Type.NAME);
+        form.setProperty("questionnaire", "questionnaire-uuid");
+        final NodeBuilder s1 = addSection(form, "s1", "plain");
+        addAnswer(s1, "a1", "q1", "no");
+        addAnswer(s1, "a2", "q2", "x");
+        final NodeBuilder s2 = addSection(form, "s2", "conditional");
+        addAnswer(s2, "a3", "q3", null);
+        final NodeBuilder s3 = addSection(form, "s3", "plain");
+        addAnswer(s3, "a4", "q4", "y");
+        this.saved = commit(EmptyNodeState.EMPTY_NODE, root);
+        Mockito.reset(this.validationPlans);
+        mockValidation();
+    }
+
+    @Test
+    public void initialStatusIgnoresHiddenSections()
+    {
+        Assert.assertEquals(flags(), getFlags(this.saved, FORM));
+        Assert.assertEquals(flags(INCOMPLETE, DRAFT), getFlags(this.saved, FORM + "/s2"));
+        Assert.assertEquals(flags(INCOMPLETE), getFlags(this.saved, FORM + "/s2/a3"));
+    }
+
+    @Test
+    public void singleAnswerChangeSkipsUntouchedSections() throws Exception
+    {
+        final NodeBuilder root = this.saved.builder();
+        getBuilder(root, FORM + "/s1/a2").removeProperty(VALUE);
+        final NodeState after = commit(this.saved, root);
+
+        Assert.assertEquals(flags(INCOMPLETE), getFlags(after, FORM + "/s1/a2"));
+        Assert.assertEquals(flags(INCOMPLETE, DRAFT), getFlags(after, FORM + "/s1"));
+        Assert.assertEquals(flags(INCOMPLETE, DRAFT), getFlags(after, FORM));
+        verifyValidated("q2");
+        verifyNotValidated("q1", "q3", "q4");
+    }
+
+    @Test
+    public void conditionalInputChangeUpdatesSectionVisibility() throws Exception
+    {
+        final NodeBuilder root = this.saved.builder();
+        getBuilder(root, FORM + "/s1/a1").setProperty(VALUE, "yes");
+        final NodeState after = commit(this.saved, root);
+
+        // The now visible section is incomplete, so the whole form is
+        Assert.assertEquals(flags(INCOMPLETE, DRAFT), getFlags(after, FORM));
+        verifyValidated("q1", "q2", "q3", "q4");
+    }
+
+    @Test
+    public void answerRemovalUpdatesTheForm() throws Exception
+    {
+        NodeBuilder root = this.saved.builder();
+        getBuilder(root, FORM + "/s1/a1").setProperty(VALUE, "yes");
+        final NodeState visible = commit(this.saved, root);
+        Assert.assertEquals(flags(INCOMPLETE, DRAFT), getFlags(visible, FORM));
+
+        root = visible.builder();
+        getBuilder(root, FORM + "/s2/a3").remove();
+        final NodeState after = commit(visible, root);
+
+        Assert.assertEquals(flags(), getFlags(after, FORM + "/s2"));
+        Assert.assertEquals(flags(), getFlags(after, FORM));
+    }
+
+    @Test
+    public void structuralChangesFallBackToFullReEvaluation() throws Exception
+    {
+        final NodeBuilder root = this.saved.builder();
+        final NodeBuilder s4 = addSection(getBuilder(root, FORM), "s4", "plain");
+        addAnswer(s4, "a5", "q5", null);
+        final NodeState after = commit(this.saved, root);
+
+        Assert.assertEquals(flags(INCOMPLETE, DRAFT), getFlags(after, FORM + "/s4"));
+        Assert.assertEquals(flags(INCOMPLETE, DRAFT), getFlags(after, FORM));
+        verifyValidated("q1", "q2", "q3", "q4", "q5");
+    }
+
+    @Test
+    public void unchangedFormsAreNotProcessed() throws Exception
+    {
+        final NodeBuilder root = this.saved.builder();
+        root.child("Other").setProperty("x", "y");
+        commit(this.saved, root);
+
+        verifyNotValidated("q1", "q2", "q3", "q4");
+    }
+
+    /**
+     * Run the editor on a change, as the editor provider does in a commit.
+     *
+     * @param before the state before the change
+     * @param builder the builder holding the changed state, where the editor makes its own changes
+     * @return the state after the editor ran
+     * @throws CommitFailedException if the editor fails
+     */
+    private NodeState commit(final NodeState before, final NodeBuilder builder) throws CommitFailedException
+    {
+        final NodeState after = builder.getNodeState();
+        final CommitFailedException failure = EditorDiff.process(new AnswerCompletionStatusEditor(builder, false,
+            this.session, this.formUtils, this.conditionalSections, this.validationPlans, this.validators), before,
+            after);
+        if (failure != null) {
+            throw failure;
+        }
+        return builder.getNodeState();
+    }
+
+    private void mockFormUtils() throws RepositoryException
+    {
+        Mockito.when(this.formUtils.isForm(Matchers.any(NodeBuilder.class)))
+            .thenAnswer(invocation -> hasType(invocation.getArguments()[0], "cards:Form"));
+        Mockito.when(this.formUtils.isAnswerSection(Matchers.any(NodeBuilder.class)))
+            .thenAnswer(invocation -> hasType(invocation.getArguments()[0], "cards:AnswerSection"));
+        Mockito.when(this.formUtils.isAnswer(Matchers.any(NodeBuilder.class)))
+            .thenAnswer(invocation -> hasType(invocation.getArguments()[0], ANSWER));
+        Mockito.when(this.formUtils.isAnswer(Matchers.any(NodeState.class)))
+            .thenAnswer(invocation -> ANSWER.equals(((NodeState) invocation.getArguments()[0]).getName(PRIMARY_TYPE)));
+        Mockito.when(this.formUtils.getQuestionIdentifier(Matchers.any(NodeBuilder.class)))
+            .thenAnswer(invocation -> ((NodeBuilder) invocation.getArguments()[0]).getString("question"));
+        Mockito.when(this.formUtils.getQuestion(Matchers.any(NodeBuilder.class))).thenAnswer(invocation -> {
+            final Node question = Mockito.mock(Node.class);
+            Mockito.when(question.getName()).thenReturn(((NodeBuilder) invocation.getArguments()[0])
+                .getString("question"));
+            return question;
+        });
+        final Node questionnaire = Mockito.mock(Node.class);
+        Mockito.when(questionnaire.getIdentifier()).thenReturn("questionnaire-uuid");
+        Mockito.when(this.formUtils.getQuestionnaire(Matchers.any(NodeBuilder.class))).thenReturn(questionnaire);
+    }
+
+    private void mockConditionalSections() throws RepositoryException
+    {
+        Mockito.when(this.conditionalSections.getConditionalInputs(Matchers.any(Node.class)))
+            .thenReturn(Collections.singleton("q1"));
+        Mockito.when(this.conditionalSections.indexAnswers(Matchers.any(NodeBuilder.class))).thenAnswer(invocation -> {
+            final NodeBuilder form = (NodeBuilder) invocation.getArguments()[0];
+            final Map<String, NodeBuilder> answers = new HashMap<>();
+            answers.put("q1", form.getChildNode("s1").getChildNode("a1"));
+            return answers;
+        });
+        Mockito.when(this.conditionalSections.isConditionSatisfied(Matchers.any(NodeBuilder.class),
+            Matchers.anyMapOf(String.class, NodeBuilder.class), Matchers.anyString(), Matchers.any(Session.class)))
+            .thenAnswer(invocation -> {
+                final NodeBuilder section = (NodeBuilder) invocation.getArguments()[0];
+                @SuppressWarnings("unchecked")
+                final Map<String, NodeBuilder> answers = (Map<String, NodeBuilder>) invocation.getArguments()[1];
+                return !"conditional".equals(section.getString("section"))
+                    || "yes".equals(answers.get("q1").getString(VALUE));
+            });
+    }
+
+    private void mockValidation()
+    {
+        Mockito.when(this.validationPlans.validate(Matchers.any(NodeBuilder.class), Matchers.anyString(),
+            Matchers.anyString(), Matchers.any(), Matchers.anyListOf(AnswerValidator.class), Matchers.anyBoolean(),
+            Matchers.anyMapOf(String.class, Boolean.class))).thenAnswer(invocation -> {
+                final NodeBuilder answer = (NodeBuilder) invocation.getArguments()[0];
+                @SuppressWarnings("unchecked")
+                final Map<String, Boolean> flags = (Map<String, Boolean>) invocation.getArguments()[6];
+                flags.clear();
+                if (!answer.hasProperty(VALUE)) {
+                    flags.put(INCOMPLETE, Boolean.TRUE);
+                }
+                return true;
+            });
+    }
+
+    private void verifyValidated(final String... questions)
+    {
+        for (final String question : questions) {
+            Mockito.verify(this.validationPlans).validate(Matchers.any(NodeBuilder.class), Matchers.eq(question),
+                Matchers.anyString(), Matchers.any(), Matchers.anyListOf(AnswerValidator.class),
+                Matchers.anyBoolean(), Matchers.anyMapOf(String.class, Boolean.class));
+        }
+    }
+
+    private void verifyNotValidated(final String... questions)
+    {
+        for (final String question : questions) {
+            Mockito.verify(this.validationPlans, Mockito.never()).validate(Matchers.any(NodeBuilder.class),
+                Matchers.eq(question), Matchers.anyString(), Matchers.any(), Matchers.anyListOf(AnswerValidator.class),
+                Matchers.anyBoolean(), Matchers.anyMapOf(String.class, Boolean.class));
+        }
+    }
+
+    private static boolean hasType(final Object node, final String type)
+    {
+        return node != null && type.equals(((NodeBuilder) node).getName(PRIMARY_TYPE));
+    }
+
+    private static NodeBuilder addSection(final NodeBuilder parent, final String name, final String section)
+    {
+        final NodeBuilder result = parent.child(name);
+        result.setProperty(PRIMARY_TYPE, "cards:AnswerSection", Type.NAME);
+        result.setProperty("section", section);
+        return result;
+    }
+
+    private static void addAnswer(final NodeBuilder section, final String name, final String question,
+        final String value)
+    {
+        final NodeBuilder answer = section.child(name);
+        answer.setProperty(PRIMARY_TYPE, ANSWER, Type.NAME);
+        answer.setProperty("question", question);
+        if (value != null) {
+            answer.setProperty(VALUE, value);
+        }
+    }
+
+    private static NodeBuilder getBuilder(final NodeBuilder root, final String path)
+    {
+        NodeBuilder result = root;
+        for (final String name : path.split("/")) {
+            result = result.getChildNode(name);
+        }
+        return result;
+    }
+
+    private static Set<String> getFlags(final NodeState root, final String path)
+    {
+        NodeState node = root;
+        for (final String name : path.split("/")) {
+            node = node.getChildNode(name);
+        }
+        final Set<String> result = new HashSet<>();
+        node.getStrings(STATUS_FLAGS).forEach(result::add);
+        return result;
+    }
+
+    private static Set<String> flags(final String... flags)
+    {
+        return new HashSet<>(Arrays.asList(flags));
+    }
+}
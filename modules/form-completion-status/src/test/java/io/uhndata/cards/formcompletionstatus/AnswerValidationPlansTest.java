@@ -0,0 +1,221 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.uhndata.cards.formcompletionstatus;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import io.uhndata.cards.formcompletionstatus.spi.AnswerValidator;
+import io.uhndata.cards.formcompletionstatus.spi.CompilableAnswerValidator;
+
+/**
+ * Unit tests for {@link AnswerValidationPlans}.
+ *
+ * @version $Id$
+ */
+public class AnswerValidationPlansTest
+{
+    private static final String QUESTION_ID = "question-uuid";
+
+    private static final String VERSION = "questionnaire-uuid@1.0";
+
+    private static final String FLAG = "INVALID";
+
+    private final AnswerValidationPlans plans = new AnswerValidationPlans();
+
+    private final NodeBuilder answer = Mockito.mock(NodeBuilder.class);
+
+    private Node question;
+
+    private CountingValidator validator;
+
+    @Before
+    public void setUp() throws RepositoryException
+    {
+        this.question = Mockito.mock(Node.class);
+        Mockito.when(this.question.getName()).thenReturn("q1");
+        this.validator = new CountingValidator();
+    }
+
+    @Test
+    public void plansAreCompiledOncePerQuestion()
+    {
+        for (int i = 0; i < 3; ++i) {
+            final Map<String, Boolean> flags = new HashMap<>();
+            Assert.assertTrue(validate(() -> this.question, flags));
+            Assert.assertEquals(Collections.singletonMap(FLAG, true), flags);
+        }
+        Assert.assertEquals(1, this.validator.compilations);
+        Assert.assertEquals(3, this.validator.validations);
+    }
+
+    @Test
+    public void questionIsNotLoadedWhenAllPlansAreKnown()
+    {
+        validate(() -> this.question, new HashMap<>());
+
+        Assert.assertTrue(validate(() -> {
+            throw new AssertionError("The question should not be loaded");
+        }, new HashMap<>()));
+    }
+
+    @Test
+    public void unavailableQuestionsLeaveTheFlagsUntouched()
+    {
+        final Map<String, Boolean> flags = new HashMap<>();
+
+        Assert.assertFalse(validate(() -> null, flags));
+        Assert.assertTrue(flags.isEmpty());
+    }
+
+    @Test
+    public void notApplicableValidatorsAreRememberedAndSkipped()
+    {
+        this.validator.applicable = false;
+
+        for (int i = 0; i < 2; ++i) {
+            final Map<String, Boolean> flags = new HashMap<>();
+            Assert.assertTrue(validate(() -> this.question, flags));
+            Assert.assertTrue(flags.isEmpty());
+        }
+        Assert.assertEquals(1, this.validator.compilations);
+        Assert.assertEquals(0, this.validator.validations);
+    }
+
+    @Test
+    public void failedCompilationsAreRetried()
+    {
+        this.validator.failing = true;
+        validate(() -> this.question, new HashMap<>());
+        this.validator.failing = false;
+        validate(() -> this.question, new HashMap<>());
+        validate(() -> this.question, new HashMap<>());
+
+        Assert.assertEquals(2, this.validator.compilations);
+        Assert.assertEquals(2, this.validator.validations);
+    }
+
+    @Test
+    public void changesDiscardAllPlans()
+    {
+        validate(() -> this.question, new HashMap<>());
+        this.plans.onChange(Collections.singletonList(
+            new ResourceChange(ChangeType.CHANGED, "/Questionnaires/q/q1", false)));
+        validate(() -> this.question, new HashMap<>());
+
+        Assert.assertEquals(2, this.validator.compilations);
+    }
+
+    @Test
+    public void newQuestionnaireVersionsDontUseOldPlans()
+    {
+        validate(() -> this.question, new HashMap<>());
+        validate("questionnaire-uuid@1.1", () -> this.question, new HashMap<>());
+
+        Assert.assertEquals(2, this.validator.compilations);
+    }
+
+    @Test
+    public void plansForUnknownQuestionnaireVersionsAreNotCached()
+    {
+        validate(null, () -> this.question, new HashMap<>());
+        validate(null, () -> this.question, new HashMap<>());
+
+        Assert.assertEquals(2, this.validator.compilations);
+        Assert.assertEquals(2, this.validator.validations);
+    }
+
+    @Test
+    public void forgottenValidatorsArentKept()
+    {
+        final CountingValidator other = new CountingValidator();
+        final List<AnswerValidator> validators = List.of(this.validator, other);
+        this.plans.validate(this.answer, QUESTION_ID, VERSION, () -> this.question, validators, false,
+            new HashMap<>());
+
+        this.plans.forget(this.validator);
+        this.plans.validate(this.answer, QUESTION_ID, VERSION, () -> this.question, validators, false,
+            new HashMap<>());
+
+        Assert.assertEquals(2, this.validator.compilations);
+        Assert.assertEquals(1, other.compilations);
+    }
+
+    private boolean validate(final Supplier<Node> questionLoader, final Map<String, Boolean> flags)
+    {
+        return validate(VERSION, questionLoader, flags);
+    }
+
+    private boolean validate(final String version, final Supplier<Node> questionLoader,
+        final Map<String, Boolean> flags)
+    {
+        return this.plans.validate(this.answer, QUESTION_ID, version, questionLoader,
+            Collections.singletonList(this.validator), false, flags);
+    }
+
+    /**
+     * A validator counting how many times it compiles and uses plans, which flags all answers as invalid.
+     */
+    private static final class CountingValidator implements CompilableAnswerValidator<String>
+    {
+        private int compilations;
+
+        private int validations;
+
+        private boolean applicable = true;
+
+        private boolean failing;
+
+        @Override
+        public int getPriority()
+        {
+            return 0;
+        }
+
+        @Override
+        public String compile(final Node question) throws RepositoryException
+        {
+            ++this.compilations;
+            if (this.failing) {
+                throw new RepositoryException("Unavailable");
+            }
+            return this.applicable ? question.getName() : null;
+        }
+
+        @Override
+        public void validate(final NodeBuilder answer, final String plan, final boolean initialAnswer,
+            final Map<String, Boolean> flags)
+        {
+            ++this.validations;
+            flags.put(FLAG, true);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.uhndata.cards.formcompletionstatus;
+
+import java.util.Collections;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.nodetype.NodeType;
+
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Unit tests for {@link ConditionalSectionPlans}.
+ *
+ * @version $Id$
+ */
+public class ConditionalSectionPlansTest
+{
+    private static final String SECTION_ID = "section-uuid";
+
+    private static final String VERSION = "questionnaire-uuid@1.0";
+
+    private final ConditionalSectionPlans plans = new ConditionalSectionPlans();
+
+    private Session session;
+
+    private Node section;
+
+    private NodeBuilder answerSection;
+
+    @Before
+    public void setUp() throws RepositoryException
+    {
+        this.session = Mockito.mock(Session.class);
+        this.section = mockNode("cards:Section");
+        final Node questionnaire = mockNode("cards:Questionnaire");
+        Mockito.when(this.section.getParent()).thenReturn(questionnaire);
+        Mockito.when(this.session.getNodeByIdentifier(SECTION_ID)).thenReturn(this.section);
+
+        this.answerSection = Mockito.mock(NodeBuilder.class);
+        final PropertyState sectionReference = Mockito.mock(PropertyState.class);
+        Mockito.when(sectionReference.getValue(Type.REFERENCE)).thenReturn(SECTION_ID);
+        Mockito.when(this.answerSection.hasProperty("section")).thenReturn(true);
+        Mockito.when(this.answerSection.getProperty("section")).thenReturn(sectionReference);
+    }
+
+    @Test
+    public void compiledConditionsAreReused() throws RepositoryException
+    {
+        final NodeIterator noChildren = Mockito.mock(NodeIterator.class);
+        Mockito.when(this.section.getNodes()).thenReturn(noChildren);
+
+        for (int i = 0; i < 3; ++i) {
+            Assert.assertTrue(this.plans.isConditionSatisfied(this.answerSection, Collections.emptyMap(), VERSION,
+                this.session));
+        }
+
+        Mockito.verify(this.session, Mockito.times(1)).getNodeByIdentifier(SECTION_ID);
+    }
+
+    @Test
+    public void failedCompilationsAreNotRemembered() throws RepositoryException
+    {
+        Mockito.when(this.section.getNodes()).thenThrow(new RepositoryException("Unavailable"));
+
+        Assert.assertTrue(this.plans.isConditionSatisfied(this.answerSection, Collections.emptyMap(), VERSION,
+            this.session));
+        Assert.assertTrue(this.plans.isConditionSatisfied(this.answerSection, Collections.emptyMap(), VERSION,
+            this.session));
+
+        Mockito.verify(this.session, Mockito.times(2)).getNodeByIdentifier(SECTION_ID);
+    }
+
+    @Test
+    public void changesDiscardCompiledConditions() throws RepositoryException
+    {
+        final NodeIterator noChildren = Mockito.mock(NodeIterator.class);
+        Mockito.when(this.section.getNodes()).thenReturn(noChildren);
+
+        this.plans.isConditionSatisfied(this.answerSection, Collections.emptyMap(), VERSION, this.session);
+        this.plans.onChange(Collections.singletonList(
+            new ResourceChange(ChangeType.CHANGED, "/Questionnaires/q/section", false)));
+        this.plans.isConditionSatisfied(this.answerSection, Collections.emptyMap(), VERSION, this.session);
+
+        Mockito.verify(this.session, Mockito.times(2)).getNodeByIdentifier(SECTION_ID);
+    }
+
+    @Test
+    public void newQuestionnaireVersionsDontUseOldPlans() throws RepositoryException
+    {
+        final NodeIterator noChildren = Mockito.mock(NodeIterator.class);
+        Mockito.when(this.section.getNodes()).thenReturn(noChildren);
+
+        this.plans.isConditionSatisfied(this.answerSection, Collections.emptyMap(), VERSION, this.session);
+        this.plans.isConditionSatisfied(this.answerSection, Collections.emptyMap(), "questionnaire-uuid@1.1",
+            this.session);
+
+        Mockito.verify(this.session, Mockito.times(2)).getNodeByIdentifier(SECTION_ID);
+    }
+
+    @Test
+    public void unknownQuestionnaireVersionsAreNotCached() throws RepositoryException
+    {
+        final NodeIterator noChildren = Mockito.mock(NodeIterator.class);
+        Mockito.when(this.section.getNodes()).thenReturn(noChildren);
+
+        this.plans.isConditionSatisfied(this.answerSection, Collections.emptyMap(), null, this.session);
+        this.plans.isConditionSatisfied(this.answerSection, Collections.emptyMap(), null, this.session);
+
+        Mockito.verify(this.session, Mockito.times(2)).getNodeByIdentifier(SECTION_ID);
+    }
+
+    @Test
+    public void conditionalInputsAreKeptUntilTheQuestionnaireChanges() throws RepositoryException
+    {
+        final Node questionnaire = mockNode("cards:Questionnaire");
+        final NodeIterator noChildren = Mockito.mock(NodeIterator.class);
+        Mockito.when(questionnaire.getNodes()).thenReturn(noChildren);
+        Mockito.when(questionnaire.getIdentifier()).thenReturn("questionnaire-uuid");
+        Mockito.when(questionnaire.hasProperty("jcr:lastModified")).thenReturn(true);
+        final Property lastModified = Mockito.mock(Property.class);
+        Mockito.when(questionnaire.getProperty("jcr:lastModified")).thenReturn(lastModified);
+        Mockito.when(lastModified.getString()).thenReturn("2021-01-01T00:00:00.000Z");
+
+        Assert.assertTrue(this.plans.getConditionalInputs(questionnaire).isEmpty());
+        Assert.assertTrue(this.plans.getConditionalInputs(questionnaire).isEmpty());
+        Mockito.when(lastModified.getString()).thenReturn("2021-01-02T00:00:00.000Z");
+        Assert.assertTrue(this.plans.getConditionalInputs(questionnaire).isEmpty());
+
+        Mockito.verify(questionnaire, Mockito.times(2)).getNodes();
+    }
+
+    @Test
+    public void answerSectionsWithoutSectionAreUnconditional()
+    {
+        Assert.assertTrue(this.plans.isConditionSatisfied(Mockito.mock(NodeBuilder.class), Collections.emptyMap(),
+            VERSION, this.session));
+        Mockito.verifyZeroInteractions(this.session);
+    }
+
+    private Node mockNode(final String type) throws RepositoryException
+    {
+        final Node node = Mockito.mock(Node.class);
+        final NodeType nodeType = Mockito.mock(NodeType.class);
+        Mockito.when(nodeType.getName()).thenReturn(type);
+        Mockito.when(node.getPrimaryNodeType()).thenReturn(nodeType);
+        return node;
+    }
+}
@@ -21,6 +21,7 @@
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.LongSupplier;
 
 import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.ModifiableValueMap;
@@ -55,18 +56,32 @@ private Metrics()
      * @return the map of 'today' and 'total' values for the performance statistic or null
      */
     public static Map<String, Long> get(ResourceResolver resolver, String statName)
+    {
+        return get(null, resolver, statName);
+    }
+
+    /**
+     * Gets the 'today' and 'total' values for a performance statistic, including the increments recorded in the
+     * registry but not yet stored in the repository.
+     * Returns null if the statistic cannot be found.
+     *
+     * @param registry the metrics registry holding the pending increments, may be {@code null}
+     * @param resolver a ResourceResolver used to query the JCR
+     * @param statName the name of the performance statistic to query
+     * @return the map of 'today' and 'total' values for the performance statistic or null
+     */
+    public static Map<String, Long> get(MetricsRegistry registry, ResourceResolver resolver, String statName)
     {
         Map<String, Long> perfStat = new HashMap<String, Long>();
         Resource statResourcePrevTotal = resolver.getResource(METRICS_PATH + statName + "/prevTotal");
-        Resource statResourceTotal = resolver.getResource(METRICS_PATH + statName + "/total");
-        if (statResourcePrevTotal == null || statResourceTotal == null) {
+        if (statResourcePrevTotal == null || resolver.getResource(METRICS_PATH + statName + "/total") == null) {
             return null;
         }
 
         ValueMap statMapPrevTotal = statResourcePrevTotal.getValueMap();
-        ValueMap statMapTotal = statResourceTotal.getValueMap();
         long prevTotalCount = statMapPrevTotal.get(PROP_VALUE, (long) (-1));
-        long totalCount = statMapTotal.get("oak:counter", (long) (-1));
+        LongSupplier storedTotal = () -> getStoredTotal(resolver, statName);
+        long totalCount = registry == null ? storedTotal.getAsLong() : registry.getTotal(statName, storedTotal);
         if (prevTotalCount < 0 || totalCount < 0) {
             return null;
         }
@@ -76,7 +91,7 @@ public static Map<String, Long> get(ResourceResolver resolver, String statName)
     }
 
     /**
-     * Updates the value of a performance counter by incrementing it by a set amount.
+     * Updates the value of a performance counter by incrementing it by a set amount, storing it right away.
      *
      * @param resolverFactory a ResourceResolverFactory that can be used for querying
      *     the JCR as the MetricLogger service user
@@ -86,6 +101,29 @@ public static Map<String, Long> get(ResourceResolver resolver, String statName)
     public static void increment(final ResourceResolverFactory resolverFactory,
         final String statName, final long incrementValue)
     {
+        increment(null, resolverFactory, statName, incrementValue);
+    }
+
+    /**
+     * Updates the value of a performance counter by incrementing it by a set amount. If a registry is available, the
+     * increment is aggregated in memory and stored in the repository periodically, along with other pending
+     * increments, but it is immediately visible through {@link #get(MetricsRegistry, ResourceResolver, String)}.
+     *
+     * @param registry the metrics registry aggregating increments, may be {@code null} to store the increment right
+     *     away
+     * @param resolverFactory a ResourceResolverFactory that can be used for querying
+     *     the JCR as the MetricLogger service user
+     * @param statName the name of the performance statistic to increment
+     * @param incrementValue the value to increment the performance statistic by
+     */
+    public static void increment(final MetricsRegistry registry, final ResourceResolverFactory resolverFactory,
+        final String statName, final long incrementValue)
+    {
+        if (registry != null) {
+            registry.increment(statName, incrementValue);
+            return;
+        }
+        // No registry available, store the increment right away
         Map<String, Object> params = new HashMap<>();
         params.put(ResourceResolverFactory.SUBSERVICE, "MetricLogger");
         try (ResourceResolver resolver = resolverFactory.getServiceResourceResolver(params)) {
@@ -173,7 +211,22 @@ public static void createStatistic(final ResourceResolverFactory resolverFactory
      */
     public static Map<String, Long> getAndReset(ResourceResolver resolver, String statName)
     {
-        Map<String, Long> statsMap = get(resolver, statName);
+        return getAndReset(null, resolver, statName);
+    }
+
+    /**
+     * Same as {@link #getAndReset(ResourceResolver, String)}, but also counting the increments recorded in the
+     * registry and not yet stored in the repository.
+     *
+     * @param registry the metrics registry holding the pending increments, may be {@code null}
+     * @param resolver a ResourceResolver for querying the /Metrics/ JCR nodes
+     * @param statName the name of the performance statistic to obtain its "today" and "total" values
+     * @return the map of 'today' and 'total' values for the performance statistic or null
+     */
+    public static Map<String, Long> getAndReset(MetricsRegistry registry, ResourceResolver resolver,
+        String statName)
+    {
+        Map<String, Long> statsMap = get(registry, resolver, statName);
         if (statsMap == null) {
             return null;
         }
@@ -210,6 +263,12 @@ public static String getHumanName(ResourceResolver resolver, String statName)
         return humanName;
     }
 
+    private static long getStoredTotal(ResourceResolver resolver, String statName)
+    {
+        Resource statResourceTotal = resolver.getResource(METRICS_PATH + statName + "/total");
+        return statResourceTotal == null ? -1 : statResourceTotal.getValueMap().get("oak:counter", (long) (-1));
+    }
+
     private static void increment(ResourceResolver resolver, String statName, long incrementBy)
     {
         try {
@@ -0,0 +1,49 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Aggregates metrics increments in memory, and periodically stores them in the {@code /Metrics/<statName>/total}
+ * counters, all of them in a single commit, instead of opening a session and committing for each increment. Components
+ * recording metrics should reference this service and pass it to the {@link Metrics} utility methods.
+ *
+ * @version $Id$
+ */
+public interface MetricsRegistry
+{
+    /**
+     * Record an increment for a statistic. The increment will be stored in the repository on the next flush.
+     *
+     * @param statName the name of the performance statistic to increment
+     * @param incrementValue the value to increment the performance statistic by
+     */
+    void increment(String statName, long incrementValue);
+
+    /**
+     * Compute the current total of a statistic, including the increments not yet stored in the repository. The stored
+     * total is read while no increments are being stored, so that every increment is counted exactly once.
+     *
+     * @param statName the name of the performance statistic
+     * @param storedTotal reads the total currently stored in the repository
+     * @return the stored total plus the pending increments
+     */
+    long getTotal(String statName, LongSupplier storedTotal);
+}
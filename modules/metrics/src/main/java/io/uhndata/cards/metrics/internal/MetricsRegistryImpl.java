@@ -0,0 +1,212 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.metrics.internal;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongSupplier;
+
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.commons.scheduler.ScheduleOptions;
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.metrics.MetricsRegistry;
+
+/**
+ * In-memory aggregator for metrics increments. Increments are accumulated per statistic and periodically written to the
+ * {@code /Metrics/<statName>/total} counters, all of them in a single commit, instead of opening a session and
+ * committing for each increment. Increments taken by a flush stay counted as in flight until the commit succeeds, and
+ * are put back as pending if storing them fails for any reason, so that they are retried on the next flush.
+ *
+ * @version $Id$
+ */
+@Designate(ocd = MetricsRegistryImpl.Config.class)
+@Component(immediate = true, service = MetricsRegistry.class)
+public class MetricsRegistryImpl implements MetricsRegistry, Runnable
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricsRegistryImpl.class);
+
+    private static final String JOB_NAME = "MetricsRegistryFlush";
+
+    /** Increments not yet written to the repository. */
+    private final Map<String, LongAdder> pending = new ConcurrentHashMap<>();
+
+    /** Increments currently being written to the repository, still counted as pending until the commit succeeds. */
+    private final Map<String, Long> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Held for writing while increments move between pending, in flight, and the repository, and for reading while
+     * computing a total, so that a total never misses an increment or counts it twice.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    @Reference
+    private Scheduler scheduler;
+
+    @ObjectClassDefinition(name = "Metrics registry",
+        description = "Aggregates metrics increments in memory and periodically stores them in the repository")
+    public @interface Config
+    {
+        @AttributeDefinition(name = "Period", description = "How often to store the pending increments, in seconds")
+        long period() default 10;
+    }
+
+    @Activate
+    protected void activate(final Config config)
+    {
+        final ScheduleOptions options = this.scheduler.NOW(-1, Math.max(config.period(), 1));
+        options.name(JOB_NAME);
+        options.canRunConcurrently(false);
+        try {
+            this.scheduler.schedule(this, options);
+        } catch (final Exception e) {
+            LOGGER.error("Failed to schedule the metrics flush: {}", e.getMessage(), e);
+        }
+    }
+
+    @Deactivate
+    protected void deactivate()
+    {
+        this.scheduler.unschedule(JOB_NAME);
+        // Store anything still pending
+        run();
+    }
+
+    @Override
+    public void increment(final String statName, final long incrementValue)
+    {
+        this.pending.computeIfAbsent(statName, k -> new LongAdder()).add(incrementValue);
+    }
+
+    @Override
+    public long getTotal(final String statName, final LongSupplier storedTotal)
+    {
+        this.lock.readLock().lock();
+        try {
+            final LongAdder adder = this.pending.get(statName);
+            return storedTotal.getAsLong() + (adder == null ? 0 : adder.sum())
+                + this.inFlight.getOrDefault(statName, 0L);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        final Map<String, Long> deltas = takePending();
+        if (deltas.isEmpty()) {
+            return;
+        }
+        boolean stored = false;
+        final Map<String, Object> parameters =
+            Collections.singletonMap(ResourceResolverFactory.SUBSERVICE, "MetricLogger");
+        try (ResourceResolver resolver = this.resolverFactory.getServiceResourceResolver(parameters)) {
+            for (Map.Entry<String, Long> delta : deltas.entrySet()) {
+                final Resource total = resolver.getResource("/Metrics/" + delta.getKey() + "/total");
+                if (total == null) {
+                    // Unknown statistic, the increment is discarded
+                    continue;
+                }
+                total.adaptTo(ModifiableValueMap.class).put("oak:increment", delta.getValue());
+            }
+            this.lock.writeLock().lock();
+            try {
+                resolver.commit();
+                // The increments are now part of the stored totals, they are no longer pending
+                deltas.forEach(this::removeInFlight);
+                stored = true;
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+        } catch (final Exception e) {
+            LOGGER.warn("Failed to store metrics, will retry later: {}", e.getMessage(), e);
+        } finally {
+            if (!stored) {
+                restorePending(deltas);
+            }
+        }
+    }
+
+    /**
+     * Move all the pending increments in flight.
+     *
+     * @return the increments to store, keyed by statistic name
+     */
+    private Map<String, Long> takePending()
+    {
+        final Map<String, Long> deltas = new HashMap<>();
+        this.lock.writeLock().lock();
+        try {
+            this.pending.forEach((statName, adder) -> {
+                final long delta = adder.sumThenReset();
+                if (delta != 0) {
+                    deltas.put(statName, delta);
+                    this.inFlight.merge(statName, delta, Long::sum);
+                }
+            });
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        return deltas;
+    }
+
+    /**
+     * Move increments that could not be stored from in flight back to pending, so they are retried on the next run.
+     *
+     * @param deltas the increments that were taken for storing
+     */
+    private void restorePending(final Map<String, Long> deltas)
+    {
+        this.lock.writeLock().lock();
+        try {
+            deltas.forEach((statName, delta) -> {
+                removeInFlight(statName, delta);
+                increment(statName, delta);
+            });
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private void removeInFlight(final String statName, final long delta)
+    {
+        this.inFlight.computeIfPresent(statName, (k, value) -> value == delta ? null : value - delta);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.metrics.internal;
+
+import java.util.Map;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+/**
+ * Unit tests for {@link MetricsRegistryImpl}.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class MetricsRegistryImplTest
+{
+    private static final String STAT = "Submissions";
+
+    private static final String INCREMENT = "oak:increment";
+
+    @Mock
+    private ResourceResolverFactory resolverFactory;
+
+    @Mock
+    private ResourceResolver resolver;
+
+    @Mock
+    private ModifiableValueMap total;
+
+    @InjectMocks
+    private MetricsRegistryImpl registry;
+
+    @Before
+    public void setupRepository() throws LoginException
+    {
+        final Resource totalResource = Mockito.mock(Resource.class);
+        Mockito.when(totalResource.adaptTo(ModifiableValueMap.class)).thenReturn(this.total);
+        Mockito.when(this.resolver.getResource("/Metrics/" + STAT + "/total")).thenReturn(totalResource);
+        Mockito.when(this.resolverFactory.getServiceResourceResolver(Matchers.anyMapOf(String.class, Object.class)))
+            .thenReturn(this.resolver);
+    }
+
+    @Test
+    public void incrementsAreStoredInOneCommit() throws PersistenceException
+    {
+        this.registry.increment(STAT, 1);
+        this.registry.increment(STAT, 2);
+        this.registry.increment(STAT, 3);
+        Mockito.verifyZeroInteractions(this.resolver);
+
+        this.registry.run();
+
+        Mockito.verify(this.total).put(INCREMENT, 6L);
+        Mockito.verify(this.resolver, Mockito.times(1)).commit();
+    }
+
+    @Test
+    public void pendingIncrementsAreCountedUntilStored()
+    {
+        this.registry.increment(STAT, 2);
+        this.registry.increment(STAT, 5);
+        Assert.assertEquals(7, getPending(STAT));
+        Assert.assertEquals(0, getPending("Other"));
+
+        this.registry.run();
+
+        Assert.assertEquals(0, getPending(STAT));
+    }
+
+    @Test
+    public void nothingIsStoredWithoutIncrements() throws LoginException
+    {
+        this.registry.run();
+
+        Mockito.verify(this.resolverFactory, Mockito.never())
+            .getServiceResourceResolver(Matchers.anyMapOf(String.class, Object.class));
+    }
+
+    @Test
+    public void unknownStatisticsAreDiscarded() throws PersistenceException
+    {
+        this.registry.increment("Unknown", 4);
+
+        this.registry.run();
+
+        Mockito.verify(this.resolver).commit();
+        Assert.assertEquals(0, getPending("Unknown"));
+    }
+
+    @Test
+    public void failedCommitsAreRetried() throws PersistenceException
+    {
+        Mockito.doThrow(new PersistenceException("failed")).doNothing().when(this.resolver).commit();
+        this.registry.increment(STAT, 3);
+
+        this.registry.run();
+        Assert.assertEquals(3, getPending(STAT));
+
+        this.registry.increment(STAT, 1);
+        this.registry.run();
+
+        Mockito.verify(this.total).put(INCREMENT, 3L);
+        Mockito.verify(this.total).put(INCREMENT, 4L);
+        Assert.assertEquals(0, getPending(STAT));
+    }
+
+    @Test
+    public void incrementsAreKeptOnUnexpectedFailures() throws PersistenceException
+    {
+        Mockito.doThrow(new IllegalStateException("failed")).doNothing().when(this.resolver).commit();
+        this.registry.increment(STAT, 3);
+
+        this.registry.run();
+        Assert.assertEquals(3, getPending(STAT));
+
+        this.registry.run();
+
+        Mockito.verify(this.total, Mockito.times(2)).put(INCREMENT, 3L);
+        Assert.assertEquals(0, getPending(STAT));
+    }
+
+    @Test
+    public void storedTotalIsAddedToPendingIncrements()
+    {
+        this.registry.increment(STAT, 2);
+
+        Assert.assertEquals(12, this.registry.getTotal(STAT, () -> 10L));
+    }
+
+    @Test
+    public void failedLoginsAreRetried() throws LoginException
+    {
+        Mockito.when(this.resolverFactory.getServiceResourceResolver(Matchers.<Map<String, Object>>any()))
+            .thenThrow(new LoginException("failed")).thenReturn(this.resolver);
+        this.registry.increment(STAT, 3);
+
+        this.registry.run();
+        Assert.assertEquals(3, getPending(STAT));
+
+        this.registry.run();
+
+        Mockito.verify(this.total).put(INCREMENT, 3L);
+        Assert.assertEquals(0, getPending(STAT));
+    }
+
+    private long getPending(final String statName)
+    {
+        return this.registry.getTotal(statName, () -> 0L);
+    }
+}
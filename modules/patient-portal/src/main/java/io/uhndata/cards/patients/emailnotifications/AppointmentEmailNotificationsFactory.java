@@ -26,6 +26,8 @@
 import org.osgi.service.component.annotations.ConfigurationPolicy;
 import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
 import org.osgi.service.event.EventAdmin;
 import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.Designate;
@@ -36,6 +38,7 @@
 import io.uhndata.cards.auth.token.TokenManager;
 import io.uhndata.cards.forms.api.FormUtils;
 import io.uhndata.cards.metrics.Metrics;
+import io.uhndata.cards.metrics.MetricsRegistry;
 import io.uhndata.cards.patients.api.PatientAccessConfiguration;
 import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
 
@@ -76,6 +79,10 @@
     @Reference
     private PatientAccessConfiguration patientAccessConfiguration;
 
+    /** Aggregates the metrics increments. */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policyOption = ReferencePolicyOption.GREEDY)
+    private volatile MetricsRegistry metricsRegistry;
+
     @ObjectClassDefinition(name = "Appointment email notification",
         description = "Send emails for past and future appointments")
     public @interface Config
@@ -128,8 +135,8 @@ private void activate(final Config config)
         // Instantiate the Runnable
         final Runnable notificationsJob = new GeneralNotificationsTask(this.resolverFactory, this.resolverProvider,
             this.eventAdmin, this.tokenManager, this.mailService, this.formUtils, this.patientAccessConfiguration,
-            config.name(), config.notificationType(), config.clinicId(), config.emailConfiguration(),
-            config.daysToVisit());
+            this.metricsRegistry, config.name(), config.notificationType(), config.clinicId(),
+            config.emailConfiguration(), config.daysToVisit());
 
         try {
             this.scheduler.schedule(notificationsJob, notificationsOptions);
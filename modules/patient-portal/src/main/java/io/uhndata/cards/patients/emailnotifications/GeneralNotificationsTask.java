@@ -38,6 +38,7 @@
 import io.uhndata.cards.emailnotifications.EmailTemplate;
 import io.uhndata.cards.forms.api.FormUtils;
 import io.uhndata.cards.metrics.Metrics;
+import io.uhndata.cards.metrics.MetricsRegistry;
 import io.uhndata.cards.patients.api.PatientAccessConfiguration;
 import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
 
@@ -45,6 +46,8 @@ public class GeneralNotificationsTask extends AbstractEmailNotification implemen
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(GeneralNotificationsTask.class);
 
+    private final MetricsRegistry metricsRegistry;
+
     private final String taskName;
 
     private final String notificationType;
@@ -64,6 +67,7 @@ public class GeneralNotificationsTask extends AbstractEmailNotification implemen
      * authorization links in emails
      * @param mailService a MailService object that can be used for sending emails
      * @param formUtils form utilities service that can be used to interact with form nodes
+     * @param metricsRegistry the metrics registry aggregating metrics increments, may be null
      * @param taskName the name associated with the performance metrics gathered from this task
      * @param clinicId the clinic ID that identifies the clinic for which notifications should be sent about (or null
      * for all clinics)
@@ -75,11 +79,13 @@ public class GeneralNotificationsTask extends AbstractEmailNotification implemen
     public GeneralNotificationsTask(final ResourceResolverFactory resolverFactory,
         final ThreadResourceResolverProvider resolverProvider, final EventAdmin eventAdmin,
         final TokenManager tokenManager, final MailService mailService,
-        final FormUtils formUtils, final PatientAccessConfiguration patientAccessConfiguration, final String taskName,
-        final String notificationType, final String clinicId, final String emailTemplatePath, final int daysToVisit)
+        final FormUtils formUtils, final PatientAccessConfiguration patientAccessConfiguration,
+        final MetricsRegistry metricsRegistry, final String taskName, final String notificationType,
+        final String clinicId, final String emailTemplatePath, final int daysToVisit)
     {
         super(resolverFactory, resolverProvider, tokenManager, mailService, formUtils, patientAccessConfiguration,
             eventAdmin);
+        this.metricsRegistry = metricsRegistry;
         this.taskName = taskName;
         this.notificationType = notificationType;
         this.clinicId = clinicId;
@@ -94,7 +100,7 @@ public void run()
             this.emailTemplate = buildTemplate(this.emailTemplatePath);
         }
         long emailsSent = sendNotification(this.daysToVisit, this.emailTemplate, this.clinicId);
-        Metrics.increment(this.resolverFactory, this.taskName, emailsSent);
+        Metrics.increment(this.metricsRegistry, this.resolverFactory, this.taskName, emailsSent);
     }
 
     @Override
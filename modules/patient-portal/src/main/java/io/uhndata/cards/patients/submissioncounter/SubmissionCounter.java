@@ -30,6 +30,8 @@
 import org.osgi.service.component.annotations.ConfigurationPolicy;
 import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
 import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.Designate;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
@@ -37,6 +39,7 @@
 import org.slf4j.LoggerFactory;
 
 import io.uhndata.cards.forms.api.FormUtils;
+import io.uhndata.cards.metrics.MetricsRegistry;
 
 @Designate(ocd = SubmissionCounter.Config.class, factory = true)
 @Component(configurationPolicy = ConfigurationPolicy.REQUIRE)
@@ -56,6 +59,9 @@
     @Reference
     private FormUtils formUtils;
 
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policyOption = ReferencePolicyOption.GREEDY)
+    private volatile MetricsRegistry metricsRegistry;
+
     private ResourceResolver resolver;
 
     private Session session;
@@ -96,7 +102,7 @@ private void activate(final Config config)
             listenerParams.put("linkingSubjectType", config.linkingSubjectType());
             listenerParams.put("excludedQuestionnairePaths", config.excludedQuestionnaires());
             EventListener myEventListener = new SubmissionEventListener(this.formUtils, this.resolverFactory,
-                this.resolver, listenerParams);
+                this.metricsRegistry, this.resolver, listenerParams);
 
             this.session = this.resolver.adaptTo(Session.class);
             this.session.getWorkspace().getObservationManager().addEventListener(
@@ -33,6 +33,7 @@
 
 import io.uhndata.cards.forms.api.FormUtils;
 import io.uhndata.cards.metrics.Metrics;
+import io.uhndata.cards.metrics.MetricsRegistry;
 
 public final class SubmissionEventListener implements EventListener
 {
@@ -42,6 +43,8 @@ public final class SubmissionEventListener implements EventListener
 
     private final ResourceResolverFactory resolverFactory;
 
+    private final MetricsRegistry metricsRegistry;
+
     private final ResourceResolver resolver;
 
     private final FormUtils formUtils;
@@ -57,10 +60,11 @@ public final class SubmissionEventListener implements EventListener
     private String[] excludedQuestionnaireUUIDs;
 
     public SubmissionEventListener(FormUtils formUtils, ResourceResolverFactory resolverFactory,
-        ResourceResolver resolver, Map<String, Object> listenerParams)
+        MetricsRegistry metricsRegistry, ResourceResolver resolver, Map<String, Object> listenerParams)
     {
         this.formUtils = formUtils;
         this.resolverFactory = resolverFactory;
+        this.metricsRegistry = metricsRegistry;
         this.resolver = resolver;
         this.submittedFlagPath = ((String) listenerParams.get("submittedFlagPath"));
         this.linkingSubjectType = ((String) listenerParams.get("linkingSubjectType"));
@@ -150,7 +154,7 @@ public void onEvent(EventIterator events)
                 }
 
                 // Increment the performance counter
-                Metrics.increment(this.resolverFactory, "AppointmentSurveysSubmitted", 1);
+                Metrics.increment(this.metricsRegistry, this.resolverFactory, "AppointmentSurveysSubmitted", 1);
 
                 // Get the cards:Form node that this modified value property descends from
                 Node modifiedFormNode = this.formUtils.getForm(modifiedValueNode);
@@ -169,7 +173,7 @@ public void onEvent(EventIterator events)
                 long formsForAppointmentCount = countVisitForms(formRelatedSubjectUUID, modifiedFormNodeUUID);
 
                 // Increment the performance counter
-                Metrics.increment(this.resolverFactory,
+                Metrics.increment(this.metricsRegistry, this.resolverFactory,
                     "TotalSurveysSubmitted", formsForAppointmentCount);
             }
         } catch (Exception e) {
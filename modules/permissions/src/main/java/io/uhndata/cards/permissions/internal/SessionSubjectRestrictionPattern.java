@@ -18,13 +18,11 @@
  */
 package io.uhndata.cards.permissions.internal;
 
-import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.jackrabbit.oak.api.PropertyState;
 import org.apache.jackrabbit.oak.api.Tree;
-import org.apache.jackrabbit.oak.api.Type;
 import org.apache.jackrabbit.oak.spi.security.authorization.restriction.RestrictionPattern;
 
 /**
@@ -42,14 +40,19 @@ public class SessionSubjectRestrictionPattern implements RestrictionPattern
     /** The current session, which may contain a subject identifier. */
     private final Session session;
 
+    /** The shared index of subjects, used for finding the path of a form's subject. */
+    private final SubjectAncestryIndex ancestry;
+
     /**
      * Constructor passing all the needed information.
      *
      * @param session the current session
+     * @param ancestry the shared index of subjects
      */
-    public SessionSubjectRestrictionPattern(final Session session)
+    public SessionSubjectRestrictionPattern(final Session session, final SubjectAncestryIndex ancestry)
     {
         this.session = session;
+        this.ancestry = ancestry;
     }
 
     @Override
@@ -86,26 +89,14 @@ public boolean matches(final Tree tree, final PropertyState property)
 
     private boolean isFormForSubject(final Tree start, final String sessionSubject)
     {
-        final Tree form = findAncestor(start, "cards:Form");
-        if (form == null) {
-            // Not part of a form
-            return false;
-        }
-
-        // This is a form. Check if the node has a subject
-        final PropertyState subjectProperty = form.getProperty("subject");
+        final String subject = this.ancestry.getFormSubject(start);
         // If there is a subject set, this authorization rule only applies if it is the same as the session's subject
-        try {
-            return subjectProperty != null && StringUtils.equals(sessionSubject,
-                this.session.getNodeByIdentifier(subjectProperty.getValue(Type.STRING)).getPath());
-        } catch (RepositoryException e) {
-            return false;
-        }
+        return subject != null && StringUtils.equals(sessionSubject, this.ancestry.getPath(subject, this.session));
     }
 
     private boolean isSubject(final Tree start, final String sessionSubject)
     {
-        final Tree subject = findAncestor(start, "cards:Subject");
+        final Tree subject = SubjectAncestryIndex.findAncestor(start, "cards:Subject");
         if (subject == null) {
             // Not part of a subject
             return false;
@@ -114,20 +105,4 @@ private boolean isSubject(final Tree start, final String sessionSubject)
         // This is a subject, this authorization rule only applies if it is the same as the session's subject
         return StringUtils.equals(sessionSubject, subject.getPath());
     }
-
-    private Tree findAncestor(final Tree start, final String targetNodetype)
-    {
-        // This restriction only applies to Forms/Subjects and their descendant items.
-        // If this is not a Form or Subject node, look for one among its ancestors.
-        Tree current = start;
-        while (!current.isRoot() && (current.getProperty("jcr:primaryType") == null
-            || !StringUtils.equals(current.getProperty("jcr:primaryType").getValue(Type.STRING), targetNodetype))) {
-            current = current.getParent();
-        }
-        if (current.isRoot()) {
-            // Not a targeted node, this restriction doesn't apply
-            return null;
-        }
-        return current;
-    }
 }
@@ -0,0 +1,369 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.permissions.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.commons.collections4.map.LRUMap;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Tree;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.sling.api.resource.observation.ExternalResourceChangeListener;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.osgi.service.component.annotations.Component;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shared in-memory index of the subject hierarchy, used by restriction patterns which need to know the subject of a
+ * form, or the path of a subject or its ancestors. Access rules are evaluated for every item read, so looking up each
+ * of the {@code parents} references of a subject by its identifier each time is too costly. Instead, the index
+ * remembers the subject of each form, and the paths of each subject and of its ancestors. Entries are discarded when a
+ * form or a subject in a lineage is changed or removed, including on other cluster members.
+ * <p>
+ * The index is shared by all sessions, so a remembered lineage is only used by a session after checking once that the
+ * session can read every subject in it; if it can't, the lineage is looked up again with that session, and the
+ * partial lineage is remembered for that session only. This way, the index never grants more than walking the
+ * hierarchy would, while each session checks each subject at most once.
+ * </p>
+ * <p>
+ * Only committed content is shared: values read from a session with pending changes, or from a form that was changed
+ * but not saved yet, are returned but not remembered. Values looked up while a change is being observed are not
+ * remembered either, since they may have been read before the change.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component(service = { SubjectAncestryIndex.class, ResourceChangeListener.class }, property = {
+    ResourceChangeListener.PATHS + "=" + SubjectAncestryIndex.SUBJECTS,
+    ResourceChangeListener.PATHS + "=" + SubjectAncestryIndex.FORMS,
+    ResourceChangeListener.CHANGES + "=CHANGED",
+    ResourceChangeListener.CHANGES + "=REMOVED"
+})
+public class SubjectAncestryIndex implements ResourceChangeListener, ExternalResourceChangeListener
+{
+    static final String SUBJECTS = "/Subjects";
+
+    static final String FORMS = "/Forms";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SubjectAncestryIndex.class);
+
+    private static final String PARENTS = "parents";
+
+    /** How many subjects, and how many forms, to keep in memory at most. */
+    private static final int MAX_ENTRIES = 10_000;
+
+    /** Guards all the maps below, none of which is thread safe, and {@link #generation}. */
+    private final Object lock = new Object();
+
+    /** Incremented on every observed change, so that values looked up concurrently with a change are not kept. */
+    private long generation;
+
+    /** Indexed subjects, keyed by their identifier, in access order. */
+    private final Map<String, Lineage> index = new LRUMap<>(MAX_ENTRIES);
+
+    /** The subject identifier of indexed forms, keyed by the form path, in access order. */
+    private final Map<String, String> formSubjects = new LRUMap<>(MAX_ENTRIES);
+
+    /** The lineages already checked for each session, as visible to that session, keyed by the subject identifier. */
+    private final Map<Session, Map<String, Lineage>> sessionLineages = new WeakHashMap<>();
+
+    /**
+     * Check if a subject is, or is a descendant of, another subject.
+     *
+     * @param subjectId the identifier of the subject to check
+     * @param ancestorId the identifier of the potential ancestor subject
+     * @param session the session used for looking up subjects not yet indexed
+     * @return {@code true} if {@code ancestorId} is the subject itself or one of its ancestors, {@code false} otherwise
+     *         or if the subject cannot be accessed
+     */
+    public boolean isSelfOrDescendantOf(final String subjectId, final String ancestorId, final Session session)
+    {
+        final Lineage lineage = getLineage(subjectId, session);
+        return lineage != null && lineage.ancestors.contains(ancestorId);
+    }
+
+    /**
+     * Get the path of a subject.
+     *
+     * @param subjectId the identifier of a subject
+     * @param session the session used for looking up subjects not yet indexed
+     * @return the path of the subject, or {@code null} if the subject cannot be accessed
+     */
+    public String getPath(final String subjectId, final Session session)
+    {
+        final Lineage lineage = getLineage(subjectId, session);
+        return lineage == null ? null : lineage.path;
+    }
+
+    /**
+     * Get the subject of the form that an item belongs to.
+     *
+     * @param item a form, or an item inside a form
+     * @return the identifier of the form's subject, or {@code null} if the item is not part of a form, or the form has
+     *         no subject
+     */
+    public String getFormSubject(final Tree item)
+    {
+        final String formPath = getFormPath(item.getPath());
+        final long startGeneration;
+        synchronized (this.lock) {
+            final String subject = formPath == null ? null : this.formSubjects.get(formPath);
+            if (subject != null) {
+                return subject;
+            }
+            startGeneration = this.generation;
+        }
+
+        final Tree form = findAncestor(item, "cards:Form");
+        final PropertyState subjectProperty = form == null ? null : form.getProperty("subject");
+        if (subjectProperty == null) {
+            return null;
+        }
+        final String subject = subjectProperty.getValue(Type.STRING);
+        if (form.getPath().equals(formPath) && form.getStatus() == Tree.Status.UNCHANGED) {
+            synchronized (this.lock) {
+                if (this.generation == startGeneration) {
+                    this.formSubjects.put(formPath, subject);
+                }
+            }
+        }
+        return subject;
+    }
+
+    /**
+     * Find the closest ancestor of an item, or the item itself, of a specific node type.
+     *
+     * @param start the item to start from
+     * @param targetNodetype the node type to look for
+     * @return the found ancestor, or {@code null} if the item has no such ancestor
+     */
+    static Tree findAncestor(final Tree start, final String targetNodetype)
+    {
+        // If this is not a node of the target type, look for one among its ancestors
+        Tree current = start;
+        while (!current.isRoot() && (current.getProperty("jcr:primaryType") == null
+            || !StringUtils.equals(current.getProperty("jcr:primaryType").getValue(Type.STRING), targetNodetype))) {
+            current = current.getParent();
+        }
+        return current.isRoot() ? null : current;
+    }
+
+    @Override
+    public void onChange(final List<ResourceChange> changes)
+    {
+        final Set<String> changedPaths = new HashSet<>();
+        changes.forEach(change -> changedPaths.add(change.getPath()));
+        synchronized (this.lock) {
+            ++this.generation;
+            changedPaths.forEach(path -> {
+                final String formPath = getFormPath(path);
+                if (formPath != null) {
+                    this.formSubjects.remove(formPath);
+                }
+            });
+            discardChangedLineages(changedPaths);
+        }
+    }
+
+    /**
+     * Discard the lineages affected by changes. Must be called while holding the lock.
+     *
+     * @param changedPaths the changed or removed paths
+     */
+    private void discardChangedLineages(final Set<String> changedPaths)
+    {
+        // First find the indexed subjects that were affected, directly or through one of their ancestor nodes
+        final Set<String> changedSubjects = new HashSet<>();
+        this.index.forEach((id, lineage) -> {
+            String path = lineage.path;
+            while (path.lastIndexOf('/') > 0) {
+                if (changedPaths.contains(path)) {
+                    changedSubjects.add(id);
+                    break;
+                }
+                path = path.substring(0, path.lastIndexOf('/'));
+            }
+        });
+        if (changedSubjects.isEmpty()) {
+            return;
+        }
+        // Then discard every subject having one of the changed subjects in its lineage
+        final Iterator<Lineage> it = this.index.values().iterator();
+        while (it.hasNext()) {
+            if (!Collections.disjoint(it.next().ancestors, changedSubjects)) {
+                it.remove();
+            }
+        }
+        // Lineages already checked by sessions may also be stale, check them again
+        this.sessionLineages.clear();
+    }
+
+    private Lineage getLineage(final String subjectId, final Session session)
+    {
+        if (session == null) {
+            return null;
+        }
+        final Lineage lineage;
+        final long startGeneration;
+        synchronized (this.lock) {
+            final Map<String, Lineage> checked = this.sessionLineages.get(session);
+            final Lineage checkedLineage = checked == null ? null : checked.get(subjectId);
+            if (checkedLineage != null) {
+                return checkedLineage;
+            }
+            lineage = this.index.get(subjectId);
+            startGeneration = this.generation;
+        }
+        final Lineage result = lineage != null && isReadable(lineage, session) ? lineage
+            : loadLineage(subjectId, session, startGeneration);
+        if (result != null) {
+            synchronized (this.lock) {
+                if (this.generation == startGeneration) {
+                    this.sessionLineages.computeIfAbsent(session, s -> new LRUMap<>(MAX_ENTRIES))
+                        .put(subjectId, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Check that every subject in a remembered lineage is readable by a session.
+     *
+     * @param lineage the remembered lineage
+     * @param session the requesting session
+     * @return {@code true} if the lineage can be used for this session, {@code false} if it must be looked up again
+     */
+    private boolean isReadable(final Lineage lineage, final Session session)
+    {
+        try {
+            for (final String path : lineage.paths) {
+                if (!session.nodeExists(path)) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (RepositoryException e) {
+            LOGGER.debug("Failed to check the ancestry of subject {}: {}", lineage.path, e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Look up the lineage of a subject with a session. A complete lineage is shared with other sessions, unless it may
+     * not be committed yet, or a change was observed since the lookup started.
+     *
+     * @param subjectId the identifier of the subject
+     * @param session the requesting session
+     * @param startGeneration the value of {@link #generation} before the lookup started
+     * @return the lineage of the subject as visible to the session, or {@code null} if the subject cannot be accessed
+     */
+    private Lineage loadLineage(final String subjectId, final Session session, final long startGeneration)
+    {
+        String nextId = subjectId;
+        try {
+            Node subject = session.getNodeByIdentifier(subjectId);
+            final List<String> ids = new ArrayList<>();
+            final List<String> paths = new ArrayList<>();
+            ids.add(subjectId);
+            paths.add(subject.getPath());
+            boolean complete = true;
+            try {
+                while (subject.hasProperty(PARENTS)) {
+                    nextId = subject.getProperty(PARENTS).getString();
+                    if (ids.contains(nextId)) {
+                        // Invalid cyclic hierarchy, stop here, and don't remember it
+                        complete = false;
+                        break;
+                    }
+                    ids.add(nextId);
+                    subject = session.getNodeByIdentifier(nextId);
+                    paths.add(subject.getPath());
+                }
+            } catch (ItemNotFoundException e) {
+                // The rest of the hierarchy isn't accessible to this session, don't share this partial lineage
+                LOGGER.debug("Subject UUID {} is inaccessible", nextId, e);
+                complete = false;
+            }
+            final Lineage result = new Lineage(ids, paths);
+            if (complete && !session.hasPendingChanges()) {
+                synchronized (this.lock) {
+                    if (this.generation == startGeneration) {
+                        this.index.put(subjectId, result);
+                    }
+                }
+            }
+            return result;
+        } catch (ItemNotFoundException e) {
+            LOGGER.debug("Subject UUID {} is inaccessible", nextId, e);
+        } catch (RepositoryException e) {
+            LOGGER.error("Failed to find subject UUID {}", nextId, e);
+        }
+        return null;
+    }
+
+    /**
+     * Get the path of the form that an item may belong to. Forms are stored directly under {@code /Forms}.
+     *
+     * @param path the path of an item
+     * @return the path of the form, or {@code null} if the item is not under {@code /Forms}
+     */
+    private static String getFormPath(final String path)
+    {
+        if (!path.startsWith(FORMS + "/")) {
+            return null;
+        }
+        final int end = path.indexOf('/', FORMS.length() + 1);
+        return end < 0 ? path : path.substring(0, end);
+    }
+
+    /**
+     * The identifiers and paths of a subject and all of its ancestors, starting with the subject itself.
+     */
+    private static final class Lineage
+    {
+        private final String path;
+
+        private final List<String> paths;
+
+        private final Set<String> ancestors;
+
+        Lineage(final List<String> ids, final List<String> paths)
+        {
+            this.path = paths.get(0);
+            this.paths = paths;
+            this.ancestors = new HashSet<>(ids);
+        }
+    }
+}
@@ -43,6 +43,9 @@ public class SubjectRestrictionFactory implements RestrictionFactory
     @Reference
     private ThreadResourceResolverProvider rrp;
 
+    @Reference
+    private SubjectAncestryIndex ancestry;
+
     @Override
     public RestrictionPattern forValue(PropertyState value)
     {
@@ -50,7 +53,7 @@ public RestrictionPattern forValue(PropertyState value)
         if (this.rrp.getThreadResourceResolver() != null) {
             session = this.rrp.getThreadResourceResolver().adaptTo(Session.class);
         }
-        return new SubjectRestrictionPattern(value.getValue(Type.STRING), session);
+        return new SubjectRestrictionPattern(value.getValue(Type.STRING), session, this.ancestry);
     }
 
     @Override
@@ -18,15 +18,11 @@
  */
 package io.uhndata.cards.permissions.internal;
 
-import javax.jcr.ItemNotFoundException;
-import javax.jcr.Node;
-import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.jackrabbit.oak.api.PropertyState;
 import org.apache.jackrabbit.oak.api.Tree;
-import org.apache.jackrabbit.oak.api.Type;
 import org.apache.jackrabbit.oak.spi.security.authorization.restriction.RestrictionPattern;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,37 +38,33 @@ public class SubjectRestrictionPattern implements RestrictionPattern
 
     private final String targetSubject;
     private final Session session;
+    private final SubjectAncestryIndex ancestry;
 
     /**
      * Constructor which receives the configured restriction.
      *
      * @param value the identifier (UUID) of a specific subject
      * @param session the session used to retrieve subjects by UUID
+     * @param ancestry the shared index of subject ancestors
      */
-    public SubjectRestrictionPattern(String value, Session session)
+    public SubjectRestrictionPattern(String value, Session session, SubjectAncestryIndex ancestry)
     {
         this.targetSubject = value;
         this.session = session;
+        this.ancestry = ancestry;
     }
 
     @Override
     public boolean matches(final Tree tree, final PropertyState property)
     {
         // This restriction only applies to Forms and their descendant items.
-        // If this is not a Form node, look for one among its ancestors.
-        Tree formTree = tree;
-        while ((formTree.getProperty("jcr:primaryType") == null
-            || !formTree.getProperty("jcr:primaryType").getValue(Type.STRING).equals("cards:Form"))
-            && !formTree.isRoot()) {
-            formTree = formTree.getParent();
-        }
-        if (formTree.isRoot()) {
-            // Not a Form node, this restriction doesn't apply
+        final String subject = this.ancestry.getFormSubject(tree);
+        if (subject == null) {
+            // Not part of a Form with a subject, this restriction doesn't apply
             return false;
         }
 
         // Check if the form's subject is the same as the one specified in the restriction
-        String subject = formTree.getProperty("subject").getValue(Type.REFERENCE);
         return matchesReference(subject);
     }
 
@@ -91,8 +83,8 @@ public boolean matches()
     }
 
     /**
-     * Iteratively search a subject's reference for a match to the {@code targetSubject}.
-     * @param uuid the first subject to check the reference of
+     * Check if the {@code targetSubject} is the given subject or one of its ancestors.
+     * @param uuid the subject to check
      * @return true if the target was in the chain of references, false if an error occurs or target is not found
      */
     private boolean matchesReference(String uuid)
@@ -106,21 +98,6 @@ private boolean matchesReference(String uuid)
             return false;
         }
 
-        String nextUuid = uuid;
-        try {
-            Node subject = this.session.getNodeByIdentifier(nextUuid);
-            while (subject.hasProperty("parents")) {
-                nextUuid = subject.getProperty("parents").getString();
-                if (StringUtils.equals(nextUuid, this.targetSubject)) {
-                    return true;
-                }
-                subject = this.session.getNodeByIdentifier(nextUuid);
-            }
-        } catch (ItemNotFoundException e) {
-            LOGGER.debug("Subject UUID {} is inaccessible", nextUuid, e);
-        } catch (RepositoryException e) {
-            LOGGER.error("Failed to find subject UUID {}", nextUuid, e);
-        }
-        return false;
+        return this.ancestry.isSelfOrDescendantOf(uuid, this.targetSubject, this.session);
     }
 }
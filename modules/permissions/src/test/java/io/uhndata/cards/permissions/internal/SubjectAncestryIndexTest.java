@@ -0,0 +1,317 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.permissions.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Tree;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+/**
+ * Unit tests for {@link SubjectAncestryIndex}.
+ *
+ * @version $Id$
+ */
+public class SubjectAncestryIndexTest
+{
+    private static final String PATIENT = "patient";
+
+    private static final String VISIT = "visit";
+
+    private static final String SAMPLE = "sample";
+
+    private static final String OTHER_PATIENT = "otherPatient";
+
+    private final SubjectAncestryIndex index = new SubjectAncestryIndex();
+
+    /** Subject paths, by identifier. */
+    private final Map<String, String> paths = new HashMap<>();
+
+    /** The parent of each subject, by identifier. */
+    private final Map<String, String> parents = new HashMap<>();
+
+    @Before
+    public void setUp()
+    {
+        this.paths.put(PATIENT, "/Subjects/p");
+        this.paths.put(OTHER_PATIENT, "/Subjects/o");
+        this.paths.put(VISIT, "/Subjects/p/v");
+        this.paths.put(SAMPLE, "/Subjects/p/v/s");
+        this.parents.put(VISIT, PATIENT);
+        this.parents.put(SAMPLE, VISIT);
+    }
+
+    @Test
+    public void lineageIsRememberedAfterTheFirstLookup() throws RepositoryException
+    {
+        final Session session = mockSession(this.paths.keySet());
+
+        Assert.assertTrue(this.index.isSelfOrDescendantOf(SAMPLE, PATIENT, session));
+        Assert.assertTrue(this.index.isSelfOrDescendantOf(SAMPLE, VISIT, session));
+        Assert.assertFalse(this.index.isSelfOrDescendantOf(SAMPLE, OTHER_PATIENT, session));
+        Assert.assertEquals("/Subjects/p/v/s", this.index.getPath(SAMPLE, session));
+
+        Mockito.verify(session, Mockito.times(3)).getNodeByIdentifier(Matchers.anyString());
+    }
+
+    @Test
+    public void rememberedLineageDoesNotGrantUnreadableAncestors() throws RepositoryException
+    {
+        Assert.assertTrue(this.index.isSelfOrDescendantOf(SAMPLE, PATIENT, mockSession(this.paths.keySet())));
+
+        final Session restricted = mockSession(new HashSet<>(Arrays.asList(SAMPLE, PATIENT)));
+        Assert.assertFalse(this.index.isSelfOrDescendantOf(SAMPLE, PATIENT, restricted));
+        // The unreadable subject itself is still reached through the readable reference
+        Assert.assertTrue(this.index.isSelfOrDescendantOf(SAMPLE, VISIT, restricted));
+    }
+
+    @Test
+    public void rememberedPathIsNotReturnedForUnreadableSubjects()
+    {
+        Assert.assertEquals("/Subjects/p", this.index.getPath(PATIENT, mockSession(this.paths.keySet())));
+
+        Assert.assertNull(this.index.getPath(PATIENT, mockSession(Collections.singleton(VISIT))));
+        Assert.assertNull(this.index.getPath(PATIENT, null));
+    }
+
+    @Test
+    public void rememberedLineagesAreCheckedOncePerSession() throws RepositoryException
+    {
+        Assert.assertTrue(this.index.isSelfOrDescendantOf(SAMPLE, PATIENT, mockSession(this.paths.keySet())));
+
+        final Session other = mockSession(this.paths.keySet());
+        Assert.assertTrue(this.index.isSelfOrDescendantOf(SAMPLE, PATIENT, other));
+        Assert.assertTrue(this.index.isSelfOrDescendantOf(SAMPLE, VISIT, other));
+        Assert.assertEquals("/Subjects/p/v/s", this.index.getPath(SAMPLE, other));
+
+        Mockito.verify(other, Mockito.never()).getNodeByIdentifier(Matchers.anyString());
+        Mockito.verify(other, Mockito.times(3)).nodeExists(Matchers.anyString());
+    }
+
+    @Test
+    public void changedParentsAreNoticedOnceTheChangeIsObserved()
+    {
+        final Session session = mockSession(this.paths.keySet());
+        Assert.assertTrue(this.index.isSelfOrDescendantOf(VISIT, PATIENT, session));
+
+        this.parents.put(VISIT, OTHER_PATIENT);
+        this.index.onChange(Collections.singletonList(
+            new ResourceChange(ChangeType.CHANGED, "/Subjects/p/v", false)));
+
+        Assert.assertFalse(this.index.isSelfOrDescendantOf(VISIT, PATIENT, session));
+        Assert.assertTrue(this.index.isSelfOrDescendantOf(VISIT, OTHER_PATIENT, session));
+    }
+
+    @Test
+    public void changesDiscardLineagesContainingTheChangedSubject() throws RepositoryException
+    {
+        final Session session = mockSession(this.paths.keySet());
+        this.index.isSelfOrDescendantOf(SAMPLE, PATIENT, session);
+        this.index.isSelfOrDescendantOf(OTHER_PATIENT, PATIENT, session);
+        Mockito.verify(session, Mockito.times(4)).getNodeByIdentifier(Matchers.anyString());
+
+        this.index.onChange(Collections.singletonList(
+            new ResourceChange(ChangeType.CHANGED, "/Subjects/p/v", false)));
+        this.index.isSelfOrDescendantOf(SAMPLE, PATIENT, session);
+        this.index.isSelfOrDescendantOf(OTHER_PATIENT, PATIENT, session);
+
+        // The sample was looked up again, the unrelated patient was not
+        Mockito.verify(session, Mockito.times(7)).getNodeByIdentifier(Matchers.anyString());
+    }
+
+    @Test
+    public void formSubjectsAreRememberedUntilTheFormChanges()
+    {
+        final Tree form = mockTree("/Forms/f", "cards:Form", null);
+        final PropertyState subject = mockProperty(PATIENT);
+        Mockito.when(form.getProperty("subject")).thenReturn(subject);
+        final Tree answer = mockTree("/Forms/f/a", "cards:TextAnswer", form);
+
+        Assert.assertEquals(PATIENT, this.index.getFormSubject(answer));
+        Assert.assertEquals(PATIENT, this.index.getFormSubject(form));
+        Mockito.verify(answer, Mockito.times(1)).getParent();
+
+        final PropertyState newSubject = mockProperty(OTHER_PATIENT);
+        Mockito.when(form.getProperty("subject")).thenReturn(newSubject);
+        this.index.onChange(Collections.singletonList(
+            new ResourceChange(ChangeType.CHANGED, "/Forms/f", false)));
+
+        Assert.assertEquals(OTHER_PATIENT, this.index.getFormSubject(answer));
+    }
+
+    @Test
+    public void unsavedFormSubjectsAreNotRemembered()
+    {
+        final Tree form = mockTree("/Forms/f", "cards:Form", null);
+        final PropertyState subject = mockProperty(PATIENT);
+        Mockito.when(form.getProperty("subject")).thenReturn(subject);
+        Mockito.when(form.getStatus()).thenReturn(Tree.Status.MODIFIED);
+
+        Assert.assertEquals(PATIENT, this.index.getFormSubject(form));
+        Assert.assertEquals(PATIENT, this.index.getFormSubject(form));
+        Mockito.verify(form, Mockito.times(2)).getProperty("subject");
+    }
+
+    @Test
+    public void formSubjectsLookedUpDuringAChangeAreNotRemembered()
+    {
+        final Tree form = mockTree("/Forms/f", "cards:Form", null);
+        final PropertyState subject = mockProperty(PATIENT);
+        Mockito.when(form.getProperty("subject")).thenAnswer(invocation -> {
+            this.index.onChange(Collections.singletonList(
+                new ResourceChange(ChangeType.CHANGED, "/Forms/f", false)));
+            return subject;
+        });
+
+        Assert.assertEquals(PATIENT, this.index.getFormSubject(form));
+        Assert.assertEquals(PATIENT, this.index.getFormSubject(form));
+        Mockito.verify(form, Mockito.times(2)).getProperty("subject");
+    }
+
+    @Test
+    public void lineagesLookedUpDuringAChangeAreNotRemembered() throws RepositoryException
+    {
+        final Session session = mockSession(this.paths.keySet());
+        final Node visit = mockSubject(VISIT);
+        Mockito.doAnswer(invocation -> {
+            // The parent of the visit changes while its lineage is being looked up
+            this.index.onChange(Collections.singletonList(
+                new ResourceChange(ChangeType.CHANGED, "/Subjects/p/v", false)));
+            return visit;
+        }).when(session).getNodeByIdentifier(VISIT);
+
+        Assert.assertTrue(this.index.isSelfOrDescendantOf(VISIT, PATIENT, session));
+        Assert.assertTrue(this.index.isSelfOrDescendantOf(VISIT, PATIENT, session));
+        Mockito.verify(session, Mockito.times(2)).getNodeByIdentifier(VISIT);
+
+        final Session other = mockSession(this.paths.keySet());
+        Assert.assertTrue(this.index.isSelfOrDescendantOf(VISIT, PATIENT, other));
+        Mockito.verify(other, Mockito.times(2)).getNodeByIdentifier(Matchers.anyString());
+    }
+
+    @Test
+    public void lineagesWithPendingChangesAreNotShared() throws RepositoryException
+    {
+        final Session session = mockSession(this.paths.keySet());
+        Mockito.when(session.hasPendingChanges()).thenReturn(true);
+        Assert.assertTrue(this.index.isSelfOrDescendantOf(VISIT, PATIENT, session));
+
+        final Session other = mockSession(this.paths.keySet());
+        Assert.assertTrue(this.index.isSelfOrDescendantOf(VISIT, PATIENT, other));
+        Mockito.verify(other, Mockito.times(2)).getNodeByIdentifier(Matchers.anyString());
+    }
+
+    @Test
+    public void itemsOutsideFormsHaveNoFormSubject()
+    {
+        final Tree root = Mockito.mock(Tree.class);
+        Mockito.when(root.isRoot()).thenReturn(true);
+        Mockito.when(root.getPath()).thenReturn("/");
+
+        Assert.assertNull(this.index.getFormSubject(mockTree("/Subjects/p", "cards:Subject", root)));
+    }
+
+    private Tree mockTree(final String path, final String type, final Tree parent)
+    {
+        final Tree tree = Mockito.mock(Tree.class);
+        Mockito.when(tree.getPath()).thenReturn(path);
+        final PropertyState primaryType = mockProperty(type);
+        Mockito.when(tree.getProperty("jcr:primaryType")).thenReturn(primaryType);
+        Mockito.when(tree.getParent()).thenReturn(parent);
+        Mockito.when(tree.getStatus()).thenReturn(Tree.Status.UNCHANGED);
+        return tree;
+    }
+
+    private PropertyState mockProperty(final String value)
+    {
+        final PropertyState property = Mockito.mock(PropertyState.class);
+        Mockito.when(property.getValue(Type.STRING)).thenReturn(value);
+        return property;
+    }
+
+    /**
+     * Mock a session which can only read some of the subjects.
+     *
+     * @param readable the identifiers of the subjects readable by the session
+     * @return a mock session
+     */
+    private Session mockSession(final Set<String> readable)
+    {
+        final Session session = Mockito.mock(Session.class);
+        try {
+            Mockito.when(session.getNodeByIdentifier(Matchers.anyString())).thenAnswer(invocation -> {
+                final String id = (String) invocation.getArguments()[0];
+                if (!readable.contains(id)) {
+                    throw new ItemNotFoundException(id);
+                }
+                return mockSubject(id);
+            });
+            Mockito.when(session.nodeExists(Matchers.anyString())).thenAnswer(
+                invocation -> readable.contains(getIdentifier((String) invocation.getArguments()[0])));
+            Mockito.when(session.getNode(Matchers.anyString()))
+                .thenAnswer(invocation -> mockSubject(getIdentifier((String) invocation.getArguments()[0])));
+        } catch (RepositoryException e) {
+            // Not thrown by mocks
+        }
+        return session;
+    }
+
+    private Node mockSubject(final String id) throws RepositoryException
+    {
+        final Node subject = Mockito.mock(Node.class);
+        Mockito.when(subject.getIdentifier()).thenReturn(id);
+        Mockito.when(subject.getPath()).thenReturn(this.paths.get(id));
+        final String parent = this.parents.get(id);
+        Mockito.when(subject.hasProperty("parents")).thenReturn(parent != null);
+        if (parent != null) {
+            final Property parentsProperty = Mockito.mock(Property.class);
+            Mockito.when(parentsProperty.getString()).thenReturn(parent);
+            Mockito.when(subject.getProperty("parents")).thenReturn(parentsProperty);
+        }
+        return subject;
+    }
+
+    private String getIdentifier(final String path)
+    {
+        return this.paths.entrySet().stream()
+            .filter(entry -> entry.getValue().equals(path))
+            .map(Map.Entry::getKey)
+            .findFirst()
+            .orElse(null);
+    }
+}
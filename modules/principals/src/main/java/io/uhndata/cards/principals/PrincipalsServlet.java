@@ -20,7 +20,10 @@
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.Locale;
+import java.util.stream.Collectors;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
@@ -44,9 +47,12 @@
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.servlets.annotations.SlingServletPaths;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.uhndata.cards.principals.internal.PrincipalCountCache;
+
 /**
  * A servlet that lists existing principals. It supports pagination and basic filtering. Depending on the path on which
  * it is invoked, it can either return only users (on {@code /home/users.json}), only groups (on
@@ -61,7 +67,14 @@
  * <li><code>offset</code>: a 0-based number representing how many principals to skip; 0 by default</li>
  * <li><code>limit</code>: a number representing how many principals to include at most in the result; 0 by default</li>
  * <li><code>type</code>: a users type filter: "service" for only service users or "all" for all types</li>
+ * <li><code>prefix</code>: a typeahead prefix, such as "dav" or "david sm", where every word must start a word of the
+ * principal, searched in the same full text index as {@code filter}; when set, {@code filter} is ignored</li>
  * </ul>
+ * <p>
+ * Only the requested page of principals is loaded from the repository. The total number of matching principals is
+ * computed separately, and cached until the principals change. Counting stops a fixed number of principals past the
+ * requested page, in which case {@code totalrows} is a lower bound, and {@code totalIsApproximate} is set.
+ * </p>
  *
  * @version $Id$
  */
@@ -70,7 +83,8 @@
 public class PrincipalsServlet extends SlingSafeMethodsServlet
 {
     /**
-     * Creates a query for principals matching the request parameters.
+     * Creates a query for principals matching the request parameters. It also holds these parameters while the
+     * request is processed.
      */
     private static final class FilteredPrincipalsQuery implements Query
     {
@@ -97,6 +111,27 @@ private FilteredPrincipalsQuery(JackrabbitSession session, AuthorizableType type
             this.userType = userType;
         }
 
+        /**
+         * The same query, starting from the first match, used for counting the matching principals.
+         *
+         * @param maxCount how many principals to return at most
+         * @return a new query
+         */
+        private FilteredPrincipalsQuery counting(final long maxCount)
+        {
+            return new FilteredPrincipalsQuery(this.session, this.type, maxCount, this.filter, this.userType, 0);
+        }
+
+        /**
+         * A key identifying the matching principals, used for caching their count.
+         *
+         * @return a key including all the parameters affecting the results, except pagination
+         */
+        private String getKey()
+        {
+            return this.type + "\n" + this.filter + "\n" + this.userType;
+        }
+
         @Override
         public <T> void build(QueryBuilder<T> builder)
         {
@@ -129,8 +164,8 @@ public <T> void build(QueryBuilder<T> builder)
             builder.setSelector(this.type.getAuthorizableClass());
             // Pagination parameters
             // TODO Maybe use the value-bound method instead of fixed pages?
-            if (this.limit > 0) {
-                builder.setLimit(this.offset, this.limit);
+            if (this.limit > 0 || this.offset > 0) {
+                builder.setLimit(this.offset, this.limit > 0 ? this.limit : -1);
             }
         }
     }
@@ -139,6 +174,12 @@ public <T> void build(QueryBuilder<T> builder)
 
     private static final Logger LOGGER = LoggerFactory.getLogger(PrincipalsServlet.class);
 
+    /** How many principals past the requested page to count at most, above this the total is approximate. */
+    private static final long COUNT_LOOKAHEAD = 1000;
+
+    @Reference
+    private PrincipalCountCache principalCountCache;
+
     @Override
     public void doGet(final SlingHttpServletRequest request, final SlingHttpServletResponse response) throws IOException
     {
@@ -146,6 +187,7 @@ public void doGet(final SlingHttpServletRequest request, final SlingHttpServletR
         response.setCharacterEncoding("UTF-8");
         String filter = request.getParameter("filter");
         String userType = request.getParameter("type");
+        final String prefix = request.getParameter("prefix");
         final long limit = getLongValueOrDefault(request.getParameter("limit"), 0);
         final long offset = getLongValueOrDefault(request.getParameter("offset"), 0);
         Session session = request.getResourceResolver().adaptTo(Session.class);
@@ -168,13 +210,13 @@ public void doGet(final SlingHttpServletRequest request, final SlingHttpServletR
                 }
                 jsonGen.writeStartObject();
                 // The magic number 8 is the prefix length for the protocol, https://
-                long[] principalCounts =
-                    writePrincipals(jsonGen,
-                        queryPrincipals((JackrabbitSession) session, type, filter, userType, 0, Long.MAX_VALUE),
-                        request.getRequestURL().substring(0, request.getRequestURL().indexOf("/", 8))
-                            + request.getContextPath(), offset, limit);
-                writeSummary(jsonGen, request, filter, offset, limit,
-                    principalCounts[0], principalCounts[1]);
+                final String urlPrefix = request.getRequestURL().substring(0, request.getRequestURL().indexOf("/", 8))
+                    + request.getContextPath();
+                // A typeahead prefix is turned into a full text search for words starting with each typed word
+                final String query = StringUtils.isNotBlank(prefix) ? toFullTextPrefix(prefix) : filter;
+                long[] principalCounts = writePrincipalsPage(jsonGen, new FilteredPrincipalsQuery(
+                    (JackrabbitSession) session, type, limit, query, userType, Math.max(offset, 0)), urlPrefix);
+                writeSummary(jsonGen, request, filter, offset, limit, principalCounts);
                 jsonGen.writeEnd().flush();
             }
         } catch (RepositoryException e) {
@@ -183,23 +225,48 @@ public void doGet(final SlingHttpServletRequest request, final SlingHttpServletR
     }
 
     /**
-     * Query the list of principals according to the filter and paging parameters.
+     * Serialize the requested page of principals matching a filter, and count the matching principals, up to
+     * {@link #COUNT_LOOKAHEAD} principals past the requested page.
      *
-     * @param session the current JCR session
-     * @param type the type of principals to include in the results
-     * @param filter an optional filter, in the lucene search term syntax
-     * @param userType a user type filter whether to include only users, service users or both
-     * @param offset how many results to skip
-     * @param limit how many results to include at most
-     * @return the matching authorizables, may be empty
+     * @param jsonGen the JSON generator where the results should be serialized
+     * @param query the query for the requested page of principals
+     * @param urlPrefix an URL prefix for the server, used for computing an URL for accessing a principal
+     * @return a long array of length 3 where the element at index [0] is the number of matching principals included
+     *            in the response, the element at index [1] is the total number of accessible principals matching the
+     *            requested filters, or a lower bound of it, and the element at index [2] is {@code 1} if the total
+     *            is only a lower bound
      * @throws RepositoryException if the query fails
      */
-    private Iterator<Authorizable> queryPrincipals(final JackrabbitSession session, final AuthorizableType type,
-        final String filter, final String userType, final long offset, final long limit) throws RepositoryException
+    private long[] writePrincipalsPage(final JsonGenerator jsonGen, final FilteredPrincipalsQuery query,
+        final String urlPrefix) throws RepositoryException
+    {
+        final UserManager userManager = query.session.getUserManager();
+        final long returned = writePrincipals(jsonGen, userManager.findAuthorizables(query), urlPrefix);
+        if ((query.limit <= 0 || returned < query.limit) && (returned > 0 || query.offset == 0)) {
+            // This is the last page, no need to count
+            return new long[] { returned, query.offset + returned, 0 };
+        }
+        final long maxCount = query.offset + query.limit + COUNT_LOOKAHEAD;
+        // Count one more principal than needed, to know if there are more
+        final long count = this.principalCountCache.getCount(query.getKey() + "\n" + maxCount, query.session,
+            () -> sizeOf(userManager.findAuthorizables(query.counting(maxCount + 1))));
+        return count > maxCount ? new long[] { returned, maxCount, 1 } : new long[] { returned, count, 0 };
+    }
+
+    /**
+     * Convert a typeahead prefix into a full text search term requiring, for each typed word, a word starting with it.
+     * Anything except letters and digits separates words, so the result never contains full text syntax.
+     *
+     * @param prefix the prefix typed by the user, such as {@code "david sm"}
+     * @return a full text search term, such as {@code "david* sm*"}, or {@code null} if the prefix has no words
+     */
+    static String toFullTextPrefix(final String prefix)
     {
-        final Query q = new FilteredPrincipalsQuery(session, type, limit, filter, userType, offset);
-        final UserManager userManager = session.getUserManager();
-        return userManager.findAuthorizables(q);
+        final String result = Arrays.stream(prefix.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+"))
+            .filter(word -> !word.isEmpty())
+            .map(word -> word + "*")
+            .collect(Collectors.joining(" "));
+        return result.isEmpty() ? null : result;
     }
 
     /**
@@ -211,66 +278,40 @@ private Iterator<Authorizable> queryPrincipals(final JackrabbitSession session,
      * @param filter the requested filter, may be {@code null}
      * @param offset the requested offset, may be the default value of {0}
      * @param limit the requested limit, may be the default value of {10}
-     * @param returnedPrincipals the number of matching principals included in the response, may be {@code 0} if no
-     *            principals were returned
-     * @param totalMatchingPrincipals the total number of accessible principals matching the request filters, may be
-     *            {@code 0} if no principals match the filters, or the current user cannot access the principals
+     * @param principalCounts the counts returned by {@link #writePrincipalsPage}: the number of matching principals
+     *            included in the response, the total number of accessible principals matching the request filters, or
+     *            a lower bound of it, and whether the total is only a lower bound
      */
     private void writeSummary(final JsonGenerator jsonGen, final SlingHttpServletRequest request, final String filter,
-        final long offset, final long limit, final long returnedPrincipals, final long totalMatchingPrincipals)
+        final long offset, final long limit, final long[] principalCounts)
     {
         jsonGen.write("req", request.getParameter("req"));
         jsonGen.write("filter", filter);
         jsonGen.write("offset", offset);
         jsonGen.write("limit", limit);
-        jsonGen.write("returnedrows", returnedPrincipals);
-        jsonGen.write("totalrows", totalMatchingPrincipals);
+        jsonGen.write("returnedrows", principalCounts[0]);
+        jsonGen.write("totalrows", principalCounts[1]);
+        jsonGen.write("totalIsApproximate", principalCounts[2] == 1);
     }
 
     /**
      * Serialize a list of authorizables as JSON.
      *
-     * For the purposes of the servlet, it is intended that a query for all of the principals matching the filter to be
-     * made using this servlet so that the total number of matching principals can be recorded for pagination purposes.
-     * The method will only write the Authorizables that are allowed by the offset and limit to the JSON however.
-     *
      * @param jsonGen the JSON generator where the results should be serialized
-     * @param principals the list of authorizables to serialize
+     * @param principals the authorizables to serialize, already paginated
      * @param urlPrefix an URL prefix for the server, used for computing an URL for accessing a principal
-     * @param offset the requested offset, may be the default value of {0}
-     * @param limit the requested limit, may be the default value of {0}
-     * @return a long array of length 2 where the element at index [0] is the number of matching principals included
-     *            in the response, and the element at index [1] is the total number of accessible principals
-     *            matching the requested filters
+     * @return the number of principals included in the response
      */
-    private long[] writePrincipals(final JsonGenerator jsonGen, final Iterator<Authorizable> principals,
-        final String urlPrefix, final long offset, final long limit)
+    private long writePrincipals(final JsonGenerator jsonGen, final Iterator<Authorizable> principals,
+        final String urlPrefix)
     {
-        long[] principalCount = new long[2];
-        principalCount[0] = 0;
-        principalCount[1] = 0;
-
-        long offsetCounter = offset < 0 ? 0 : offset;
-        long limitCounter = limit < 0 ? 0 : limit;
+        long principalCount = 0;
 
         jsonGen.writeStartArray("rows");
 
         while (principals.hasNext()) {
-            Authorizable authorizable = principals.next();
-            if (offsetCounter > 0) {
-                --offsetCounter;
-            } else {
-                if (limit > 0) {
-                    if (limitCounter > 0) {
-                        writeAuthorizable(jsonGen, authorizable, urlPrefix);
-                        --limitCounter;
-                        ++principalCount[0];
-                    }
-                } else {
-                    writeAuthorizable(jsonGen, authorizable, urlPrefix);
-                }
-            }
-            ++principalCount[1];
+            writeAuthorizable(jsonGen, principals.next(), urlPrefix);
+            ++principalCount;
         }
 
         jsonGen.writeEnd();
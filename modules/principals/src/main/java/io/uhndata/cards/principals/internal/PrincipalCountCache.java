@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.principals.internal;
+
+import java.util.List;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.sling.api.resource.observation.ExternalResourceChangeListener;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.osgi.service.component.annotations.Component;
+
+import io.uhndata.cards.utils.InvalidatingCache;
+
+/**
+ * In-memory cache of principal counts, used by the principals servlet. It holds the number of principals matching a
+ * query, so that only the requested page needs to be loaded. Since the visible principals depend on the access rights
+ * of the user, counts are kept per user. Everything is discarded after any change under {@code /home}, including
+ * changes coming from other cluster members.
+ *
+ * @version $Id$
+ */
+@Component(service = { PrincipalCountCache.class, ResourceChangeListener.class }, property = {
+    ResourceChangeListener.PATHS + "=/home",
+    ResourceChangeListener.CHANGES + "=ADDED",
+    ResourceChangeListener.CHANGES + "=CHANGED",
+    ResourceChangeListener.CHANGES + "=REMOVED"
+})
+public class PrincipalCountCache implements ResourceChangeListener, ExternalResourceChangeListener
+{
+    /** How many query counts to remember at most. */
+    private static final int MAX_COUNTS = 1000;
+
+    /** Cached counts, keyed by user and query. */
+    private final InvalidatingCache<String, Long> counts = new InvalidatingCache<>(MAX_COUNTS);
+
+    /**
+     * Counts the results of a query.
+     */
+    @FunctionalInterface
+    public interface Counter
+    {
+        /**
+         * Count the results.
+         *
+         * @return the number of results
+         * @throws RepositoryException if the query fails
+         */
+        long count() throws RepositoryException;
+    }
+
+    /**
+     * Get the number of principals matching a query, as visible to the current user, returning a cached value if
+     * available. Concurrent requests for the same count wait for a single computation.
+     *
+     * @param query a key identifying the query, including all the parameters affecting the result
+     * @param session the session of the current user
+     * @param counter computes the count if it is not cached
+     * @return the number of matching principals
+     * @throws RepositoryException if counting fails
+     */
+    public long getCount(final String query, final JackrabbitSession session, final Counter counter)
+        throws RepositoryException
+    {
+        return this.counts.get(session.getUserID() + '\n' + query, key -> counter.count());
+    }
+
+    @Override
+    public void onChange(final List<ResourceChange> changes)
+    {
+        this.counts.invalidateAll();
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.principals;
+
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.ValueFactory;
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Query;
+import org.apache.jackrabbit.api.security.user.QueryBuilder;
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestPathInfo;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.Spy;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import io.uhndata.cards.principals.internal.PrincipalCountCache;
+
+/**
+ * Unit tests for {@link PrincipalsServlet}.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class PrincipalsServletTest
+{
+    @Spy
+    private PrincipalCountCache principalCountCache = new PrincipalCountCache();
+
+    @InjectMocks
+    private PrincipalsServlet servlet;
+
+    @Mock
+    private JackrabbitSession session;
+
+    @Mock
+    private UserManager userManager;
+
+    @Before
+    public void setup() throws RepositoryException
+    {
+        Mockito.when(this.session.getUserID()).thenReturn("admin");
+        Mockito.when(this.session.getUserManager()).thenReturn(this.userManager);
+        Mockito.when(this.session.getValueFactory()).thenReturn(Mockito.mock(ValueFactory.class));
+    }
+
+    @Test
+    public void lastPagesAreNotCounted() throws Exception
+    {
+        final Iterator<Authorizable> page = users(3);
+        Mockito.when(this.userManager.findAuthorizables(Matchers.any(Query.class))).thenReturn(page);
+
+        final JsonObject result = get(10, 20);
+
+        Assert.assertEquals(3, result.getInt("returnedrows"));
+        Assert.assertEquals(23, result.getInt("totalrows"));
+        Assert.assertFalse(result.getBoolean("totalIsApproximate"));
+        Mockito.verify(this.userManager, Mockito.times(1)).findAuthorizables(Matchers.any(Query.class));
+    }
+
+    @Test
+    public void smallTotalsAreExact() throws Exception
+    {
+        final Iterator<Authorizable> page = users(10);
+        final Iterator<Authorizable> all = users(25);
+        Mockito.when(this.userManager.findAuthorizables(Matchers.any(Query.class))).thenReturn(page).thenReturn(all);
+
+        final JsonObject result = get(10, 0);
+
+        Assert.assertEquals(10, result.getInt("returnedrows"));
+        Assert.assertEquals(25, result.getInt("totalrows"));
+        Assert.assertFalse(result.getBoolean("totalIsApproximate"));
+    }
+
+    @Test
+    public void countingStopsPastThePage() throws Exception
+    {
+        final Iterator<Authorizable> page = users(10);
+        final Iterator<Authorizable> all = users(1021);
+        Mockito.when(this.userManager.findAuthorizables(Matchers.any(Query.class))).thenReturn(page).thenReturn(all);
+
+        final JsonObject result = get(10, 10);
+
+        Assert.assertEquals(1020, result.getInt("totalrows"));
+        Assert.assertTrue(result.getBoolean("totalIsApproximate"));
+
+        // The count query only asks for one more principal than the bound
+        final ArgumentCaptor<Query> queries = ArgumentCaptor.forClass(Query.class);
+        Mockito.verify(this.userManager, Mockito.times(2)).findAuthorizables(queries.capture());
+        @SuppressWarnings("unchecked")
+        final QueryBuilder<Object> builder = Mockito.mock(QueryBuilder.class);
+        queries.getAllValues().get(1).build(builder);
+        Mockito.verify(builder).setLimit(0, 1021);
+    }
+
+    @Test
+    public void countsAreCached() throws Exception
+    {
+        final Iterator<Authorizable> firstPage = users(10);
+        final Iterator<Authorizable> all = users(25);
+        final Iterator<Authorizable> secondPage = users(10);
+        Mockito.when(this.userManager.findAuthorizables(Matchers.any(Query.class))).thenReturn(firstPage)
+            .thenReturn(all).thenReturn(secondPage);
+
+        get(10, 0);
+        final JsonObject result = get(10, 0);
+
+        Assert.assertEquals(25, result.getInt("totalrows"));
+        Mockito.verify(this.userManager, Mockito.times(3)).findAuthorizables(Matchers.any(Query.class));
+    }
+
+    @Test
+    public void prefixWordsBecomeFullTextPrefixes()
+    {
+        Assert.assertEquals("dav*", PrincipalsServlet.toFullTextPrefix("dav"));
+        Assert.assertEquals("david* sm*", PrincipalsServlet.toFullTextPrefix("  David Sm"));
+    }
+
+    @Test
+    public void fullTextSyntaxIsNotPassedThrough()
+    {
+        // Lowercase words cannot be full text operators
+        Assert.assertEquals("a* or* b* c*", PrincipalsServlet.toFullTextPrefix("a OR-b \"c*"));
+        Assert.assertEquals("é* 42*", PrincipalsServlet.toFullTextPrefix("é:42"));
+    }
+
+    @Test
+    public void prefixesWithoutWordsMatchEverything()
+    {
+        Assert.assertNull(PrincipalsServlet.toFullTextPrefix(" *- "));
+    }
+
+    private JsonObject get(final long limit, final long offset) throws Exception
+    {
+        final SlingHttpServletRequest request = Mockito.mock(SlingHttpServletRequest.class);
+        Mockito.when(request.getParameter("limit")).thenReturn(String.valueOf(limit));
+        Mockito.when(request.getParameter("offset")).thenReturn(String.valueOf(offset));
+        final ResourceResolver resolver = Mockito.mock(ResourceResolver.class);
+        Mockito.when(request.getResourceResolver()).thenReturn(resolver);
+        Mockito.when(resolver.adaptTo(Session.class)).thenReturn(this.session);
+        final RequestPathInfo pathInfo = Mockito.mock(RequestPathInfo.class);
+        Mockito.when(request.getRequestPathInfo()).thenReturn(pathInfo);
+        Mockito.when(pathInfo.getResourcePath()).thenReturn("/home/users.json");
+        Mockito.when(request.getRequestURL()).thenReturn(new StringBuffer("http://localhost:8080/home/users.json"));
+        Mockito.when(request.getContextPath()).thenReturn("");
+
+        final SlingHttpServletResponse response = Mockito.mock(SlingHttpServletResponse.class);
+        final StringWriter out = new StringWriter();
+        Mockito.when(response.getWriter()).thenReturn(new PrintWriter(out));
+
+        this.servlet.doGet(request, response);
+        return Json.createReader(new StringReader(out.toString())).readObject();
+    }
+
+    private Iterator<Authorizable> users(final int count) throws RepositoryException
+    {
+        final List<Authorizable> result = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            final User user = Mockito.mock(User.class);
+            final Principal principal = Mockito.mock(Principal.class);
+            Mockito.when(user.getID()).thenReturn("user" + i);
+            Mockito.when(user.getPrincipal()).thenReturn(principal);
+            Mockito.when(principal.getName()).thenReturn("user" + i);
+            Mockito.when(user.getPath()).thenReturn("/home/users/user" + i);
+            Mockito.when(user.declaredMemberOf()).thenReturn(Collections.emptyIterator());
+            Mockito.when(user.memberOf()).thenReturn(Collections.emptyIterator());
+            Mockito.when(user.getPropertyNames()).thenReturn(Collections.emptyIterator());
+            result.add(user);
+        }
+        return result.iterator();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.principals.internal;
+
+import java.util.Collections;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Unit tests for {@link PrincipalCountCache}.
+ *
+ * @version $Id$
+ */
+public class PrincipalCountCacheTest
+{
+    private static final String QUERY = "USER\nnull\nnull";
+
+    private final PrincipalCountCache cache = new PrincipalCountCache();
+
+    @Test
+    public void countsAreCachedPerUser() throws RepositoryException
+    {
+        final JackrabbitSession alice = mockSession("alice");
+        final JackrabbitSession bob = mockSession("bob");
+
+        Assert.assertEquals(10, this.cache.getCount(QUERY, alice, () -> 10));
+        Assert.assertEquals(10, this.cache.getCount(QUERY, alice, () -> {
+            throw new AssertionError("The count should be cached");
+        }));
+        Assert.assertEquals(3, this.cache.getCount(QUERY, bob, () -> 3));
+        Assert.assertEquals(4, this.cache.getCount("GROUP\nnull\nnull", alice, () -> 4));
+    }
+
+    @Test
+    public void changesDiscardCounts() throws RepositoryException
+    {
+        final JackrabbitSession alice = mockSession("alice");
+        this.cache.getCount(QUERY, alice, () -> 10);
+
+        this.cache.onChange(Collections.singletonList(new ResourceChange(ChangeType.ADDED, "/home/users/n", false)));
+
+        Assert.assertEquals(11, this.cache.getCount(QUERY, alice, () -> 11));
+    }
+
+    @Test
+    public void countsComputedDuringAChangeAreNotCached() throws RepositoryException
+    {
+        final JackrabbitSession alice = mockSession("alice");
+        this.cache.getCount(QUERY, alice, () -> {
+            this.cache.onChange(
+                Collections.singletonList(new ResourceChange(ChangeType.ADDED, "/home/users/n", false)));
+            return 10;
+        });
+
+        Assert.assertEquals(11, this.cache.getCount(QUERY, alice, () -> 11));
+    }
+
+    @Test
+    public void failedCountsAreNotCached() throws RepositoryException
+    {
+        final JackrabbitSession alice = mockSession("alice");
+        try {
+            this.cache.getCount(QUERY, alice, () -> {
+                throw new RepositoryException("Failed");
+            });
+            Assert.fail("The failure should be reported");
+        } catch (final RepositoryException e) {
+            Assert.assertEquals("Failed", e.getMessage());
+        }
+
+        Assert.assertEquals(10, this.cache.getCount(QUERY, alice, () -> 10));
+    }
+
+    private JackrabbitSession mockSession(final String userId)
+    {
+        final JackrabbitSession session = Mockito.mock(JackrabbitSession.class);
+        Mockito.when(session.getUserID()).thenReturn(userId);
+        return session;
+    }
+}
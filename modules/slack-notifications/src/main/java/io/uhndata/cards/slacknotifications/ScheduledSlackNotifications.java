@@ -27,9 +27,13 @@
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.uhndata.cards.metrics.MetricsRegistry;
+
 @Component(immediate = true)
 public class ScheduledSlackNotifications
 {
@@ -44,6 +48,10 @@
     @Reference
     private Scheduler scheduler;
 
+    /** Holds the metrics increments not yet stored. */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policyOption = ReferencePolicyOption.GREEDY)
+    private volatile MetricsRegistry metricsRegistry;
+
     @Activate
     protected void activate(ComponentContext componentContext) throws Exception
     {
@@ -55,7 +63,7 @@ protected void activate(ComponentContext componentContext) throws Exception
         slackNotificationsOptions.name("slackNightlyNotifications");
         slackNotificationsOptions.canRunConcurrently(true);
 
-        final Runnable slackNotificationsJob = new SlackNotificationsTask(this.resolverFactory);
+        final Runnable slackNotificationsJob = new SlackNotificationsTask(this.resolverFactory, this.metricsRegistry);
 
         try {
             this.scheduler.schedule(slackNotificationsJob, slackNotificationsOptions);
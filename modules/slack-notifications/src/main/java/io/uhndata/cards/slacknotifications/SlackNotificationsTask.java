@@ -39,6 +39,7 @@
 
 import io.uhndata.cards.httprequests.HttpRequests;
 import io.uhndata.cards.metrics.Metrics;
+import io.uhndata.cards.metrics.MetricsRegistry;
 
 public class SlackNotificationsTask implements Runnable
 {
@@ -52,9 +53,13 @@ public class SlackNotificationsTask implements Runnable
     /** Provides access to resources. */
     private final ResourceResolverFactory resolverFactory;
 
-    SlackNotificationsTask(final ResourceResolverFactory resolverFactory)
+    /** Holds the metrics increments not yet stored, may be {@code null}. */
+    private final MetricsRegistry metricsRegistry;
+
+    SlackNotificationsTask(final ResourceResolverFactory resolverFactory, final MetricsRegistry metricsRegistry)
     {
         this.resolverFactory = resolverFactory;
+        this.metricsRegistry = metricsRegistry;
     }
 
     private String buildNotificationLine(String prevValue, Map<String, Long> statMap, String name)
@@ -155,7 +160,7 @@ public void run()
                 if (thisHumanName == null) {
                     continue;
                 }
-                Map<String, Long> thisMetricValue = Metrics.getAndReset(resolver, thisJcrName);
+                Map<String, Long> thisMetricValue = Metrics.getAndReset(this.metricsRegistry, resolver, thisJcrName);
                 if (thisMetricValue == null) {
                     continue;
                 }
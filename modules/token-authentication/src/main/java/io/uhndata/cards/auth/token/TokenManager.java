@@ -47,4 +47,12 @@
      * @return the parsed token data, or {@code null} if the input is invalid
      */
     CardsToken parse(String token);
+
+    /**
+     * Discard any data about a token that was kept in memory by {@link #parse(String)}, so that it will be read again
+     * from the repository the next time it is needed.
+     *
+     * @param token a token identifier, either in the format {@code node-uuid_secret-key}, or just {@code node-uuid}
+     */
+    void invalidate(String token);
 }
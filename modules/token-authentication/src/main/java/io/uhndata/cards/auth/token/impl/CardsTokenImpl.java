@@ -128,6 +128,25 @@ public CardsTokenImpl(final Node tokenNode, final String token, final String use
         this.attributes = Collections.unmodifiableMap(storedAttributes);
     }
 
+    /**
+     * Constructor reusing the details of an already loaded token for a new login token string, used when serving parsed
+     * tokens from a cache.
+     *
+     * @param token an already loaded token
+     * @param loginToken the login token
+     */
+    public CardsTokenImpl(final CardsTokenImpl token, final String loginToken)
+    {
+        this.tokenNode = token.tokenNode;
+        this.root = token.root;
+        this.tokenTree = token.tokenTree;
+        this.loginToken = loginToken;
+        this.userId = token.userId;
+        this.expirationTime = token.expirationTime;
+        this.validationKey = token.validationKey;
+        this.attributes = token.attributes;
+    }
+
     /**
      * Constructor to be during authentication, to load and validate the token through the {@code TokenLoginModule}.
      *
@@ -21,8 +21,13 @@
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Calendar;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import javax.jcr.InvalidItemStateException;
 import javax.jcr.Node;
@@ -30,6 +35,7 @@
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
+import org.apache.commons.collections4.map.LRUMap;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.jackrabbit.oak.spi.security.authentication.token.TokenConfiguration;
 import org.apache.jackrabbit.oak.spi.security.user.util.PasswordUtil;
@@ -37,11 +43,19 @@
 import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.observation.ExternalResourceChangeListener;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.FieldOption;
+import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.osgi.service.component.annotations.ReferencePolicyOption;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,17 +63,36 @@
 import io.uhndata.cards.auth.token.TokenManager;
 
 /**
- * Implementation of the {@link TokenManager} service using {@code cards:Token} nodes.
+ * Implementation of the {@link TokenManager} service using {@code cards:Token} nodes. Parsed tokens are kept in a
+ * bounded in-memory cache, since the same token is parsed on every request made by a token-authenticated user. A cached
+ * token is only used for a configurable revalidation interval, after which the token node is read again, so a token
+ * removed from the repository is rejected after at most that interval. Since delivery of events for nodes under
+ * {@code /jcr:system} is not guaranteed, observed changes and removals only discard cached tokens sooner.
  *
  * @version $Id$
  */
-@Component
-public class TokenManagerImpl implements TokenManager
+@Designate(ocd = TokenManagerImpl.Config.class)
+@Component(service = { TokenManager.class, ResourceChangeListener.class }, property = {
+    ResourceChangeListener.PATHS + "=" + CardsToken.TOKENS_NODE_PATH,
+    ResourceChangeListener.CHANGES + "=CHANGED",
+    ResourceChangeListener.CHANGES + "=REMOVED"
+})
+@SuppressWarnings("checkstyle:ClassFanOutComplexity")
+public class TokenManagerImpl implements TokenManager, ResourceChangeListener, ExternalResourceChangeListener
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(TokenManagerImpl.class);
 
     private static final int SECRET_KEY_SIZE = 24;
 
+    /** How many parsed tokens to keep in memory at most. */
+    private static final int MAX_CACHED_TOKENS = 10_000;
+
+    /** Parsed tokens, keyed by the token node identifier, in access order. Access must be synchronized on the map. */
+    private final Map<String, CachedToken> cache = new LRUMap<>(MAX_CACHED_TOKENS);
+
+    /** How long a parsed token can be used before checking the repository again, in milliseconds. */
+    private volatile long revalidationInterval = TimeUnit.SECONDS.toMillis(Config.DEFAULT_REVALIDATION_INTERVAL);
+
     private final SecureRandom random = new SecureRandom();
 
     @Reference(fieldOption = FieldOption.REPLACE, cardinality = ReferenceCardinality.OPTIONAL,
@@ -69,6 +102,28 @@ public class TokenManagerImpl implements TokenManager
     @Reference
     private TokenConfiguration configuration;
 
+    @ObjectClassDefinition(name = "Token manager", description = "Configuration for the authentication tokens")
+    public @interface Config
+    {
+        /** Default value for {@link #revalidationInterval()}. */
+        long DEFAULT_REVALIDATION_INTERVAL = 60;
+
+        @AttributeDefinition(name = "Revalidation interval",
+            description = "How long a parsed token can be used before checking the repository again, in seconds."
+                + " This is the longest time a removed token may still be accepted. 0 disables caching.")
+        long revalidationInterval() default DEFAULT_REVALIDATION_INTERVAL;
+    }
+
+    @Activate
+    @Modified
+    protected void activate(final Config config)
+    {
+        this.revalidationInterval = TimeUnit.SECONDS.toMillis(Math.max(config.revalidationInterval(), 0));
+        synchronized (this.cache) {
+            this.cache.clear();
+        }
+    }
+
     @Override
     public CardsToken create(final String userId, final Calendar expiration, final Map<String, String> extraData)
     {
@@ -102,6 +157,16 @@ public CardsToken parse(final String loginToken)
         // The secret key does not need to be used/validated now, so just ignore it
         final String nodeId = StringUtils.substringBefore(loginToken, CardsToken.TOKEN_DELIMITER);
 
+        synchronized (this.cache) {
+            final CachedToken cached = this.cache.get(nodeId);
+            if (cached != null) {
+                if (!cached.isExpired()) {
+                    return new CardsTokenImpl(cached.token, loginToken);
+                }
+                this.cache.remove(nodeId);
+            }
+        }
+
         try (ResourceResolver srr = this.rrf.getServiceResourceResolver(null)) {
             final Node tokenNode = srr.adaptTo(Session.class).getNodeByIdentifier(nodeId);
             // Check that the node is indeed a valid token node
@@ -110,7 +175,14 @@ public CardsToken parse(final String loginToken)
                 String userId = getUser(tokenNode);
                 if (userId != null) {
                     // Everything seems correct so far, return a new TokenInfo wrapper around the node
-                    return new CardsTokenImpl(tokenNode, loginToken, userId);
+                    final CardsTokenImpl token = new CardsTokenImpl(tokenNode, loginToken, userId);
+                    final long interval = this.revalidationInterval;
+                    if (interval > 0) {
+                        synchronized (this.cache) {
+                            this.cache.put(nodeId, new CachedToken(token, tokenNode.getPath(), interval));
+                        }
+                    }
+                    return token;
                 }
             }
         } catch (RepositoryException e) {
@@ -121,6 +193,38 @@ public CardsToken parse(final String loginToken)
         return null;
     }
 
+    @Override
+    public void invalidate(final String loginToken)
+    {
+        if (loginToken == null) {
+            return;
+        }
+        synchronized (this.cache) {
+            this.cache.remove(StringUtils.substringBefore(loginToken, CardsToken.TOKEN_DELIMITER));
+        }
+    }
+
+    @Override
+    public void onChange(final List<ResourceChange> changes)
+    {
+        final Set<String> changedPaths = new HashSet<>();
+        changes.forEach(change -> changedPaths.add(change.getPath()));
+        synchronized (this.cache) {
+            // A removed node may be the token itself, or one of its ancestors
+            final Iterator<CachedToken> it = this.cache.values().iterator();
+            while (it.hasNext()) {
+                String path = it.next().path;
+                while (path.startsWith(CardsToken.TOKENS_NODE_PATH + "/")) {
+                    if (changedPaths.contains(path)) {
+                        it.remove();
+                        break;
+                    }
+                    path = StringUtils.substringBeforeLast(path, "/");
+                }
+            }
+        }
+    }
+
     /**
      * Returns the node where tokens for the specified user are stored, {@code /jcr:system/cards:tokens/<username>}. If
      * the node did not already exist when calling this method, a new node will be created.
@@ -349,4 +453,32 @@ private Node getOrCreateNode(final Node parentNode, final String childNodeName,
         }
         return result;
     }
+
+    /**
+     * A parsed token, along with the time when it must be checked again.
+     */
+    private static final class CachedToken
+    {
+        private final CardsTokenImpl token;
+
+        private final String path;
+
+        private final long expiresAt;
+
+        CachedToken(final CardsTokenImpl token, final String path, final long revalidationInterval)
+        {
+            this.token = token;
+            this.path = path;
+            long expiration = System.currentTimeMillis() + revalidationInterval;
+            if (token.getExpirationTime() != null) {
+                expiration = Math.min(expiration, token.getExpirationTime().getTimeInMillis());
+            }
+            this.expiresAt = expiration;
+        }
+
+        boolean isExpired()
+        {
+            return System.currentTimeMillis() > this.expiresAt;
+        }
+    }
 }
@@ -96,6 +96,8 @@ public void dropCredentials(HttpServletRequest request, HttpServletResponse resp
             .findFirst()
             .orElse(null);
         if (existingCookie != null) {
+            // The token is no longer going to be presented by this client, no need to keep it in memory
+            this.tokenManager.invalidate(existingCookie.getValue());
             response.reset();
             final Cookie eraseCookie = new Cookie(TOKEN_COOKIE_NAME, "");
             eraseCookie.setMaxAge(0);
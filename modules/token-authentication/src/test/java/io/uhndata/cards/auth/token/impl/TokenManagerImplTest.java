@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.uhndata.cards.auth.token.impl;
+
+import java.util.Calendar;
+import java.util.Collections;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import io.uhndata.cards.auth.token.CardsToken;
+
+/**
+ * Unit tests for the token cache of {@link TokenManagerImpl}.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class TokenManagerImplTest
+{
+    private static final String NODE_ID = "0123";
+
+    private static final String USER_PATH = CardsToken.TOKENS_NODE_PATH + "/alice";
+
+    @Mock
+    private ResourceResolverFactory rrf;
+
+    @Mock
+    private ResourceResolver resolver;
+
+    @Mock
+    private Session session;
+
+    @Mock
+    private Node tokenNode;
+
+    @InjectMocks
+    private TokenManagerImpl tokenManager;
+
+    @Before
+    public void setupToken() throws LoginException, RepositoryException
+    {
+        Mockito.when(this.rrf.getServiceResourceResolver(null)).thenReturn(this.resolver);
+        Mockito.when(this.resolver.adaptTo(Session.class)).thenReturn(this.session);
+        Mockito.when(this.session.getNodeByIdentifier(NODE_ID)).thenReturn(this.tokenNode);
+
+        final Node userNode = Mockito.mock(Node.class);
+        final Node tokensNode = Mockito.mock(Node.class);
+        Mockito.when(tokensNode.getPath()).thenReturn(CardsToken.TOKENS_NODE_PATH);
+        Mockito.when(userNode.getPath()).thenReturn(USER_PATH);
+        Mockito.when(userNode.getName()).thenReturn("alice");
+        Mockito.when(userNode.getParent()).thenReturn(tokensNode);
+        Mockito.when(this.tokenNode.isNode()).thenReturn(true);
+        Mockito.when(this.tokenNode.isNodeType(CardsToken.TOKEN_NT_NAME)).thenReturn(true);
+        Mockito.when(this.tokenNode.getPath()).thenReturn(USER_PATH + "/token");
+        Mockito.when(this.tokenNode.getName()).thenReturn("token");
+        Mockito.when(this.tokenNode.getParent()).thenReturn(userNode);
+        Mockito.when(this.tokenNode.getProperties()).thenReturn(Mockito.mock(PropertyIterator.class));
+    }
+
+    @Test
+    public void parsedTokensAreReused() throws RepositoryException
+    {
+        final CardsToken first = this.tokenManager.parse(NODE_ID + "_key1");
+        final CardsToken second = this.tokenManager.parse(NODE_ID + "_key2");
+
+        Assert.assertEquals("alice", first.getUserId());
+        Assert.assertEquals("alice", second.getUserId());
+        Assert.assertEquals(NODE_ID + "_key2", second.getToken());
+        Mockito.verify(this.session, Mockito.times(1)).getNodeByIdentifier(NODE_ID);
+    }
+
+    @Test
+    public void changesToTheTokenDiscardIt() throws RepositoryException
+    {
+        this.tokenManager.parse(NODE_ID);
+        this.tokenManager.onChange(Collections.singletonList(
+            new ResourceChange(ChangeType.REMOVED, USER_PATH + "/token", false)));
+        this.tokenManager.parse(NODE_ID);
+
+        Mockito.verify(this.session, Mockito.times(2)).getNodeByIdentifier(NODE_ID);
+    }
+
+    @Test
+    public void removingAnAncestorDiscardsTheToken() throws RepositoryException
+    {
+        this.tokenManager.parse(NODE_ID);
+        this.tokenManager.onChange(Collections.singletonList(
+            new ResourceChange(ChangeType.REMOVED, USER_PATH, true)));
+        this.tokenManager.parse(NODE_ID);
+
+        Mockito.verify(this.session, Mockito.times(2)).getNodeByIdentifier(NODE_ID);
+    }
+
+    @Test
+    public void unrelatedChangesKeepTheToken() throws RepositoryException
+    {
+        this.tokenManager.parse(NODE_ID);
+        this.tokenManager.onChange(Collections.singletonList(
+            new ResourceChange(ChangeType.REMOVED, CardsToken.TOKENS_NODE_PATH + "/bob", false)));
+        this.tokenManager.parse(NODE_ID);
+
+        Mockito.verify(this.session, Mockito.times(1)).getNodeByIdentifier(NODE_ID);
+    }
+
+    @Test
+    public void invalidatedTokensAreDiscarded() throws RepositoryException
+    {
+        this.tokenManager.parse(NODE_ID + "_key");
+        this.tokenManager.invalidate(NODE_ID + "_key");
+        this.tokenManager.parse(NODE_ID + "_key");
+
+        Mockito.verify(this.session, Mockito.times(2)).getNodeByIdentifier(NODE_ID);
+    }
+
+    @Test
+    public void expiredTokensAreNotReused() throws RepositoryException
+    {
+        final Calendar expired = Calendar.getInstance();
+        expired.add(Calendar.MINUTE, -1);
+        Mockito.when(this.tokenNode.hasProperty(CardsToken.TOKEN_ATTRIBUTE_EXPIRY)).thenReturn(true);
+        Mockito.when(this.tokenNode.getProperty(CardsToken.TOKEN_ATTRIBUTE_EXPIRY))
+            .thenAnswer(invocation -> {
+                final Property property = Mockito.mock(Property.class);
+                Mockito.when(property.getDate()).thenReturn(expired);
+                return property;
+            });
+
+        this.tokenManager.parse(NODE_ID);
+        this.tokenManager.parse(NODE_ID);
+
+        Mockito.verify(this.session, Mockito.times(2)).getNodeByIdentifier(NODE_ID);
+    }
+
+    @Test
+    public void tokensAreRevalidatedWithoutChangeEvents() throws RepositoryException
+    {
+        this.tokenManager.activate(revalidationInterval(0));
+        this.tokenManager.parse(NODE_ID);
+        Mockito.when(this.session.getNodeByIdentifier(NODE_ID)).thenThrow(new ItemNotFoundException());
+
+        Assert.assertNull(this.tokenManager.parse(NODE_ID));
+    }
+
+    @Test
+    public void invalidTokenNodesAreNotCached() throws RepositoryException
+    {
+        Mockito.when(this.tokenNode.isNodeType(CardsToken.TOKEN_NT_NAME)).thenReturn(false);
+
+        Assert.assertNull(this.tokenManager.parse(NODE_ID));
+        Assert.assertNull(this.tokenManager.parse(NODE_ID));
+        Mockito.verify(this.session, Mockito.times(2)).getNodeByIdentifier(NODE_ID);
+    }
+
+    private static TokenManagerImpl.Config revalidationInterval(final long seconds)
+    {
+        final TokenManagerImpl.Config config = Mockito.mock(TokenManagerImpl.Config.class);
+        Mockito.when(config.revalidationInterval()).thenReturn(seconds);
+        return config;
+    }
+}
@@ -48,6 +48,12 @@
     /** Allowed provider roles. */
     String PROVIDER_ROLE = "ATND";
 
+    /** Number of clinics to query at the same time. */
+    int PARALLEL_CLINICS = 4;
+
+    /** Number of patients to store before saving. */
+    int BATCH_SIZE = 50;
+
     @AttributeDefinition(name = "Name", description = "Configuration name")
     String name();
 
@@ -90,4 +96,12 @@
         description = "If set, only appointments for these dates will be imported. Must be in the format yyyy-mm-dd.",
         required = false)
     String[] dates_to_query();
+
+    @AttributeDefinition(type = AttributeType.INTEGER, name = "Parallel clinics",
+        description = "How many clinics to query at the same time", required = false)
+    int parallel_clinics() default PARALLEL_CLINICS;
+
+    @AttributeDefinition(type = AttributeType.INTEGER, name = "Batch size",
+        description = "How many patients to store before saving the changes", required = false)
+    int batch_size() default BATCH_SIZE;
 }
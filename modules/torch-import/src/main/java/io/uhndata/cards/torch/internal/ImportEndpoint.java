@@ -34,7 +34,10 @@
 import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
 
+import io.uhndata.cards.metrics.MetricsRegistry;
 import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
 
 @Component(service = { Servlet.class })
@@ -51,6 +54,9 @@ public class ImportEndpoint extends SlingSafeMethodsServlet
     @Reference
     private ThreadResourceResolverProvider rrp;
 
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policyOption = ReferencePolicyOption.GREEDY)
+    private volatile MetricsRegistry metricsRegistry;
+
     @Reference
     private volatile List<ImportConfig> configs;
 
@@ -81,9 +87,11 @@ public void doGet(final SlingHttpServletRequest request, final SlingHttpServletR
 
         // Load configuration from environment variables
         final Runnable importJob =
-            new ImportTask(this.resolverFactory, this.rrp, config.auth_url(), config.endpoint_url(),
+            new ImportTask(this.resolverFactory, this.rrp, this.metricsRegistry, config.auth_url(),
+                config.endpoint_url(),
                 config.days_to_query(), config.vault_token(), config.clinic_names(), config.provider_names(),
-                config.allowed_roles(), config.vault_role(), config.dates_to_query());
+                config.allowed_roles(), config.vault_role(), config.dates_to_query(), config.parallel_clinics(),
+                config.batch_size());
         final Thread thread = new Thread(importJob);
         thread.start();
         writeSuccess(response);
@@ -24,10 +24,10 @@
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.StringReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
@@ -35,25 +35,39 @@
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import javax.json.Json;
-import javax.json.JsonArray;
 import javax.json.JsonObject;
-import javax.json.JsonReader;
+import javax.json.stream.JsonParser;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.uhndata.cards.metrics.Metrics;
+import io.uhndata.cards.metrics.MetricsRegistry;
 import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
 
 /**
  * Query the Torch server provided for patients with appointments in the coming few days (default: 3), and stores them
  * in JCR local storage. This will overwrite existing patients/appointments with updated information, if it is
  * available, but will not remove any existing patients/appointments.
+ * <p>
+ * Several clinics are queried at the same time, and each response is parsed as it is received, handing patients over to
+ * a single storage thread, which saves them in batches.
+ * </p>
  *
  * @version $Id$
  */
@@ -63,6 +77,12 @@ public class ImportTask implements Runnable
     /** Default log. */
     private static final Logger LOGGER = LoggerFactory.getLogger(ImportTask.class);
 
+    /** How many parsed patients can wait to be stored before the clinic queries are paused. */
+    private static final int PATIENTS_QUEUE_SIZE = 500;
+
+    /** Marks the end of the patients queue, once all the clinics were queried. */
+    private static final JsonObject END_OF_PATIENTS = Json.createObjectBuilder().build();
+
     /** Number of days to query. */
     private final int daysToQuery;
 
@@ -90,13 +110,24 @@ public class ImportTask implements Runnable
     /** Vault role name for use when logging in with the JWT. */
     private final String vaultRole;
 
+    /** How many clinics to query at the same time. */
+    private final int parallelClinics;
+
+    /** How many patients to store before saving. */
+    private final int batchSize;
+
     /** Provides access to resources. */
     private final ResourceResolverFactory resolverFactory;
 
     private final ThreadResourceResolverProvider rrp;
 
+    /** Aggregates the metrics increments, may be {@code null}. */
+    private final MetricsRegistry metricsRegistry;
+
     /**
      * @param resolverFactory A reference to a ResourceResolverFactory to use
+     * @param rrp the thread resource resolver provider
+     * @param metricsRegistry the metrics registry aggregating metrics increments, may be {@code null}
      * @param authURL The URL for the Vault JWT authentication endpoint
      * @param endpointURL The URL for the Torch server endpoint
      * @param daysToQuery Number of days to query
@@ -104,15 +135,19 @@ public class ImportTask implements Runnable
      * @param clinicNames list of names of clinics to query
      * @param providerIDs list of names of providers to filter queries to
      * @param queryDates list of dates to restrict queries to, if any
+     * @param parallelClinics how many clinics to query at the same time
+     * @param batchSize how many patients to store before saving
      */
     @SuppressWarnings({ "checkstyle:ParameterNumber" })
     ImportTask(final ResourceResolverFactory resolverFactory, final ThreadResourceResolverProvider rrp,
-        final String authURL, final String endpointURL,
+        final MetricsRegistry metricsRegistry, final String authURL, final String endpointURL,
         final int daysToQuery, final String vaultToken, final String[] clinicNames, final String[] providerIDs,
-        final String[] providerRoles, final String vaultRole, final String[] queryDates)
+        final String[] providerRoles, final String vaultRole, final String[] queryDates, final int parallelClinics,
+        final int batchSize)
     {
         this.resolverFactory = resolverFactory;
         this.rrp = rrp;
+        this.metricsRegistry = metricsRegistry;
         this.authURL = authURL;
         this.endpointURL = endpointURL;
         this.daysToQuery = daysToQuery;
@@ -134,19 +169,17 @@ public class ImportTask implements Runnable
         this.providerIDs = StringUtils.isAllBlank(providerIDs) ? new String[0] : providerIDs;
         this.providerRoles = StringUtils.isAllBlank(providerRoles) ? new String[0] : providerRoles;
         this.vaultRole = vaultRole;
+        this.parallelClinics = Math.max(1, parallelClinics);
+        this.batchSize = batchSize;
     }
 
     @Override
     public void run()
     {
         final String token = loginWithJWT();
-        long importedAppointmentsCount = 0;
-        // Iterate over every clinic name
-        for (String clinicName : this.clinicNames) {
-            importedAppointmentsCount += getUpcomingAppointments(token, this.daysToQuery, clinicName);
-        }
+        final long importedAppointmentsCount = importUpcomingAppointments(token);
         // Update the performance counter
-        Metrics.increment(this.resolverFactory,
+        Metrics.increment(this.metricsRegistry, this.resolverFactory,
             "ImportedAppointments", importedAppointmentsCount);
     }
 
@@ -179,13 +212,89 @@ private String loginWithJWT()
     }
 
     /**
-     * Get any upcoming appointments in the next few days.
+     * Query every clinic for upcoming appointments in the next few days, and store them.
+     *
+     * @param authToken an authentication token for use in querying the Torch server
+     * @return the number of appointments imported
+     */
+    private long importUpcomingAppointments(final String authToken)
+    {
+        if (this.clinicNames == null || this.clinicNames.length == 0) {
+            return 0;
+        }
+        final Calendar startDate = Calendar.getInstance();
+        startDate.setTime(new Date());
+        final Calendar endDate = (Calendar) startDate.clone();
+        endDate.add(Calendar.DATE, this.daysToQuery);
+
+        // Query the clinics in parallel, queueing up the parsed patients
+        final BlockingQueue<JsonObject> patients = new ArrayBlockingQueue<>(PATIENTS_QUEUE_SIZE);
+        final AtomicBoolean aborted = new AtomicBoolean();
+        final AtomicInteger clinicsLeft = new AtomicInteger(this.clinicNames.length);
+        final AtomicInteger threadCounter = new AtomicInteger();
+        // Daemon threads, so that a hanging clinic query never prevents the JVM from shutting down
+        final ThreadFactory threadFactory = runnable -> {
+            final Thread thread = new Thread(runnable, "torch-import-clinic-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        final ExecutorService fetchers =
+            Executors.newFixedThreadPool(Math.min(this.parallelClinics, this.clinicNames.length), threadFactory);
+        for (final String clinicName : this.clinicNames) {
+            fetchers.submit(() -> {
+                try {
+                    getUpcomingAppointments(authToken, clinicName, startDate, endDate,
+                        patient -> enqueue(patients, patient, aborted));
+                } finally {
+                    if (clinicsLeft.decrementAndGet() == 0) {
+                        enqueue(patients, END_OF_PATIENTS, aborted);
+                    }
+                }
+            });
+        }
+        fetchers.shutdown();
+
+        // Store every patient/visit from this thread, as they arrive
+        boolean mustPopResolver = false;
+        try (ResourceResolver resolver = this.resolverFactory.getServiceResourceResolver(
+            Map.of(ResourceResolverFactory.SUBSERVICE, "TorchImporter"))) {
+            this.rrp.push(resolver);
+            mustPopResolver = true;
+            final PatientLocalStorage storage = new PatientLocalStorage(resolver, startDate, endDate,
+                this.providerIDs, this.providerRoles, this.queryDates, this.batchSize);
+            JsonObject patient;
+            while ((patient = patients.take()) != END_OF_PATIENTS) {
+                storage.store(patient);
+            }
+            storage.flush();
+            return storage.getCountAppointmentsCreated();
+        } catch (final LoginException e) {
+            LOGGER.error("Could not find service user while storing patients: {}", e.getMessage(), e);
+        } catch (final InterruptedException e) {
+            LOGGER.warn("Torch import interrupted");
+            Thread.currentThread().interrupt();
+        } finally {
+            // Stop any remaining clinic queries if storing failed
+            aborted.set(true);
+            fetchers.shutdownNow();
+            if (mustPopResolver) {
+                this.rrp.pop();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Get any upcoming appointments in the next few days, handing each patient over as soon as it is parsed.
      *
      * @param authToken an authentication token for use in querying the Torch server
-     * @param daysToQuery the number of days to query
      * @param clinicName the clinic for which to retrieve appointments
+     * @param startDate the first day to query
+     * @param endDate the last day to query
+     * @param patientConsumer receives the patients returned by the server
      */
-    private long getUpcomingAppointments(final String authToken, final int daysToQuery, final String clinicName)
+    private void getUpcomingAppointments(final String authToken, final String clinicName, final Calendar startDate,
+        final Calendar endDate, final Consumer<JsonObject> patientConsumer)
     {
         final String postRequestTemplate = "{\"query\": \"query{"
             + "patientsByDateAndClinic(location: \\\"" + clinicName
@@ -194,45 +303,62 @@ private long getUpcomingAppointments(final String authToken, final int daysToQue
             + "appointments {fhirID time status location "
             + "participants {physician {name {prefix given family suffix} eID} role}} }}\"}";
 
-        long importedAppointmentsCount = 0;
-        final Calendar startDate = Calendar.getInstance();
-        final Date today = new Date();
-        startDate.setTime(today);
-        final Calendar endDate = (Calendar) startDate.clone();
-        endDate.add(Calendar.DATE, daysToQuery);
         final SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd");
         final String postRequest = String.format(postRequestTemplate, formatter.format(startDate.getTime()),
             formatter.format(endDate.getTime()), formatter.format(new Date()));
 
-        // Query the torch server
-        try {
-            final String rawResponse = getPostResponse(this.endpointURL, postRequest, authToken);
-
-            // Read the response into a JsonObject
-            final JsonReader jsonReader = Json.createReader(new StringReader(rawResponse));
-            final JsonObject response = jsonReader.readObject();
-
-            // Create the storage object and store every patient/visit
-            final JsonArray data = response.getJsonObject("data").getJsonArray("patientsByDateAndClinic");
-            boolean mustPopResolver = false;
-            try (ResourceResolver resolver = this.resolverFactory.getServiceResourceResolver(
-                Map.of(ResourceResolverFactory.SUBSERVICE, "TorchImporter"))) {
-                this.rrp.push(resolver);
-                mustPopResolver = true;
-                final PatientLocalStorage storage = new PatientLocalStorage(resolver, startDate, endDate,
-                    this.providerIDs, this.providerRoles, this.queryDates);
-
-                data.forEach(storage::store);
-                importedAppointmentsCount += storage.getCountAppointmentsCreated();
-            } finally {
-                if (mustPopResolver) {
-                    this.rrp.pop();
-                }
+        // Query the torch server, and parse the response as it is received instead of reading it all in memory
+        try (InputStream response = getPostResponseStream(this.endpointURL, postRequest, authToken);
+            JsonParser parser = Json.createParser(new InputStreamReader(response, StandardCharsets.UTF_8))) {
+            if (!skipToArray(parser, "patientsByDateAndClinic")) {
+                LOGGER.warn("No patients returned for clinic {}", clinicName);
+                return;
+            }
+            while (parser.hasNext() && parser.next() == JsonParser.Event.START_OBJECT) {
+                patientConsumer.accept(parser.getObject());
             }
         } catch (final Exception e) {
             LOGGER.error("Failed to query server: {}", e.getMessage(), e);
         }
-        return importedAppointmentsCount;
+    }
+
+    /**
+     * Advance a parser to the start of the first array value of the given key.
+     *
+     * @param parser the parser to advance
+     * @param key the name of the key holding the array
+     * @return {@code true} if the parser is now positioned at the start of the array, {@code false} if the key wasn't
+     *         found or its value isn't an array
+     */
+    private static boolean skipToArray(final JsonParser parser, final String key)
+    {
+        while (parser.hasNext()) {
+            if (parser.next() == JsonParser.Event.KEY_NAME && key.equals(parser.getString())) {
+                return parser.hasNext() && parser.next() == JsonParser.Event.START_ARRAY;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add a patient to the queue of patients to store, waiting while the queue is full, unless the import was aborted.
+     *
+     * @param queue the queue of patients to store
+     * @param patient the patient to add
+     * @param aborted set if the storage stopped, and no more patients will be consumed
+     */
+    private static void enqueue(final BlockingQueue<JsonObject> queue, final JsonObject patient,
+        final AtomicBoolean aborted)
+    {
+        try {
+            while (!aborted.get()) {
+                if (queue.offer(patient, 100, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /***
@@ -255,13 +381,14 @@ String getPostResponse(final String url, final String data) throws IOException
      */
     private static String readInputStream(InputStream stream) throws IOException
     {
-        final BufferedReader br = new BufferedReader(new InputStreamReader(stream, "utf-8"));
-        String responseLine = null;
-        final StringBuilder retVal = new StringBuilder();
-        while ((responseLine = br.readLine()) != null) {
-            retVal.append(responseLine.trim());
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(stream, "utf-8"))) {
+            String responseLine = null;
+            final StringBuilder retVal = new StringBuilder();
+            while ((responseLine = br.readLine()) != null) {
+                retVal.append(responseLine.trim());
+            }
+            return retVal.toString();
         }
-        return retVal.toString();
     }
 
     /***
@@ -273,6 +400,19 @@ private static String readInputStream(InputStream stream) throws IOException
      * @return The response from the server
      */
     String getPostResponse(final String url, final String data, final String token) throws IOException
+    {
+        return ImportTask.readInputStream(getPostResponseStream(url, data, token));
+    }
+
+    /***
+     * Submit a POST request to a URL, and get the response as a stream, to be read by the caller.
+     *
+     * @param url The URL to send a POST request to
+     * @param data The payload to POST
+     * @param token an optional token to send as a request property
+     * @return The response stream from the server, which must be closed by the caller
+     */
+    InputStream getPostResponseStream(final String url, final String data, final String token) throws IOException
     {
         final URLConnection con = new URL(url).openConnection();
         final HttpURLConnection http = (HttpURLConnection) con;
@@ -298,6 +438,6 @@ String getPostResponse(final String url, final String data, final String token)
             }
         }
 
-        return ImportTask.readInputStream(con.getInputStream());
+        return con.getInputStream();
     }
 }
@@ -28,10 +28,12 @@
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.osgi.service.component.annotations.ReferencePolicyOption;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.uhndata.cards.metrics.MetricsRegistry;
 import io.uhndata.cards.resolverProvider.ThreadResourceResolverProvider;
 
 @Component(immediate = true)
@@ -49,6 +51,9 @@
     @Reference
     private ThreadResourceResolverProvider rrp;
 
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policyOption = ReferencePolicyOption.GREEDY)
+    private volatile MetricsRegistry metricsRegistry;
+
     /** The scheduler for rescheduling jobs. */
     @Reference
     private Scheduler scheduler;
@@ -73,7 +78,7 @@ public void configAdded(final ImportConfig newConfig)
 
         final Runnable importJob;
         importJob =
-            new ImportTask(this.resolverFactory, this.rrp, newConfig.getConfig().auth_url(),
+            new ImportTask(this.resolverFactory, this.rrp, this.metricsRegistry, newConfig.getConfig().auth_url(),
                 newConfig.getConfig().endpoint_url(),
                 newConfig.getConfig().days_to_query(),
                 newConfig.getConfig().vault_token(),
@@ -81,7 +86,9 @@ public void configAdded(final ImportConfig newConfig)
                 newConfig.getConfig().provider_names(),
                 newConfig.getConfig().allowed_roles(),
                 newConfig.getConfig().vault_role(),
-                newConfig.getConfig().dates_to_query());
+                newConfig.getConfig().dates_to_query(),
+                newConfig.getConfig().parallel_clinics(),
+                newConfig.getConfig().batch_size());
         try {
             if (importJob != null) {
                 this.scheduler.schedule(importJob, options);
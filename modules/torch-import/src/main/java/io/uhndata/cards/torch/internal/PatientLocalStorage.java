@@ -22,9 +22,11 @@
 import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -58,6 +60,10 @@
  * Utility class to store a patient JSON object as returned by our Torch server into JCR. This is mostly a utility class
  * for ImportTask, as it assumes the JsonObject has the following fields: { name {given family} sex mrn ohip dob emailOk
  * com {email} nextAppointment {fhirID time status attending {name {family}}}
+ * <p>
+ * Patients are saved in batches: call {@link #flush()} once all the patients were passed to {@link #store(JsonValue)}.
+ * If storing a patient or saving a batch fails, the batch is discarded, and its patients are stored again one by one.
+ * </p>
  *
  * @version $Id$
  */
@@ -87,12 +93,12 @@
     /** Sling property name for the fhir ID field returned from a Patient or Provider. */
     private static final String FHIR_FIELD = "fhirID";
 
+    /** Name of the MRN field returned from a Patient, and of the matching Patient information question. */
+    private static final String MRN_FIELD = "mrn";
+
     /** Provides access to resources. */
     private final ResourceResolver resolver;
 
-    /** Details about a patient that we will parse and store in JCR. */
-    private JsonObject patientDetails;
-
     /** Start date of appointments to store. */
     private final Calendar startDate;
 
@@ -105,8 +111,20 @@
     /** List of allowed provider roles, such that providerIDs must be the given role. Optionally set. */
     private final List<String> providerRoles;
 
-    /** Set of nodes that must be checked in at the end of this function. */
-    private Set<String> nodesToCheckin;
+    /** Set of nodes that must be checked in once the current batch is saved. */
+    private final Set<String> nodesToCheckin = new HashSet<>();
+
+    /** The patients stored in the current batch, kept so that they can be stored again if the batch fails. */
+    private final List<JsonObject> batch = new ArrayList<>();
+
+    /** Subjects created in the current batch, identifier to path, which can't be found by a query until saved. */
+    private final Map<String, String> pendingSubjects = new HashMap<>();
+
+    /** Forms created in the current batch, subject path and questionnaire path to form path. */
+    private final Map<String, String> pendingForms = new HashMap<>();
+
+    /** How many patients to store before saving the session. */
+    private final int batchSize;
 
     /** Version Manager for checking in or out nodes. */
     private VersionManager versionManager;
@@ -114,6 +132,9 @@
     /** Count of appointments created. */
     private long appointmentsCreated;
 
+    /** Count of appointments created in the current batch. */
+    private long appointmentsPendingCreation;
+
     /** Dates to check. */
     private final List<Calendar> datesToQuery;
 
@@ -122,9 +143,12 @@
      * @param startDate The start of the range of dates for appointments to find from within the patient
      * @param endDate The end of the range of dates for appointments to find from within the patient
      * @param providerIDs List of providers to query. If empty, all providers' appointments are used
+     * @param batchSize How many patients to store before saving the session
      */
+    @SuppressWarnings({ "checkstyle:ParameterNumber" })
     PatientLocalStorage(final ResourceResolver resolver, final Calendar startDate, final Calendar endDate,
-        final String[] providerIDs, final String[] providerRoles, final List<Calendar> datesToQuery)
+        final String[] providerIDs, final String[] providerRoles, final List<Calendar> datesToQuery,
+        final int batchSize)
     {
         this.resolver = resolver;
         this.startDate = startDate;
@@ -133,6 +157,7 @@
         this.providerRoles = Arrays.asList(providerRoles);
         this.appointmentsCreated = 0;
         this.datesToQuery = datesToQuery;
+        this.batchSize = Math.max(1, batchSize);
     }
 
     public long getCountAppointmentsCreated()
@@ -141,52 +166,115 @@ public long getCountAppointmentsCreated()
     }
 
     /**
-     * Store the patient details given to us.
+     * Store the patient details given to us. The changes are saved once enough patients are stored.
      *
      * @param value A JsonObject representing the patient
      */
     public void store(final JsonValue value)
     {
-        this.patientDetails = value.asJsonObject();
-        final String mrn = this.patientDetails.getString("mrn");
-        this.nodesToCheckin = new HashSet<>();
+        final JsonObject patientDetails = value.asJsonObject();
         try {
-            final Session session = this.resolver.adaptTo(Session.class);
-            this.versionManager = session.getWorkspace().getVersionManager();
-            Resource patient = null;
-
-            // Update information about the visit ("appointment" is used interchangeably here)
-            final JsonArray appointmentDetails = this.patientDetails.getJsonArray("appointments");
-            long appointmentsPendingCreation = 0;
-            for (int i = 0; i < appointmentDetails.size(); i++) {
-                final JsonObject appointment = appointmentDetails.getJsonObject(i);
-                if (isAppointmentInTimeframe(appointment) && isAppointmentByAllowedProvider(appointment)) {
-                    if (patient == null) {
-                        // Update information about the patient, but only if we already know a visit is also valid
-                        patient = getOrCreateSubject(mrn, "/SubjectTypes/Patient", null);
-                        final Resource patientInfo = getOrCreateForm(patient, "/Questionnaires/Patient information");
-                        updatePatientInformationForm(patientInfo, this.patientDetails);
-                    }
-                    storeAppointment(appointment, patient);
-                    appointmentsPendingCreation += 1;
+            storePatient(patientDetails);
+            this.batch.add(patientDetails);
+        } catch (final IOException | RepositoryException | RuntimeException e) {
+            LOGGER.error("Could not save patient {}: {}", patientDetails.get(MRN_FIELD), e.getMessage(), e);
+            retryBatch();
+            return;
+        }
+        if (this.batch.size() >= this.batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Save all the patients stored since the last save.
+     */
+    public void flush()
+    {
+        try {
+            this.resolver.adaptTo(Session.class).save();
+            finishBatch();
+        } catch (final RepositoryException e) {
+            LOGGER.error("Could not save a batch of {} patients: {}", this.batch.size(), e.getMessage(), e);
+            retryBatch();
+        }
+    }
+
+    private void storePatient(final JsonObject patientDetails) throws IOException, RepositoryException
+    {
+        final String mrn = patientDetails.getString(MRN_FIELD);
+        final Session session = this.resolver.adaptTo(Session.class);
+        this.versionManager = session.getWorkspace().getVersionManager();
+        Resource patient = null;
+
+        // Update information about the visit ("appointment" is used interchangeably here)
+        final JsonArray appointmentDetails = patientDetails.getJsonArray("appointments");
+        for (int i = 0; i < appointmentDetails.size(); i++) {
+            final JsonObject appointment = appointmentDetails.getJsonObject(i);
+            if (isAppointmentInTimeframe(appointment) && isAppointmentByAllowedProvider(appointment)) {
+                if (patient == null) {
+                    // Update information about the patient, but only if we already know a visit is also valid
+                    patient = getOrCreateSubject(mrn, "/SubjectTypes/Patient", null);
+                    final Resource patientInfo = getOrCreateForm(patient, "/Questionnaires/Patient information");
+                    updatePatientInformationForm(patientInfo, patientDetails);
                 }
+                storeAppointment(appointment, patient);
+                this.appointmentsPendingCreation += 1;
             }
+        }
+    }
 
-            session.save();
-            this.appointmentsCreated += appointmentsPendingCreation;
+    /**
+     * Discard the unsaved changes, and store again, one by one, the patients of the current batch that were
+     * successfully stored before the failure.
+     */
+    private void retryBatch()
+    {
+        final List<JsonObject> patients = new ArrayList<>(this.batch);
+        discardBatch();
+        for (final JsonObject patientDetails : patients) {
+            try {
+                storePatient(patientDetails);
+                this.resolver.adaptTo(Session.class).save();
+                finishBatch();
+            } catch (final IOException | RepositoryException | RuntimeException e) {
+                LOGGER.error("Could not save patient {}: {}", patientDetails.get(MRN_FIELD), e.getMessage(), e);
+                discardBatch();
+            }
+        }
+    }
 
-            this.nodesToCheckin.forEach(node -> {
-                try {
-                    this.versionManager.checkin(node);
-                } catch (final RepositoryException e) {
-                    LOGGER.warn("Failed to check in node {}: {}", node, e.getMessage(), e);
-                }
-            });
-        } catch (final IOException e) {
-            LOGGER.error("Could not save patient {}: {}", mrn, e.getMessage(), e);
+    private void discardBatch()
+    {
+        try {
+            // Without discarding the bad data all the subsequent saves would fail too
+            this.resolver.adaptTo(Session.class).refresh(false);
         } catch (final RepositoryException e) {
-            LOGGER.error("Could not save patient {}: {}", mrn, e.getMessage(), e);
+            LOGGER.warn("Failed to discard unsaved changes: {}", e.getMessage(), e);
         }
+        clearBatch();
+    }
+
+    private void finishBatch()
+    {
+        this.appointmentsCreated += this.appointmentsPendingCreation;
+        this.nodesToCheckin.forEach(node -> {
+            try {
+                this.versionManager.checkin(node);
+            } catch (final RepositoryException e) {
+                LOGGER.warn("Failed to check in node {}: {}", node, e.getMessage(), e);
+            }
+        });
+        clearBatch();
+    }
+
+    private void clearBatch()
+    {
+        this.batch.clear();
+        this.pendingSubjects.clear();
+        this.pendingForms.clear();
+        this.nodesToCheckin.clear();
+        this.appointmentsPendingCreation = 0;
     }
 
     /**
@@ -339,6 +427,11 @@ private boolean isAllowedProvider(final JsonObject provider)
     Resource getOrCreateSubject(final String identifier, final String subjectTypePath, final Resource parent)
         throws RepositoryException, PersistenceException
     {
+        // Subjects created in the current batch are not saved yet, and thus can't be found by a query
+        final String pendingSubject = this.pendingSubjects.get(identifier);
+        if (pendingSubject != null) {
+            return this.resolver.getResource(pendingSubject);
+        }
         final Iterator<Resource> subjectResourceIter = this.resolver.findResources(String.format(
             "SELECT * FROM [cards:Subject] WHERE identifier = \"%s\" OPTION (index tag property)", identifier),
             PatientLocalStorage.JCR_SQL);
@@ -357,6 +450,7 @@ Resource getOrCreateSubject(final String identifier, final String subjectTypePat
                 PatientLocalStorage.PRIMARY_TYPE, "cards:Subject",
                 "identifier", identifier,
                 "type", patientType.adaptTo(Node.class)));
+            this.pendingSubjects.put(identifier, newSubject.getPath());
             this.nodesToCheckin.add(newSubject.getPath());
             return newSubject;
         }
@@ -372,6 +466,11 @@ Resource getOrCreateSubject(final String identifier, final String subjectTypePat
     Resource getOrCreateForm(final Resource subject, final String questionnairePath)
         throws RepositoryException, PersistenceException
     {
+        // Forms created in the current batch are not saved yet, and thus can't be found by a query
+        final String pendingForm = this.pendingForms.get(subject.getPath() + questionnairePath);
+        if (pendingForm != null) {
+            return this.resolver.getResource(pendingForm);
+        }
         final Resource formType = this.resolver.getResource(questionnairePath);
         final Node subjectNode = subject.adaptTo(Node.class);
         final Iterator<Resource> formResourceIter = this.resolver.findResources(String.format(
@@ -389,6 +488,7 @@ Resource getOrCreateForm(final Resource subject, final String questionnairePath)
                 PatientLocalStorage.PRIMARY_TYPE, "cards:Form",
                 "questionnaire", formType.adaptTo(Node.class),
                 "subject", subjectNode));
+            this.pendingForms.put(subject.getPath() + questionnairePath, newForm.getPath());
             this.nodesToCheckin.add(newForm.getPath());
             return newForm;
         }
@@ -521,7 +621,7 @@ void updatePatientInformationForm(final Resource form, final JsonObject info)
     {
         // Map of Patient information question node name => Function to get JSON value
         final Map<String, JsonGetter> formMapping = Map.of(
-            "mrn", obj -> obj.getString("mrn"),
+            MRN_FIELD, obj -> obj.getString(MRN_FIELD),
             "health_card", obj -> obj.getString("ohip"),
             "sex", obj -> obj.getString("sex"),
             "first_name", obj -> obj.getJsonObject("name").getJsonArray("given").getString(0),
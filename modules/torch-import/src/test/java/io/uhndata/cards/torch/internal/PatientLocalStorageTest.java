@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.uhndata.cards.torch.internal;
+
+import java.util.Calendar;
+import java.util.Collections;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Answers;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+/**
+ * Unit tests for how {@link PatientLocalStorage} saves patients in batches.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class PatientLocalStorageTest
+{
+    private static final int BATCH_SIZE = 3;
+
+    @Mock
+    private ResourceResolver resolver;
+
+    @Mock(answer = Answers.RETURNS_DEEP_STUBS)
+    private Session session;
+
+    private PatientLocalStorage storage;
+
+    @Before
+    public void setupStorage()
+    {
+        Mockito.when(this.resolver.adaptTo(Session.class)).thenReturn(this.session);
+        final Calendar start = Calendar.getInstance();
+        start.add(Calendar.DATE, -1);
+        final Calendar end = Calendar.getInstance();
+        end.add(Calendar.DATE, 1);
+        this.storage = new PatientLocalStorage(this.resolver, start, end, new String[0], new String[0],
+            Collections.emptyList(), BATCH_SIZE);
+    }
+
+    @Test
+    public void patientsAreSavedInBatches() throws RepositoryException
+    {
+        for (int i = 0; i < 2 * BATCH_SIZE + 1; ++i) {
+            this.storage.store(patient(i));
+        }
+        Mockito.verify(this.session, Mockito.times(2)).save();
+
+        this.storage.flush();
+        Mockito.verify(this.session, Mockito.times(3)).save();
+    }
+
+    @Test
+    public void failedBatchesAreRetriedOneByOne() throws RepositoryException
+    {
+        Mockito.doThrow(new RepositoryException("conflict")).doNothing().when(this.session).save();
+
+        for (int i = 0; i < BATCH_SIZE; ++i) {
+            this.storage.store(patient(i));
+        }
+
+        final InOrder order = Mockito.inOrder(this.session);
+        order.verify(this.session).save();
+        order.verify(this.session).refresh(false);
+        order.verify(this.session, Mockito.times(BATCH_SIZE)).save();
+    }
+
+    @Test
+    public void invalidPatientsOnlyDiscardThemselves() throws RepositoryException
+    {
+        this.storage.store(patient(0));
+        this.storage.store(patient(1));
+        // No MRN, storing this patient fails
+        this.storage.store(Json.createObjectBuilder().add("appointments", Json.createArrayBuilder()).build());
+
+        final InOrder order = Mockito.inOrder(this.session);
+        order.verify(this.session).refresh(false);
+        // The two valid patients are stored again and saved one by one
+        order.verify(this.session, Mockito.times(2)).save();
+
+        this.storage.store(patient(2));
+        this.storage.flush();
+        Mockito.verify(this.session, Mockito.times(3)).save();
+    }
+
+    private static JsonObject patient(final int index)
+    {
+        return Json.createObjectBuilder()
+            .add("mrn", "mrn" + index)
+            .add("appointments", Json.createArrayBuilder())
+            .build();
+    }
+}
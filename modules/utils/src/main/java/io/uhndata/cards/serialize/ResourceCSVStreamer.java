@@ -0,0 +1,45 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.serialize;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.apache.sling.api.resource.Resource;
+
+/**
+ * Serializes resources as CSV directly into a {@link Writer}, as an alternative to
+ * {@code resource.adaptTo(CSVString.class)} for large exports which shouldn't be held in memory. The same
+ * {@link io.uhndata.cards.serialize.spi.ResourceCSVProcessor processors} are used as for
+ * {@link ResourceToCSVAdapterFactory}.
+ *
+ * @version $Id$
+ */
+public interface ResourceCSVStreamer
+{
+    /**
+     * Serialize a resource into the given writer. The writer is not closed.
+     *
+     * @param resource the resource to serialize, may include selectors in its resolution path info
+     * @param output the writer where the CSV should be written
+     * @return {@code true} if the resource was serialized, {@code false} if it could not be serialized
+     * @throws IOException if writing to the output fails
+     */
+    boolean serialize(Resource resource, Writer output) throws IOException;
+}
@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.serialize;
+
+import javax.json.stream.JsonGenerator;
+
+import org.apache.sling.api.resource.Resource;
+
+/**
+ * Serializes resources as JSON directly into a {@link JsonGenerator}, as an alternative to
+ * {@code resource.adaptTo(JsonObject.class)} for large serializations which shouldn't be held in memory. The same
+ * selectors and {@link io.uhndata.cards.serialize.spi.ResourceJsonProcessor processors} are used as for
+ * {@link ResourceToJsonAdapterFactory}, with the limitations described in
+ * {@link io.uhndata.cards.serialize.spi.StreamingResourceJsonProcessor}.
+ *
+ * @version $Id$
+ */
+public interface ResourceJsonStreamer
+{
+    /**
+     * Serialize a resource into the given generator. The serialization is written as the next value in the generator,
+     * so if the generator is inside an object, a key must be written first.
+     *
+     * @param resource the resource to serialize, may include selectors in its resolution path info
+     * @param output the generator where the resource should be written
+     * @return {@code true} if the resource was serialized, {@code false} if it could not be serialized, in which case
+     *         nothing was written
+     */
+    boolean serialize(Resource resource, JsonGenerator output);
+}
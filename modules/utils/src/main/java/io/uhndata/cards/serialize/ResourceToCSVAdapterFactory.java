@@ -18,7 +18,10 @@
  */
 package io.uhndata.cards.serialize;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.List;
+import java.util.Optional;
 
 import org.apache.sling.api.adapter.AdapterFactory;
 import org.apache.sling.api.resource.Resource;
@@ -32,15 +35,16 @@
 
 /**
  * AdapterFactory that converts Apache Sling resources to CSV format. This is just a shell, the actual serialization
- * is provided by implementations of the {@link ResourceCSVProcessor} service.
+ * is provided by implementations of the {@link ResourceCSVProcessor} service. This factory also implements the
+ * {@link ResourceCSVStreamer} service, which writes the serialization directly into a {@code Writer}.
  *
  * @version $Id$
  */
 @Component(
-    service = { AdapterFactory.class },
+    service = { AdapterFactory.class, ResourceCSVStreamer.class },
     property = { "adaptables=org.apache.sling.api.resource.Resource",
         "adapters=io.uhndata.cards.serialize.CSVString" })
-public class ResourceToCSVAdapterFactory implements AdapterFactory
+public class ResourceToCSVAdapterFactory implements AdapterFactory, ResourceCSVStreamer
 {
     /** A list of all available processors. */
     @Reference(cardinality = ReferenceCardinality.MULTIPLE, fieldOption = FieldOption.REPLACE,
@@ -62,4 +66,20 @@ public <A> A getAdapter(final Object adaptable, final Class<A> type)
         CSVString csv = new CSVString(result);
         return type.cast(csv);
     }
+
+    @Override
+    public boolean serialize(final Resource resource, final Writer output) throws IOException
+    {
+        if (resource == null) {
+            return false;
+        }
+        final Optional<ResourceCSVProcessor> processor = this.allProcessors.stream()
+            .filter(p -> p.canProcess(resource))
+            .findFirst();
+        if (processor.isPresent()) {
+            return processor.get().serialize(resource, output);
+        }
+        output.write(resource.getPath());
+        return true;
+    }
 }
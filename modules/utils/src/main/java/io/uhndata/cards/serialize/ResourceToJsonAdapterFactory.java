@@ -20,8 +20,12 @@
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import javax.jcr.Node;
@@ -30,8 +34,10 @@
 import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
 import javax.json.Json;
+import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
 
 import org.apache.sling.api.adapter.AdapterFactory;
 import org.apache.sling.api.resource.Resource;
@@ -44,6 +50,7 @@
 import org.slf4j.LoggerFactory;
 
 import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+import io.uhndata.cards.serialize.spi.StreamingResourceJsonProcessor;
 
 /**
  * AdapterFactory that converts Apache Sling resources to JsonObjects. This is just a shell, the actual implementation
@@ -56,18 +63,33 @@
  * {@link ResourceJsonProcessor#isEnabledByDefault(Resource) enabled by default}, for example the {@code properties},
  * {@code identify}, and {@code dereference} processors; to disable them, use their name prefixed by {@code -} in the
  * selectors, e.g. {@code /path/to/resource.-dereference.json}.
+ * <p>
+ * Definition nodes, such as questions, sections, questionnaires and subject types, are immutable while a resource is
+ * serialized, and are usually referenced many times, for example by each answer in a list of forms. Each such node is
+ * serialized only once per top level resource serialization, and the resulting JSON is reused for all further
+ * references.
+ * </p>
+ * <p>
+ * This factory also implements the {@link ResourceJsonStreamer} service, which writes the serialization directly into
+ * a {@code JsonGenerator}. The content added by streaming processors, such as the forms of a subject, is written as it
+ * is produced instead of being held in memory along with the whole resource.
+ * </p>
  *
  * @version $Id$
  */
 @Component(
-    service = { AdapterFactory.class },
+    service = { AdapterFactory.class, ResourceJsonStreamer.class },
     property = { "adaptables=org.apache.sling.api.resource.Resource", "adapters=javax.json.JsonObject" })
 public class ResourceToJsonAdapterFactory
-    implements AdapterFactory
+    implements AdapterFactory, ResourceJsonStreamer
 {
     /** Logging helper. */
     private static final Logger LOGGER = LoggerFactory.getLogger(ResourceToJsonAdapterFactory.class);
 
+    /** Node types whose serialization can be reused within the serialization of a resource. */
+    private static final Set<String> MEMOIZED_TYPES =
+        Set.of("cards:Question", "cards:Section", "cards:Questionnaire", "cards:SubjectType");
+
     /** A list of all available processors. */
     @Reference(cardinality = ReferenceCardinality.MULTIPLE, fieldOption = FieldOption.REPLACE,
         policy = ReferencePolicy.DYNAMIC)
@@ -85,11 +107,11 @@ public <A> A getAdapter(final Object adaptable, final Class<A> type)
 
         // To prevent infinite recursion in case of circular references among nodes, keep track of the nodes processed
         // so far down the stack.
-        Stack<String> processedNodes = new Stack<>();
+        final SerializationState state = new SerializationState();
 
         start(resource, enabledProcessors);
         final Node node = resource.adaptTo(Node.class);
-        JsonValue result = serializeNode(node, enabledProcessors, processedNodes);
+        JsonValue result = serializeNode(node, enabledProcessors, state);
         end(resource, enabledProcessors);
         if (result != null) {
             return type.cast(result);
@@ -97,6 +119,97 @@ public <A> A getAdapter(final Object adaptable, final Class<A> type)
         return null;
     }
 
+    @Override
+    public boolean serialize(final Resource resource, final JsonGenerator output)
+    {
+        if (resource == null) {
+            return false;
+        }
+        final Node node = resource.adaptTo(Node.class);
+        if (node == null) {
+            return false;
+        }
+        // The list of processors that are enabled for the current resource serialization.
+        List<ResourceJsonProcessor> enabledProcessors = setupProcessors(resource);
+        final SerializationState state = new SerializationState();
+
+        start(resource, enabledProcessors);
+        try {
+            streamNode(node, enabledProcessors, state, output);
+        } finally {
+            end(resource, enabledProcessors);
+        }
+        return true;
+    }
+
+    /**
+     * Serializes a Node directly into a JSON generator. The node's own properties and children are built in memory as
+     * usual, but the content added by {@link StreamingResourceJsonProcessor streaming processors}, such as the forms of
+     * an exported subject, is written directly into the output. Circular references and definition nodes are
+     * serialized using {@link #serializeNode} instead, which also takes care of reusing their serialization.
+     * <p>
+     * The output is the same as the one produced by {@link #serializeNode}: the non-streaming processors that come after
+     * a streaming processor are invoked before the streamed content is written, so that they can still remove or
+     * replace the keys added before, and the keys they add are written after the streamed content. They cannot see or
+     * change the streamed content itself.
+     * </p>
+     *
+     * @param node the node to serialize
+     * @param output the generator where the node should be written as the next value
+     */
+    private void streamNode(final Node node, final List<ResourceJsonProcessor> enabledProcessors,
+        final SerializationState state, final JsonGenerator output)
+    {
+        final Stack<String> processedNodes = state.processedNodes;
+        try {
+            final String path = node.getPath();
+            if (processedNodes.contains(path) || MEMOIZED_TYPES.contains(node.getPrimaryNodeType().getName())) {
+                final JsonValue value = serializeNode(node, enabledProcessors, state);
+                output.write(value == null ? JsonValue.NULL : value);
+                return;
+            }
+
+            processedNodes.add(path);
+            try {
+                final Function<Node, JsonValue> serializer = n -> serializeNode(n, enabledProcessors, state);
+                final JsonObjectBuilder result = Json.createObjectBuilder();
+                enterNode(node, result, enabledProcessors, state);
+                processProperties(node, result, enabledProcessors, state);
+                processChildren(node, result, enabledProcessors, state);
+
+                // The processors up to the first streaming one work just like when building the JSON in memory
+                final List<ResourceJsonProcessor> streaming = enabledProcessors.stream()
+                    .filter(StreamingResourceJsonProcessor.class::isInstance).collect(Collectors.toList());
+                final int firstStreaming =
+                    streaming.isEmpty() ? enabledProcessors.size() : enabledProcessors.indexOf(streaming.get(0));
+                enabledProcessors.subList(0, firstStreaming).forEach(p -> p.leave(node, result, serializer));
+                final JsonObject head = result.build();
+
+                // The other non-streaming processors may still change the keys that weren't written yet
+                final JsonObjectBuilder tailBuilder = Json.createObjectBuilder(head);
+                enabledProcessors.subList(firstStreaming, enabledProcessors.size()).stream()
+                    .filter(p -> !(p instanceof StreamingResourceJsonProcessor))
+                    .forEach(p -> p.leave(node, tailBuilder, serializer));
+                final JsonObject tail = tailBuilder.build();
+
+                output.writeStartObject();
+                head.keySet().stream().filter(tail::containsKey).forEach(key -> output.write(key, tail.get(key)));
+                streaming.forEach(p -> ((StreamingResourceJsonProcessor) p).leave(node, output, serializer,
+                    r -> serialize(r, output)));
+                tail.forEach((key, value) -> {
+                    if (!head.containsKey(key)) {
+                        output.write(key, value);
+                    }
+                });
+                output.writeEnd();
+            } finally {
+                processedNodes.pop();
+            }
+        } catch (RepositoryException e) {
+            LOGGER.error("Failed to serialize node [{}] to JSON: {}", node, e.getMessage(), e);
+        }
+    }
+
     /**
      * Serializes a Node into a JSON value. Usually this will be a JSON object listing its items, but to avoid
      * recursion, it is also possible to be just the node's path as a simple string.
@@ -105,25 +218,38 @@ public <A> A getAdapter(final Object adaptable, final Class<A> type)
      * @return a JSON value, either a JsonObject or a JsonString
      */
     private JsonValue serializeNode(final Node node, final List<ResourceJsonProcessor> enabledProcessors,
-        final Stack<String> processedNodes)
+        final SerializationState state)
     {
         if (node == null) {
             return null;
         }
 
+        final Stack<String> processedNodes = state.processedNodes;
         try {
-            final boolean alreadyProcessed = processedNodes.contains(node.getPath());
-            processedNodes.add(node.getPath());
+            final String path = node.getPath();
+            final boolean alreadyProcessed = processedNodes.contains(path);
+            processedNodes.add(path);
             if (!alreadyProcessed) {
+                final boolean memoizable = MEMOIZED_TYPES.contains(node.getPrimaryNodeType().getName());
+                if (memoizable && state.memo.containsKey(path)) {
+                    return state.memo.get(path);
+                }
+                final int truncationsBefore = state.truncations;
                 final JsonObjectBuilder result = Json.createObjectBuilder();
-                enterNode(node, result, enabledProcessors, processedNodes);
-                processProperties(node, result, enabledProcessors, processedNodes);
-                processChildren(node, result, enabledProcessors, processedNodes);
-                leaveNode(node, result, enabledProcessors, processedNodes);
-                return result.build();
+                enterNode(node, result, enabledProcessors, state);
+                processProperties(node, result, enabledProcessors, state);
+                processChildren(node, result, enabledProcessors, state);
+                leaveNode(node, result, enabledProcessors, state);
+                final JsonValue built = result.build();
+                // A serialization where circular references were cut short depends on where the node was encountered
+                if (memoizable && state.truncations == truncationsBefore) {
+                    state.memo.put(path, built);
+                }
+                return built;
             }
             // If the node has already been processed, only include its path in the output
-            return Json.createValue(node.getPath());
+            ++state.truncations;
+            return Json.createValue(path);
         } catch (RepositoryException e) {
             LOGGER.error("Failed to serialize node [{}] to JSON: {}", node, e.getMessage(), e);
         } finally {
@@ -150,21 +276,21 @@ private void start(final Resource resource, final List<ResourceJsonProcessor> en
      * @param json the JSON being built
      */
     private void enterNode(final Node node, final JsonObjectBuilder json,
-        final List<ResourceJsonProcessor> enabledProcessors, final Stack<String> processedNodes)
+        final List<ResourceJsonProcessor> enabledProcessors, final SerializationState state)
     {
-        enabledProcessors.forEach(p -> p.enter(node, json, n -> serializeNode(n, enabledProcessors, processedNodes)));
+        enabledProcessors.forEach(p -> p.enter(node, json, n -> serializeNode(n, enabledProcessors, state)));
     }
 
     /**
-     * Serialize the properties of a node into a {@code JsonObjectBuilder} by invoking
-     * {@link ResourceJsonProcessor#processProperty} in all enabled processors.
+     * Serialize the properties of a node by invoking {@link ResourceJsonProcessor#processProperty} in all enabled
+     * processors.
      *
      * @param node the node to serialize
      * @param json the JSON being built
      * @throws RepositoryException if accessing the repository fails
      */
     private void processProperties(final Node node, final JsonObjectBuilder json,
-        final List<ResourceJsonProcessor> enabledProcessors, final Stack<String> processedNodes)
+        final List<ResourceJsonProcessor> enabledProcessors, final SerializationState state)
         throws RepositoryException
     {
         final PropertyIterator properties = node.getProperties();
@@ -173,7 +299,7 @@ private void processProperties(final Node node, final JsonObjectBuilder json,
             JsonValue value = null;
             for (ResourceJsonProcessor p : enabledProcessors) {
                 value =
-                    p.processProperty(node, thisProp, value, n -> serializeNode(n, enabledProcessors, processedNodes));
+                    p.processProperty(node, thisProp, value, n -> serializeNode(n, enabledProcessors, state));
             }
             if (value != null) {
                 json.add(thisProp.getName(), value);
@@ -182,15 +308,15 @@ private void processProperties(final Node node, final JsonObjectBuilder json,
     }
 
     /**
-     * Serialize the children of a node into a {@code JsonObjectBuilder} by invoking
-     * {@link ResourceJsonProcessor#processChild} in all enabled processors.
+     * Serialize the children of a node by invoking {@link ResourceJsonProcessor#processChild} in all enabled
+     * processors.
      *
      * @param node the node to serialize
      * @param json the JSON being built
      * @throws RepositoryException if accessing the repository fails
      */
     private void processChildren(final Node node, final JsonObjectBuilder json,
-        final List<ResourceJsonProcessor> enabledProcessors, final Stack<String> processedNodes)
+        final List<ResourceJsonProcessor> enabledProcessors, final SerializationState state)
         throws RepositoryException
     {
         final NodeIterator children = node.getNodes();
@@ -198,7 +324,7 @@ private void processChildren(final Node node, final JsonObjectBuilder json,
             final Node child = children.nextNode();
             JsonValue value = null;
             for (ResourceJsonProcessor p : enabledProcessors) {
-                value = p.processChild(node, child, value, n -> serializeNode(n, enabledProcessors, processedNodes));
+                value = p.processChild(node, child, value, n -> serializeNode(n, enabledProcessors, state));
             }
             if (value != null) {
                 json.add(child.getName(), value);
@@ -214,9 +340,9 @@ private void processChildren(final Node node, final JsonObjectBuilder json,
      * @param json the JSON being built
      */
     private void leaveNode(final Node node, final JsonObjectBuilder json,
-        final List<ResourceJsonProcessor> enabledProcessors, final Stack<String> processedNodes)
+        final List<ResourceJsonProcessor> enabledProcessors, final SerializationState state)
     {
-        enabledProcessors.forEach(p -> p.leave(node, json, n -> serializeNode(n, enabledProcessors, processedNodes)));
+        enabledProcessors.forEach(p -> p.leave(node, json, n -> serializeNode(n, enabledProcessors, state)));
     }
 
     /**
@@ -273,4 +399,19 @@ private List<ResourceJsonProcessor> setupProcessors(final Resource resource)
 
         return enabled;
     }
+
+    /**
+     * Temporary state needed during the serialization of a resource.
+     */
+    private static final class SerializationState
+    {
+        /** The paths of the nodes currently being serialized, from the top resource down to the current node. */
+        private final Stack<String> processedNodes = new Stack<>();
+
+        /** Already serialized definition nodes, keyed by their path. */
+        private final Map<String, JsonValue> memo = new HashMap<>();
+
+        /** How many times a circular reference was replaced by a simple path. */
+        private int truncations;
+    }
 }
@@ -18,6 +18,9 @@
  */
 package io.uhndata.cards.serialize.spi;
 
+import java.io.IOException;
+import java.io.Writer;
+
 import org.apache.sling.api.resource.Resource;
 
 /**
@@ -52,4 +55,24 @@ default boolean canProcess(final Resource resource)
      * @return the resource serialization as CSV text, may be empty
      */
     String serialize(Resource resource);
+
+    /**
+     * Called for serializing a resource to CSV directly into a writer. Processors handling large resources should
+     * override this method to write the output progressively. The default implementation writes the result of
+     * {@link #serialize(Resource)}.
+     *
+     * @param resource the resource to serialize
+     * @param output the writer where the CSV should be written, must not be closed by the processor
+     * @return {@code true} if the resource was serialized, {@code false} if it could not be serialized
+     * @throws IOException if writing to the output fails
+     */
+    default boolean serialize(final Resource resource, final Writer output) throws IOException
+    {
+        final String result = serialize(resource);
+        if (result == null) {
+            return false;
+        }
+        output.write(result);
+        return true;
+    }
 }
@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.serialize.spi;
+
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import javax.jcr.Node;
+import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
+
+import org.apache.sling.api.resource.Resource;
+
+/**
+ * A {@link ResourceJsonProcessor} that also supports streaming serialization, where the JSON is written directly into
+ * a {@link JsonGenerator} as it is produced, instead of being built in memory first. Implementations will be invoked by
+ * {@link io.uhndata.cards.serialize.ResourceJsonStreamer} instead of the {@link ResourceJsonProcessor#leave} method.
+ * <p>
+ * Processors that don't implement this interface still work during a streaming serialization, and produce the same
+ * output. Since the streamed content cannot be changed once written, the processors that come after a streaming
+ * processor are invoked before the streamed content is written: they may still remove or replace the keys added
+ * before, and the keys they add are written after the streamed content, but they cannot see or change the streamed
+ * content itself.
+ * </p>
+ *
+ * @version $Id$
+ */
+public interface StreamingResourceJsonProcessor extends ResourceJsonProcessor
+{
+    /**
+     * Called at the end of a node's streaming serialization, after all its properties and children have been written.
+     * The generator is positioned inside the JSON object representing the node, so implementations may only write new
+     * keys, along with their values, and must not end the object.
+     *
+     * @param node the node being serialized, may be other than the top resource
+     * @param output the generator where the node is being serialized
+     * @param serializeNode a function that can be invoked to serialize a new node, receiving a Node as input, and
+     *            returning a JSON representation built in memory
+     * @param streamResource a function that can be invoked to write the serialization of a resource as the next value
+     *            in the output, without building it in memory first; the resource's selectors are taken into account
+     */
+    void leave(Node node, JsonGenerator output, Function<Node, JsonValue> serializeNode,
+        Consumer<Resource> streamResource);
+}
@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Predicate;
+
+import org.apache.commons.collections4.map.LRUMap;
+
+/**
+ * Thread safe cache of values computed on demand, meant for values derived from repository content and discarded when
+ * that content changes, usually from a {@code ResourceChangeListener}. Each missing value is computed only once at a
+ * time: concurrent requests for the same key wait for the running computation instead of starting their own. A value
+ * being computed while its key is invalidated is still returned to the requests already waiting for it, but is not
+ * kept, so that values computed from outdated content never outlive an invalidation. Failed computations and
+ * {@code null} values are not kept either.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the cached values
+ * @version $Id$
+ */
+public final class InvalidatingCache<K, V>
+{
+    /** Guards {@link #values}. */
+    private final Object lock = new Object();
+
+    /** The cached values, including the ones still being computed. */
+    private final Map<K, FutureTask<V>> values;
+
+    /**
+     * Computes a missing value.
+     *
+     * @param <K> the type of the keys
+     * @param <V> the type of the computed values
+     * @param <E> the type of the exception thrown when the value cannot be computed
+     */
+    @FunctionalInterface
+    public interface Loader<K, V, E extends Exception>
+    {
+        /**
+         * Compute the value for a key.
+         *
+         * @param key the key whose value is needed
+         * @return the computed value, may be {@code null}
+         * @throws E if computing the value fails
+         */
+        V load(K key) throws E;
+    }
+
+    /**
+     * Create an unbounded cache.
+     */
+    public InvalidatingCache()
+    {
+        this.values = new HashMap<>();
+    }
+
+    /**
+     * Create a cache holding at most a number of values, discarding the least recently used ones first.
+     *
+     * @param maxSize the maximum number of values to keep, must be positive
+     */
+    public InvalidatingCache(final int maxSize)
+    {
+        this.values = new LRUMap<>(maxSize);
+    }
+
+    /**
+     * Get the value for a key, computing it if it isn't cached.
+     *
+     * @param <E> the type of the exception thrown by the loader
+     * @param key the key whose value is needed
+     * @param loader computes the value, if it isn't cached or being computed already
+     * @return the value, may be {@code null} if the loader returns {@code null}
+     * @throws E if computing the value fails
+     */
+    public <E extends Exception> V get(final K key, final Loader<? super K, ? extends V, E> loader) throws E
+    {
+        final FutureTask<V> task;
+        boolean owner = false;
+        synchronized (this.lock) {
+            FutureTask<V> existing = this.values.get(key);
+            if (existing == null) {
+                existing = new FutureTask<>(() -> loader.load(key));
+                this.values.put(key, existing);
+                owner = true;
+            }
+            task = existing;
+        }
+        if (owner) {
+            task.run();
+        }
+        try {
+            final V result = task.get();
+            if (result == null) {
+                discard(key, task);
+            }
+            return result;
+        } catch (final InterruptedException e) {
+            // Stop waiting, and compute the value without sharing it
+            Thread.currentThread().interrupt();
+            return loader.load(key);
+        } catch (final ExecutionException e) {
+            discard(key, task);
+            throw InvalidatingCache.<E>rethrow(e.getCause());
+        }
+    }
+
+    /**
+     * Discard the cached value for a key.
+     *
+     * @param key the key to discard
+     */
+    public void invalidate(final K key)
+    {
+        synchronized (this.lock) {
+            this.values.remove(key);
+        }
+    }
+
+    /**
+     * Discard the cached values for all the keys matching a condition.
+     *
+     * @param condition selects the keys to discard
+     */
+    public void invalidateIf(final Predicate<? super K> condition)
+    {
+        synchronized (this.lock) {
+            this.values.keySet().removeIf(condition);
+        }
+    }
+
+    /**
+     * Discard all the cached values.
+     */
+    public void invalidateAll()
+    {
+        synchronized (this.lock) {
+            this.values.clear();
+        }
+    }
+
+    private void discard(final K key, final FutureTask<V> task)
+    {
+        synchronized (this.lock) {
+            this.values.remove(key, task);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E extends Exception> E rethrow(final Throwable cause) throws E
+    {
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        // The loader can only throw checked exceptions of type E
+        return (E) cause;
+    }
+}
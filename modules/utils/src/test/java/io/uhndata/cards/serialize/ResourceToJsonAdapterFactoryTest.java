@@ -0,0 +1,414 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.serialize;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.nodetype.NodeType;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceMetadata;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mockito;
+import org.mockito.Spy;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+import io.uhndata.cards.serialize.spi.StreamingResourceJsonProcessor;
+
+/**
+ * Unit tests for {@link ResourceToJsonAdapterFactory}.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ResourceToJsonAdapterFactoryTest
+{
+    private static final String QUESTION_PATH = "/Questionnaires/q/question";
+
+    @Spy
+    private List<ResourceJsonProcessor> allProcessors = new ArrayList<>();
+
+    @InjectMocks
+    private ResourceToJsonAdapterFactory factory;
+
+    /** All the mocked nodes, by path. */
+    private final Map<String, Node> nodes = new HashMap<>();
+
+    /** How many times each node was serialized. */
+    private final Map<String, Integer> entered = new HashMap<>();
+
+    @Before
+    public void setup()
+    {
+        this.allProcessors.add(new DereferencingProcessor());
+    }
+
+    @Test
+    public void definitionsAreSerializedOnceAndReused() throws RepositoryException
+    {
+        final Node question = node(QUESTION_PATH, "cards:Question", Collections.emptyMap());
+        final Node form = node("/Forms/f", "cards:Form", Collections.emptyMap(),
+            node("/Forms/f/a1", "cards:Answer", Collections.singletonMap("question", QUESTION_PATH)),
+            node("/Forms/f/a2", "cards:Answer", Collections.singletonMap("question", QUESTION_PATH)));
+
+        final JsonObject json = this.factory.getAdapter(resource(form), JsonObject.class);
+
+        Assert.assertEquals(Integer.valueOf(1), this.entered.get(question.getPath()));
+        Assert.assertEquals(json.getJsonObject("a1").get("question"), json.getJsonObject("a2").get("question"));
+        Assert.assertEquals("cards:Question",
+            json.getJsonObject("a2").getJsonObject("question").getString("type"));
+    }
+
+    @Test
+    public void definitionsWithTruncatedCyclesAreNotReused() throws RepositoryException
+    {
+        // The question refers back to the form, so its serialization depends on where it is reached from
+        node(QUESTION_PATH, "cards:Question", Collections.singletonMap("form", "/Forms/f"));
+        final Node form = node("/Forms/f", "cards:Form", Collections.emptyMap(),
+            node("/Forms/f/a1", "cards:Answer", Collections.singletonMap("question", QUESTION_PATH)),
+            node("/Forms/f/a2", "cards:Answer", Collections.singletonMap("question", QUESTION_PATH)));
+
+        final JsonObject json = this.factory.getAdapter(resource(form), JsonObject.class);
+
+        Assert.assertEquals(Integer.valueOf(2), this.entered.get(QUESTION_PATH));
+        Assert.assertEquals("/Forms/f",
+            json.getJsonObject("a2").getJsonObject("question").getString("form"));
+    }
+
+    @Test
+    public void definitionsAreNotReusedAcrossSerializations() throws RepositoryException
+    {
+        node(QUESTION_PATH, "cards:Question", Collections.emptyMap());
+        final Node answer = node("/Forms/f/a1", "cards:Answer", Collections.singletonMap("question", QUESTION_PATH));
+
+        this.factory.getAdapter(resource(answer), JsonObject.class);
+        this.factory.getAdapter(resource(answer), JsonObject.class);
+
+        Assert.assertEquals(Integer.valueOf(2), this.entered.get(QUESTION_PATH));
+    }
+
+    @Test
+    public void streamingOutputIsTheSameAsTheBuiltJson() throws RepositoryException
+    {
+        this.allProcessors.add(new StreamingProcessor());
+        this.allProcessors.add(new RenamingProcessor());
+        node(QUESTION_PATH, "cards:Question", Collections.emptyMap());
+        final Node form = node("/Forms/f", "cards:Form", Collections.emptyMap(),
+            node("/Forms/f/a1", "cards:Answer", Collections.singletonMap("question", QUESTION_PATH)));
+
+        final StringWriter streamed = new StringWriter();
+        try (JsonGenerator generator = Json.createGenerator(streamed)) {
+            Assert.assertTrue(this.factory.serialize(resource(form), generator));
+        }
+        final JsonObject built = this.factory.getAdapter(resource(form), JsonObject.class);
+
+        Assert.assertEquals(built.toString(), streamed.toString());
+        // The processor running after the streaming one could still remove and replace keys written before
+        final JsonObject json = Json.createReader(new StringReader(streamed.toString())).readObject();
+        Assert.assertFalse(json.containsKey("type"));
+        Assert.assertEquals("cards:Form", json.getString("kind"));
+        Assert.assertEquals(2, json.getJsonArray("streamed").size());
+    }
+
+    private Resource resource(final Node node)
+    {
+        final Resource resource = Mockito.mock(Resource.class);
+        Mockito.when(resource.adaptTo(Node.class)).thenReturn(node);
+        Mockito.when(resource.getResourceMetadata()).thenReturn(new ResourceMetadata());
+        return resource;
+    }
+
+    private Node node(final String path, final String type, final Map<String, String> references,
+        final Node... children) throws RepositoryException
+    {
+        final Node node = Mockito.mock(Node.class);
+        final NodeType nodeType = Mockito.mock(NodeType.class);
+        Mockito.when(nodeType.getName()).thenReturn(type);
+        Mockito.when(node.getPath()).thenReturn(path);
+        Mockito.when(node.getName()).thenReturn(path.substring(path.lastIndexOf('/') + 1));
+        Mockito.when(node.getPrimaryNodeType()).thenReturn(nodeType);
+        final List<Property> properties = new ArrayList<>();
+        for (Map.Entry<String, String> reference : references.entrySet()) {
+            final Property property = Mockito.mock(Property.class);
+            Mockito.when(property.getName()).thenReturn(reference.getKey());
+            Mockito.when(property.getString()).thenReturn(reference.getValue());
+            properties.add(property);
+        }
+        Mockito.when(node.getProperties()).thenAnswer(invocation -> new Properties(properties));
+        Mockito.when(node.getNodes()).thenAnswer(invocation -> new Nodes(Arrays.asList(children)));
+        this.nodes.put(path, node);
+        return node;
+    }
+
+    /**
+     * Serializes the node type, children, and the nodes referenced by properties.
+     */
+    private final class DereferencingProcessor implements ResourceJsonProcessor
+    {
+        @Override
+        public String getName()
+        {
+            return "test";
+        }
+
+        @Override
+        public int getPriority()
+        {
+            return 0;
+        }
+
+        @Override
+        public boolean isEnabledByDefault(final Resource resource)
+        {
+            return true;
+        }
+
+        @Override
+        public void enter(final Node node, final JsonObjectBuilder input,
+            final Function<Node, JsonValue> serializeNode)
+        {
+            try {
+                ResourceToJsonAdapterFactoryTest.this.entered.merge(node.getPath(), 1, Integer::sum);
+                input.add("type", node.getPrimaryNodeType().getName());
+            } catch (RepositoryException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public JsonValue processProperty(final Node node, final Property property, final JsonValue input,
+            final Function<Node, JsonValue> serializeNode)
+        {
+            try {
+                return serializeNode.apply(ResourceToJsonAdapterFactoryTest.this.nodes.get(property.getString()));
+            } catch (RepositoryException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public JsonValue processChild(final Node node, final Node child, final JsonValue input,
+            final Function<Node, JsonValue> serializeNode)
+        {
+            return serializeNode.apply(child);
+        }
+    }
+
+    /**
+     * Adds a list of values to the top resource, streaming it directly into the output when possible.
+     */
+    private static final class StreamingProcessor implements StreamingResourceJsonProcessor
+    {
+        @Override
+        public String getName()
+        {
+            return "streaming";
+        }
+
+        @Override
+        public int getPriority()
+        {
+            return 10;
+        }
+
+        @Override
+        public boolean isEnabledByDefault(final Resource resource)
+        {
+            return true;
+        }
+
+        @Override
+        public void leave(final Node node, final JsonObjectBuilder json, final Function<Node, JsonValue> serializeNode)
+        {
+            if (isForm(node)) {
+                json.add("streamed", Json.createArrayBuilder().add(1).add(2));
+            }
+        }
+
+        @Override
+        public void leave(final Node node, final JsonGenerator output, final Function<Node, JsonValue> serializeNode,
+            final Consumer<Resource> streamResource)
+        {
+            if (isForm(node)) {
+                output.writeStartArray("streamed").write(1).write(2).writeEnd();
+            }
+        }
+    }
+
+    /**
+     * Replaces the {@code type} key of the top resource with a {@code kind} key, and changes the first answer, after
+     * the streaming processor.
+     */
+    private static final class RenamingProcessor implements ResourceJsonProcessor
+    {
+        @Override
+        public String getName()
+        {
+            return "renaming";
+        }
+
+        @Override
+        public int getPriority()
+        {
+            return 20;
+        }
+
+        @Override
+        public boolean isEnabledByDefault(final Resource resource)
+        {
+            return true;
+        }
+
+        @Override
+        public void leave(final Node node, final JsonObjectBuilder json, final Function<Node, JsonValue> serializeNode)
+        {
+            if (isForm(node)) {
+                json.remove("type");
+                json.add("kind", "cards:Form");
+                json.add("a1", "replaced");
+            }
+        }
+    }
+
+    private static boolean isForm(final Node node)
+    {
+        try {
+            return "cards:Form".equals(node.getPrimaryNodeType().getName());
+        } catch (RepositoryException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Properties implements PropertyIterator
+    {
+        private final Iterator<Property> iterator;
+
+        Properties(final List<Property> properties)
+        {
+            this.iterator = properties.iterator();
+        }
+
+        @Override
+        public Property nextProperty()
+        {
+            return this.iterator.next();
+        }
+
+        @Override
+        public Object next()
+        {
+            return this.iterator.next();
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return this.iterator.hasNext();
+        }
+
+        @Override
+        public void skip(final long skipNum)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getSize()
+        {
+            return -1;
+        }
+
+        @Override
+        public long getPosition()
+        {
+            return -1;
+        }
+    }
+
+    private static final class Nodes implements NodeIterator
+    {
+        private final Iterator<Node> iterator;
+
+        Nodes(final List<Node> nodes)
+        {
+            this.iterator = nodes.iterator();
+        }
+
+        @Override
+        public Node nextNode()
+        {
+            return this.iterator.next();
+        }
+
+        @Override
+        public Object next()
+        {
+            return this.iterator.next();
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return this.iterator.hasNext();
+        }
+
+        @Override
+        public void skip(final long skipNum)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getSize()
+        {
+            return -1;
+        }
+
+        @Override
+        public long getPosition()
+        {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.utils;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link InvalidatingCache}.
+ *
+ * @version $Id$
+ */
+public class InvalidatingCacheTest
+{
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Test
+    public void valuesAreComputedOnce()
+    {
+        final InvalidatingCache<String, String> cache = new InvalidatingCache<>();
+
+        Assert.assertEquals("a1", cache.get("a", this::load));
+        Assert.assertEquals("a1", cache.get("a", this::load));
+        Assert.assertEquals("b2", cache.get("b", this::load));
+        Assert.assertEquals(2, this.loads.get());
+    }
+
+    @Test
+    public void invalidatedValuesAreComputedAgain()
+    {
+        final InvalidatingCache<String, String> cache = new InvalidatingCache<>();
+        cache.get("a", this::load);
+        cache.get("b", this::load);
+        cache.get("c", this::load);
+
+        cache.invalidate("a");
+        Assert.assertEquals("a4", cache.get("a", this::load));
+
+        cache.invalidateIf(key -> !"a".equals(key));
+        Assert.assertEquals("a4", cache.get("a", this::load));
+        Assert.assertEquals("b5", cache.get("b", this::load));
+
+        cache.invalidateAll();
+        Assert.assertEquals("a6", cache.get("a", this::load));
+    }
+
+    @Test
+    public void boundedCacheDiscardsLeastRecentlyUsedValues()
+    {
+        final InvalidatingCache<String, String> cache = new InvalidatingCache<>(2);
+        cache.get("a", this::load);
+        cache.get("b", this::load);
+        cache.get("a", this::load);
+        cache.get("c", this::load);
+
+        Assert.assertEquals("a1", cache.get("a", this::load));
+        Assert.assertEquals("b4", cache.get("b", this::load));
+    }
+
+    @Test
+    public void failuresAndNullValuesAreNotKept() throws IOException
+    {
+        final InvalidatingCache<String, String> cache = new InvalidatingCache<>();
+        try {
+            cache.get("a", key -> {
+                throw new IOException("failed");
+            });
+            Assert.fail("The loader exception should be rethrown");
+        } catch (final IOException e) {
+            Assert.assertEquals("failed", e.getMessage());
+        }
+        Assert.assertNull(cache.get("b", key -> null));
+
+        Assert.assertEquals("a1", cache.get("a", this::load));
+        Assert.assertEquals("b2", cache.get("b", this::load));
+    }
+
+    @Test
+    public void concurrentRequestsWaitForTheSameComputation() throws Exception
+    {
+        final InvalidatingCache<String, String> cache = new InvalidatingCache<>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<String> first = executor.submit(() -> cache.get("a", key -> {
+                started.countDown();
+                release.await();
+                return load(key);
+            }));
+            started.await();
+            final Future<String> second = executor.submit(() -> cache.get("a", this::load));
+            release.countDown();
+
+            Assert.assertEquals("a1", first.get(10, TimeUnit.SECONDS));
+            Assert.assertEquals("a1", second.get(10, TimeUnit.SECONDS));
+            Assert.assertEquals(1, this.loads.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void valuesComputedDuringAnInvalidationAreNotKept() throws Exception
+    {
+        final InvalidatingCache<String, String> cache = new InvalidatingCache<>();
+
+        Assert.assertEquals("a1", cache.get("a", key -> {
+            final String result = load(key);
+            cache.invalidateAll();
+            return result;
+        }));
+        Assert.assertEquals("a2", cache.get("a", this::load));
+    }
+
+    private String load(final String key)
+    {
+        return key + this.loads.incrementAndGet();
+    }
+}
@@ -24,6 +24,8 @@
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
 
 import javax.json.Json;
 import javax.json.JsonObject;
@@ -34,12 +36,22 @@
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+
+import io.uhndata.cards.vocabularies.internal.VocabularySuggestionIndex;
 
 /**
- * A servlet that performs full text match and lucene queries on vocabulary terms.
+ * A servlet that performs full text match and lucene queries on vocabulary terms. Plain suggestions, without a custom
+ * filter or sorting, are served from an in-memory index of the vocabulary instead of the query engine. These match
+ * terms having words that start with each of the suggested words, which suits the autocomplete widgets sending them,
+ * but unlike the full text query, words are not matched in the middle. The {@code oakquery} summary field, not used by
+ * these widgets, is only included in the response when a query was executed. Matching terms are only resolved up to
+ * one past the requested page; if there are more, {@code totalrows} is a lower bound, and {@code totalIsApproximate}
+ * is set.
  *
  * @version $Id$
  */
@@ -57,6 +69,9 @@ public class VocabularyTermSearchServlet extends SlingSafeMethodsServlet
 
     private static final int MAX_LIMIT = 1000;
 
+    @Reference
+    private VocabularySuggestionIndex suggestionIndex;
+
     @Override
     public void doGet(final SlingHttpServletRequest request, final SlingHttpServletResponse response) throws IOException
     {
@@ -69,10 +84,19 @@ public void doGet(final SlingHttpServletRequest request, final SlingHttpServletR
         // To avoid overloading the server, we set a limit on the number of nodes that can be returned
         limit = Math.min(limit, MAX_LIMIT);
 
-        // Parse and execute the given suggest or query
-        String parentPath = request.getResource().getPath();
-        String oakQuery = constructQuery(suggest, query, filter, sort, parentPath);
-        Iterator<Resource> results = request.getResourceResolver().findResources(oakQuery, "JCR-SQL2");
+        // Plain suggestions are looked up in the suggestion index, everything else is a query
+        List<String> suggestions = null;
+        String oakQuery = null;
+        Iterator<Resource> results = null;
+        if (StringUtils.isNotBlank(suggest) && StringUtils.isAllBlank(filter, sort)) {
+            suggestions = this.suggestionIndex.suggest(request.getResource().getPath(), suggest,
+                Boolean.parseBoolean(request.getParameter("fuzzy")));
+        } else {
+            // Parse and execute the given suggest or query
+            String parentPath = request.getResource().getPath();
+            oakQuery = constructQuery(suggest, query, filter, sort, parentPath);
+            results = request.getResourceResolver().findResources(oakQuery, "JCR-SQL2");
+        }
 
         // Write the output
         // The writer doesn't need to be explicitly closed since the auto-closed jsonGen will also close the writer
@@ -80,7 +104,9 @@ public void doGet(final SlingHttpServletRequest request, final SlingHttpServletR
         final Writer out = response.getWriter();
         try (JsonGenerator jsonGen = Json.createGenerator(out)) {
             jsonGen.writeStartObject();
-            long[] limits = writeNodes(jsonGen, results, offset, limit);
+            long[] limits = writeNodes(jsonGen,
+                suggestions != null ? getAccessibleTerms(request.getResourceResolver(), suggestions) : results,
+                offset, limit);
             writeSummary(jsonGen, request, limits, oakQuery);
             jsonGen.writeEnd().flush();
         }
@@ -195,13 +221,9 @@ private String getOrderFromSort(String sort)
      *
      * @param jsonGen the JSON generator where the results should be serialized
      * @param request the current request
-     * @param offset the requested offset, may be the default value of {0}
-     * @param limit the requested limit, may be the default value of {10}
-     * @param returnedNodes the number of matching nodes included in the response, may be {@code 0} if no nodes were
-     *            returned
-     * @param totalMatchingNodes the total number of accessible nodes matching the request, may be {@code 0} if no nodes
-     *            match the filters, or the current user cannot access the nodes
-     * @param oakQuery test code, do not commit
+     * @param limits the requested offset and limit, the number of matching nodes included in the response, the number
+     *            of accessible nodes matching the request that were found, and {@code 1} if there are more than that
+     * @param oakQuery the query that was executed, or {@code null} if the results came from the suggestion index
      */
     private void writeSummary(final JsonGenerator jsonGen, final SlingHttpServletRequest request, final long[] limits,
         final String oakQuery)
@@ -211,24 +233,60 @@ private void writeSummary(final JsonGenerator jsonGen, final SlingHttpServletReq
         jsonGen.write("limit", limits[1]);
         jsonGen.write("returnedrows", limits[2]);
         jsonGen.write("totalrows", limits[3]);
-        jsonGen.write("oakquery", oakQuery);
+        jsonGen.write("totalIsApproximate", limits[4] == 1);
+        if (oakQuery != null) {
+            jsonGen.write("oakquery", oakQuery);
+        }
+    }
+
+    /**
+     * Resolve the suggested terms with the resolver of the current user, skipping the ones that the user cannot access
+     * or that were removed since the suggestion index was built, so that only accessible terms are returned and
+     * counted.
+     *
+     * @param resolver the resource resolver of the current user
+     * @param suggestions the paths of all the matching terms, ranked
+     * @return the accessible terms, in the same order, lazily resolved
+     */
+    private Iterator<Resource> getAccessibleTerms(final ResourceResolver resolver, final List<String> suggestions)
+    {
+        return suggestions.stream().map(resolver::getResource).filter(Objects::nonNull).iterator();
     }
 
+    /**
+     * Write the requested page of matching nodes. Only the nodes up to the end of the page, and one more to know if
+     * there are others, are read, since reading a node means resolving it with the resolver of the current user.
+     *
+     * @param jsonGen the JSON generator where the results should be serialized
+     * @param nodes the accessible matching nodes, lazily resolved
+     * @param offset the requested offset
+     * @param limit the requested limit
+     * @return the requested offset and limit, the number of returned nodes, the number of matching nodes found, and
+     *         {@code 1} if there are more matching nodes than that, {@code 0} otherwise
+     */
     private long[] writeNodes(final JsonGenerator jsonGen, final Iterator<Resource> nodes,
         final long offset, final long limit)
     {
-        final long[] counts = new long[4];
+        final long[] counts = new long[5];
         counts[0] = offset;
         counts[1] = limit;
         counts[2] = 0;
         counts[3] = 0;
+        counts[4] = 0;
 
         long offsetCounter = offset < 0 ? 0 : offset;
         long limitCounter = limit < 0 ? 0 : limit;
+        final long pageEnd = offsetCounter + limitCounter;
 
         jsonGen.writeStartArray("rows");
 
         while (nodes.hasNext()) {
+            if (counts[3] == pageEnd) {
+                // There's at least one more node after the requested page, stop counting
+                ++counts[3];
+                counts[4] = 1;
+                break;
+            }
             Resource n = nodes.next();
             if (offsetCounter > 0) {
                 --offsetCounter;
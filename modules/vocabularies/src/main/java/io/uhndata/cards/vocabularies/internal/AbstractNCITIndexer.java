@@ -104,8 +104,8 @@ public void index(final String source, final SlingHttpServletRequest request,
                 throw new VocabularyIndexException("Could not access resource of your request.");
             }
 
-            // Delete the Vocabulary node already representing this vocabulary instance if it exists
-            this.utils.clearVocabularyNode(homepage, identifier, overwrite);
+            // Check that the Vocabulary node already representing this vocabulary instance, if any, may be replaced
+            this.utils.checkCanOverwrite(homepage, identifier, overwrite);
 
             // Load temporary NCIT zip file. Default location is at https://evs.nci.nih.gov/ftp1/NCI_Thesaurus/
             String sourceLocation = getDefaultSource(version);
@@ -129,11 +129,12 @@ public void index(final String source, final SlingHttpServletRequest request,
             parseNCIT(temporaryFile, vocabularyNode);
 
             /*
-             * Save the JCR session. If any errors occur before this step, all proposed changes will not be applied and
-             * the repository will remain in its original state. Lucene indexing is automatically performed by the
-             * Jackrabbit Oak repository when this is performed.
+             * Save the remaining changes, replace the installed vocabulary and check-in the new one. Terms are saved in
+             * batches in a staging node while parsing, and if any errors occur, the staging node is removed and the
+             * installed vocabulary is kept. Lucene indexing is automatically performed by the Jackrabbit Oak
+             * repository when the session is saved.
              */
-            saveSession(homepage);
+            OntologyIndexerUtils.finalizeInstall(homepage, vocabularyNode);
 
             // Success response json
             this.utils.writeStatusJson(request, response, true, null);
@@ -141,6 +142,7 @@ public void index(final String source, final SlingHttpServletRequest request,
             // If parsing fails, return an error json with the exception message
             this.utils.writeStatusJson(request, response, false, "NCIT Flat indexing error: " + e.getMessage());
             LOGGER.error("NCIT indexing error: {}", e.getMessage(), e);
+            OntologyIndexerUtils.abortInstall(homepage, identifier);
         } finally {
             // Delete temporary source file
             FileUtils.deleteQuietly(temporaryFile);
@@ -164,8 +166,7 @@ private Node createNCITVocabularyNode(Node homepage, String identifier, String n
         throws VocabularyIndexException
     {
         try {
-            Node vocabularyNode = homepage.addNode("./" + identifier, "cards:Vocabulary");
-            vocabularyNode.setProperty("identifier", identifier);
+            Node vocabularyNode = OntologyIndexerUtils.createStagingNode(homepage, identifier);
             vocabularyNode.setProperty("name", name);
             vocabularyNode.setProperty("source", source);
             vocabularyNode.setProperty("version", version);
@@ -212,6 +213,7 @@ protected void createNCITVocabularyTermNode(Node vocabularyNode, String identifi
             vocabularyTermNode.setProperty("synonyms", synonyms);
             vocabularyTermNode.setProperty("parents", parents);
             vocabularyTermNode.setProperty("ancestors", ancestors);
+            OntologyIndexerUtils.termCreated(vocabularyNode);
         } catch (RepositoryException e) {
             // If the identifier exists, print the identifier in the error message to identify node
             String message =
@@ -220,26 +222,6 @@ protected void createNCITVocabularyTermNode(Node vocabularyNode, String identifi
         }
     }
 
-    /**
-     * Saves the JCR session of the homepage node that was obtained from the resource of the request. If this is
-     * successful, then the changes made already will be applied to the JCR repository. If not, then all of the changes
-     * will not be applied. After the session is saved, then the JCR repository will automatically begin Lucene
-     * indexing.
-     *
-     * @param vocabulariesHomepage the <code>VocabulariesHomepage</code> node obtained from the request
-     * @throws VocabularyIndexException if session is not successfully saved
-     */
-    private void saveSession(Node vocabulariesHomepage)
-        throws VocabularyIndexException
-    {
-        try {
-            vocabulariesHomepage.getSession().save();
-        } catch (RepositoryException e) {
-            String message = "Failed to save session: " + e.getMessage();
-            throw new VocabularyIndexException(message, e);
-        }
-    }
-
     /**
      * Parses the temporary NCIT source file and creates <code>VocabularyTerm</code> nodes for each term. The new term
      * nodes must be children of the given <code>Vocabulary</code> node representing the NCIT vocabulary instance.
@@ -110,8 +110,8 @@ public void index(final String source, final SlingHttpServletRequest request,
                 throw new VocabularyIndexException("Could not access resource of your request.");
             }
 
-            // Delete the Vocabulary node already representing this vocabulary instance if it exists
-            this.utils.clearVocabularyNode(homepage, identifier, overwrite);
+            // Check that the Vocabulary node already representing this vocabulary instance, if any, may be replaced
+            this.utils.checkCanOverwrite(homepage, identifier, overwrite);
 
             // Load the description
             VocabularyDescription description;
@@ -148,9 +148,10 @@ public void index(final String source, final SlingHttpServletRequest request,
             parser.parse(temporaryFile, description, this::createVocabularyTermNode);
 
             /*
-             * Save the JCR session and check-in nodes. If any errors occur before this step, all proposed changes
-             * will not be applied and the repository will remain in its original state. Lucene indexing is
-             * automatically performed by the Jackrabbit Oak repository when this is performed.
+             * Save the remaining changes, replace the installed vocabulary and check-in the new one. Terms are saved in
+             * batches in a staging node while parsing, and if any errors occur, the staging node is removed and the
+             * installed vocabulary is kept. Lucene indexing is automatically performed by the Jackrabbit Oak
+             * repository when the session is saved.
              */
             OntologyIndexerUtils.finalizeInstall(homepage, this.vocabularyNode);
 
@@ -160,6 +161,7 @@ public void index(final String source, final SlingHttpServletRequest request,
             // If parsing fails, return an error json with the exception message
             this.utils.writeStatusJson(request, response, false, "Vocabulary indexing error: " + e.getMessage());
             LOGGER.error("Vocabulary indexing error: {}", e.getMessage(), e);
+            OntologyIndexerUtils.abortInstall(homepage, identifier);
         } finally {
             // Delete temporary source file
             FileUtils.deleteQuietly(temporaryFile);
@@ -28,9 +28,12 @@
 
 import javax.jcr.ItemExistsException;
 import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 import javax.jcr.Value;
-import javax.jcr.version.VersionManager;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -45,8 +48,14 @@
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(OntologyIndexerUtils.class);
 
-    /** The list which holds all JCR vocabulary nodes associated with a vocabulary to be checked-in. */
-    private static final ThreadLocal<List<Node>> NODES_TO_CHECK_IN = ThreadLocal.withInitial(ArrayList::new);
+    /** The suffix of the node name under which a vocabulary is indexed before replacing the installed vocabulary. */
+    private static final String STAGING_SUFFIX = ".staging";
+
+    /** How many terms to create before saving the session, so that large vocabularies aren't held in memory. */
+    private static final int BATCH_SIZE = 1000;
+
+    /** The number of terms created so far for the vocabulary being indexed. */
+    private static final ThreadLocal<Long> TERMS_CREATED = ThreadLocal.withInitial(() -> 0L);
 
     /** The list which holds all root terms. */
     private static final ThreadLocal<List<Node>> ROOT_NODES = ThreadLocal.withInitial(ArrayList::new);
@@ -76,7 +85,6 @@ public static void createVocabularyTermNode(VocabularyTermSource term, Inheritab
                 vocabularyTermNode = vocabularyNode.get().getNode(term.getId());
             }
 
-            NODES_TO_CHECK_IN.get().add(vocabularyTermNode);
             vocabularyTermNode.setProperty("identifier", term.getId());
 
             vocabularyTermNode.setProperty("label", term.getLabel());
@@ -105,6 +113,7 @@ public static void createVocabularyTermNode(VocabularyTermSource term, Inheritab
                     vocabularyTermNode.setProperty(entry.getKey(), valuesArray);
                 }
             }
+            termCreated(vocabularyNode.get());
         } catch (RepositoryException e) {
             // If the identifier exists, print the identifier in the error message to identify node
             LOGGER.warn("Failed to create VocabularyTerm node {}: {}", StringUtils.defaultString(term.getId()),
@@ -114,27 +123,25 @@ public static void createVocabularyTermNode(VocabularyTermSource term, Inheritab
     }
 
     /**
-     * Creates a <code>Vocabulary</code> node that represents the current vocabulary instance with the identifier as the
-     * name of the node.
+     * Creates the staging node that represents the current vocabulary instance while it is being indexed. It only
+     * replaces the vocabulary with the same identifier once the install is finalized.
      *
      * @param homepage <code>VocabulariesHomepage</code> node instance that will be parent of the new vocabulary node
      * @param description the vocabulary description, holding all the relevant information about the vocabulary
-     * @return the <code>Vocabulary</code> node that was created
+     * @return the <code>VocabularyStaging</code> node that was created
      * @throws VocabularyIndexException when node cannot be created
      */
     public static Node createVocabularyNode(final Node homepage, final VocabularyDescription description)
         throws VocabularyIndexException
     {
         try {
-            Node result = homepage.addNode("./" + description.getIdentifier(), "cards:Vocabulary");
-            result.setProperty("identifier", description.getIdentifier());
+            Node result = createStagingNode(homepage, description.getIdentifier());
             result.setProperty("name", description.getName());
             result.setProperty("description", description.getDescription());
             result.setProperty("source", description.getSource());
             result.setProperty("version", description.getVersion());
             result.setProperty("website", description.getWebsite());
             result.setProperty("citation", description.getCitation());
-            NODES_TO_CHECK_IN.get().add(result);
             return result;
         } catch (RepositoryException e) {
             String message = "Failed to create Vocabulary node: " + e.getMessage();
@@ -144,18 +151,110 @@ public static Node createVocabularyNode(final Node homepage, final VocabularyDes
     }
 
     /**
-     * Saves the JCR session of the homepage node that was obtained from the resource of the request. If this is
-     * successful, then the changes made already will be applied to the JCR repository. If not, then all of the changes
-     * will be discarded, reverting to the original state.
+     * Creates the <code>VocabularyStaging</code> node in which a vocabulary is indexed. Since it is not a
+     * <code>Vocabulary</code>, it is not listed with the installed vocabularies. A staging node left behind by an
+     * interrupted install is discarded. The vocabulary that is already installed, if any, is left untouched until the
+     * install is finalized.
+     *
+     * @param homepage <code>VocabulariesHomepage</code> node instance that will be parent of the new vocabulary node
+     * @param identifier the identifier of the vocabulary being indexed
+     * @return the <code>VocabularyStaging</code> node, with only its identifier set
+     * @throws RepositoryException if the node cannot be created
+     */
+    public static Node createStagingNode(final Node homepage, final String identifier) throws RepositoryException
+    {
+        final String name = identifier + STAGING_SUFFIX;
+        if (homepage.hasNode(name)) {
+            homepage.getNode(name).remove();
+        }
+        final Node result = homepage.addNode("./" + name, "cards:VocabularyStaging");
+        result.setProperty("identifier", identifier);
+        return result;
+    }
+
+    /**
+     * Records that a new term was added to a vocabulary, saving the session once every {@link #BATCH_SIZE} terms. This
+     * keeps the number of transient nodes bounded when indexing large vocabularies.
+     *
+     * @param vocabularyNode the vocabulary being indexed
+     * @throws RepositoryException if saving the session fails
+     */
+    public static void termCreated(final Node vocabularyNode) throws RepositoryException
+    {
+        final long count = TERMS_CREATED.get() + 1;
+        TERMS_CREATED.set(count);
+        if (count % BATCH_SIZE == 0) {
+            vocabularyNode.getSession().save();
+            LOGGER.info("Indexed {} terms of vocabulary {}", count, vocabularyNode.getName());
+        }
+    }
+
+    /**
+     * Discards a failed vocabulary install. Unsaved changes are discarded, and if some of the terms were already saved,
+     * the staging node holding them is removed. The previously installed vocabulary, if any, is kept.
+     *
+     * @param vocabulariesHomepage the <code>VocabulariesHomepage</code> node obtained from the request, may be null
+     * @param identifier the identifier of the vocabulary that failed to be indexed
+     */
+    public static void abortInstall(final Node vocabulariesHomepage, final String identifier)
+    {
+        clearState();
+        if (vocabulariesHomepage == null || identifier == null) {
+            return;
+        }
+        try {
+            final Session session = vocabulariesHomepage.getSession();
+            session.refresh(false);
+            if (vocabulariesHomepage.hasNode(identifier + STAGING_SUFFIX)) {
+                vocabulariesHomepage.getNode(identifier + STAGING_SUFFIX).remove();
+                session.save();
+            }
+        } catch (RepositoryException e) {
+            LOGGER.error("Failed to remove partially indexed vocabulary {}: {}", identifier, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Cleans up the indexing state of the current thread once a vocabulary install is done.
+     */
+    public static void clearState()
+    {
+        TERMS_CREATED.remove();
+        ROOT_NODES.remove();
+    }
+
+    /**
+     * Replaces the installed vocabulary with the staging node, using the JCR session of the homepage node that was
+     * obtained from the resource of the request. The remaining indexed terms are saved first, so that the installed
+     * vocabulary is only touched once the new one was fully indexed. Then, in a single save, the installed vocabulary
+     * is removed as a whole, and the indexed terms are moved into a new <code>Vocabulary</code> node in its place, so
+     * the installed vocabulary is either kept intact or fully replaced.
      *
      * @param vocabulariesHomepage the <code>VocabulariesHomepage</code> node obtained from the request
+     * @param stagingNode the staging vocabulary node that holds indexed data
+     * @return the path of the installed vocabulary node
      * @throws VocabularyIndexException if session is not successfully saved
      */
-    private static void saveSession(Node vocabulariesHomepage)
+    private static String replaceVocabulary(Node vocabulariesHomepage, Node stagingNode)
         throws VocabularyIndexException
     {
         try {
-            vocabulariesHomepage.getSession().save();
+            final Session session = vocabulariesHomepage.getSession();
+            session.save();
+            final String name = StringUtils.removeEnd(stagingNode.getName(), STAGING_SUFFIX);
+            if (vocabulariesHomepage.hasNode(name)) {
+                vocabulariesHomepage.getNode(name).remove();
+            }
+            final Node vocabularyNode = vocabulariesHomepage.addNode("./" + name, "cards:Vocabulary");
+            copyProperties(stagingNode, vocabularyNode);
+            final String path = vocabularyNode.getPath();
+            final String stagingPath = stagingNode.getPath();
+            for (String term : listTerms(stagingNode)) {
+                session.move(stagingPath + "/" + term, path + "/" + term);
+            }
+            stagingNode.remove();
+            session.save();
+            return path;
         } catch (RepositoryException e) {
             String message = "Failed to save session: " + e.getMessage();
             throw new VocabularyIndexException(message, e);
@@ -163,30 +262,67 @@ private static void saveSession(Node vocabulariesHomepage)
     }
 
     /**
-     * Checks into JCR the list of JCR Nodes associated with the installation of a vocabulary.
+     * Lists the names of all the terms of a vocabulary, so that they can be moved without changing the vocabulary while
+     * iterating over its children.
+     *
+     * @param vocabularyNode a staging vocabulary node
+     * @return the names of all the children
+     * @throws RepositoryException if accessing the repository fails
+     */
+    private static List<String> listTerms(final Node vocabularyNode) throws RepositoryException
+    {
+        final List<String> result = new ArrayList<>();
+        final NodeIterator terms = vocabularyNode.getNodes();
+        while (terms.hasNext()) {
+            result.add(terms.nextNode().getName());
+        }
+        return result;
+    }
+
+    /**
+     * Copies the vocabulary description from the staging node to the installed vocabulary node. The properties managed
+     * by the repository or by Sling are skipped, the target node has its own.
+     *
+     * @param source the staging vocabulary node
+     * @param target the new <code>Vocabulary</code> node
+     * @throws RepositoryException if accessing the repository fails
+     */
+    private static void copyProperties(final Node source, final Node target) throws RepositoryException
+    {
+        final PropertyIterator properties = source.getProperties();
+        while (properties.hasNext()) {
+            final Property property = properties.nextProperty();
+            if (property.getName().startsWith("jcr:") || property.getName().startsWith("sling:")) {
+                continue;
+            }
+            if (property.isMultiple()) {
+                target.setProperty(property.getName(), property.getValues());
+            } else {
+                target.setProperty(property.getName(), property.getValue());
+            }
+        }
+    }
+
+    /**
+     * Checks in the vocabulary node. Only the vocabulary itself is versioned, individual terms are not checked in.
      *
      * @param vocabulariesHomepage the <code>VocabulariesHomepage</code> node obtained from the request
-     * @throws VocabularyIndexException if the checking-in of a Node fails
+     * @param path the path of the vocabulary node that was installed
+     * @throws VocabularyIndexException if the checking-in fails
      */
-    private static void checkInVocabulary(Node vocabulariesHomepage) throws VocabularyIndexException
+    private static void checkInVocabulary(Node vocabulariesHomepage, String path) throws VocabularyIndexException
     {
         try {
-            final VersionManager vm = vocabulariesHomepage.getSession().getWorkspace().getVersionManager();
-            for (int i = 0; i < NODES_TO_CHECK_IN.get().size(); i++) {
-                vm.checkin(NODES_TO_CHECK_IN.get().get(i).getPath());
-            }
+            vocabulariesHomepage.getSession().getWorkspace().getVersionManager().checkin(path);
         } catch (RepositoryException e) {
             String message = "Failed to check-in vocabulary: " + e.getMessage();
             throw new VocabularyIndexException(message, e);
-        } finally {
-            //Cleanup
-            NODES_TO_CHECK_IN.remove();
         }
     }
 
     /**
-     * Finalizes the vocabulary install by saving the JCR session and checking in all the newly installed
-     * Vocabulary nodes.
+     * Finalizes the vocabulary install by saving the JCR session, replacing the previously installed vocabulary, and
+     * checking in the newly installed Vocabulary node.
      *
      * @param vocabulariesHomepage the <code>VocabulariesHomepage</code> node obtained from the request
      * @param vocabularyNode The vocabulary node that holds indexed data
@@ -196,8 +332,24 @@ public static void finalizeInstall(Node vocabulariesHomepage, InheritableThreadL
         throws VocabularyIndexException
     {
         setRootNodes(vocabularyNode);
-        saveSession(vocabulariesHomepage);
-        checkInVocabulary(vocabulariesHomepage);
+        finalizeInstall(vocabulariesHomepage, vocabularyNode.get());
+    }
+
+    /**
+     * Finalizes the vocabulary install by saving the JCR session, replacing the previously installed vocabulary, and
+     * checking in the newly installed Vocabulary node, for indexers that don't track root terms.
+     *
+     * @param vocabulariesHomepage the <code>VocabulariesHomepage</code> node obtained from the request
+     * @param vocabularyNode The staging vocabulary node that holds indexed data
+     * @throws VocabularyIndexException if the JCR session is not successfully saved or the checking-in fails
+     */
+    public static void finalizeInstall(Node vocabulariesHomepage, Node vocabularyNode)
+        throws VocabularyIndexException
+    {
+        final String path = replaceVocabulary(vocabulariesHomepage, vocabularyNode);
+        LOGGER.info("Indexed {} terms of vocabulary {}", TERMS_CREATED.get(), path);
+        clearState();
+        checkInVocabulary(vocabulariesHomepage, path);
     }
 
     /**
@@ -0,0 +1,332 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.vocabularies.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.resource.observation.ExternalResourceChangeListener;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.utils.InvalidatingCache;
+
+/**
+ * In-memory word prefix indexes of vocabulary terms, used by the vocabulary search servlet for serving suggestions
+ * without running a full text query. Each vocabulary gets its own compact index, built on first use from the labels,
+ * synonyms and identifiers of its terms, and discarded after any change to that vocabulary, including changes coming
+ * from other cluster members. Indexes are shared by all users, so they are built with a service user that can read all
+ * the terms, and callers must check that the suggested terms are accessible to the current user.
+ *
+ * @version $Id$
+ */
+@Component(service = { VocabularySuggestionIndex.class, ResourceChangeListener.class }, property = {
+    ResourceChangeListener.PATHS + "=/Vocabularies",
+    ResourceChangeListener.CHANGES + "=ADDED",
+    ResourceChangeListener.CHANGES + "=CHANGED",
+    ResourceChangeListener.CHANGES + "=REMOVED"
+})
+public class VocabularySuggestionIndex implements ResourceChangeListener, ExternalResourceChangeListener
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(VocabularySuggestionIndex.class);
+
+    /** How many vocabulary indexes to remember at most. */
+    private static final int MAX_INDEXES = 8;
+
+    /** Query words shorter than this are never matched approximately, since almost anything is one typo away. */
+    private static final int MIN_FUZZY_LENGTH = 4;
+
+    /** Properties holding the synonyms of a term: OWL and OBO vocabularies use the former, NCIT the latter. */
+    private static final String[] SYNONYM_PROPERTIES = { "synonym", "synonyms" };
+
+    /** Provides the service resource resolver used for building indexes. */
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    /** Indexes, keyed by vocabulary path. */
+    private final InvalidatingCache<String, Index> indexes = new InvalidatingCache<>(MAX_INDEXES);
+
+    /**
+     * The index of one vocabulary. Terms are referred to by their position in {@code paths}, and every indexed word
+     * has a sorted list of postings, each one being a term position shifted left by one, with the lowest bit set if
+     * the word appears in the term label.
+     */
+    private static final class Index
+    {
+        /** The paths of all the terms. */
+        private final String[] paths;
+
+        /** The normalized labels of all the terms, as lowercase words separated by a single space. */
+        private final String[] labels;
+
+        /** All the distinct indexed words, sorted. */
+        private final String[] words;
+
+        /** The postings of each word in {@code words}. */
+        private final int[][] postings;
+
+        Index(final String[] paths, final String[] labels, final String[] words, final int[][] postings)
+        {
+            this.paths = paths;
+            this.labels = labels;
+            this.words = words;
+            this.postings = postings;
+        }
+    }
+
+    /**
+     * Find the terms of a vocabulary having, for every word of the query, a label, synonym or identifier word starting
+     * with that word. Results are ranked: first terms whose label is exactly the query, then terms whose label starts
+     * with the query, then terms whose label alone matches all the query words, and finally the rest; within each
+     * rank, shorter labels come first.
+     *
+     * @param vocabularyPath the path of the vocabulary to search in
+     * @param query the text typed by the user, case insensitive
+     * @param fuzzy whether query words that match nothing should be matched against words one edit away instead
+     * @return the paths of the matching terms, ranked, may be empty; some may not be accessible to the current user
+     */
+    public List<String> suggest(final String vocabularyPath, final String query, final boolean fuzzy)
+    {
+        final List<String> queryWords = splitWords(query);
+        if (queryWords.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final Index index = getIndex(vocabularyPath);
+        if (index == null) {
+            return Collections.emptyList();
+        }
+        BitSet matches = null;
+        BitSet labelMatches = null;
+        for (final String word : queryWords) {
+            final BitSet wordMatches = new BitSet(index.paths.length);
+            final BitSet wordLabelMatches = new BitSet(index.paths.length);
+            collectPrefixMatches(index, word, wordMatches, wordLabelMatches);
+            if (wordMatches.isEmpty() && fuzzy && word.length() >= MIN_FUZZY_LENGTH) {
+                collectFuzzyMatches(index, word, wordMatches, wordLabelMatches);
+            }
+            if (matches == null) {
+                matches = wordMatches;
+                labelMatches = wordLabelMatches;
+            } else {
+                matches.and(wordMatches);
+                labelMatches.and(wordLabelMatches);
+            }
+            if (matches.isEmpty()) {
+                return Collections.emptyList();
+            }
+        }
+        return rank(index, String.join(" ", queryWords), matches, labelMatches);
+    }
+
+    @Override
+    public void onChange(final List<ResourceChange> changes)
+    {
+        for (final ResourceChange change : changes) {
+            final String path = change.getPath();
+            this.indexes.invalidateIf(vocabulary -> path.equals(vocabulary)
+                || path.startsWith(vocabulary + "/") || vocabulary.startsWith(path + "/"));
+        }
+    }
+
+    private Index getIndex(final String path)
+    {
+        return this.indexes.get(path, vocabularyPath -> {
+            try (ResourceResolver resolver = this.resolverFactory
+                .getServiceResourceResolver(Map.of(ResourceResolverFactory.SUBSERVICE, "suggestionIndex"))) {
+                return buildIndex(resolver, vocabularyPath);
+            } catch (final LoginException e) {
+                LOGGER.error("Cannot index vocabulary {}, service user not found: {}", vocabularyPath, e.getMessage(),
+                    e);
+                return null;
+            }
+        });
+    }
+
+    private Index buildIndex(final ResourceResolver resolver, final String vocabularyPath)
+    {
+        final List<String> paths = new ArrayList<>();
+        final List<String> labels = new ArrayList<>();
+        final NavigableMap<String, List<Integer>> postings = new TreeMap<>();
+        final Iterator<Resource> terms = resolver.findResources(String.format(
+            "select a.* from [cards:VocabularyTerm] as a where isdescendantnode(a, '%s')",
+            vocabularyPath.replace("'", "''")), "JCR-SQL2");
+        while (terms.hasNext()) {
+            final Resource term = terms.next();
+            final ValueMap properties = term.getValueMap();
+            final int position = paths.size();
+            final List<String> labelWords = splitWords(properties.get("label", ""));
+            paths.add(term.getPath());
+            labels.add(String.join(" ", labelWords));
+            addPostings(postings, labelWords, position << 1 | 1);
+            for (final String property : SYNONYM_PROPERTIES) {
+                for (final String synonym : properties.get(property, new String[0])) {
+                    addPostings(postings, splitWords(synonym), position << 1);
+                }
+            }
+            addPostings(postings, splitWords(properties.get("identifier", "")), position << 1);
+        }
+
+        final String[] words = new String[postings.size()];
+        final int[][] wordPostings = new int[postings.size()][];
+        int i = 0;
+        for (final Map.Entry<String, List<Integer>> entry : postings.entrySet()) {
+            words[i] = entry.getKey();
+            wordPostings[i] = entry.getValue().stream().mapToInt(Integer::intValue).toArray();
+            ++i;
+        }
+        return new Index(paths.toArray(new String[0]), labels.toArray(new String[0]), words, wordPostings);
+    }
+
+    private static void addPostings(final NavigableMap<String, List<Integer>> postings, final List<String> words,
+        final int posting)
+    {
+        for (final String word : words) {
+            final List<Integer> list = postings.computeIfAbsent(word, k -> new ArrayList<>(1));
+            // Terms are added in order, so a repeated word of the same term can only be the last posting
+            final int last = list.isEmpty() ? -1 : list.get(list.size() - 1);
+            if (last >> 1 != posting >> 1) {
+                list.add(posting);
+            } else if (last != (last | posting)) {
+                list.set(list.size() - 1, last | posting);
+            }
+        }
+    }
+
+    private static void collectPrefixMatches(final Index index, final String prefix, final BitSet matches,
+        final BitSet labelMatches)
+    {
+        final int end = insertionPoint(index.words, prefix + Character.MAX_VALUE);
+        for (int i = insertionPoint(index.words, prefix); i < end; ++i) {
+            collectPostings(index.postings[i], matches, labelMatches);
+        }
+    }
+
+    private static void collectFuzzyMatches(final Index index, final String word, final BitSet matches,
+        final BitSet labelMatches)
+    {
+        // Only words sharing the first letter are considered, which keeps the scan short and the results sensible
+        final String first = word.substring(0, 1);
+        final int end = insertionPoint(index.words, first + Character.MAX_VALUE);
+        for (int i = insertionPoint(index.words, first); i < end; ++i) {
+            final String candidate = index.words[i];
+            if (isWithinOneEdit(word, candidate) || (candidate.length() > word.length()
+                && isWithinOneEdit(word, candidate.substring(0, word.length())))) {
+                collectPostings(index.postings[i], matches, labelMatches);
+            }
+        }
+    }
+
+    private static void collectPostings(final int[] postings, final BitSet matches, final BitSet labelMatches)
+    {
+        for (final int posting : postings) {
+            matches.set(posting >> 1);
+            if ((posting & 1) != 0) {
+                labelMatches.set(posting >> 1);
+            }
+        }
+    }
+
+    private static List<String> rank(final Index index, final String query, final BitSet matches,
+        final BitSet labelMatches)
+    {
+        final List<String> result = new ArrayList<>(matches.cardinality());
+        matches.stream().boxed()
+            .sorted((a, b) -> {
+                int diff = Integer.compare(getRank(index, query, labelMatches, a),
+                    getRank(index, query, labelMatches, b));
+                if (diff == 0) {
+                    diff = Integer.compare(index.labels[a].length(), index.labels[b].length());
+                }
+                return diff != 0 ? diff : index.labels[a].compareTo(index.labels[b]);
+            })
+            .forEachOrdered(position -> result.add(index.paths[position]));
+        return result;
+    }
+
+    private static int getRank(final Index index, final String query, final BitSet labelMatches, final int position)
+    {
+        final String label = index.labels[position];
+        if (label.equals(query)) {
+            return 0;
+        } else if (label.startsWith(query)) {
+            return 1;
+        } else if (labelMatches.get(position)) {
+            return 2;
+        }
+        return 3;
+    }
+
+    private static int insertionPoint(final String[] words, final String word)
+    {
+        final int position = Arrays.binarySearch(words, word);
+        return position < 0 ? -position - 1 : position;
+    }
+
+    /**
+     * Check if two words differ by at most one inserted, removed or replaced character.
+     *
+     * @param a a word
+     * @param b another word
+     * @return {@code true} if the edit distance between the two words is at most one
+     */
+    private static boolean isWithinOneEdit(final String a, final String b)
+    {
+        if (Math.abs(a.length() - b.length()) > 1) {
+            return false;
+        }
+        final String shorter = a.length() <= b.length() ? a : b;
+        final String longer = shorter == a ? b : a;
+        int i = 0;
+        while (i < shorter.length() && shorter.charAt(i) == longer.charAt(i)) {
+            ++i;
+        }
+        if (shorter.length() == longer.length()) {
+            return i >= shorter.length() - 1 || shorter.substring(i + 1).equals(longer.substring(i + 1));
+        }
+        return shorter.substring(i).equals(longer.substring(i + 1));
+    }
+
+    private static List<String> splitWords(final String text)
+    {
+        final List<String> result = new ArrayList<>();
+        for (final String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                result.add(word);
+            }
+        }
+        return result;
+    }
+}
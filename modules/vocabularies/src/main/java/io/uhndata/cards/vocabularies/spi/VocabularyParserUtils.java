@@ -53,16 +53,11 @@
     public void clearVocabularyNode(final Node homepage, final String name, final String overwrite)
         throws VocabularyIndexException
     {
+        checkCanOverwrite(homepage, name, overwrite);
         try {
             // Only delete the node if it exists
             if (homepage.hasNode(name)) {
-                if (overwrite != null && "true".equalsIgnoreCase(overwrite)) {
-                    Node target = homepage.getNode(name);
-                    target.remove();
-                } else {
-                    throw new VocabularyIndexException("The identifier you specified already exists in the"
-                        + " repository and you did not ");
-                }
+                homepage.getNode(name).remove();
             }
         } catch (RepositoryException e) {
             String message = "Error: Failed to delete existing Vocabulary node. " + e.getMessage();
@@ -70,6 +65,30 @@ public void clearVocabularyNode(final Node homepage, final String name, final St
         }
     }
 
+    /**
+     * Check that a vocabulary with the given name can be installed. An exception is thrown if the overwrite parameter
+     * is not enabled and a vocabulary of the given name already exists in the repository. The existing vocabulary is
+     * not removed, so that it is still available if indexing the new one fails.
+     *
+     * @param homepage an instance of the VocabulariesHomepage node serving as the root of Vocabulary nodes
+     * @param name the identifier of the vocabulary which will become its node name
+     * @param overwrite signals whether a pre-existing vocabulary is to be overwritten by one with the same name
+     * @throws VocabularyIndexException thrown when the vocabulary exists and cannot be overwritten
+     */
+    public void checkCanOverwrite(final Node homepage, final String name, final String overwrite)
+        throws VocabularyIndexException
+    {
+        try {
+            if (homepage.hasNode(name) && !"true".equalsIgnoreCase(overwrite)) {
+                throw new VocabularyIndexException("The identifier you specified already exists in the"
+                    + " repository and you did not ");
+            }
+        } catch (RepositoryException e) {
+            String message = "Error: Failed to check existing Vocabulary node. " + e.getMessage();
+            throw new VocabularyIndexException(message, e);
+        }
+    }
+
     /**
      * Writes a json to the http response consisting of two entries.
      * <p>
@@ -30,7 +30,6 @@
 import javax.jcr.Node;
 import javax.jcr.Property;
 import javax.jcr.RepositoryException;
-import javax.jcr.Session;
 import javax.jcr.Value;
 import javax.json.Json;
 import javax.json.JsonObject;
@@ -40,9 +39,8 @@
 import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
-import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.api.servlets.HttpConstants;
-import org.apache.sling.testing.mock.jcr.MockJcr;
+import org.apache.sling.testing.mock.sling.ResourceResolverType;
 import org.apache.sling.testing.mock.sling.junit.SlingContext;
 import org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletRequest;
 import org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletResponse;
@@ -59,7 +57,6 @@
 import org.mockito.runners.MockitoJUnitRunner;
 import org.osgi.framework.BundleContext;
 
-import com.google.common.base.Function;
 import io.uhndata.cards.vocabularies.internal.NCITFlatIndexer;
 import io.uhndata.cards.vocabularies.spi.VocabularyIndexer;
 import io.uhndata.cards.vocabularies.spi.VocabularyParserUtils;
@@ -73,7 +70,7 @@
 public class VocabularyIndexerServletTest
 {
     @Rule
-    public SlingContext context = new SlingContext();
+    public SlingContext context = new SlingContext(ResourceResolverType.JCR_OAK);
 
     @Mock
     private List<VocabularyIndexer> parsers;
@@ -100,43 +97,7 @@ public void setup() throws LoginException
         Mockito.when(this.parsers.iterator()).thenReturn(realParsers.iterator());
         // BundleContext and ResourceResolver for creating resources and instantiating requests
         this.slingBundleContext = this.context.bundleContext();
-        this.resourceResolver = this.slingBundleContext
-            .getService(this.slingBundleContext.getServiceReference(ResourceResolverFactory.class))
-            .getServiceResourceResolver(null);
-    }
-
-    /**
-     * Registers a {@link org.apache.sling.api.resource.Resource} to {@link javax.jcr.node} adapter. At present, this
-     * does not seem to be fully functional yet.
-     *
-     * @param session - MockJcr session used in test
-     */
-    public void registerResourceToNodeAdapter(Session session)
-    {
-        // Register the given google function
-        this.context.registerAdapter(Resource.class, Node.class,
-            new Function<Resource, Node>()
-            {
-                @Override
-                public Node apply(Resource resource)
-                {
-                    // Take in a resource and try to do the following:
-                    Node node;
-                    try {
-                        // Return the node at the same path as the resource
-                        node = session.getNode(resource.getPath());
-                    } catch (Exception e) {
-                        try {
-                            // If node can't be found at the same path as the resource, return the root node
-                            node = session.getNode("/");
-                        } catch (RepositoryException e1) {
-                            // If the root node can't be found, return a null node
-                            node = null;
-                        }
-                    }
-                    return node;
-                }
-            });
+        this.resourceResolver = this.context.resourceResolver();
     }
 
     /**
@@ -158,6 +119,28 @@ public void makeRequestResource(ResourceResolver resourceResolver)
 
         // Create the new node at /Vocabularies
         resourceResolver.create(root, "Vocabularies", props);
+        resourceResolver.commit();
+    }
+
+    /**
+     * Installs a vocabulary with a single term named <code>OLD</code>, saved and checked in like the indexers leave it.
+     *
+     * @param homepage - the <code>VocabulariesHomepage</code> node
+     * @throws RepositoryException if the vocabulary cannot be created
+     */
+    private void installOldVocabulary(Node homepage)
+        throws RepositoryException
+    {
+        Node vocabulary = homepage.addNode("flatTestVocabulary", "cards:Vocabulary");
+        vocabulary.setProperty("identifier", "flatTestVocabulary");
+        vocabulary.setProperty("name", "Old vocabulary");
+        vocabulary.setProperty("source", "ncit-flat");
+        vocabulary.setProperty("version", "19.05c");
+        Node term = vocabulary.addNode("OLD", "cards:VocabularyTerm");
+        term.setProperty("identifier", "OLD");
+        term.setProperty("label", "Old term");
+        homepage.getSession().save();
+        homepage.getSession().getWorkspace().getVersionManager().checkin(vocabulary.getPath());
     }
 
     /**
@@ -245,10 +228,6 @@ public void testNoVersionProvided()
     {
         // Set up mock repository
 
-        // Instantiate a MockJcr session and register a Resource to Node adapter to it
-        final Session session = MockJcr.newSession();
-        registerResourceToNodeAdapter(session);
-
         // Create a mock VocabulariesHomepage node /Vocabularies to act as the resource for the request
         makeRequestResource(this.resourceResolver);
 
@@ -282,7 +261,7 @@ public void testNoVersionProvided()
 
         // Make sure that the vocabulary node was not created
         Node rootNode = request.getResource().adaptTo(Node.class);
-        Assert.assertFalse(rootNode.hasNode("/flatTestvocabulary"));
+        Assert.assertFalse(rootNode.hasNode("flatTestVocabulary"));
     }
 
     /**
@@ -296,10 +275,6 @@ public void testInvalidFileLocation()
     {
         // Set up mock repository
 
-        // Instantiate a MockJcr session and register a Resource to Node adapter to it
-        final Session session = MockJcr.newSession();
-        registerResourceToNodeAdapter(session);
-
         // Create a mock VocabulariesHomepage node /Vocabularies to act as the resource for the request
         makeRequestResource(this.resourceResolver);
 
@@ -336,7 +311,7 @@ public void testInvalidFileLocation()
 
         // Make sure the vocabulary node was not created
         Node rootNode = request.getResource().adaptTo(Node.class);
-        Assert.assertFalse(rootNode.hasNode("/flatTestvocabulary"));
+        Assert.assertFalse(rootNode.hasNode("flatTestVocabulary"));
     }
 
     /**
@@ -351,10 +326,6 @@ public void testNCITFlatIndexing()
     {
         // Set up mock repository
 
-        // Instantiate a MockJcr session and register a Resource to Node adapter to it
-        final Session session = MockJcr.newSession();
-        registerResourceToNodeAdapter(session);
-
         // Create a mock VocabulariesHomepage node /Vocabularies to act as the resource for the request
         makeRequestResource(this.resourceResolver);
 
@@ -385,6 +356,64 @@ public void testNCITFlatIndexing()
         ncitFlatTestC100008(vocabNode);
     }
 
+    /**
+     * Tests that {@link VocabularyIndexerServlet} replaces an installed vocabulary once the new one is indexed.
+     *
+     * @throws Exception when an unexpected response is returned or the request has failed
+     */
+    @Test
+    public void testOverwriteReplacesVocabulary()
+        throws Exception
+    {
+        makeRequestResource(this.resourceResolver);
+        MockSlingHttpServletRequest request =
+            new MockSlingHttpServletRequest(this.resourceResolver, this.slingBundleContext);
+        request.setResource(this.resourceResolver.getResource("/Vocabularies"));
+        Node rootNode = request.getResource().adaptTo(Node.class);
+        installOldVocabulary(rootNode);
+
+        MockSlingHttpServletResponse response = new MockSlingHttpServletResponse();
+        String requestParams = "source=ncit-flat&identifier=flatTestVocabulary&version=19.05d&overwrite=true"
+            + "&localpath=" + getClass().getResource("/flat_NCIT_type_testcase.zip").getPath();
+        makePost(request, response, requestParams);
+
+        JsonObject responseJson = Json.createReader(new StringReader(response.getOutputAsString())).readObject();
+        Assert.assertTrue(responseJson.getBoolean("isSuccessful"));
+        Node vocabNode = rootNode.getNode("flatTestVocabulary");
+        Assert.assertEquals("cards:Vocabulary", vocabNode.getPrimaryNodeType().getName());
+        ncitFlatTestVocabularyNode(vocabNode);
+        Assert.assertFalse(vocabNode.hasNode("OLD"));
+        Assert.assertFalse(vocabNode.isCheckedOut());
+        Assert.assertFalse(rootNode.hasNode("flatTestVocabulary.staging"));
+    }
+
+    /**
+     * Tests that {@link VocabularyIndexerServlet} keeps an installed vocabulary if indexing its replacement fails.
+     *
+     * @throws Exception when an unexpected response is returned or the request has failed
+     */
+    @Test
+    public void testFailedOverwriteKeepsVocabulary()
+        throws Exception
+    {
+        makeRequestResource(this.resourceResolver);
+        MockSlingHttpServletRequest request =
+            new MockSlingHttpServletRequest(this.resourceResolver, this.slingBundleContext);
+        request.setResource(this.resourceResolver.getResource("/Vocabularies"));
+        Node rootNode = request.getResource().adaptTo(Node.class);
+        installOldVocabulary(rootNode);
+
+        MockSlingHttpServletResponse response = new MockSlingHttpServletResponse();
+        String requestParams =
+            "source=ncit-flat&identifier=flatTestVocabulary&version=19.05d&overwrite=true&localpath=./someLocation";
+        makePost(request, response, requestParams);
+
+        JsonObject responseJson = Json.createReader(new StringReader(response.getOutputAsString())).readObject();
+        Assert.assertFalse(responseJson.getBoolean("isSuccessful"));
+        Assert.assertTrue(rootNode.hasNode("flatTestVocabulary/OLD"));
+        Assert.assertFalse(rootNode.hasNode("flatTestVocabulary.staging"));
+    }
+
     /**
      * Checks if all of the terms in the test vocabulary have been created as valid nodes by the parsing/indexing
      * process.
@@ -0,0 +1,155 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+*   http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package io.uhndata.cards.vocabularies;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import io.uhndata.cards.vocabularies.internal.VocabularySuggestionIndex;
+
+/**
+ * Unit tests for {@link VocabularyTermSearchServlet}.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class VocabularyTermSearchServletTest
+{
+    private static final String VOCABULARY = "/Vocabularies/TEST";
+
+    private static final String SUGGEST = "suggest";
+
+    @Mock
+    private VocabularySuggestionIndex suggestionIndex;
+
+    @InjectMocks
+    private VocabularyTermSearchServlet servlet;
+
+    @Mock
+    private SlingHttpServletRequest request;
+
+    @Mock
+    private SlingHttpServletResponse response;
+
+    @Mock
+    private ResourceResolver resolver;
+
+    private final StringWriter output = new StringWriter();
+
+    @Before
+    public void setupRequest() throws IOException
+    {
+        final Resource vocabulary = Mockito.mock(Resource.class);
+        Mockito.when(vocabulary.getPath()).thenReturn(VOCABULARY);
+        Mockito.when(this.request.getResource()).thenReturn(vocabulary);
+        Mockito.when(this.request.getResourceResolver()).thenReturn(this.resolver);
+        Mockito.when(this.request.getParameter(SUGGEST)).thenReturn("heart");
+        Mockito.when(this.response.getWriter()).thenReturn(new PrintWriter(this.output));
+        Mockito.when(this.suggestionIndex.suggest(VOCABULARY, "heart", false))
+            .thenReturn(Arrays.asList(VOCABULARY + "/T1", VOCABULARY + "/T2", VOCABULARY + "/T3", VOCABULARY + "/T4"));
+        for (final String term : new String[] { "T1", "T3", "T4" }) {
+            final Resource resource = Mockito.mock(Resource.class);
+            Mockito.when(resource.adaptTo(JsonObject.class))
+                .thenReturn(Json.createObjectBuilder().add("identifier", term).build());
+            Mockito.when(this.resolver.getResource(VOCABULARY + "/" + term)).thenReturn(resource);
+        }
+    }
+
+    @Test
+    public void inaccessibleSuggestionsAreNotReturnedOrCounted() throws IOException
+    {
+        Mockito.when(this.request.getParameter("limit")).thenReturn("2");
+
+        this.servlet.doGet(this.request, this.response);
+
+        final JsonObject result = Json.createReader(new StringReader(this.output.toString())).readObject();
+        Assert.assertEquals(3, result.getInt("totalrows"));
+        Assert.assertTrue(result.getBoolean("totalIsApproximate"));
+        Assert.assertEquals(2, result.getInt("returnedrows"));
+        Assert.assertEquals("T1", result.getJsonArray("rows").getJsonObject(0).getString("identifier"));
+        Assert.assertEquals("T3", result.getJsonArray("rows").getJsonObject(1).getString("identifier"));
+        Assert.assertFalse(result.containsKey("oakquery"));
+    }
+
+    @Test
+    public void offsetSkipsOnlyAccessibleSuggestions() throws IOException
+    {
+        Mockito.when(this.request.getParameter("offset")).thenReturn("1");
+
+        this.servlet.doGet(this.request, this.response);
+
+        final JsonObject result = Json.createReader(new StringReader(this.output.toString())).readObject();
+        Assert.assertEquals(3, result.getInt("totalrows"));
+        Assert.assertFalse(result.getBoolean("totalIsApproximate"));
+        Assert.assertEquals(2, result.getInt("returnedrows"));
+        Assert.assertEquals("T3", result.getJsonArray("rows").getJsonObject(0).getString("identifier"));
+        Assert.assertEquals("T4", result.getJsonArray("rows").getJsonObject(1).getString("identifier"));
+    }
+
+    @Test
+    public void suggestionsAfterTheRequestedPageAreNotResolved() throws IOException
+    {
+        Mockito.when(this.request.getParameter("limit")).thenReturn("1");
+
+        this.servlet.doGet(this.request, this.response);
+
+        final JsonObject result = Json.createReader(new StringReader(this.output.toString())).readObject();
+        Assert.assertEquals(2, result.getInt("totalrows"));
+        Assert.assertTrue(result.getBoolean("totalIsApproximate"));
+        Assert.assertEquals(1, result.getInt("returnedrows"));
+        Mockito.verify(this.resolver, Mockito.never()).getResource(VOCABULARY + "/T4");
+    }
+
+    @Test
+    public void filteredSuggestionsUseTheQueryEngine() throws IOException
+    {
+        Mockito.when(this.request.getParameter("customFilter")).thenReturn("is_a:T1");
+        Mockito.when(this.resolver.findResources(Matchers.anyString(), Matchers.eq("JCR-SQL2")))
+            .thenReturn(Arrays.<Resource>asList().iterator());
+
+        this.servlet.doGet(this.request, this.response);
+
+        Mockito.verify(this.suggestionIndex, Mockito.never()).suggest(Matchers.anyString(), Matchers.anyString(),
+            Matchers.anyBoolean());
+        final JsonObject result = Json.createReader(new StringReader(this.output.toString())).readObject();
+        Assert.assertEquals(0, result.getInt("totalrows"));
+        Assert.assertTrue(result.getString("oakquery").contains("contains(a.*, '*heart*')"));
+    }
+}
@@ -0,0 +1,172 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+*   http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package io.uhndata.cards.vocabularies.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+/**
+ * Unit tests for {@link VocabularySuggestionIndex}.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class VocabularySuggestionIndexTest
+{
+    private static final String VOCABULARY = "/Vocabularies/TEST";
+
+    @Mock
+    private ResourceResolverFactory resolverFactory;
+
+    @Mock
+    private ResourceResolver resolver;
+
+    @InjectMocks
+    private VocabularySuggestionIndex index;
+
+    @Before
+    public void setupTerms() throws LoginException
+    {
+        Mockito.when(this.resolverFactory.getServiceResourceResolver(
+            Map.of(ResourceResolverFactory.SUBSERVICE, "suggestionIndex"))).thenReturn(this.resolver);
+        Mockito.when(this.resolver.findResources(Matchers.anyString(), Matchers.eq("JCR-SQL2")))
+            .thenAnswer(invocation -> Arrays.asList(
+                term("T1", "Heart disease", "cardiopathy"),
+                term("T2", "Congenital heart disease"),
+                term("T3", "Heart"),
+                term("T4", "Disease of the heart"),
+                term("T5", "Cardiac arrest", "heart attack"),
+                term("T6", "Echocardiogram"),
+                term("T7", "Heartburn")).iterator());
+    }
+
+    @Test
+    public void exactLabelsComeFirst()
+    {
+        Assert.assertEquals(terms("T3", "T7", "T1", "T4", "T2", "T5"), this.index.suggest(VOCABULARY, "heart", false));
+    }
+
+    @Test
+    public void labelPrefixesComeBeforeOtherLabelMatches()
+    {
+        Assert.assertEquals(terms("T1", "T4", "T2"), this.index.suggest(VOCABULARY, "Heart Dis", false));
+    }
+
+    @Test
+    public void labelMatchesComeBeforeSynonymMatches()
+    {
+        Assert.assertEquals(terms("T5", "T1"), this.index.suggest(VOCABULARY, "cardi", false));
+    }
+
+    @Test
+    public void wordsAreNotMatchedInTheMiddle()
+    {
+        Assert.assertEquals(Collections.emptyList(), this.index.suggest(VOCABULARY, "cardiogram", false));
+        Assert.assertEquals(Collections.emptyList(), this.index.suggest(VOCABULARY, "eart", false));
+    }
+
+    @Test
+    public void identifiersAreMatched()
+    {
+        Assert.assertEquals(terms("T5"), this.index.suggest(VOCABULARY, "t5", false));
+    }
+
+    @Test
+    public void typosAreOnlyMatchedWhenFuzzy()
+    {
+        Assert.assertEquals(Collections.emptyList(), this.index.suggest(VOCABULARY, "arest", false));
+        Assert.assertEquals(terms("T5"), this.index.suggest(VOCABULARY, "arest", true));
+    }
+
+    @Test
+    public void indexIsBuiltOnceWithTheServiceResolver() throws LoginException
+    {
+        this.index.suggest(VOCABULARY, "heart", false);
+        this.index.suggest(VOCABULARY, "disease", false);
+        Mockito.verify(this.resolverFactory, Mockito.times(1))
+            .getServiceResourceResolver(Matchers.anyMapOf(String.class, Object.class));
+        Mockito.verify(this.resolver).close();
+    }
+
+    @Test
+    public void changesDiscardTheIndex() throws LoginException
+    {
+        this.index.suggest(VOCABULARY, "heart", false);
+        this.index.onChange(Collections.singletonList(
+            new ResourceChange(ChangeType.CHANGED, VOCABULARY + "/T1", false)));
+        this.index.suggest(VOCABULARY, "heart", false);
+        Mockito.verify(this.resolverFactory, Mockito.times(2))
+            .getServiceResourceResolver(Matchers.anyMapOf(String.class, Object.class));
+    }
+
+    @Test
+    public void changesToOtherVocabulariesKeepTheIndex() throws LoginException
+    {
+        this.index.suggest(VOCABULARY, "heart", false);
+        this.index.onChange(Collections.singletonList(
+            new ResourceChange(ChangeType.ADDED, VOCABULARY + ".staging/T1", false)));
+        this.index.suggest(VOCABULARY, "heart", false);
+        Mockito.verify(this.resolverFactory, Mockito.times(1))
+            .getServiceResourceResolver(Matchers.anyMapOf(String.class, Object.class));
+    }
+
+    @Test
+    public void nothingIsSuggestedWithoutTheServiceUser() throws LoginException
+    {
+        Mockito.when(this.resolverFactory.getServiceResourceResolver(Matchers.anyMapOf(String.class, Object.class)))
+            .thenThrow(new LoginException("No service user"));
+        Assert.assertEquals(Collections.emptyList(), this.index.suggest(VOCABULARY, "heart", false));
+    }
+
+    private static Resource term(final String identifier, final String label, final String... synonyms)
+    {
+        final Resource result = Mockito.mock(Resource.class);
+        Mockito.when(result.getPath()).thenReturn(VOCABULARY + "/" + identifier);
+        Mockito.when(result.getValueMap()).thenReturn(new ValueMapDecorator(
+            Map.of("identifier", identifier, "label", label, "synonym", synonyms)));
+        return result;
+    }
+
+    private static List<String> terms(final String... identifiers)
+    {
+        return Arrays.stream(identifiers).map(identifier -> VOCABULARY + "/" + identifier)
+            .collect(Collectors.toList());
+    }
+}